@@ -1,35 +1,51 @@
 package server.client.chat;
 
+import java.io.IOException;
 import java.net.UnknownHostException;
-import java.util.Date;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.net.InetAddress;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 /**
- * Controller for the client view and the client model.
+ * Controller for the client view and the client model. Network results arrive as callbacks
+ * from the model, so no action started from the view waits on the network.
  * 
  * @author Robert McKay
  */
-public class ClientController {
+public class ClientController implements ClientModelListener {
     // class constants
     private static final boolean CLOSED_BY_CLIENT = true;
     private static final boolean CLOSED_BY_SERVER = false;
+    private static final String SEND_FILE_COMMAND = "/sendfile ";
+    private static final String EXPORT_COMMAND = "/export ";
+    private static final String IMPORT_COMMAND = "/import ";
+    private static final String JOINED_REPLY = "Joined room ";
+    private static final String NICK_REPLY = "Nickname set to ";
+    private static final String LOGIN_REPLY = "Logged in as ";
+    private static final int IMPORT_BATCH = 500;
+    private static final int COMPACT_AFTER = 256;
 
     // class attributes
     private ClientView view;
     private ClientModel model;
-    private MessageListener messageListener;
-
-    /**
-     * Inner class. Listens for incoming messages. Runs in a separate thread.
-     */
-    private class MessageListener extends Thread {
-        @Override
-        public void run() {
-            while (model.isConnected()) {
-                receiveMessage();
-            }
-        }
-    }
+    private ClientTransfers transfers;
+    private ClientPresence presence;
+    private MessageStore history;
+    private volatile MessageCache cache;
+    private volatile boolean isSynced;
+    private volatile int replaying;
+    // room of the sync in progress, and its live posts that overtook the replay
+    private volatile String syncing;
+    private final List<String> held;
+    private volatile String nickname;
+    private volatile String token;
+    private volatile String room;
 
     /**
      * Constructor.
@@ -39,6 +55,12 @@ public class ClientController {
     public ClientController(ClientView view, ClientModel model) {
         this.view = view;
         this.model = model;
+        transfers = new ClientTransfers(view, model);
+        presence = new ClientPresence(view, model);
+        history = new MessageStore();
+        held = new ArrayList<>();
+        room = Protocol.DEFAULT_ROOM;
+        model.setListener(this);
     }
 
     /**
@@ -52,6 +74,8 @@ public class ClientController {
         view.addHelpButtonListener(e -> help());
         view.addSendButtonListener(e -> sendMessage());
         view.addClearButtonListener(e -> view.clear());
+        view.addAwayListener(e -> presence.setAway(view.isAway()));
+        view.addTypingListener(presence::typed);
     }
 
     /**
@@ -60,23 +84,51 @@ public class ClientController {
      * @throws IllegalArgumentException If the message is empty or exceeds 1000 characters.
      */
     private String getValidMessage() throws IllegalArgumentException {
-        String message = view.getMessage();
-        if (message.equals("") || message.equals(ClientView.DEFAULT_MESSAGE)) {
-            throw new IllegalArgumentException("No message entered in message field");
-        } else if (message.length() > 1000) {
-            throw new IllegalArgumentException("Message exceeds maximamum size (1000 characters)");
-        }
-        return message;
+        return Protocol.validate(view.getMessage(), ClientView.DEFAULT_MESSAGE);
     }
 
     /**
-     * Sends a message to the server.
+     * Sends a message to the server, or offers a file with the send file command. Also
+     * logs in, and exports and imports room transcripts.
      */
     private void sendMessage() {
         try {
             String message = getValidMessage();
-            model.sendMessage(message);
-            view.addMessage("Client sends - " + new Date() + ": " + message);
+            if (message.startsWith(EXPORT_COMMAND)) {
+                String[] parts = message.split(" ", 3);
+                if (parts.length < 3) {
+                    throw new IllegalArgumentException("Usage: /export <room> <path>");
+                }
+                exportTranscript(parts[1], parts[2]);
+                return;
+            }
+            if (message.startsWith(IMPORT_COMMAND)) {
+                importTranscript(message.substring(IMPORT_COMMAND.length()).trim());
+                return;
+            }
+            if (message.startsWith(Protocol.LOGIN_COMMAND)) {
+                String[] parts = message.split(" ", 3);
+                if (parts.length < 3) {
+                    throw new IllegalArgumentException("Usage: /login <user> <password>");
+                }
+                // not sequenced, so the password is never held for resending
+                model.sendMessage(message);
+                view.addMessage("Logging in as " + parts[1]);
+                return;
+            }
+            if (message.startsWith(SEND_FILE_COMMAND)) {
+                String[] parts = message.split(" ", 3);
+                if (parts.length < 3) {
+                    throw new IllegalArgumentException("Usage: /sendfile <user> <path>");
+                }
+                transfers.offer(parts[1], parts[2]);
+                view.addMessage("Offering " + parts[2] + " to " + parts[1]);
+                return;
+            }
+            model.sendReliable(message);
+            if (message.startsWith(Protocol.NICK_COMMAND)) {
+                nickname = message.substring(Protocol.NICK_COMMAND.length()).trim();
+            }
         } catch (IllegalArgumentException err) {
             view.addMessage(err.getMessage());
         } catch (ClientModelException err) {
@@ -86,34 +138,448 @@ public class ClientController {
 
     /**
      * Receives a message from the server.
+     * @param message The message read from the server.
+     */
+    @Override
+    public void onMessage(String message) {
+        try {
+            if (transfers.handle(message) || presence.handle(message, nickname)) {
+                return;
+            }
+        } catch (ClientModelException err) {
+            view.addMessage(err.getMessage());
+            return;
+        }
+        if (message.startsWith(Protocol.AUTH_FRAME)) {
+            // "/auth user token", kept to log in again after a reconnect without the password
+            String[] parts = message.split(" ");
+            if (parts.length == 3) {
+                nickname = parts[1];
+                token = parts[2];
+            }
+            return;
+        }
+        if (message.startsWith(Protocol.THROTTLE_FRAME)) {
+            view.addMessage("Sending too fast, server paused reading for "
+                + message.substring(Protocol.THROTTLE_FRAME.length()) + " ms");
+            return;
+        }
+        if (message.startsWith(Protocol.RECONNECT_FRAME)) {
+            reconnect(message);
+            return;
+        }
+        if (message.startsWith(Protocol.REPLAY_FRAME)) {
+            replay(message);
+            return;
+        }
+        if (message.startsWith(Protocol.HISTORY_FRAME)) {
+            replayed(message);
+            return;
+        }
+        if (message.startsWith(Protocol.POST_FRAME)) {
+            post(message);
+            return;
+        }
+        if ((message.startsWith(NICK_REPLY) || message.startsWith(LOGIN_REPLY)) && !isSynced) {
+            // identified now, so the server answers a sync
+            sync(room);
+        }
+        if (message.startsWith(Protocol.EDITED_FRAME) || message.startsWith(Protocol.DELETED_FRAME)) {
+            String[] parts = message.split(" ", 4);
+            boolean isEdit = message.startsWith(Protocol.EDITED_FRAME);
+            if (parts.length < (isEdit ? 4 : 3)) {
+                view.addMessage("Malformed edit frame from server");
+                return;
+            }
+            revise(parts[1], parts[2], isEdit ? parts[3] : null);
+            return;
+        }
+        record(message);
+        view.addMessage(Protocol.logLine("Server sends", message));
+        if (message.equals(Protocol.SERVER_CLOSED)) {
+            disconnect(CLOSED_BY_SERVER);
+        }
+    }
+
+    /**
+     * Handles a reconnect frame sent by a draining server: closes the connection and connects
+     * again after the requested delay plus a random share of the jitter, so the clients of a
+     * drained server do not all reconnect at the same moment.
+     * @param frame The frame read from the server, holding the delay and jitter in ms.
+     */
+    private void reconnect(String frame) {
+        String[] parts = frame.split(" ");
+        long delay;
+        try {
+            delay = Long.parseLong(parts[1]);
+            long jitter = Long.parseLong(parts[2]);
+            delay += jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter) : 0;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException err) {
+            view.addMessage("Malformed reconnect frame from server");
+            return;
+        }
+        view.addMessage("Server is restarting, reconnecting in " + delay + " ms");
+        try {
+            model.disconnect();
+        } catch (ClientModelException err) {
+            // already disconnected, reconnect regardless
+        }
+        Timer timer = new Timer((int) Math.min(delay, Integer.MAX_VALUE), e -> connect());
+        timer.setRepeats(false);
+        timer.start();
+    }
+
+    /**
+     * Shows a message once the server has acknowledged it, so a message lost with the
+     * connection is never shown as sent.
+     * @param message The message delivered.
+     */
+    @Override
+    public void onDelivered(String message) {
+        if (!message.startsWith("/") && nickname != null) {
+            history.append(System.currentTimeMillis(), room, nickname, message);
+        }
+        // acknowledgements are cumulative, so the message edited was delivered before the edit
+        if (message.startsWith(Protocol.EDIT_COMMAND) && nickname != null) {
+            revise(room, nickname, message.substring(Protocol.EDIT_COMMAND.length()).trim());
+            return;
+        }
+        if (message.equals(Protocol.DELETE_COMMAND) && nickname != null) {
+            revise(room, nickname, null);
+            return;
+        }
+        view.addMessage(Protocol.logLine("Client sends", message));
+    }
+
+    /**
+     * Keeps the room messages received in the history, so clearing the chat area does not lose
+     * them, and follows the room the client is in. A room joined is shown from the cache at
+     * once and then brought up to date by the server.
+     * @param message The message read from the server.
+     */
+    private void record(String message) {
+        if (message.startsWith(JOINED_REPLY)) {
+            room = message.substring(JOINED_REPLY.length());
+            showCached(room);
+            sync(room);
+            return;
+        }
+        // "[room] <sender> body"
+        int roomEnd = message.indexOf("] <");
+        int senderEnd = roomEnd < 0 ? -1 : message.indexOf("> ", roomEnd + 3);
+        if (!message.startsWith("[") || senderEnd < 0) {
+            return;
+        }
+        history.append(System.currentTimeMillis(), message.substring(1, roomEnd),
+            message.substring(roomEnd + 3, senderEnd), message.substring(senderEnd + 2));
+    }
+
+    /**
+     * Shows the cached messages of a room, before the server has been asked for newer ones.
+     * @param room The room to show.
      */
-    private void receiveMessage() {
+    private void showCached(String room) {
+        MessageCache current = cache;
+        if (current == null) {
+            return;
+        }
         try {
-            String message = model.receiveMessage();
-            view.addMessage("Server sends - " + new Date() + ": " + message);
-            if (message.equals("connection terminated by server")) {
-                disconnect(CLOSED_BY_SERVER);
+            List<String> lines = current.getTranscript(room);
+            if (!lines.isEmpty()) {
+                view.addMessage("Cached messages of " + room + ":");
+                lines.forEach(view::addMessage);
             }
+        } catch (IOException err) {
+            cacheFailed(err);
+        }
+    }
+
+    /**
+     * Asks the server for the messages of a room after the last one cached. From then on the
+     * server sends the room messages as post frames, with their ids. The replay comes behind
+     * the live chat, so the posts of the room are held until it is complete.
+     * @param room The room to bring up to date.
+     */
+    private void sync(String room) {
+        MessageCache current = cache;
+        if (current == null) {
+            return;
+        }
+        try {
+            // not sequenced: a sync resent after a reconnect would replay from a stale id
+            model.sendMessage(Protocol.SYNC_COMMAND + room + " " + current.getEpoch(room) + " "
+                + current.getLastId(room));
+            isSynced = true;
+            syncing = room;
+        } catch (IOException err) {
+            cacheFailed(err);
         } catch (ClientModelException err) {
+            view.addMessage(err.getMessage());
+        }
+    }
+
+    /**
+     * Starts a replay: "/replay room epoch after count", followed by count history frames.
+     * @param frame The frame read from the server.
+     */
+    private void replay(String frame) {
+        String[] parts = frame.split(" ");
+        try {
+            String replayed = parts[1];
+            int count = Integer.parseInt(parts[4]);
+            MessageCache current = cache;
+            long epoch = Long.parseLong(parts[2]);
+            int after = Integer.parseInt(parts[3]);
+            if (current != null && current.replay(replayed, epoch, after)) {
+                view.addMessage("Cached messages of " + replayed + " are out of date, showing the server's");
+            }
+            replaying = count;
+            if (count > 0) {
+                view.addMessage("Catching up on " + count + " messages of " + replayed);
+            } else {
+                releaseHeld();
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException err) {
+            view.addMessage("Malformed replay frame from server");
+        } catch (IOException err) {
+            cacheFailed(err);
+        }
+    }
+
+    /**
+     * Receives a replayed room message: "/history room id timestamp sender body". The posts
+     * held back during the replay are let through after the last one.
+     * @param frame The frame read from the server.
+     */
+    private void replayed(String frame) {
+        receive(frame, true);
+        if (replaying > 0 && --replaying == 0) {
+            releaseHeld();
+        }
+    }
+
+    /**
+     * Receives a live room message: "/post room id timestamp sender body". A post of the room
+     * being replayed is held until the replay is complete, so messages stay in order.
+     * @param frame The frame read from the server.
+     */
+    private void post(String frame) {
+        String[] parts = frame.split(" ", 3);
+        if (parts.length > 1 && parts[1].equals(syncing)) {
+            held.add(frame);
+            return;
+        }
+        receive(frame, false);
+    }
+
+    /**
+     * Ends the sync in progress and receives the posts that arrived during its replay. Posts
+     * the replay had already are dropped by the cache.
+     */
+    private void releaseHeld() {
+        syncing = null;
+        List<String> frames = new ArrayList<>(held);
+        held.clear();
+        frames.forEach(frame -> receive(frame, false));
+    }
+
+    /**
+     * Keeps a room message with its id in the cache and shows it unless the cache had it
+     * already; the client's own message is only shown when it is replayed, it was shown when
+     * the server acknowledged it.
+     * @param frame The post or history frame read from the server.
+     * @param isReplayed True if the message is part of a replay.
+     */
+    private void receive(String frame, boolean isReplayed) {
+        String[] parts = frame.split(" ", 6);
+        int id;
+        long timestamp;
+        String body;
+        try {
+            id = Integer.parseInt(parts[2]);
+            timestamp = Long.parseLong(parts[3]);
+            body = parts[5];
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException err) {
+            view.addMessage("Malformed room message frame from server");
             return;
         }
+        String posted = parts[1];
+        String sender = parts[4];
+        boolean isNew = true;
+        MessageCache current = cache;
+        try {
+            isNew = current == null || current.add(posted, id, timestamp, sender, body);
+        } catch (IOException err) {
+            cacheFailed(err);
+        }
+        boolean isOwn = sender.equals(nickname);
+        if (isNew && (isReplayed || !isOwn)) {
+            if (!isOwn) {
+                // the client's own messages went into the history when they were acknowledged
+                history.append(timestamp, posted, sender, body);
+            }
+            view.addMessage(Protocol.logLine("Server sends", "[" + posted + "] <" + sender + "> " + body));
+        }
+    }
+
+    /**
+     * Stops using the cache after it failed to read or write; the chat goes on without it.
+     * @param err The failure.
+     */
+    private void cacheFailed(IOException err) {
+        MessageCache current = cache;
+        cache = null;
+        if (current != null) {
+            current.close();
+            view.addMessage("Message cache disabled: " + err.getMessage());
+        }
+    }
+
+    /**
+     * Applies an edit or delete to the sender's latest message of a room in the history, the
+     * message the server applied it to, and shows it.
+     * @param room The room the message was sent to.
+     * @param sender Display name of the sender.
+     * @param body The new text of the message, or null if it was deleted.
+     */
+    private void revise(String room, String sender, String body) {
+        int id = history.findLatest(room, sender, Protocol.REVISION_REACH);
+        if (id >= 0) {
+            if (body == null) {
+                history.delete(id);
+            } else {
+                history.edit(id, body);
+            }
+            if (history.getPendingCount() >= COMPACT_AFTER) {
+                history.compact();
+            }
+        }
+        MessageCache current = cache;
+        try {
+            if (current != null) {
+                current.revise(room, sender, body);
+            }
+        } catch (IOException err) {
+            cacheFailed(err);
+        }
+        view.addMessage("[" + room + "] <" + sender + "> "
+            + (body == null ? "deleted a message" : "(edited) " + body));
+    }
+
+    /**
+     * Writes the received messages of a room to a transcript file on a background thread.
+     * @param room The room to export.
+     * @param path Path of the transcript file to write.
+     */
+    private void exportTranscript(String room, String path) {
+        new Thread(() -> {
+            try (TranscriptWriter writer = new TranscriptWriter(Files.newOutputStream(Paths.get(path)), room)) {
+                int count = history.export(room, writer);
+                show("Exported " + count + " messages of " + room + " to " + path);
+            } catch (IOException | RuntimeException err) {
+                show("Failed to export " + room + ": " + err.getMessage());
+            }
+        }, "transcript-export").start();
     }
 
     /**
-     * Connects the client to the server.
+     * Streams a transcript file into the chat area on a background thread.
+     * @param path Path of the transcript file to read.
+     */
+    private void importTranscript(String path) {
+        new Thread(() -> {
+            try {
+                long count = TranscriptReader.replay(Paths.get(path), IMPORT_BATCH, this::show);
+                show("Imported " + count + " messages from " + path);
+            } catch (IOException | RuntimeException err) {
+                show("Failed to import " + path + ": " + err.getMessage());
+            }
+        }, "transcript-import").start();
+    }
+
+    private void show(String text) {
+        SwingUtilities.invokeLater(() -> view.addMessage(text));
+    }
+
+    /**
+     * Receives a file chunk from the server.
+     * @param transferId The transfer the chunk belongs to.
+     * @param offset Position of the chunk in the file.
+     * @param data Array holding the chunk.
+     * @param length Number of bytes in the chunk.
+     */
+    @Override
+    public void onChunk(int transferId, long offset, byte[] data, int length) {
+        transfers.receiveChunk(transferId, offset, data, length);
+    }
+
+    /**
+     * Starts connecting the client to the server. The result arrives in onConnected or
+     * onConnectFailed.
      */
     private void connect() {
         try {
             model.connect();
-            view.addMessage("Addres of client: " + model.getClientAddress());
-            view.addMessage("Connected with server!");
-            messageListener = new MessageListener();
-            messageListener.start();
+            view.addMessage("Connecting to server...");
+        } catch (ClientModelException err) {
+            view.addMessage(err.getMessage());
+        }
+    }
+
+    /**
+     * Reports the new connection. The default room is shown from the cache straight away. After
+     * a reconnect the client logs in again with its token, or registers its nickname again, and
+     * asks for the messages it missed; unfinished file transfers continue where they stopped.
+     */
+    @Override
+    public void onConnected() {
+        view.addMessage("Addres of client: " + model.getClientAddress());
+        view.addMessage("Connected with server!");
+        // a new session starts in the default room
+        room = Protocol.DEFAULT_ROOM;
+        if (cache != null) {
+            cache.close();
+        }
+        cache = MessageCache.forServer(model.getServerAddress(), model.getPort());
+        isSynced = false;
+        replaying = 0;
+        syncing = null;
+        held.clear();
+        showCached(room);
+        try {
+            if (token != null) {
+                model.sendMessage(Protocol.TOKEN_COMMAND + nickname + " " + token);
+            } else if (nickname != null) {
+                model.sendMessage(Protocol.NICK_COMMAND + nickname);
+            }
+            if (nickname != null) {
+                sync(room);
+                transfers.resume();
+            }
+            presence.resume();
         } catch (ClientModelException err) {
             view.addMessage(err.getMessage());
         }
     }
 
+    /**
+     * Reports a failed connection attempt.
+     * @param reason Description of the failure.
+     */
+    @Override
+    public void onConnectFailed(String reason) {
+        view.addMessage("Failed to connect to server: " + reason);
+    }
+
+    /**
+     * Reports a connection lost without the client asking for it.
+     * @param reason Description of the failure.
+     */
+    @Override
+    public void onDisconnected(String reason) {
+        view.addMessage("Disconnected from Server: " + reason);
+    }
+
      /**
       * Terminates the current connection with the server.
       * @param closedByClient True if the client closed the connection.
@@ -121,9 +587,12 @@ public class ClientController {
     private void disconnect(boolean closedByClient) {
         try {
             if (closedByClient) {
-                model.sendMessage("connection terminated by client");
+                model.sendMessage(Protocol.CLIENT_CLOSED);
             }
             model.disconnect();
+            if (cache != null) {
+                cache.close();
+            }
             view.addMessage("Disconnected from Server");
         } catch (ClientModelException err) {
             view.addMessage(err.getMessage());
@@ -149,19 +618,22 @@ public class ClientController {
     }
 
     /**
-     * Update the target server address to connect to.
+     * Update the target server address to connect to. The host name is resolved on a
+     * background thread because a DNS lookup can take as long as a connect timeout.
      */
     private void updateAddress() {
         String candidate = view.getMessage();
-        try {
-            InetAddress address = InetAddress.getByName(candidate);
-            model.setServerAddress(address);
-            view.addMessage("Target server address updated successfully!");
-        } catch (UnknownHostException err) {
-            view.addMessage("Failed to verify address");
-        } catch (ClientModelException err) {
-            view.addMessage(err.getMessage());
-        }
+        CompletableFuture.runAsync(() -> {
+            try {
+                InetAddress address = InetAddress.getByName(candidate);
+                model.setServerAddress(address);
+                view.addMessage("Target server address updated successfully!");
+            } catch (UnknownHostException err) {
+                view.addMessage("Failed to verify address");
+            } catch (ClientModelException err) {
+                view.addMessage(err.getMessage());
+            }
+        });
     }
 
     /**
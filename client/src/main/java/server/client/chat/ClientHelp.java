@@ -24,6 +24,22 @@ public class ClientHelp extends JFrame {
         "-------------------- Sending/Receving Messages -----------------------\n" +
         "Enter a message in the text box at the bottom and click 'Send Message.'\n" +
         "Messages from the server will automatically appear in the chat area.\n" +
+        "Enter '/nick <name>' to pick a nickname, or '/login <user> <password>'\n" +
+        "if the server requires a login, then '/msg <user> <message>'\n" +
+        "to send a private message to another user. Messages go to the 'lobby'\n" +
+        "room by default, enter '/join <room>' to switch rooms.\n" +
+        "Enter '/sendfile <user> <path>' to send a file. Received files are saved\n" +
+        "in the ChatDownloads folder of your home directory.\n" +
+        "Enter '/search <terms>' to find recent messages of your room.\n" +
+        "Enter '/edit <new text>' to correct your last message in the room and\n" +
+        "'/delete' to remove it, everyone in the room sees the change.\n" +
+        "Enter '/export <room> <path>' to archive the messages received in a room,\n" +
+        "they are kept even after 'Clear', and '/import <path>' to show an archive.\n" +
+        "Recent messages of each room are cached in the ChatCache folder of your\n" +
+        "home directory, shown as soon as you connect or join, and only the\n" +
+        "messages you missed are fetched from the server.\n" +
+        "Who is typing or away in your room is shown below the chat area. Tick\n" +
+        "'Away' to show others that you are away.\n" +
         "Use the 'Clear' button to remove all messages from the chat box";
 
     /**
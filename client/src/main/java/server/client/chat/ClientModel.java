@@ -1,26 +1,223 @@
 package server.client.chat;
 
-import java.net.Socket;
 import java.net.UnknownHostException;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ClientModel connects to a server and opens an I/O stream with the connected server.
+ * All network I/O is asynchronous: connect, read and write are started on an
+ * AsynchronousSocketChannel and complete on its threads, reporting back through a
+ * {@link ClientModelListener}. No method of the model blocks on the network, so it is safe to
+ * call from the Swing event dispatch thread.
  * 
  * @author Robert McKay
  */
 public class ClientModel {
-    private boolean isConnected;
+    // class constants
+    private static final long WRITE_HIGH_WATER = 1024 * 1024;
+    private static final long CLOSE_GRACE_MILLIS = 1000;
+    private static final int STREAM_CAPACITY = 256;
+    private static final int STREAM_ACK_EVERY = 32;
+    private static final long STREAM_ACK_DELAY_MILLIS = 200;
+
+    private volatile boolean isConnected;
+    private volatile boolean isConnecting;
     private int port;
     private InetAddress clientAddress;
-    private InetAddress serverAddress;
-    private Socket connection;
-    private DataOutputStream outputStream;
-    private BufferedReader inputStream;
+    private volatile InetAddress serverAddress;
+    private final long connectTimeoutMillis;
+    private final ScheduledExecutorService timer;
+    private final Object writeLock;
+    private final String streamId;
+    // issued by the server with each welcome, it lets this client alone resume the stream
+    private volatile String streamKey;
+    private final ReliableStream stream;
+    private ClientModelListener listener;
+    private volatile Connection connection;
+
+    /**
+     * One connection attempt with the server and everything that lives as long as it does,
+     * its write queue included. Completion handlers of an old connection never touch a newer
+     * one, so a connection still flushing its last frames after a disconnect neither writes
+     * the frames of the next connection nor holds up its writes.
+     */
+    private class Connection {
+        private final AsynchronousSocketChannel channel;
+        private final FrameDecoder decoder;
+        private final ReadBufferSizer sizer;
+        private final ByteBuffer spare;
+        private final AtomicBoolean isOpen;
+        private final Queue<ByteBuffer> writeQueue;
+        private final AtomicBoolean isWriting;
+        private final AtomicLong pendingBytes;
+        private volatile boolean isClosing;
+        private volatile boolean isLeaving;
+
+        Connection(AsynchronousSocketChannel channel) {
+            this.channel = channel;
+            decoder = new FrameDecoder();
+            sizer = ReadBufferSizer.fromProperties();
+            spare = ByteBuffer.allocate(sizer.getMinSize());
+            isOpen = new AtomicBoolean(true);
+            writeQueue = new ConcurrentLinkedQueue<>();
+            isWriting = new AtomicBoolean();
+            pendingBytes = new AtomicLong();
+        }
+
+        /**
+         * Picks the buffer of the next read, sized by the reads so far: the small spare one
+         * while the client keeps up with the server, a larger one during a burst.
+         * @param last The buffer of the read that just completed, reused if it has the size.
+         * @return An empty buffer to read into.
+         */
+        ByteBuffer nextBuffer(ByteBuffer last) {
+            int capacity = sizer.next();
+            ByteBuffer next = last.capacity() == capacity ? last
+                : capacity == spare.capacity() ? spare : ByteBuffer.allocate(capacity);
+            next.clear();
+            return next;
+        }
+
+        /**
+         * Closes the channel once. Reports the loss to the listener unless the client asked for it.
+         * @param reason Description of why the connection closed, or null if the client closed it.
+         */
+        void close(String reason) {
+            if (!isOpen.compareAndSet(true, false)) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException err) {
+                // channel is unusable either way
+            }
+            if (connection == this) {
+                isConnected = false;
+            }
+            writeQueue.clear();
+            pendingBytes.set(0);
+            isWriting.set(false);
+            synchronized (writeLock) {
+                writeLock.notifyAll();
+            }
+            if (reason != null && !isClosing && !isLeaving) {
+                listener.onDisconnected(reason);
+            }
+        }
+    }
+
+    /**
+     * Completion handler for reads. Decodes the bytes read and starts the next read.
+     */
+    private class ReadHandler implements CompletionHandler<Integer, ByteBuffer>, FrameDecoder.Handler {
+        private final Connection owner;
+
+        ReadHandler(Connection owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        public void completed(Integer count, ByteBuffer buffer) {
+            if (count < 0) {
+                owner.close("Server closed the connection");
+                return;
+            }
+            owner.sizer.record(count, buffer.capacity());
+            buffer.flip();
+            try {
+                owner.decoder.decode(buffer, this);
+            } catch (IOException err) {
+                owner.close(err.getMessage());
+                return;
+            }
+            if (owner.isOpen.get()) {
+                ByteBuffer next = owner.nextBuffer(buffer);
+                owner.channel.read(next, next, this);
+            }
+        }
+
+        @Override
+        public void failed(Throwable err, ByteBuffer buffer) {
+            owner.close(String.valueOf(err.getMessage()));
+        }
+
+        @Override
+        public void onLine(String line) {
+            if (line.startsWith(ReliableStream.SEQ_FRAME)) {
+                long seq = ReliableStream.sequenceOf(line);
+                if (seq >= 0 && stream.accept(seq)) {
+                    listener.onMessage(ReliableStream.messageOf(line));
+                }
+                sendAck();
+            } else if (line.startsWith(ReliableStream.ACK_FRAME)) {
+                acknowledge(line.substring(ReliableStream.ACK_FRAME.length()));
+            } else if (line.startsWith(Protocol.WELCOME_FRAME)) {
+                String[] parts = line.split(" ");
+                if (parts.length >= 3 && parts[1].equals("0")) {
+                    // the server does not know the stream, it numbers its messages from scratch
+                    stream.resetInbound(0);
+                }
+                if (parts.length >= 3) {
+                    acknowledge(parts[2]);
+                }
+                if (parts.length == 4) {
+                    streamKey = parts[3];
+                }
+            } else {
+                listener.onMessage(line);
+            }
+        }
+
+        @Override
+        public void onChunk(int transferId, long offset, byte[] data, int length) {
+            listener.onChunk(transferId, offset, data, length);
+        }
+    }
+
+    /**
+     * Completion handler for writes. Finishes partial writes, then starts on the next queued buffer.
+     */
+    private class WriteHandler implements CompletionHandler<Integer, ByteBuffer> {
+        private final Connection owner;
+
+        WriteHandler(Connection owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        public void completed(Integer count, ByteBuffer buffer) {
+            owner.pendingBytes.addAndGet(-count);
+            synchronized (writeLock) {
+                writeLock.notifyAll();
+            }
+            if (buffer.hasRemaining()) {
+                owner.channel.write(buffer, buffer, this);
+                return;
+            }
+            owner.isWriting.set(false);
+            flush(owner);
+        }
+
+        @Override
+        public void failed(Throwable err, ByteBuffer buffer) {
+            owner.close(String.valueOf(err.getMessage()));
+        }
+    }
 
     /**
      * Constructor.
@@ -29,13 +226,20 @@ public class ClientModel {
      */
     public ClientModel(InetAddress address, int port) {
         isConnected = false;
+        isConnecting = false;
         serverAddress = address;
         this.port = port;
-        try {
-            clientAddress = InetAddress.getLocalHost();
-        } catch (UnknownHostException err) {
-            clientAddress = InetAddress.getLoopbackAddress();
-        }
+        connectTimeoutMillis = Long.getLong("chat.client.connectTimeoutMillis", 5000);
+        timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "client-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writeLock = new Object();
+        streamId = UUID.randomUUID().toString().replace("-", "");
+        stream = new ReliableStream(STREAM_CAPACITY, STREAM_ACK_EVERY, STREAM_ACK_DELAY_MILLIS);
+        timer.scheduleWithFixedDelay(this::sendAck, STREAM_ACK_DELAY_MILLIS, STREAM_ACK_DELAY_MILLIS / 2,
+            TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -47,20 +251,53 @@ public class ClientModel {
     }
 
     /**
-     * Accessor method for the address of the client.
+     * Mutator method for the listener.
+     * @param listener Receives the results of connect, read and write operations.
+     */
+    public void setListener(ClientModelListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Accessor method for the address of the client. Resolved on first use rather than in the
+     * constructor, since the lookup may wait on DNS and the model is built on the event
+     * dispatch thread.
      * @return The local address of this client.
      */
-    public InetAddress getClientAddress() {
+    public synchronized InetAddress getClientAddress() {
+        if (clientAddress == null) {
+            try {
+                clientAddress = InetAddress.getLocalHost();
+            } catch (UnknownHostException err) {
+                clientAddress = InetAddress.getLoopbackAddress();
+            }
+        }
         return clientAddress;
     }
 
+    /**
+     * Accessor method for the server address.
+     * @return InetAddress of the target server.
+     */
+    public InetAddress getServerAddress() {
+        return serverAddress;
+    }
+
+    /**
+     * Accessor method for the port.
+     * @return The port number used for connections.
+     */
+    public int getPort() {
+        return port;
+    }
+
     /**
      * Mutator method for the server address.
      * @param address InetAddress of the target server.
      * @throws ClientModelException If the client has an established connection with a server.
      */
     public void setServerAddress(InetAddress address) throws ClientModelException {
-        if (isConnected) {
+        if (isConnected || isConnecting) {
             throw new ClientModelException("Disconnect before updating server address");
         }
         serverAddress = address;
@@ -75,73 +312,254 @@ public class ClientModel {
         if (port < 0 || port > 65535) {
             throw new ClientModelException("port number out of range");
         }
-        if (isConnected) {
+        if (isConnected || isConnecting) {
             throw new ClientModelException("disconnect server before changing port");
         }
         this.port = port;      
     }
 
     /**
-     * Establishes a connection and I/O stream to the server.
-     * @throws ClientModelException If the client is already connected or the new connection fails.
+     * Starts connecting to the server and returns immediately. The listener is told when the
+     * connection is established, or when it fails or does not complete within the timeout.
+     * @throws ClientModelException If the client is already connected or connecting, or the
+     *     channel fails to open.
      */
     public void connect() throws ClientModelException {
-        if (isConnected) {
+        if (isConnected || isConnecting) {
             throw new ClientModelException("Already connected to server");
-        } try {
-            connection = new Socket(serverAddress, port);
-            inputStream = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            outputStream = new DataOutputStream(connection.getOutputStream());
-            isConnected = true;
+        }
+        if (timer.isShutdown()) {
+            throw new ClientModelException("Client model is shut down");
+        }
+        AsynchronousSocketChannel channel;
+        try {
+            channel = AsynchronousSocketChannel.open();
         } catch (IOException err) {
-            isConnected = false;
             throw new ClientModelException("Failed to connect to server");
         }
+        Connection attempt = new Connection(channel);
+        connection = attempt;
+        isConnecting = true;
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (isConnecting && connection == attempt) {
+                isConnecting = false;
+                attempt.isClosing = true;
+                attempt.close(null);
+                listener.onConnectFailed("Timed out after " + connectTimeoutMillis + " ms");
+            }
+        }, connectTimeoutMillis, TimeUnit.MILLISECONDS);
+        channel.connect(new InetSocketAddress(serverAddress, port), null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(Void result, Void unused) {
+                timeout.cancel(false);
+                if (!isConnecting || connection != attempt) {
+                    return;
+                }
+                isConnected = true;
+                isConnecting = false;
+                String key = streamKey;
+                enqueue(Protocol.encodeLine(Protocol.HELLO_COMMAND + streamId + " " + stream.getAcked()
+                    + (key == null ? "" : " " + key)));
+                listener.onConnected();
+                resend();
+                ByteBuffer buffer = attempt.nextBuffer(attempt.spare);
+                channel.read(buffer, buffer, new ReadHandler(attempt));
+            }
+
+            @Override
+            public void failed(Throwable err, Void unused) {
+                timeout.cancel(false);
+                if (!isConnecting || connection != attempt) {
+                    return;
+                }
+                isConnecting = false;
+                attempt.isClosing = true;
+                attempt.close(null);
+                listener.onConnectFailed(String.valueOf(err.getMessage()));
+            }
+        });
     }
 
     /**
-     * Terminates the current I/O stream and current connection.
-     * @throws ClientModelException If the client is already disconnected or if disconnecting fails.
+     * Terminates the current connection. Messages already queued, such as the disconnect
+     * notice, are written first unless that takes longer than a short grace period. After the
+     * disconnect notice the server may close the connection first, which is not an error.
+     * @throws ClientModelException If the client is already disconnected.
      */
     public void disconnect() throws ClientModelException {
-        if (!isConnected) {
+        Connection current = connection;
+        if (current == null || !isConnected && !current.isLeaving) {
             throw new ClientModelException("Client not connected to server");
         }
-        try {
-            outputStream.close();
-            inputStream.close();
-            connection.close();
-            isConnected = false;
-        } catch(IOException err) {
-            throw new ClientModelException("Failed to disconnect from the server");
+        isConnected = false;
+        current.isClosing = true;
+        if (current.writeQueue.isEmpty() && !current.isWriting.get()) {
+            current.close(null);
+        } else {
+            timer.schedule(() -> current.close(null), CLOSE_GRACE_MILLIS, TimeUnit.MILLISECONDS);
         }
     }
 
     /**
-     * Pushes a message into the output stream.
+     * Closes the connection at once, if any, and stops the timer thread of the model. The
+     * model cannot connect again afterwards. Only needed by code that creates many models in
+     * one process; the client application keeps its model until it exits.
+     */
+    public void shutdown() {
+        Connection current = connection;
+        isConnected = false;
+        isConnecting = false;
+        if (current != null) {
+            current.isClosing = true;
+            current.close(null);
+        }
+        timer.shutdownNow();
+    }
+
+    /**
+     * Queues a message for the server and returns immediately.
      * @param message The message to push.
-     * @throws ClientModelException If the client is not connected or fails to send the message.
+     * @throws ClientModelException If the client is not connected.
      */
     public void sendMessage(String message) throws ClientModelException {
+        Connection current = connection;
+        if (!isConnected || current == null) {
+            throw new ClientModelException("Client not connected to server");
+        }
+        if (message.equals(Protocol.CLIENT_CLOSED)) {
+            // the server closes the connection on this notice, the loss is expected
+            current.isLeaving = true;
+        }
+        enqueue(Protocol.encodeLine(message));
+    }
+
+    /**
+     * Queues a chat message for at-least-once delivery and returns immediately. The message is
+     * numbered and kept until the server acknowledges it; if the connection is lost first, it
+     * is sent again after the next connect and the server drops it if it arrived after all.
+     * The listener is told once the message is delivered.
+     * @param message The message to push.
+     * @throws ClientModelException If the client is not connected, or too many messages are
+     *     waiting for an acknowledgement.
+     */
+    public void sendReliable(String message) throws ClientModelException {
         if (!isConnected) {
             throw new ClientModelException("Client not connected to server");
         }
-        try {
-            outputStream.writeBytes(message + "\n");
-        } catch (IOException err) {
-            throw new ClientModelException(err.getMessage());
-        }    
+        // numbering and queueing under one lock keeps the frames in number order on the wire
+        synchronized (stream) {
+            String frame = stream.wrap(message);
+            if (frame == null) {
+                throw new ClientModelException("Too many messages waiting for the server, try again shortly");
+            }
+            enqueue(Protocol.encodeLine(frame));
+        }
+    }
+
+    /**
+     * Queues a file chunk frame for the server: a header line followed by the raw bytes.
+     * Blocks the calling thread while more than a megabyte is waiting to be written, so a file
+     * is read from disk no faster than the network takes it. Must not be called from the
+     * event dispatch thread.
+     * @param transferId The transfer the chunk belongs to.
+     * @param offset Position of the chunk in the file.
+     * @param data Array holding the chunk.
+     * @param length Number of bytes in the chunk.
+     * @throws ClientModelException If the client is not connected or disconnects while waiting.
+     */
+    public void sendChunk(int transferId, long offset, byte[] data, int length) throws ClientModelException {
+        synchronized (writeLock) {
+            while (isConnected && isBacklogged(connection)) {
+                try {
+                    writeLock.wait(100);
+                } catch (InterruptedException err) {
+                    Thread.currentThread().interrupt();
+                    throw new ClientModelException("Interrupted while sending");
+                }
+            }
+        }
+        if (!isConnected) {
+            throw new ClientModelException("Client not connected to server");
+        }
+        byte[] header = Protocol.chunkHeader(transferId, offset, length).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(header.length + length);
+        frame.put(header).put(data, 0, length).flip();
+        enqueue(frame);
     }
 
     /**
-     * Pulls a message form the input stream.
-     * @throws ClientModelException If the input stream fails to read from the server.
+     * Sends again every message the server has not acknowledged, oldest first.
      */
-    public String receiveMessage() throws ClientModelException  {
+    private void resend() {
+        synchronized (stream) {
+            for (String frame : stream.getUnacked()) {
+                enqueue(Protocol.encodeLine(frame));
+            }
+        }
+    }
+
+    /**
+     * Releases the messages acknowledged by the server and reports them delivered.
+     * @param seq Text of the cumulative acknowledgement.
+     */
+    private void acknowledge(String seq) {
         try {
-            return inputStream.readLine();
-        } catch (IOException err) {
-            throw new ClientModelException(err.getMessage());
+            for (String frame : stream.acknowledge(Long.parseLong(seq))) {
+                listener.onDelivered(ReliableStream.messageOf(frame));
+            }
+        } catch (NumberFormatException err) {
+            // a malformed acknowledgement releases nothing, the messages are sent again later
+        }
+    }
+
+    /**
+     * Sends the cumulative acknowledgement of the server's messages if one is due.
+     */
+    private void sendAck() {
+        long ack = stream.takeAck(System.nanoTime());
+        if (ack >= 0 && isConnected) {
+            enqueue(Protocol.encodeLine(ReliableStream.ACK_FRAME + ack));
+        }
+    }
+
+    private static boolean isBacklogged(Connection current) {
+        return current != null && current.pendingBytes.get() > WRITE_HIGH_WATER;
+    }
+
+    /**
+     * Adds a complete frame to the write queue of the current connection. Frames are never
+     * split, so frames queued from different threads cannot interleave on the wire.
+     * @param frame The frame to write.
+     */
+    private void enqueue(ByteBuffer frame) {
+        Connection current = connection;
+        if (current == null) {
+            return;
+        }
+        current.pendingBytes.addAndGet(frame.remaining());
+        current.writeQueue.add(frame);
+        flush(current);
+    }
+
+    /**
+     * Starts writing the next queued frame unless a write is already in flight; an
+     * AsynchronousSocketChannel allows only one outstanding write.
+     * @param owner The connection to write on.
+     */
+    private void flush(Connection owner) {
+        while (owner.isOpen.get() && owner.isWriting.compareAndSet(false, true)) {
+            ByteBuffer next = owner.writeQueue.poll();
+            if (next != null) {
+                owner.channel.write(next, next, new WriteHandler(owner));
+                return;
+            }
+            owner.isWriting.set(false);
+            if (owner.writeQueue.isEmpty()) {
+                if (owner.isClosing) {
+                    owner.close(null);
+                }
+                return;
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,48 @@
+package server.client.chat;
+
+/**
+ * Receives the results of the asynchronous operations of the client model. Callbacks run on
+ * the network threads of the model, never on the Swing event dispatch thread.
+ *
+ * @author Robert McKay
+ */
+public interface ClientModelListener {
+    /**
+     * Called once the connection with the server is established.
+     */
+    void onConnected();
+
+    /**
+     * Called if the connection attempt fails or times out.
+     * @param reason Description of the failure.
+     */
+    void onConnectFailed(String reason);
+
+    /**
+     * Called for every text frame from the server.
+     * @param message The frame without its line break.
+     */
+    void onMessage(String message);
+
+    /**
+     * Called once the server acknowledges a message sent for at-least-once delivery.
+     * @param message The message delivered.
+     */
+    void onDelivered(String message);
+
+    /**
+     * Called for every file chunk frame from the server. The array is reused once the
+     * callback returns, so the bytes must be consumed before returning.
+     * @param transferId The transfer the chunk belongs to.
+     * @param offset Position of the chunk in the file.
+     * @param data Array holding the chunk.
+     * @param length Number of bytes in the chunk.
+     */
+    void onChunk(int transferId, long offset, byte[] data, int length);
+
+    /**
+     * Called when the connection is lost without the client asking to disconnect.
+     * @param reason Description of the failure.
+     */
+    void onDisconnected(String reason);
+}
@@ -0,0 +1,161 @@
+package server.client.chat;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Presence and typing indicators. Keystrokes are reported to the server at most once per
+ * interval, and the server sends back one coalesced frame per room and window, so the
+ * indicators cost a bounded amount of traffic however fast anyone types. Updates are lossy:
+ * a typing state simply expires if no newer one arrives. All state is kept on the event
+ * dispatch thread.
+ *
+ * @author Robert McKay
+ */
+public class ClientPresence {
+    // class constants
+    private static final long TYPING_INTERVAL_MILLIS = 2000;
+    private static final long TYPING_EXPIRY_MILLIS = 4000;
+    private static final int REFRESH_MILLIS = 1000;
+
+    // class attributes
+    private final ClientView view;
+    private final ClientModel model;
+    private final Map<String, String> states;
+    private final Map<String, Long> typingSince;
+    private String room;
+    private long lastTypingSent;
+    private volatile boolean isAway;
+
+    /**
+     * Constructor. Starts expiring stale typing indicators.
+     * @param view The view to show the indicators in.
+     * @param model The model to send updates with.
+     */
+    public ClientPresence(ClientView view, ClientModel model) {
+        this.view = view;
+        this.model = model;
+        states = new HashMap<>();
+        typingSince = new HashMap<>();
+        Timer refresh = new Timer(REFRESH_MILLIS, e -> expire());
+        refresh.start();
+    }
+
+    /**
+     * Reports that the user typed, unless that was already reported within the interval.
+     * Must be called on the event dispatch thread.
+     */
+    public void typed() {
+        long now = System.currentTimeMillis();
+        if (now - lastTypingSent < TYPING_INTERVAL_MILLIS || !model.isConnected()) {
+            return;
+        }
+        lastTypingSent = now;
+        send(Protocol.TYPING_COMMAND);
+    }
+
+    /**
+     * Marks the user as away or back online.
+     * @param away True if the user is away.
+     */
+    public void setAway(boolean away) {
+        isAway = away;
+        if (model.isConnected()) {
+            send(Protocol.PRESENCE_FRAME + (away ? "away" : "online"));
+        }
+    }
+
+    /**
+     * Restores the away state after reconnecting; the server starts every session online.
+     */
+    public void resume() {
+        if (isAway) {
+            send(Protocol.PRESENCE_FRAME + "away");
+        }
+    }
+
+    /**
+     * Handles a presence frame from the server.
+     * @param frame The frame read from the server.
+     * @param self Nickname of this client, its own entries are not shown.
+     * @return True if the frame was a presence frame, false if it should be handled as a message.
+     */
+    public boolean handle(String frame, String self) {
+        if (!frame.startsWith(Protocol.PRESENCE_FRAME)) {
+            return false;
+        }
+        String[] parts = frame.split(" ");
+        if (parts.length >= 2) {
+            SwingUtilities.invokeLater(() -> apply(parts, self));
+        }
+        return true;
+    }
+
+    private void apply(String[] parts, String self) {
+        if (!parts[1].equals(room)) {
+            room = parts[1];
+            states.clear();
+            typingSince.clear();
+        }
+        long now = System.currentTimeMillis();
+        for (int i = 2; i < parts.length; i++) {
+            int colon = parts[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String user = parts[i].substring(0, colon);
+            String state = parts[i].substring(colon + 1);
+            if (user.equals(self)) {
+                continue;
+            }
+            if (state.equals("typing")) {
+                typingSince.put(user, now);
+            } else {
+                typingSince.remove(user);
+                if (state.equals("offline") || state.equals("online")) {
+                    states.remove(user);
+                } else {
+                    states.put(user, state);
+                }
+            }
+        }
+        render();
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        boolean changed = false;
+        for (Iterator<Long> since = typingSince.values().iterator(); since.hasNext();) {
+            if (now - since.next() > TYPING_EXPIRY_MILLIS) {
+                since.remove();
+                changed = true;
+            }
+        }
+        if (changed) {
+            render();
+        }
+    }
+
+    private void render() {
+        StringBuilder text = new StringBuilder();
+        for (String user : typingSince.keySet()) {
+            text.append(text.length() == 0 ? "" : "   ").append(user).append(" is typing...");
+        }
+        for (Map.Entry<String, String> entry : states.entrySet()) {
+            text.append(text.length() == 0 ? "" : "   ").append(entry.getKey()).append(" is ")
+                .append(entry.getValue());
+        }
+        view.setPresence(text.toString());
+    }
+
+    private void send(String frame) {
+        try {
+            model.sendMessage(frame);
+        } catch (ClientModelException err) {
+            // presence is best effort
+        }
+    }
+}
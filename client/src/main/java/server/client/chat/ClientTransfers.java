@@ -0,0 +1,241 @@
+package server.client.chat;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends and receives files through the server. Outgoing files are streamed from disk in chunks
+ * on a separate thread, so messages typed meanwhile go out between two chunks. Incoming files
+ * are written chunk by chunk into a pre-sized file in the download directory. Neither side
+ * holds more than one chunk of a file in memory, and both sides resume from the last byte
+ * transferred after a reconnect.
+ *
+ * @author Robert McKay
+ */
+public class ClientTransfers {
+    // class constants
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    // class attributes
+    private final ClientView view;
+    private final ClientModel model;
+    private final Path downloadDirectory;
+    private final AtomicLong nextToken;
+    private final Map<String, Outgoing> outgoing;
+    private final Map<Integer, Incoming> incoming;
+
+    /**
+     * A file offered by this client that the server has not fully received yet.
+     */
+    private static class Outgoing {
+        private final String token;
+        private final String user;
+        private final Path path;
+        private final long size;
+
+        Outgoing(String token, String user, Path path, long size) {
+            this.token = token;
+            this.user = user;
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A file addressed to this client that has not been fully written yet.
+     */
+    private static class Incoming {
+        private final String name;
+        private final long size;
+        private final Path path;
+        private final FileChannel channel;
+        private long written;
+
+        Incoming(String name, long size, Path path) throws IOException {
+            this.name = name;
+            this.size = size;
+            this.path = path;
+            RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+            file.setLength(size);
+            channel = file.getChannel();
+        }
+    }
+
+    /**
+     * Inner class. Streams an outgoing file from an offset. Runs in a separate thread.
+     */
+    private class Sender extends Thread {
+        private final Outgoing file;
+        private final int transferId;
+        private final long offset;
+
+        Sender(Outgoing file, int transferId, long offset) {
+            this.file = file;
+            this.transferId = transferId;
+            this.offset = offset;
+        }
+
+        @Override
+        public void run() {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            long position = offset;
+            try (FileChannel channel = FileChannel.open(file.path, StandardOpenOption.READ)) {
+                while (position < file.size) {
+                    buffer.clear();
+                    int length = channel.read(buffer, position);
+                    if (length < 0) {
+                        throw new IOException("File shrank while sending");
+                    }
+                    model.sendChunk(transferId, position, chunk, length);
+                    position += length;
+                    view.setTransferProgress("Sending " + file.path.getFileName(), position, file.size);
+                }
+                outgoing.remove(file.token);
+                view.addMessage("File " + file.path.getFileName() + " sent to " + file.user);
+            } catch (IOException | ClientModelException err) {
+                view.addMessage("Sending " + file.path.getFileName() + " paused at " + position
+                    + " bytes, it resumes when you reconnect");
+            }
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param view The view to report transfers in.
+     * @param model The model to send and receive frames with.
+     */
+    public ClientTransfers(ClientView view, ClientModel model) {
+        this.view = view;
+        this.model = model;
+        downloadDirectory = Paths.get(System.getProperty("user.home"), "ChatDownloads");
+        nextToken = new AtomicLong(System.currentTimeMillis());
+        outgoing = new ConcurrentHashMap<>();
+        incoming = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Offers a file to another user. Chunks are sent once the server answers with a ready frame.
+     * @param user The user to send the file to.
+     * @param file Path of the file to send.
+     * @throws IllegalArgumentException If the file cannot be read.
+     * @throws ClientModelException If the offer fails to send.
+     */
+    public void offer(String user, String file) throws IllegalArgumentException, ClientModelException {
+        Path path = Paths.get(file);
+        long size;
+        try {
+            size = Files.size(path);
+        } catch (IOException err) {
+            throw new IllegalArgumentException("Cannot read file " + file);
+        }
+        Outgoing offer = new Outgoing(Long.toString(nextToken.incrementAndGet()), user, path, size);
+        outgoing.put(offer.token, offer);
+        sendOffer(offer);
+    }
+
+    /**
+     * Re-offers unfinished outgoing files and asks for the rest of unfinished incoming files.
+     * Called after reconnecting, once the nickname has been registered again.
+     */
+    public void resume() {
+        for (Outgoing offer : outgoing.values()) {
+            sendOffer(offer);
+        }
+        for (Map.Entry<Integer, Incoming> entry : incoming.entrySet()) {
+            model.sendMessage(Protocol.FILE_RESUME + entry.getKey() + " " + entry.getValue().written);
+        }
+    }
+
+    /**
+     * Handles a transfer frame from the server.
+     * @param frame The frame read from the server.
+     * @return True if the frame was a transfer frame, false if it should be handled as a message.
+     * @throws ClientModelException If the frame is malformed.
+     */
+    public boolean handle(String frame) throws ClientModelException {
+        String[] parts = frame.split(" ", 5);
+        try {
+            if (frame.startsWith(Protocol.FILE_READY) && parts.length == 4) {
+                Outgoing offer = outgoing.get(parts[1]);
+                if (offer != null) {
+                    new Sender(offer, Integer.parseInt(parts[2]), Long.parseLong(parts[3])).start();
+                }
+                return true;
+            } else if (frame.startsWith(Protocol.FILE_INCOMING) && parts.length == 5) {
+                receiveOffer(Integer.parseInt(parts[1]), parts[2], Long.parseLong(parts[3]), parts[4]);
+                return true;
+            }
+        } catch (NumberFormatException err) {
+            throw new ClientModelException("Malformed transfer frame from server");
+        }
+        return false;
+    }
+
+    private void sendOffer(Outgoing offer) {
+        model.sendMessage(Protocol.FILE_OFFER + offer.token + " " + offer.user + " " + offer.size + " "
+            + offer.path.getFileName());
+    }
+
+    private void receiveOffer(int transferId, String from, long size, String name) {
+        if (incoming.containsKey(transferId)) {
+            return;
+        }
+        try {
+            Files.createDirectories(downloadDirectory);
+            Path path = downloadDirectory.resolve(transferId + "-" + name);
+            Incoming file = new Incoming(name, size, path);
+            incoming.put(transferId, file);
+            view.addMessage(from + " is sending " + name + " (" + size + " bytes)");
+            if (size == 0) {
+                finish(transferId, file);
+            }
+        } catch (IOException err) {
+            view.addMessage("Cannot save " + name + ": " + err.getMessage());
+        }
+    }
+
+    /**
+     * Writes a chunk of an incoming file at its offset.
+     * @param transferId The transfer the chunk belongs to.
+     * @param offset Position of the chunk in the file.
+     * @param data Array holding the chunk, only valid until this method returns.
+     * @param length Number of bytes in the chunk.
+     */
+    public void receiveChunk(int transferId, long offset, byte[] data, int length) {
+        Incoming file = incoming.get(transferId);
+        if (file == null || offset != file.written) {
+            // not ours or a duplicate of bytes already written during a resume
+            return;
+        }
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(data, 0, length);
+            while (bytes.hasRemaining()) {
+                file.channel.write(bytes, offset + bytes.position());
+            }
+            file.written += length;
+            view.setTransferProgress("Receiving " + file.name, file.written, file.size);
+            if (file.written >= file.size) {
+                finish(transferId, file);
+            }
+        } catch (IOException err) {
+            view.addMessage("Cannot save " + file.name + ": " + err.getMessage());
+        }
+    }
+
+    private void finish(int transferId, Incoming file) throws IOException {
+        incoming.remove(transferId);
+        file.channel.close();
+        model.sendMessage(Protocol.FILE_DONE + transferId);
+        view.addMessage("File saved to " + file.path);
+    }
+}
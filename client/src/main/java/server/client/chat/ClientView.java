@@ -3,11 +3,17 @@ package server.client.chat;
 import java.awt.BorderLayout;
 import java.awt.event.ActionListener;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 /**
  * The view for the client. Follows MVC design.
@@ -29,6 +35,7 @@ public class ClientView extends JFrame {
     private JPanel chatPanel;
     private JTextArea chatText;
     private JScrollPane chatPane;
+    private JLabel presenceLabel;
 
     // compenents to send a message
     private JPanel messagePanel;
@@ -43,6 +50,8 @@ public class ClientView extends JFrame {
     private JButton portButton;
     private JButton addressButton;
     private JButton helpButton;
+    private JCheckBox awayBox;
+    private JProgressBar transferBar;
 
     /**
      * Constructor.
@@ -59,14 +68,17 @@ public class ClientView extends JFrame {
     }
 
     /**
-     * Initializes and adds the chat area components to the view.
+     * Initializes and adds the chat area components to the view, with the presence and
+     * typing indicators below the chat area.
      */
     private void addChatPanel() {
         chatText = new JTextArea(20, 50);
         chatText.setEditable(false);
         chatPane = new JScrollPane(chatText);
-        chatPanel = new JPanel();
-        chatPanel.add(chatPane);
+        presenceLabel = new JLabel(" ");
+        chatPanel = new JPanel(new BorderLayout());
+        chatPanel.add(chatPane, BorderLayout.CENTER);
+        chatPanel.add(presenceLabel, BorderLayout.SOUTH);
         add(chatPanel, BorderLayout.CENTER);
     }
     
@@ -97,7 +109,7 @@ public class ClientView extends JFrame {
 
     /**
      * Initializes and adds the options components to the view.
-     * Options: connect, disconnect, update port, update address, help.
+     * Options: connect, disconnect, update port, update address, help, away, transfer progress.
      */
     private void addOptionsPanel() {
 
@@ -121,6 +133,15 @@ public class ClientView extends JFrame {
         helpButton = new JButton("Help");
         helpButton.setToolTipText("Dispplay the help window");
 
+        // away toggle
+        awayBox = new JCheckBox("Away");
+        awayBox.setToolTipText("Show other users that you are away");
+
+        // file transfer progress
+        transferBar = new JProgressBar(0, 100);
+        transferBar.setStringPainted(true);
+        transferBar.setString("No file transfer");
+
         // add options to view
         optionsPanel = new JPanel();
         optionsPanel.add(connectButton);
@@ -128,6 +149,8 @@ public class ClientView extends JFrame {
         optionsPanel.add(portButton);
         optionsPanel.add(addressButton);
         optionsPanel.add(helpButton);
+        optionsPanel.add(awayBox);
+        optionsPanel.add(transferBar);
         add(optionsPanel, BorderLayout.NORTH);
     }
 
@@ -140,13 +163,40 @@ public class ClientView extends JFrame {
     }
 
     /**
-     * Appends a message to the next line of the chat area.
+     * Appends a message to the next line of the chat area. Safe to call from any thread,
+     * the append always runs on the event dispatch thread.
      * @param message The message to append.
      */
     public void addMessage(String message) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> addMessage(message));
+            return;
+        }
         chatText.append("\n" + message);
     }
 
+    /**
+     * Shows the progress of a file transfer. Safe to call from any thread.
+     * @param label Short description of the transfer, such as the file name.
+     * @param done Bytes transferred so far.
+     * @param total Size of the file in bytes.
+     */
+    public void setTransferProgress(String label, long done, long total) {
+        int percent = total == 0 ? 100 : (int) (done * 100 / total);
+        SwingUtilities.invokeLater(() -> {
+            transferBar.setValue(percent);
+            transferBar.setString(label + " " + percent + "%");
+        });
+    }
+
+    /**
+     * Shows the presence and typing indicators. Safe to call from any thread.
+     * @param text The indicators to show, empty if there are none.
+     */
+    public void setPresence(String text) {
+        SwingUtilities.invokeLater(() -> presenceLabel.setText(text.isEmpty() ? " " : text));
+    }
+
     /**
      * Clear all text in the chat box.
      */
@@ -210,6 +260,43 @@ public class ClientView extends JFrame {
     public void addHelpButtonListener(ActionListener listener) {
         helpButton.addActionListener(listener);
     }
-}
-    
 
+    /**
+     * Adds a listener to the away check box in the view.
+     * @param listener ActionListener to add to the away check box.
+     */
+    public void addAwayListener(ActionListener listener) {
+        awayBox.addActionListener(listener);
+    }
+
+    /**
+     * Accessor method for the away check box.
+     * @return True if the away check box is selected.
+     */
+    public boolean isAway() {
+        return awayBox.isSelected();
+    }
+
+    /**
+     * Adds a listener called whenever text is typed into the send message text field.
+     * @param listener Runnable to call on the event dispatch thread.
+     */
+    public void addTypingListener(Runnable listener) {
+        messageField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                listener.run();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                // deleting text is not reported as typing
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                // attribute changes only
+            }
+        });
+    }
+}
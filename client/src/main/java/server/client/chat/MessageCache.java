@@ -0,0 +1,406 @@
+package server.client.chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps the recent messages of each room on disk, so a client shows a room the moment it
+ * connects and only asks the server for the messages it missed. Messages are kept by the id
+ * the server's history gave them, which only means something within one history, so each
+ * room also keeps the epoch of the history its ids come from.
+ *
+ * Each room is one append-only file. A message, edit or delete is a single record appended
+ * as it arrives; once the file holds three times as many records as the cache keeps
+ * messages, it is rewritten with the kept messages alone, a post and at most one edit each.
+ * A record cut short by a crash is dropped when the file is read.
+ *
+ * File layout, all integers big-endian:
+ *   "CHCA" version:byte room:UTF epoch:long
+ *   record*: 'P' id:int timestamp:long sender:UTF body:UTF
+ *            'E' id:int body:UTF
+ *            'D' id:int
+ *
+ * The cache of a server lives in ChatCache/host-port of the home directory, or of the
+ * directory given with the system property chat.cache.dir.
+ *
+ * @author Robert McKay
+ */
+public class MessageCache {
+    // class constants
+    public static final int MAGIC = 0x43484341;
+    public static final int VERSION = 1;
+    public static final long NO_EPOCH = 0;
+    private static final int DEFAULT_CAPACITY = 500;
+    private static final byte POST = 'P';
+    private static final byte EDIT = 'E';
+    private static final byte DELETE = 'D';
+    private static final String SUFFIX = ".cache";
+
+    // class data members
+    private final Path directory;
+    private final int capacity;
+    private final HashMap<String, Room> rooms;
+
+    /**
+     * Inner class. A cached message.
+     */
+    private static class Entry {
+        private final int id;
+        private final long timestamp;
+        private final String sender;
+        private String body;
+        private boolean isEdited;
+
+        Entry(int id, long timestamp, String sender, String body) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Inner class. The cached messages of one room and its file, open for appending.
+     */
+    private static class Room {
+        private final String name;
+        private final ArrayDeque<Entry> entries;
+        private long epoch;
+        private int lastId;
+        private int records;
+        private DataOutputStream output;
+
+        Room(String name) {
+            this.name = name;
+            entries = new ArrayDeque<>();
+            epoch = NO_EPOCH;
+            lastId = -1;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param directory The directory holding the room files, created on first write.
+     * @param capacity The number of recent messages kept per room.
+     * @throws IllegalArgumentException If the capacity is not positive.
+     */
+    public MessageCache(Path directory, int capacity) throws IllegalArgumentException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive");
+        }
+        this.directory = directory;
+        this.capacity = capacity;
+        rooms = new HashMap<>();
+    }
+
+    /**
+     * Creates the cache of a server, keeping as many messages per room as the system
+     * property chat.cache.messages says.
+     * @param address The address of the server.
+     * @param port The port of the server.
+     * @return The cache.
+     */
+    public static MessageCache forServer(InetAddress address, int port) {
+        String base = System.getProperty("chat.cache.dir", "");
+        Path root = base.isEmpty() ? Paths.get(System.getProperty("user.home"), "ChatCache") : Paths.get(base);
+        // IPv6 addresses hold colons, which not every file system allows
+        String server = address.getHostAddress().replace(':', '_') + "-" + port;
+        return new MessageCache(root.resolve(server), Integer.getInteger("chat.cache.messages", DEFAULT_CAPACITY));
+    }
+
+    /**
+     * Accessor method for the epoch of a room.
+     * @param room The room.
+     * @return The epoch of the history the cached ids come from, or NO_EPOCH if none is cached.
+     * @throws IOException If the room file cannot be read.
+     */
+    public synchronized long getEpoch(String room) throws IOException {
+        return load(room).epoch;
+    }
+
+    /**
+     * Accessor method for the last id of a room.
+     * @param room The room.
+     * @return Id of the newest message cached, or -1 if none is.
+     * @throws IOException If the room file cannot be read.
+     */
+    public synchronized int getLastId(String room) throws IOException {
+        return load(room).lastId;
+    }
+
+    /**
+     * Formats the cached messages of a room for display, oldest first.
+     * @param room The room.
+     * @return One line per message.
+     * @throws IOException If the room file cannot be read.
+     */
+    public synchronized List<String> getTranscript(String room) throws IOException {
+        Room cached = load(room);
+        List<String> lines = new ArrayList<>(cached.entries.size());
+        for (Entry entry : cached.entries) {
+            lines.add(Protocol.timestamp(entry.timestamp) + " [" + room + "] <" + entry.sender + "> " + entry.body
+                + (entry.isEdited ? " (edited)" : ""));
+        }
+        return lines;
+    }
+
+    /**
+     * Starts a replay from the server. The cache of the room goes on from where it is if the
+     * replay continues after the last message cached, and restarts empty otherwise.
+     * @param room The room replayed.
+     * @param epoch The epoch of the server's history.
+     * @param after Id of the message the replay continues after, or -1 if from the start.
+     * @return True if the cache of the room was emptied.
+     * @throws IOException If the room file cannot be written.
+     */
+    public synchronized boolean replay(String room, long epoch, int after) throws IOException {
+        Room cached = load(room);
+        if (cached.epoch == epoch && cached.lastId == after) {
+            return false;
+        }
+        boolean hadMessages = !cached.entries.isEmpty();
+        cached.entries.clear();
+        cached.epoch = epoch;
+        cached.lastId = after;
+        rewrite(cached);
+        return hadMessages;
+    }
+
+    /**
+     * Appends a message received from the server. A message the cache has already is skipped,
+     * so a replay overlapping a message sent live, or a message sent again after a reconnect,
+     * is kept once.
+     * @param room The room the message was sent to.
+     * @param id Id of the message in the server's history.
+     * @param timestamp Time the message was recorded, in milliseconds since the epoch.
+     * @param sender Display name of the sender.
+     * @param body Text of the message.
+     * @return True if the message was new.
+     * @throws IOException If the room file cannot be written.
+     */
+    public synchronized boolean add(String room, int id, long timestamp, String sender, String body)
+            throws IOException {
+        Room cached = load(room);
+        if (id <= cached.lastId) {
+            return false;
+        }
+        cached.entries.addLast(new Entry(id, timestamp, sender, body));
+        cached.lastId = id;
+        if (cached.entries.size() > capacity) {
+            cached.entries.removeFirst();
+        }
+        DataOutputStream output = open(cached);
+        output.writeByte(POST);
+        output.writeInt(id);
+        output.writeLong(timestamp);
+        output.writeUTF(sender);
+        output.writeUTF(body);
+        appended(cached);
+        return true;
+    }
+
+    /**
+     * Applies an edit or delete to the latest cached message of a sender in a room, the message
+     * the server applied it to.
+     * @param room The room the message was sent to.
+     * @param sender Display name of the sender.
+     * @param body The new text of the message, or null if it was deleted.
+     * @return True if a cached message was changed.
+     * @throws IOException If the room file cannot be written.
+     */
+    public synchronized boolean revise(String room, String sender, String body) throws IOException {
+        Room cached = load(room);
+        Entry entry = findLatest(cached, sender);
+        if (entry == null) {
+            return false;
+        }
+        DataOutputStream output = open(cached);
+        if (body == null) {
+            cached.entries.remove(entry);
+            output.writeByte(DELETE);
+            output.writeInt(entry.id);
+        } else {
+            entry.body = body;
+            entry.isEdited = true;
+            output.writeByte(EDIT);
+            output.writeInt(entry.id);
+            output.writeUTF(body);
+        }
+        appended(cached);
+        return true;
+    }
+
+    /**
+     * Closes the room files. The cache can still be used, files are opened again as needed.
+     */
+    public synchronized void close() {
+        for (Room cached : rooms.values()) {
+            closeOutput(cached);
+        }
+    }
+
+    /**
+     * Finds the room, reading its file on first use.
+     */
+    private Room load(String room) throws IOException {
+        Room cached = rooms.get(room);
+        if (cached != null) {
+            return cached;
+        }
+        cached = new Room(room);
+        Path file = fileOf(room);
+        if (Files.isRegularFile(file)) {
+            boolean isComplete = read(cached, file);
+            if (!isComplete) {
+                rewrite(cached);
+            }
+        }
+        rooms.put(room, cached);
+        return cached;
+    }
+
+    /**
+     * Reads a room file into the room.
+     * @return False if the file ended inside a record or is not a cache file.
+     */
+    private boolean read(Room cached, Path file) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readByte() != VERSION || !input.readUTF().equals(cached.name)) {
+                return false;
+            }
+            cached.epoch = input.readLong();
+            HashMap<Integer, Entry> byId = new HashMap<>();
+            int type;
+            while ((type = input.read()) >= 0) {
+                int id = input.readInt();
+                if (type == POST) {
+                    Entry entry = new Entry(id, input.readLong(), input.readUTF(), input.readUTF());
+                    cached.entries.addLast(entry);
+                    cached.lastId = Math.max(cached.lastId, id);
+                    byId.put(id, entry);
+                    if (cached.entries.size() > capacity) {
+                        byId.remove(cached.entries.removeFirst().id);
+                    }
+                } else if (type == EDIT) {
+                    String body = input.readUTF();
+                    Entry entry = byId.get(id);
+                    if (entry != null) {
+                        entry.body = body;
+                        entry.isEdited = true;
+                    }
+                } else if (type == DELETE) {
+                    Entry entry = byId.remove(id);
+                    if (entry != null) {
+                        cached.entries.remove(entry);
+                    }
+                } else {
+                    return false;
+                }
+                cached.records++;
+            }
+            return true;
+        } catch (EOFException err) {
+            return false;
+        }
+    }
+
+    /**
+     * Counts an appended record and rewrites the file once it holds three times the kept messages.
+     */
+    private void appended(Room cached) throws IOException {
+        cached.output.flush();
+        if (++cached.records >= 3 * capacity) {
+            rewrite(cached);
+        }
+    }
+
+    /**
+     * Replaces the room file with one holding the kept messages alone. Written next to it and
+     * moved over it, so a crash leaves either file whole.
+     */
+    private void rewrite(Room cached) throws IOException {
+        closeOutput(cached);
+        Files.createDirectories(directory);
+        Path file = fileOf(cached.name);
+        Path temporary = directory.resolve(cached.name + SUFFIX + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporary)))) {
+            output.writeInt(MAGIC);
+            output.writeByte(VERSION);
+            output.writeUTF(cached.name);
+            output.writeLong(cached.epoch);
+            int records = 0;
+            for (Entry entry : cached.entries) {
+                output.writeByte(POST);
+                output.writeInt(entry.id);
+                output.writeLong(entry.timestamp);
+                output.writeUTF(entry.sender);
+                output.writeUTF(entry.body);
+                records++;
+                if (entry.isEdited) {
+                    output.writeByte(EDIT);
+                    output.writeInt(entry.id);
+                    output.writeUTF(entry.body);
+                    records++;
+                }
+            }
+            cached.records = records;
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Opens the room file for appending, writing a new file first if there is none.
+     */
+    private DataOutputStream open(Room cached) throws IOException {
+        if (cached.output == null) {
+            if (!Files.isRegularFile(fileOf(cached.name))) {
+                rewrite(cached);
+            }
+            cached.output = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(fileOf(cached.name), StandardOpenOption.APPEND)));
+        }
+        return cached.output;
+    }
+
+    private void closeOutput(Room cached) {
+        if (cached.output != null) {
+            try {
+                cached.output.close();
+            } catch (IOException err) {
+                // every record was flushed when written
+            }
+            cached.output = null;
+        }
+    }
+
+    private Entry findLatest(Room cached, String sender) {
+        Iterator<Entry> newestFirst = cached.entries.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Entry entry = newestFirst.next();
+            if (entry.sender.equals(sender)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private Path fileOf(String room) {
+        return directory.resolve(room + SUFFIX);
+    }
+}
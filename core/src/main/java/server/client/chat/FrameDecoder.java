@@ -0,0 +1,161 @@
+package server.client.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incrementally splits the bytes read from a non-blocking channel into frames. Bytes arrive in whatever
+ * pieces the socket delivers, so a frame may span several reads and a read may hold several
+ * frames. Text frames are UTF-8 lines; a file chunk frame is a header line followed by raw
+ * bytes, which are collected into a reusable buffer rather than decoded.
+ *
+ * @author Robert McKay
+ */
+public class FrameDecoder {
+    // class constants
+    private static final int LINE_SIZE = 256;
+    private static final int LINE_KEEP = 4096;
+
+    // class attributes
+    private byte[] line;
+    private int lineLength;
+    private byte[] chunk;
+    private int chunkLength;
+    private int chunkFilled;
+    private int chunkTransfer;
+    private long chunkOffset;
+    private boolean inChunk;
+
+    /**
+     * Receives the frames found by the decoder.
+     */
+    public interface Handler {
+        /**
+         * Called for every text frame.
+         * @param line The frame without its line break.
+         */
+        void onLine(String line);
+
+        /**
+         * Called for every file chunk frame. The array is reused for the next chunk, so the
+         * bytes must be consumed before returning.
+         * @param transferId The transfer the chunk belongs to.
+         * @param offset Position of the chunk in the file.
+         * @param data Array holding the chunk.
+         * @param length Number of bytes in the chunk.
+         */
+        void onChunk(int transferId, long offset, byte[] data, int length);
+    }
+
+    /**
+     * Constructor. The buffers are allocated by the first byte decoded.
+     */
+    public FrameDecoder() {
+        lineLength = 0;
+        inChunk = false;
+    }
+
+    /**
+     * Lets go of the line and chunk buffers unless a frame is in progress; the next byte
+     * decoded allocates them again. For a connection that may stay idle for a long time.
+     */
+    public void release() {
+        if (!hasPartialFrame()) {
+            line = null;
+            chunk = null;
+        }
+    }
+
+    /**
+     * Accessor method for the buffer footprint. Read without synchronization from outside the
+     * thread decoding, so it may lag a read or two behind.
+     * @return Bytes held by the line and chunk buffers right now.
+     */
+    public int getBufferBytes() {
+        byte[] currentLine = line;
+        byte[] currentChunk = chunk;
+        return (currentLine == null ? 0 : currentLine.length) + (currentChunk == null ? 0 : currentChunk.length);
+    }
+
+    /**
+     * Tells whether the bytes decoded so far end inside a frame.
+     * @return True if a line or a chunk is incomplete.
+     */
+    public boolean hasPartialFrame() {
+        return lineLength > 0 || inChunk;
+    }
+
+    /**
+     * Consumes every byte remaining in the buffer and reports the frames completed by them.
+     * @param input Bytes read from the channel, ready to be read.
+     * @param handler Receives the completed frames.
+     * @throws IOException If the stream holds a malformed or oversized frame.
+     */
+    public void decode(ByteBuffer input, Handler handler) throws IOException {
+        while (input.hasRemaining()) {
+            if (inChunk) {
+                int count = Math.min(input.remaining(), chunkLength - chunkFilled);
+                input.get(chunk, chunkFilled, count);
+                chunkFilled += count;
+                if (chunkFilled == chunkLength) {
+                    inChunk = false;
+                    handler.onChunk(chunkTransfer, chunkOffset, chunk, chunkLength);
+                }
+                continue;
+            }
+            byte next = input.get();
+            if (line == null) {
+                line = new byte[LINE_SIZE];
+            }
+            if (next != '\n') {
+                if (lineLength == line.length) {
+                    if (lineLength >= Protocol.MAX_LINE) {
+                        throw new IOException("Frame exceeds maximum size");
+                    }
+                    line = Arrays.copyOf(line, lineLength * 2);
+                }
+                line[lineLength++] = next;
+                continue;
+            }
+            if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                lineLength--;
+            }
+            String frame = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+            lineLength = 0;
+            if (line.length > LINE_KEEP) {
+                // an unusually long line, do not hold on to its buffer
+                line = new byte[LINE_SIZE];
+            }
+            if (frame.startsWith(Protocol.FILE_CHUNK)) {
+                startChunk(frame, handler);
+            } else {
+                handler.onLine(frame);
+            }
+        }
+    }
+
+    private void startChunk(String header, Handler handler) throws IOException {
+        String[] parts = header.split(" ");
+        try {
+            chunkTransfer = Integer.parseInt(parts[1]);
+            chunkOffset = Long.parseLong(parts[2]);
+            chunkLength = Integer.parseInt(parts[3]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException err) {
+            throw new IOException("Malformed chunk header");
+        }
+        if (chunkLength < 0 || chunkLength > Protocol.MAX_CHUNK) {
+            throw new IOException("Chunk exceeds maximum size");
+        }
+        if (chunk == null) {
+            chunk = new byte[Protocol.MAX_CHUNK];
+        }
+        chunkFilled = 0;
+        if (chunkLength == 0) {
+            handler.onChunk(chunkTransfer, chunkOffset, chunk, 0);
+        } else {
+            inChunk = true;
+        }
+    }
+}
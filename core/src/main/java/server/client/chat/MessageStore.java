@@ -0,0 +1,442 @@
+package server.client.chat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * History of the room messages seen by a server or client. Messages are numbered from 0
+ * in arrival order and kept in parallel primitive arrays; rooms and senders are stored once in
+ * a dictionary and referenced by number, so a message costs a few words plus its body.
+ *
+ * Bodies live in fixed size segments. An edit or delete does not touch them: it sets a flag
+ * on the message and puts the new text, or a tombstone, in an overlay that reads check first,
+ * so a message always resolves in one lookup however often it was edited. {@link #compact()}
+ * folds the overlays into fresh copies of the segments they touch, which drops the superseded
+ * text and the text of deleted messages, and empties the overlay. Ids never change.
+ *
+ * Each room also keeps the ids of its messages in order, so the latest messages of a quiet
+ * room are found without walking past the messages of every busier one.
+ *
+ * @author Robert McKay
+ */
+public class MessageStore {
+    // class constants
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int SEGMENT_BITS = 12;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final byte EDITED = 1;
+    private static final byte DELETED = 2;
+
+    // class data members
+    private final ReentrantReadWriteLock lock;
+    private final HashMap<String, Integer> roomIds;
+    private final List<String> roomNames;
+    private int[][] roomMessages;
+    private int[] roomSizes;
+    private final HashMap<String, Integer> senderIds;
+    private final List<String> senderNames;
+    private long[] timestamps;
+    private int[] rooms;
+    private int[] senders;
+    private byte[] flags;
+    private String[][] segments;
+    private final HashMap<Integer, String> overlays;
+    private int size;
+
+    /**
+     * Constructor. Creates an empty store.
+     */
+    public MessageStore() {
+        lock = new ReentrantReadWriteLock();
+        roomIds = new HashMap<>();
+        roomNames = new ArrayList<>();
+        roomMessages = new int[0][];
+        roomSizes = new int[0];
+        senderIds = new HashMap<>();
+        senderNames = new ArrayList<>();
+        timestamps = new long[INITIAL_CAPACITY];
+        rooms = new int[INITIAL_CAPACITY];
+        senders = new int[INITIAL_CAPACITY];
+        flags = new byte[INITIAL_CAPACITY];
+        segments = new String[INITIAL_CAPACITY >> SEGMENT_BITS][];
+        overlays = new HashMap<>();
+    }
+
+    /**
+     * Appends a message.
+     * @param timestamp Arrival time in milliseconds since the epoch.
+     * @param room The room the message was sent to.
+     * @param sender Display name of the sender.
+     * @param body Text of the message.
+     * @return The id of the new message.
+     */
+    public int append(long timestamp, String room, String sender, String body) {
+        lock.writeLock().lock();
+        try {
+            if (size == timestamps.length) {
+                int capacity = size * 2;
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                rooms = Arrays.copyOf(rooms, capacity);
+                senders = Arrays.copyOf(senders, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+            }
+            int segment = size >> SEGMENT_BITS;
+            if (segment == segments.length) {
+                segments = Arrays.copyOf(segments, Math.max(1, segment * 2));
+            }
+            if (segments[segment] == null) {
+                segments[segment] = new String[SEGMENT_SIZE];
+            }
+            timestamps[size] = timestamp;
+            rooms[size] = intern(room, roomIds, roomNames);
+            addToRoom(rooms[size], size);
+            senders[size] = intern(sender, senderIds, senderNames);
+            segments[segment][size & SEGMENT_MASK] = body;
+            return size++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addToRoom(int roomId, int id) {
+        if (roomId == roomMessages.length) {
+            roomMessages = Arrays.copyOf(roomMessages, roomId + 1);
+            roomSizes = Arrays.copyOf(roomSizes, roomId + 1);
+            roomMessages[roomId] = new int[16];
+        }
+        if (roomSizes[roomId] == roomMessages[roomId].length) {
+            roomMessages[roomId] = Arrays.copyOf(roomMessages[roomId], roomSizes[roomId] * 2);
+        }
+        roomMessages[roomId][roomSizes[roomId]++] = id;
+    }
+
+    /**
+     * Accessor method for the number of messages.
+     * @return The number of messages appended so far.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Looks up the dictionary number of a room.
+     * @param room The room to look up.
+     * @return The number of the room, or -1 if no message was ever sent to it.
+     */
+    public int getRoomId(String room) {
+        lock.readLock().lock();
+        try {
+            Integer id = roomIds.get(room);
+            return id == null ? -1 : id;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Accessor method for the room number of a message.
+     * @param id The id of the message.
+     * @return The dictionary number of the room the message was sent to.
+     */
+    public int getRoomId(int id) {
+        lock.readLock().lock();
+        try {
+            return rooms[id];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Accessor method for the room of a message.
+     * @param id The id of the message.
+     * @return The room the message was sent to.
+     */
+    public String getRoom(int id) {
+        lock.readLock().lock();
+        try {
+            return roomNames.get(rooms[id]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Accessor method for the timestamp of a message.
+     * @param id The id of the message.
+     * @return Arrival time in milliseconds since the epoch.
+     */
+    public long getTimestamp(int id) {
+        lock.readLock().lock();
+        try {
+            return timestamps[id];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Accessor method for the sender of a message.
+     * @param id The id of the message.
+     * @return Display name of the sender.
+     */
+    public String getSender(int id) {
+        lock.readLock().lock();
+        try {
+            return senderNames.get(senders[id]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Accessor method for the body of a message.
+     * @param id The id of the message.
+     * @return Latest text of the message, or null if it was deleted.
+     */
+    public String getBody(int id) {
+        lock.readLock().lock();
+        try {
+            if (flags[id] != 0 && overlays.containsKey(id)) {
+                return overlays.get(id);
+            }
+            return segments[id >> SEGMENT_BITS][id & SEGMENT_MASK];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks whether a message was edited.
+     * @param id The id of the message.
+     * @return True if its text was replaced at least once.
+     */
+    public boolean isEdited(int id) {
+        lock.readLock().lock();
+        try {
+            return (flags[id] & EDITED) != 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks whether a message was deleted.
+     * @param id The id of the message.
+     * @return True if only its tombstone is left.
+     */
+    public boolean isDeleted(int id) {
+        lock.readLock().lock();
+        try {
+            return (flags[id] & DELETED) != 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the latest messages of a room after a given one, leaving out deleted messages.
+     * Walks the ids of the room only, newest first, and stops at the limit.
+     * @param room The room to look in.
+     * @param after Id of the last message not wanted, or -1 for none.
+     * @param limit How many messages to return at most; the newest are kept.
+     * @return The ids of the messages, oldest first.
+     */
+    public int[] findAfter(String room, int after, int limit) {
+        lock.readLock().lock();
+        try {
+            Integer roomId = roomIds.get(room);
+            if (roomId == null || limit <= 0) {
+                return new int[0];
+            }
+            int[] ids = roomMessages[roomId];
+            int[] found = new int[Math.min(limit, roomSizes[roomId])];
+            int count = 0;
+            for (int i = roomSizes[roomId] - 1; i >= 0 && ids[i] > after && count < found.length; i--) {
+                if ((flags[ids[i]] & DELETED) == 0) {
+                    found[found.length - 1 - count++] = ids[i];
+                }
+            }
+            return Arrays.copyOfRange(found, found.length - count, found.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the newest message a sender still has in a room, which is the one edit and delete
+     * act on. Every holder of the history resolves it the same way, so an edit names no id.
+     * @param room The room to look in.
+     * @param sender Display name of the sender.
+     * @param limit How many of the most recent messages to look through at most.
+     * @return The id of the message, or -1 if there is none within the limit.
+     */
+    public int findLatest(String room, String sender, int limit) {
+        lock.readLock().lock();
+        try {
+            Integer roomId = roomIds.get(room);
+            Integer senderId = senderIds.get(sender);
+            if (roomId == null || senderId == null) {
+                return -1;
+            }
+            int oldest = Math.max(0, size - limit);
+            for (int id = size - 1; id >= oldest; id--) {
+                if (rooms[id] == roomId && senders[id] == senderId && (flags[id] & DELETED) == 0) {
+                    return id;
+                }
+            }
+            return -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the text of a message. The new text goes to the overlay, replacing an earlier
+     * edit not compacted yet.
+     * @param id The id of the message.
+     * @param body The new text.
+     * @return False if the message was deleted and cannot be edited.
+     */
+    public boolean edit(int id, String body) {
+        return revise(id, body, EDITED);
+    }
+
+    /**
+     * Deletes a message, leaving a tombstone so the ids of later messages stay put.
+     * @param id The id of the message.
+     * @return False if the message was already deleted.
+     */
+    public boolean delete(int id) {
+        return revise(id, null, DELETED);
+    }
+
+    private boolean revise(int id, String body, byte flag) {
+        lock.writeLock().lock();
+        try {
+            if ((flags[id] & DELETED) != 0) {
+                return false;
+            }
+            flags[id] |= flag;
+            overlays.put(id, body);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Accessor method for the overlay size.
+     * @return The number of edited or deleted messages not compacted yet.
+     */
+    public int getPendingCount() {
+        lock.readLock().lock();
+        try {
+            return overlays.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Folds the overlay into the segments. Each segment holding a revised message is copied,
+     * the latest text or a null tombstone is written into the copy and the copy replaces the
+     * segment, so an export still reading the old segment is not disturbed. Only the touched
+     * segments are copied, which keeps a pass short while new messages keep arriving.
+     * @return The number of messages folded.
+     */
+    public int compact() {
+        lock.writeLock().lock();
+        try {
+            HashMap<Integer, String[]> copies = new HashMap<>();
+            for (Map.Entry<Integer, String> overlay : overlays.entrySet()) {
+                int id = overlay.getKey();
+                String[] copy = copies.computeIfAbsent(id >> SEGMENT_BITS, segment -> segments[segment].clone());
+                copy[id & SEGMENT_MASK] = overlay.getValue();
+            }
+            for (Map.Entry<Integer, String[]> copy : copies.entrySet()) {
+                segments[copy.getKey()] = copy.getValue();
+            }
+            int folded = overlays.size();
+            overlays.clear();
+            return folded;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes every message of a room to a transcript, oldest first, with its latest text and
+     * without the deleted ones. The arrays are captured under the read lock and written out
+     * after releasing it: a slot is never changed once appended, compaction replaces whole
+     * segments, and the flags and overlay are copied, so the snapshot stays valid while
+     * appends carry on into new slots or arrays, and the disk never holds up an append.
+     * @param room The room to export.
+     * @param writer The transcript to append the messages to.
+     * @return The number of messages exported.
+     * @throws IOException If the transcript cannot be written.
+     */
+    public int export(String room, TranscriptWriter writer) throws IOException {
+        int roomId;
+        int count;
+        long[] times;
+        int[] roomColumn;
+        int[] senderColumn;
+        byte[] flagColumn;
+        String[][] bodySegments;
+        HashMap<Integer, String> revised;
+        String[] names;
+        lock.readLock().lock();
+        try {
+            Integer id = roomIds.get(room);
+            if (id == null) {
+                return 0;
+            }
+            roomId = id;
+            count = size;
+            times = timestamps;
+            roomColumn = rooms;
+            senderColumn = senders;
+            flagColumn = Arrays.copyOf(flags, count);
+            bodySegments = segments.clone();
+            revised = overlays.isEmpty() ? null : new HashMap<>(overlays);
+            names = senderNames.toArray(new String[0]);
+        } finally {
+            lock.readLock().unlock();
+        }
+        int exported = 0;
+        for (int id = 0; id < count; id++) {
+            if (roomColumn[id] != roomId || (flagColumn[id] & DELETED) != 0) {
+                continue;
+            }
+            String body = bodySegments[id >> SEGMENT_BITS][id & SEGMENT_MASK];
+            if (flagColumn[id] != 0 && revised != null && revised.containsKey(id)) {
+                body = revised.get(id);
+            }
+            writer.append(times[id], names[senderColumn[id]], body);
+            exported++;
+        }
+        return exported;
+    }
+
+    private static int intern(String value, HashMap<String, Integer> ids, List<String> names) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = names.size();
+            ids.put(value, id);
+            names.add(value);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,120 @@
+package server.client.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * The wire protocol spoken by the client and the server. Every frame is a UTF-8 text line,
+ * except a file chunk, which is a header line followed by raw bytes. Both ends build and
+ * recognize frames through the constants and helpers here, so they cannot drift apart.
+ *
+ * @author Robert McKay
+ */
+public final class Protocol {
+    // class constants
+    public static final String CLIENT_CLOSED = "connection terminated by client";
+    public static final String SERVER_CLOSED = "connection terminated by server";
+    public static final String DEFAULT_ROOM = "lobby";
+    public static final String NICK_COMMAND = "/nick ";
+    public static final String JOIN_COMMAND = "/join ";
+    public static final String DIRECT_COMMAND = "/msg ";
+    public static final String SEARCH_COMMAND = "/search ";
+    public static final String TYPING_COMMAND = "/typing";
+    public static final String PRESENCE_FRAME = "/presence ";
+    public static final String HELLO_COMMAND = "/hello ";
+    public static final String LOGIN_COMMAND = "/login ";
+    public static final String TOKEN_COMMAND = "/token ";
+    public static final String AUTH_FRAME = "/auth ";
+    public static final String EDIT_COMMAND = "/edit ";
+    public static final String DELETE_COMMAND = "/delete";
+    public static final String EDITED_FRAME = "/edited ";
+    public static final String DELETED_FRAME = "/deleted ";
+    public static final String SYNC_COMMAND = "/sync ";
+    public static final String REPLAY_FRAME = "/replay ";
+    public static final String POST_FRAME = "/post ";
+    public static final String HISTORY_FRAME = "/history ";
+    public static final String WELCOME_FRAME = "/welcome ";
+    public static final String RECONNECT_FRAME = "/reconnect ";
+    public static final String THROTTLE_FRAME = "/throttle ";
+    public static final String FILE_OFFER = "/file-offer ";
+    public static final String FILE_READY = "/file-ready ";
+    public static final String FILE_INCOMING = "/file-incoming ";
+    public static final String FILE_CHUNK = "/file-chunk ";
+    public static final String FILE_RESUME = "/file-resume ";
+    public static final String FILE_DONE = "/file-done ";
+    public static final int MAX_MESSAGE = 1000;
+    public static final int MAX_LINE = 65536;
+    public static final int MAX_CHUNK = 256 * 1024;
+    // how far back both ends look for the message an edit or delete applies to
+    public static final int REVISION_REACH = 10000;
+    // same layout as Date.toString(), without a Calendar per call
+    private static final DateTimeFormatter TIMESTAMP =
+        DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US);
+
+    private Protocol() {
+    }
+
+    /**
+     * Encodes a text frame.
+     * @param message The frame without its line break.
+     * @return Buffer holding the frame and its line break, ready to be written.
+     */
+    public static ByteBuffer encodeLine(String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[text.length + 1];
+        System.arraycopy(text, 0, frame, 0, text.length);
+        frame[text.length] = '\n';
+        return ByteBuffer.wrap(frame);
+    }
+
+    /**
+     * Builds the header line of a file chunk frame.
+     * @param transferId The transfer the chunk belongs to.
+     * @param offset Position of the chunk in the file.
+     * @param length Number of raw bytes following the header.
+     * @return The header, including its line break.
+     */
+    public static String chunkHeader(int transferId, long offset, int length) {
+        return FILE_CHUNK + transferId + " " + offset + " " + length + "\n";
+    }
+
+    /**
+     * Validates a message typed by a user before it is sent.
+     * @param message The message entered.
+     * @param placeholder The text shown in an untouched input field.
+     * @return The message, if valid.
+     * @throws IllegalArgumentException If the message is empty or exceeds 1000 characters.
+     */
+    public static String validate(String message, String placeholder) throws IllegalArgumentException {
+        if (message.equals("") || message.equals(placeholder)) {
+            throw new IllegalArgumentException("No message entered in message field");
+        } else if (message.length() > MAX_MESSAGE) {
+            throw new IllegalArgumentException("Message exceeds maximamum size (1000 characters)");
+        }
+        return message;
+    }
+
+    /**
+     * Formats a line for a chat log, stamped with the current time.
+     * @param who Description of who sent the message, e.g. "Server sends".
+     * @param message The message sent.
+     * @return The log line.
+     */
+    public static String logLine(String who, String message) {
+        return who + " - " + TIMESTAMP.format(ZonedDateTime.now()) + ": " + message;
+    }
+
+    /**
+     * Formats a point in time for display, in the same layout as the chat log.
+     * @param millis Time in milliseconds since the epoch.
+     * @return The formatted time in the local time zone.
+     */
+    public static String timestamp(long millis) {
+        return TIMESTAMP.format(Instant.ofEpochMilli(millis).atZone(ZoneId.systemDefault()));
+    }
+}
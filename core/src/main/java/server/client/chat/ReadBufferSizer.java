@@ -0,0 +1,102 @@
+package server.client.chat;
+
+/**
+ * Adaptive size of the read buffer of one connection. Each read is recorded: a read that
+ * fills its buffer doubles the size given to the next large buffer, and a run of reads that
+ * use less than a quarter of it halves that size, always between the bounds. As soon as a
+ * read leaves the socket empty the connection is caught up, so the next read only gets a
+ * buffer of the minimum size; the large buffer is let go and allocated again at the learned
+ * size when a burst fills the small one. An idle connection therefore holds the minimum and
+ * nothing more, while a saturated one keeps reading into the largest buffer it needs.
+ *
+ * The bounds are read from the system properties chat.read.minBuffer and chat.read.maxBuffer.
+ *
+ * @author Robert McKay
+ */
+public class ReadBufferSizer {
+    // class constants
+    private static final int DEFAULT_MIN_SIZE = 128;
+    private static final int DEFAULT_MAX_SIZE = 64 * 1024;
+    private static final int INITIAL_SIZE = 2048;
+    private static final int SHRINK_AFTER = 4;
+
+    // class data members
+    private final int minSize;
+    private final int maxSize;
+    private int size;
+    private int smallReads;
+    private boolean isDrained;
+
+    /**
+     * Constructor.
+     * @param minSize Size of the buffer read into while the connection is caught up.
+     * @param maxSize Largest buffer a burst may grow to.
+     * @throws IllegalArgumentException If the minimum is not positive or above the maximum.
+     */
+    public ReadBufferSizer(int minSize, int maxSize) throws IllegalArgumentException {
+        if (minSize <= 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Read buffer bounds must satisfy 0 < min <= max");
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        size = Math.max(minSize, Math.min(maxSize, INITIAL_SIZE));
+        isDrained = true;
+    }
+
+    /**
+     * Creates a sizer with the bounds given by the system properties.
+     * @return The new sizer.
+     * @throws IllegalArgumentException If the properties hold invalid bounds.
+     */
+    public static ReadBufferSizer fromProperties() throws IllegalArgumentException {
+        return new ReadBufferSizer(Integer.getInteger("chat.read.minBuffer", DEFAULT_MIN_SIZE),
+            Integer.getInteger("chat.read.maxBuffer", DEFAULT_MAX_SIZE));
+    }
+
+    /**
+     * Accessor method for the minimum size.
+     * @return Size of the buffer read into while the connection is caught up.
+     */
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Accessor method for the learned size.
+     * @return Size the next large buffer is given.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Decides how large a buffer the next read should use.
+     * @return The minimum if the last read emptied the socket, the learned size otherwise.
+     */
+    public int next() {
+        return isDrained ? minSize : size;
+    }
+
+    /**
+     * Records the outcome of a read.
+     * @param count Number of bytes the read returned.
+     * @param capacity Size of the buffer it read into.
+     */
+    public void record(int count, int capacity) {
+        isDrained = count < capacity;
+        if (count == capacity) {
+            // a full small buffer is the start of a burst, only a full large one means more
+            if (capacity >= size) {
+                size = Math.min(maxSize, size * 2);
+            }
+            smallReads = 0;
+        } else if (count < size / 4) {
+            if (++smallReads >= SHRINK_AFTER) {
+                size = Math.max(minSize, size / 2);
+                smallReads = 0;
+            }
+        } else {
+            smallReads = 0;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package server.client.chat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sequencing state for at-least-once delivery of chat messages over a connection that may be
+ * lost and re-established. Outbound messages are numbered from 1 and kept until the peer
+ * acknowledges them, so they can be sent again after a reconnect; the number of messages
+ * waiting for an acknowledgement is bounded. Inbound numbers are checked against a sliding
+ * bitmap of the last 64 numbers seen, so a message sent again is recognized as a duplicate
+ * without remembering every number ever received. Acknowledgements are cumulative and sent
+ * once every few messages or after a short delay, never once per message.
+ *
+ * Frames: /seq number message, and /ack number acknowledging every number up to it.
+ *
+ * @author Robert McKay
+ */
+public class ReliableStream {
+    // class constants
+    public static final String SEQ_FRAME = "/seq ";
+    public static final String ACK_FRAME = "/ack ";
+    private static final int WINDOW_BITS = 64;
+
+    // class data members
+    private final int capacity;
+    private final int ackEvery;
+    private final long ackDelayNanos;
+    private final ArrayDeque<String> unacked;
+    private long nextSeq;
+    private long acked;
+    private long highest;
+    private long window;
+    private long contiguous;
+    private long lastAckSent;
+    private long ackPendingSince;
+
+    /**
+     * Constructor.
+     * @param capacity Maximum number of outbound messages waiting for an acknowledgement.
+     * @param ackEvery Number of inbound messages after which an acknowledgement is due.
+     * @param ackDelayMillis Time after which an acknowledgement is due for fewer messages.
+     */
+    public ReliableStream(int capacity, int ackEvery, long ackDelayMillis) {
+        this.capacity = capacity;
+        this.ackEvery = ackEvery;
+        ackDelayNanos = ackDelayMillis * 1000000L;
+        unacked = new ArrayDeque<>();
+        nextSeq = 1;
+        resetInbound(0);
+    }
+
+    /**
+     * Numbers an outbound message and keeps it until acknowledged.
+     * @param message The message to send.
+     * @return The frame to send, or null if too many messages are waiting for an acknowledgement.
+     */
+    public synchronized String wrap(String message) {
+        if (unacked.size() >= capacity) {
+            return null;
+        }
+        String frame = SEQ_FRAME + nextSeq++ + " " + message;
+        unacked.add(frame);
+        return frame;
+    }
+
+    /**
+     * Releases the outbound messages acknowledged by the peer.
+     * @param seq The number of the last message acknowledged; every earlier one is acknowledged too.
+     * @return The frames released, oldest first.
+     */
+    public synchronized List<String> acknowledge(long seq) {
+        List<String> released = new ArrayList<>();
+        while (acked < seq && !unacked.isEmpty()) {
+            released.add(unacked.poll());
+            acked++;
+        }
+        return released;
+    }
+
+    /**
+     * Accessor method for the outbound messages waiting for an acknowledgement.
+     * @return Copy of the frames to send again after a reconnect, oldest first.
+     */
+    public synchronized List<String> getUnacked() {
+        return new ArrayList<>(unacked);
+    }
+
+    /**
+     * Accessor method for the number of outbound messages waiting for an acknowledgement.
+     * @return The number of frames held for resending.
+     */
+    public synchronized int getUnackedCount() {
+        return unacked.size();
+    }
+
+    /**
+     * Accessor method for the outbound acknowledgement.
+     * @return The number of the last outbound message acknowledged by the peer.
+     */
+    public synchronized long getAcked() {
+        return acked;
+    }
+
+    /**
+     * Accessor method for the inbound acknowledgement.
+     * @return The number up to which every inbound message has been received.
+     */
+    public synchronized long getReceived() {
+        return contiguous;
+    }
+
+    /**
+     * Forgets the inbound numbers seen, for a peer that starts numbering again.
+     * @param base Number after which the peer continues; messages up to it count as received.
+     */
+    public synchronized void resetInbound(long base) {
+        highest = base;
+        contiguous = base;
+        lastAckSent = base;
+        window = 1;
+        ackPendingSince = 0;
+    }
+
+    /**
+     * Records an inbound message number.
+     * @param seq The number of the message.
+     * @return True if the message is new, false if it is a duplicate or too old to tell.
+     */
+    public synchronized boolean accept(long seq) {
+        if (seq > highest) {
+            long shift = seq - highest;
+            window = shift >= WINDOW_BITS ? 1 : (window << shift) | 1;
+            highest = seq;
+        } else {
+            long age = highest - seq;
+            if (age >= WINDOW_BITS || (window & (1L << age)) != 0) {
+                return false;
+            }
+            window |= 1L << age;
+        }
+        // numbers that fell out of the window unseen are lost, stop waiting for them
+        contiguous = Math.max(contiguous, highest - WINDOW_BITS);
+        while (contiguous < highest && (window & (1L << (highest - contiguous - 1))) != 0) {
+            contiguous++;
+        }
+        if (ackPendingSince == 0) {
+            ackPendingSince = System.nanoTime();
+        }
+        return true;
+    }
+
+    /**
+     * Tells how long until the cumulative acknowledgement is due.
+     * @param now The current {@link System#nanoTime()}.
+     * @return Nanoseconds until {@link #takeAck(long)} returns an acknowledgement, 0 if one is
+     *     due already, or -1 if no inbound message waits to be acknowledged.
+     */
+    public synchronized long nanosUntilAck(long now) {
+        if (contiguous <= lastAckSent) {
+            return -1;
+        }
+        if (contiguous - lastAckSent >= ackEvery) {
+            return 0;
+        }
+        return Math.max(0, ackDelayNanos - (now - ackPendingSince));
+    }
+
+    /**
+     * Takes the cumulative acknowledgement if one is due.
+     * @param now The current {@link System#nanoTime()}.
+     * @return The number to acknowledge, or -1 if no acknowledgement is due yet.
+     */
+    public synchronized long takeAck(long now) {
+        if (contiguous <= lastAckSent) {
+            return -1;
+        }
+        if (contiguous - lastAckSent < ackEvery && now - ackPendingSince < ackDelayNanos) {
+            return -1;
+        }
+        lastAckSent = contiguous;
+        ackPendingSince = contiguous < highest ? now : 0;
+        return contiguous;
+    }
+
+    /**
+     * Reads the number of a sequenced frame.
+     * @param frame A frame starting with the sequence prefix.
+     * @return The number of the frame, or -1 if it is malformed.
+     */
+    public static long sequenceOf(String frame) {
+        int end = frame.indexOf(' ', SEQ_FRAME.length());
+        try {
+            return Long.parseLong(end < 0 ? "" : frame.substring(SEQ_FRAME.length(), end));
+        } catch (NumberFormatException err) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the message of a sequenced frame.
+     * @param frame A well formed frame starting with the sequence prefix.
+     * @return The message carried by the frame.
+     */
+    public static String messageOf(String frame) {
+        return frame.substring(frame.indexOf(' ', SEQ_FRAME.length()) + 1);
+    }
+}
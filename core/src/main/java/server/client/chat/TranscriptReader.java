@@ -0,0 +1,237 @@
+package server.client.chat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads back a transcript written by {@link TranscriptWriter}. Only one block is held in
+ * memory at a time and it is decoded when the first of its messages is asked for, so a
+ * transcript of any length can be streamed into a view as it is read.
+ *
+ * @author Robert McKay
+ */
+public class TranscriptReader implements AutoCloseable {
+    // class constants
+    private static final int MAX_COLUMN = 64 * 1024 * 1024;
+    private static final int TIMES = 0;
+    private static final int SENDERS = 1;
+    private static final int BODIES = 2;
+
+    // class data members
+    private final DataInputStream input;
+    private final String room;
+    private final List<String> senderNames;
+    private final Inflater inflater;
+    private final int[] positions;
+    private byte[] times;
+    private byte[] senders;
+    private byte[] bodies;
+    private int remaining;
+    private boolean isFinished;
+    private long timestamp;
+    private String sender;
+    private String body;
+
+    /**
+     * Constructor. Reads the file header.
+     * @param input The stream to read the transcript from; closed with the reader.
+     * @throws IOException If the stream does not hold a transcript.
+     */
+    public TranscriptReader(InputStream input) throws IOException {
+        this.input = new DataInputStream(new BufferedInputStream(input, 65536));
+        if (this.input.readInt() != TranscriptWriter.MAGIC) {
+            throw new IOException("Not a transcript file");
+        }
+        int version = this.input.readUnsignedByte();
+        if (version != TranscriptWriter.VERSION) {
+            throw new IOException("Unsupported transcript version " + version);
+        }
+        room = this.input.readUTF();
+        senderNames = new ArrayList<>();
+        inflater = new Inflater();
+        positions = new int[3];
+    }
+
+    /**
+     * Accessor method for the room.
+     * @return The room the transcript belongs to.
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Moves to the next message, reading the next block when the current one is used up.
+     * @return True if there is a message, false at the end of the transcript.
+     * @throws IOException If the transcript is truncated or corrupt.
+     */
+    public boolean next() throws IOException {
+        if (remaining == 0 && !readBlock()) {
+            return false;
+        }
+        remaining--;
+        long zigzag = readVarLong(times, TIMES);
+        timestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+        int id = (int) readVarLong(senders, SENDERS);
+        if (id < 0 || id >= senderNames.size()) {
+            throw new IOException("Corrupt transcript: unknown sender " + id);
+        }
+        sender = senderNames.get(id);
+        int length = (int) readVarLong(bodies, BODIES);
+        int start = positions[BODIES];
+        if (length < 0 || start + length > bodies.length) {
+            throw new IOException("Corrupt transcript: body overruns its block");
+        }
+        body = new String(bodies, start, length, StandardCharsets.UTF_8);
+        positions[BODIES] = start + length;
+        return true;
+    }
+
+    /**
+     * Accessor method for the timestamp of the current message.
+     * @return Time of the message in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Accessor method for the sender of the current message.
+     * @return Display name of the sender.
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * Accessor method for the body of the current message.
+     * @return Text of the message.
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * Streams a transcript file to a display, formatted one message per line. Lines are handed
+     * over in batches as the blocks are decoded, so the first messages show up long before a
+     * large transcript is read to the end.
+     * @param file The transcript file to read.
+     * @param batchSize Number of lines per batch.
+     * @param display Receives each batch, its lines separated by line breaks.
+     * @return The number of messages read.
+     * @throws IOException If the file cannot be read or is not a valid transcript.
+     */
+    public static long replay(Path file, int batchSize, Consumer<String> display) throws IOException {
+        long count = 0;
+        try (TranscriptReader reader = new TranscriptReader(Files.newInputStream(file))) {
+            String prefix = "[" + reader.getRoom() + "] ";
+            StringBuilder batch = new StringBuilder();
+            while (reader.next()) {
+                if (batch.length() > 0) {
+                    batch.append('\n');
+                }
+                batch.append(prefix).append(Protocol.timestamp(reader.getTimestamp()))
+                    .append(" <").append(reader.getSender()).append("> ").append(reader.getBody());
+                if (++count % batchSize == 0) {
+                    display.accept(batch.toString());
+                    batch.setLength(0);
+                }
+            }
+            if (batch.length() > 0) {
+                display.accept(batch.toString());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes the underlying stream.
+     * @throws IOException If the stream fails to close.
+     */
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        input.close();
+    }
+
+    private boolean readBlock() throws IOException {
+        if (isFinished) {
+            return false;
+        }
+        int count = input.readInt();
+        if (count == 0) {
+            isFinished = true;
+            return false;
+        }
+        if (count < 0) {
+            throw new IOException("Corrupt transcript: negative block size");
+        }
+        int added = input.readInt();
+        for (int i = 0; i < added; i++) {
+            senderNames.add(input.readUTF());
+        }
+        times = readColumn(input.readInt());
+        senders = readColumn(input.readInt());
+        int rawLength = input.readInt();
+        byte[] deflated = readColumn(input.readInt());
+        bodies = new byte[checkLength(rawLength)];
+        inflater.reset();
+        inflater.setInput(deflated);
+        try {
+            int length = 0;
+            while (length < rawLength) {
+                int inflated = inflater.inflate(bodies, length, rawLength - length);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Corrupt transcript: bodies shorter than announced");
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException err) {
+            throw new IOException("Corrupt transcript: " + err.getMessage());
+        }
+        positions[TIMES] = 0;
+        positions[SENDERS] = 0;
+        positions[BODIES] = 0;
+        remaining = count;
+        return true;
+    }
+
+    private byte[] readColumn(int length) throws IOException {
+        byte[] column = new byte[checkLength(length)];
+        input.readFully(column);
+        return column;
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_COLUMN) {
+            throw new IOException("Corrupt transcript: column of " + length + " bytes");
+        }
+        return length;
+    }
+
+    private long readVarLong(byte[] column, int cursor) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int position = positions[cursor]++;
+            if (position >= column.length) {
+                throw new IOException("Corrupt transcript: column ends early");
+            }
+            byte next = column[position];
+            value |= (long) (next & 0x7F) << shift;
+            if (next >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt transcript: malformed number");
+    }
+}
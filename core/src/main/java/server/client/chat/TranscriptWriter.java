@@ -0,0 +1,172 @@
+package server.client.chat;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the transcript of a room in a compact columnar file. Messages are buffered into
+ * blocks and each block is stored column by column: timestamps as variable length deltas from
+ * the previous message, senders as variable length numbers into a dictionary that grows from
+ * block to block, and the bodies together in one deflate compressed run. Chat traffic is
+ * mostly small steps in time, a few recurring names and repetitive text, so each column
+ * shrinks far below the plain text transcript.
+ *
+ * File layout, all integers big-endian unless marked varint:
+ *   "CHTR" version:byte room:UTF
+ *   block*: count:int newSenders:int name:UTF* times:column senders:column bodies:compressed
+ *   end:    count 0
+ * where column is length:int bytes, and compressed is rawLength:int length:int deflated bytes.
+ * Timestamps are zigzag varint deltas, senders are varints and every body is a varint
+ * length followed by its UTF-8 bytes.
+ *
+ * @author Robert McKay
+ */
+public class TranscriptWriter implements AutoCloseable {
+    // class constants
+    public static final int MAGIC = 0x43485452;
+    public static final int VERSION = 1;
+    public static final int BLOCK_SIZE = 4096;
+
+    // class data members
+    private final DataOutputStream output;
+    private final HashMap<String, Integer> senderIds;
+    private final List<String> newSenders;
+    private final ByteArrayOutputStream times;
+    private final ByteArrayOutputStream senders;
+    private final ByteArrayOutputStream bodies;
+    private final Deflater deflater;
+    private byte[] compressed;
+    private long previousTime;
+    private int count;
+    private long total;
+    private boolean isClosed;
+
+    /**
+     * Constructor. Writes the file header.
+     * @param output The stream to write the transcript to; closed with the writer.
+     * @param room The room the transcript belongs to.
+     * @throws IOException If the header cannot be written.
+     */
+    public TranscriptWriter(OutputStream output, String room) throws IOException {
+        this.output = new DataOutputStream(new BufferedOutputStream(output, 65536));
+        senderIds = new HashMap<>();
+        newSenders = new ArrayList<>();
+        times = new ByteArrayOutputStream();
+        senders = new ByteArrayOutputStream();
+        bodies = new ByteArrayOutputStream();
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        compressed = new byte[65536];
+        this.output.writeInt(MAGIC);
+        this.output.writeByte(VERSION);
+        this.output.writeUTF(room);
+    }
+
+    /**
+     * Appends a message to the transcript.
+     * @param timestamp Time of the message in milliseconds since the epoch.
+     * @param sender Display name of the sender.
+     * @param body Text of the message.
+     * @throws IOException If a full block cannot be written.
+     */
+    public void append(long timestamp, String sender, String body) throws IOException {
+        Integer id = senderIds.get(sender);
+        if (id == null) {
+            id = senderIds.size();
+            senderIds.put(sender, id);
+            newSenders.add(sender);
+        }
+        long delta = timestamp - previousTime;
+        writeVarLong(times, (delta << 1) ^ (delta >> 63));
+        previousTime = timestamp;
+        writeVarLong(senders, id);
+        byte[] text = body.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bodies, text.length);
+        bodies.write(text, 0, text.length);
+        total++;
+        if (++count == BLOCK_SIZE) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Accessor method for the number of messages.
+     * @return The number of messages appended so far.
+     */
+    public long getCount() {
+        return total;
+    }
+
+    /**
+     * Writes the last block and the end marker, then closes the stream.
+     * @throws IOException If the transcript cannot be completed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        try {
+            if (count > 0) {
+                writeBlock();
+            }
+            output.writeInt(0);
+        } finally {
+            deflater.end();
+            output.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        output.writeInt(count);
+        output.writeInt(newSenders.size());
+        for (String name : newSenders) {
+            output.writeUTF(name);
+        }
+        writeColumn(times);
+        writeColumn(senders);
+
+        deflater.reset();
+        deflater.setInput(bodies.toByteArray());
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                byte[] grown = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, grown, 0, length);
+                compressed = grown;
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        output.writeInt(bodies.size());
+        output.writeInt(length);
+        output.write(compressed, 0, length);
+
+        newSenders.clear();
+        times.reset();
+        senders.reset();
+        bodies.reset();
+        count = 0;
+    }
+
+    private void writeColumn(ByteArrayOutputStream column) throws IOException {
+        output.writeInt(column.size());
+        column.writeTo(output);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream column, long value) {
+        while ((value & ~0x7FL) != 0) {
+            column.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        column.write((int) value);
+    }
+}
@@ -0,0 +1,79 @@
+package server.client.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Feeds read outcomes to a sizer and checks the buffer sizes it hands out.
+ *
+ * @author Robert McKay
+ */
+public class ReadBufferSizerTest {
+
+    @Test
+    public void aCaughtUpConnectionReadsIntoTheMinimum() {
+        ReadBufferSizer sizer = new ReadBufferSizer(128, 8192);
+        assertEquals(128, sizer.next());
+        sizer.record(100, 128);
+        assertEquals(128, sizer.next());
+        assertEquals(2048, sizer.getSize());
+    }
+
+    @Test
+    public void fullReadsGrowTheBufferUpToTheMaximum() {
+        ReadBufferSizer sizer = new ReadBufferSizer(128, 8192);
+        // a full small buffer starts a burst at the learned size, without growing it
+        sizer.record(128, 128);
+        assertEquals(2048, sizer.next());
+        sizer.record(2048, 2048);
+        sizer.record(4096, 4096);
+        assertEquals(8192, sizer.next());
+        sizer.record(8192, 8192);
+        assertEquals(8192, sizer.next());
+        // the burst is over: back to the minimum, the learned size is kept for the next one
+        sizer.record(100, 8192);
+        assertEquals(128, sizer.next());
+        assertEquals(8192, sizer.getSize());
+    }
+
+    @Test
+    public void aRunOfSmallReadsHalvesTheLearnedSize() {
+        ReadBufferSizer sizer = new ReadBufferSizer(128, 65536);
+        sizer.record(2048, 2048);
+        assertEquals(4096, sizer.getSize());
+        for (int n = 0; n < 3; n++) {
+            sizer.record(10, 128);
+        }
+        assertEquals(4096, sizer.getSize());
+        // a read of a fair share of the buffer breaks the run
+        sizer.record(2000, 4096);
+        for (int n = 0; n < 3; n++) {
+            sizer.record(10, 128);
+        }
+        assertEquals(4096, sizer.getSize());
+        sizer.record(10, 128);
+        assertEquals(2048, sizer.getSize());
+    }
+
+    @Test
+    public void theLearnedSizeStaysWithinTheBounds() {
+        ReadBufferSizer sizer = new ReadBufferSizer(128, 1024);
+        assertEquals(1024, sizer.getSize());
+        for (int n = 0; n < 100; n++) {
+            sizer.record(1, 128);
+        }
+        assertEquals(128, sizer.getSize());
+        for (int n = 0; n < 100; n++) {
+            sizer.record(sizer.getSize(), sizer.getSize());
+        }
+        assertEquals(1024, sizer.getSize());
+    }
+
+    @Test
+    public void boundsMustBePositiveAndOrdered() {
+        assertThrows(IllegalArgumentException.class, () -> new ReadBufferSizer(0, 1024));
+        assertThrows(IllegalArgumentException.class, () -> new ReadBufferSizer(2048, 1024));
+    }
+}
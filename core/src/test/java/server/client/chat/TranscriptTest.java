@@ -0,0 +1,87 @@
+package server.client.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Writes transcripts into memory and reads them back.
+ *
+ * @author Robert McKay
+ */
+public class TranscriptTest {
+
+    @Test
+    public void messagesSurviveTheRoundTripAcrossBlocks() throws IOException {
+        // two full blocks and part of a third; carol first speaks in the second block
+        int total = 2 * TranscriptWriter.BLOCK_SIZE + 100;
+        int carolJoins = TranscriptWriter.BLOCK_SIZE + 17;
+        long[] times = new long[total];
+        String[] senders = new String[total];
+        String[] bodies = new String[total];
+        long time = 1700000000000L;
+        for (int i = 0; i < total; i++) {
+            // mostly small steps forward, now and then a clock that stepped back
+            time += i % 97 == 0 ? -1500 : i % 5;
+            times[i] = time;
+            senders[i] = i >= carolJoins && i % 3 == 0 ? "carol" : i % 2 == 0 ? "alice" : "bob";
+            bodies[i] = i % 250 == 0 ? "" : i % 7 == 0 ? "caf\u00e9 \u2713 " + i : "message number " + i;
+        }
+        assertEquals("carol", senders[carolJoins]);
+        assertEquals("", bodies[TranscriptWriter.BLOCK_SIZE + 904]);
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        try (TranscriptWriter writer = new TranscriptWriter(file, "lobby")) {
+            for (int i = 0; i < total; i++) {
+                writer.append(times[i], senders[i], bodies[i]);
+            }
+            assertEquals(total, writer.getCount());
+        }
+        try (TranscriptReader reader = new TranscriptReader(new ByteArrayInputStream(file.toByteArray()))) {
+            assertEquals("lobby", reader.getRoom());
+            for (int i = 0; i < total; i++) {
+                assertTrue(reader.next(), "transcript ends after " + i + " messages");
+                assertEquals(times[i], reader.getTimestamp(), "timestamp of message " + i);
+                assertEquals(senders[i], reader.getSender(), "sender of message " + i);
+                assertEquals(bodies[i], reader.getBody(), "body of message " + i);
+            }
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void anEmptyTranscriptHasOnlyItsRoom() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        new TranscriptWriter(file, "quiet").close();
+        try (TranscriptReader reader = new TranscriptReader(new ByteArrayInputStream(file.toByteArray()))) {
+            assertEquals("quiet", reader.getRoom());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void aTruncatedTranscriptIsReportedNotCutShort() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        try (TranscriptWriter writer = new TranscriptWriter(file, "lobby")) {
+            for (int i = 0; i < TranscriptWriter.BLOCK_SIZE + 10; i++) {
+                writer.append(i, "alice", "message number " + i);
+            }
+        }
+        byte[] bytes = file.toByteArray();
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 20);
+        assertThrows(IOException.class, () -> {
+            try (TranscriptReader reader = new TranscriptReader(new ByteArrayInputStream(truncated))) {
+                while (reader.next()) {
+                    reader.getBody();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,389 @@
+package server.client.chat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.LinkOption;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * Control channel for operators on a Unix domain socket, so the server can be run and
+ * diagnosed from a script on a host without a display. Only the owner of the server process
+ * may open the socket: the socket file is private from the moment it appears, and a connection
+ * from a process of another user is refused. Each line sent is a command, and every reply ends
+ * with a line holding a single '.', so a script reads one reply per command:
+ *   sessions                 one line per session: id, user, room, address, queued frames,
+ *                            frames received and sent, and both per second since connecting
+ *   kick (session|user)      disconnects a session, or every session of a user
+ *   limits                   the live limits
+ *   limit name value         changes a limit, see {@link #LIMITS}
+ *   metrics                  counters of the whole server, one "name value" per line
+ *   quit                     closes the connection
+ * A failed command answers "error: " and the reason.
+ *
+ * Each connection is served on its own thread, and every command only reads counters and
+ * concurrent tables the message path keeps anyway, so diagnosing the server never holds up a
+ * session. The socket is opened with the system property chat.admin.socket, the path of the
+ * socket file; {@link #main} sends commands to it.
+ *
+ * @author Robert McKay
+ */
+public class AdminConsole {
+    // class constants
+    public static final String END = ".";
+    public static final String ERROR = "error: ";
+    public static final String[] LIMITS = {
+        "rate.session", "rate.room", "rate.global", "admission.maxSessions", "admission.maxPerAddress"
+    };
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    // class data members
+    private final ServerEngine engine;
+    private final Path path;
+    private final long startedAt;
+    private final Set<SocketChannel> connections;
+    private volatile ServerSocketChannel server;
+    private Object boundKey;
+    private volatile UserPrincipal owner;
+
+    /**
+     * Constructor.
+     * @param engine The server to operate.
+     * @param path The path of the socket file.
+     */
+    public AdminConsole(ServerEngine engine, Path path) {
+        this.engine = engine;
+        this.path = path;
+        startedAt = System.nanoTime();
+        connections = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Opens the socket and starts accepting operators. The socket is bound inside a directory
+     * only the owner of the process can enter and linked to its path once it is private, so no
+     * one else can connect in between. A socket file left behind by a server that did not stop
+     * cleanly is replaced; one a running server still answers on is left alone.
+     * @throws IOException If the socket cannot be opened, or another server answers on the path.
+     */
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            if (isAnswering(path)) {
+                throw new IOException("Another server answers on " + path);
+            }
+            Files.delete(path);
+        }
+        Path parent = path.toAbsolutePath().getParent();
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            if (Files.getFileStore(parent).supportsFileAttributeView("posix")) {
+                Path staging = Files.createTempDirectory(parent, ".admin",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                Path bound = staging.resolve("s");
+                try {
+                    channel.bind(UnixDomainSocketAddress.of(bound));
+                    Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+                    // a link fails rather than replace a file another server created meanwhile
+                    Files.createLink(path, bound);
+                } finally {
+                    Files.deleteIfExists(bound);
+                    Files.delete(staging);
+                }
+            } else {
+                channel.bind(UnixDomainSocketAddress.of(path));
+            }
+            boundKey = fileKey(path);
+            owner = Files.getOwner(path);
+        } catch (IOException err) {
+            channel.close();
+            throw err;
+        }
+        server = channel;
+        Thread acceptor = new Thread(this::accept, "admin-console");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Closes the socket and every open connection, and removes the socket file unless it is no
+     * longer the one this console bound, such as after a server taking over replaced it.
+     */
+    public synchronized void stop() {
+        ServerSocketChannel channel = server;
+        server = null;
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+            for (SocketChannel connection : connections) {
+                connection.close();
+            }
+            if (boundKey != null && boundKey.equals(fileKey(path))) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException err) {
+            // nothing left to operate either way
+        }
+    }
+
+    private static boolean isAnswering(Path path) {
+        try (SocketChannel probe = SocketChannel.open(UnixDomainSocketAddress.of(path))) {
+            return probe.isConnected();
+        } catch (IOException err) {
+            return false;
+        }
+    }
+
+    private static Object fileKey(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+        } catch (IOException err) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks that a connection comes from a process of the user running the server. The file
+     * permissions already keep other users out; this also holds where they cannot be set.
+     */
+    private boolean isOwner(SocketChannel connection) {
+        try {
+            return connection.getOption(ExtendedSocketOptions.SO_PEERCRED).user().equals(owner);
+        } catch (UnsupportedOperationException err) {
+            // no peer credentials on this platform, the permissions of the socket file decide
+            return true;
+        } catch (IOException err) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs one command.
+     * @param command The command line.
+     * @return The reply lines, without the closing '.'.
+     */
+    public List<String> execute(String command) {
+        String[] parts = command.trim().split("\\s+");
+        List<String> reply = new ArrayList<>();
+        try {
+            switch (parts[0]) {
+            case "sessions":
+                listSessions(reply);
+                break;
+            case "kick":
+                expect(parts, 2, "kick <session|user>");
+                reply.add("kicked " + engine.kick(parts[1]));
+                break;
+            case "limits":
+                listLimits(reply);
+                break;
+            case "limit":
+                expect(parts, 3, "limit <name> <value>");
+                setLimit(parts[1], Integer.parseInt(parts[2]));
+                reply.add(parts[1] + " " + parts[2]);
+                break;
+            case "metrics":
+                listMetrics(reply);
+                break;
+            case "help":
+            case "":
+                reply.add("commands: sessions, kick <session|user>, limits, limit <name> <value>, metrics, quit");
+                break;
+            default:
+                throw new IllegalArgumentException("unknown command " + parts[0] + ", try help");
+            }
+        } catch (NumberFormatException err) {
+            reply.add(ERROR + "not a number: " + parts[2]);
+        } catch (IllegalArgumentException | ServerModelException err) {
+            reply.add(ERROR + err.getMessage());
+        }
+        return reply;
+    }
+
+    /**
+     * Sends commands to the console of a running server and prints the replies.
+     * Usage: AdminConsole socket-path command [command...], each command one argument.
+     * @param args The socket path followed by the commands.
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: AdminConsole <socket path> <command> [<command>...]");
+            System.exit(2);
+        }
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(Paths.get(args[0])))) {
+            PrintWriter out = new PrintWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+            for (int i = 1; i < args.length; i++) {
+                out.println(args[i]);
+                String line;
+                while ((line = in.readLine()) != null && !line.equals(END)) {
+                    System.out.println(line);
+                }
+            }
+        } catch (IOException err) {
+            System.err.println("Failed to reach the server at " + args[0] + ": " + err.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void accept() {
+        int next = 0;
+        while (true) {
+            ServerSocketChannel channel = server;
+            if (channel == null) {
+                return;
+            }
+            try {
+                SocketChannel connection = channel.accept();
+                if (!isOwner(connection)) {
+                    engine.getEvents().record(EventLog.WARN, "admin.refused", EventLog.NO_SESSION,
+                        "Refused an admin connection from another user");
+                    connection.close();
+                    continue;
+                }
+                connections.add(connection);
+                Thread operator = new Thread(() -> serve(connection), "admin-session-" + ++next);
+                operator.setDaemon(true);
+                operator.start();
+            } catch (IOException err) {
+                if (!channel.isOpen()) {
+                    return;
+                }
+                // a connection that failed on its own, keep accepting
+            }
+        }
+    }
+
+    /**
+     * Answers the commands of one connection until it closes or quits.
+     */
+    private void serve(SocketChannel connection) {
+        try (connection;
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                    Channels.newInputStream(connection), StandardCharsets.UTF_8));
+                Writer out = Channels.newWriter(connection, StandardCharsets.UTF_8)) {
+            String command;
+            while ((command = in.readLine()) != null && !command.trim().equals("quit")) {
+                StringBuilder reply = new StringBuilder();
+                for (String line : execute(command)) {
+                    reply.append(line).append('\n');
+                }
+                out.write(reply.append(END).append('\n').toString());
+                out.flush();
+            }
+        } catch (IOException err) {
+            // the operator went away
+        } finally {
+            connections.remove(connection);
+        }
+    }
+
+    private void listSessions(List<String> reply) {
+        reply.add("id user room address queued received sent received/s sent/s");
+        long now = System.nanoTime();
+        for (ServerSession session : engine.getModel().getSessions()) {
+            double seconds = Math.max(1, now - session.getConnectedAt()) / (double) NANOS_PER_SECOND;
+            reply.add(session.getId() + " " + session.getDisplayName() + " " + session.getRoom() + " "
+                + session.getAddress().getHostAddress() + " " + session.getQueueDepth() + " "
+                + session.getReceived() + " " + session.getSent() + " "
+                + String.format("%.1f %.1f", session.getReceived() / seconds, session.getSent() / seconds));
+        }
+    }
+
+    private void listLimits(List<String> reply) {
+        ServerModel model = engine.getModel();
+        reply.add("rate.session " + model.getRateLimiter().getSessionRate());
+        reply.add("rate.room " + model.getRateLimiter().getRoomRate());
+        reply.add("rate.global " + model.getRateLimiter().getGlobalRate());
+        reply.add("admission.maxSessions " + model.getAdmission().getMaxSessions());
+        reply.add("admission.maxPerAddress " + model.getAdmission().getMaxPerAddress());
+    }
+
+    private void setLimit(String name, int value) throws IllegalArgumentException {
+        ServerModel model = engine.getModel();
+        switch (name) {
+        case "rate.session":
+            model.getRateLimiter().setSessionRate(value, model.getSessions());
+            break;
+        case "rate.room":
+            model.getRateLimiter().setRoomRate(value);
+            break;
+        case "rate.global":
+            model.getRateLimiter().setGlobalRate(value);
+            break;
+        case "admission.maxSessions":
+            model.getAdmission().setMaxSessions(value);
+            break;
+        case "admission.maxPerAddress":
+            model.getAdmission().setMaxPerAddress(value);
+            break;
+        default:
+            throw new IllegalArgumentException("unknown limit " + name + ", one of " + String.join(", ", LIMITS));
+        }
+        engine.getEvents().info("admin.limit", EventLog.NO_SESSION, "Operator set " + name + " to " + value);
+    }
+
+    private void listMetrics(List<String> reply) {
+        ServerModel model = engine.getModel();
+        long queued = 0;
+        int maxQueued = 0;
+        long received = 0;
+        long sent = 0;
+        int sessions = 0;
+        for (ServerSession session : model.getSessions()) {
+            int depth = session.getQueueDepth();
+            queued += depth;
+            maxQueued = Math.max(maxQueued, depth);
+            received += session.getReceived();
+            sent += session.getSent();
+            sessions++;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        reply.add("console.uptimeSeconds " + (System.nanoTime() - startedAt) / NANOS_PER_SECOND);
+        reply.add("sessions.open " + sessions);
+        reply.add("sessions.admitted " + model.getAdmission().getAdmitted());
+        reply.add("sessions.shed " + model.getAdmission().getShed());
+        reply.add("frames.queued " + queued);
+        reply.add("frames.queuedMax " + maxQueued);
+        reply.add("frames.received " + received);
+        reply.add("frames.sent " + sent);
+        reply.add("history.messages " + model.getHistory().size());
+        reply.add("history.compacted " + model.getCompactor().getCompacted());
+        reply.add("mailbox.spilled " + model.getMailboxes().getSpilled());
+        reply.add("mailbox.dropped " + model.getMailboxes().getDropped());
+        reply.add("events.written " + engine.getEvents().getWritten());
+        reply.add("events.dropped " + engine.getEvents().getDropped());
+        reply.add("cluster.peers " + (model.getCluster() == null ? 0 : model.getCluster().getPeerCount()));
+        reply.add("jvm.heapUsed " + (runtime.totalMemory() - runtime.freeMemory()));
+        reply.add("jvm.heapMax " + runtime.maxMemory());
+        reply.add("jvm.threads " + Thread.activeCount());
+    }
+
+    private static void expect(String[] parts, int count, String usage) throws IllegalArgumentException {
+        if (parts.length != count) {
+            throw new IllegalArgumentException("usage: " + usage);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package server.client.chat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which accepted connections become sessions. A connection is shed straight after
+ * accept when the server holds its maximum number of sessions or the remote address holds its
+ * maximum number of connections, before any thread or buffer is spent on it, so an overload
+ * does not slow down the sessions already connected. Admitted connections get the configured
+ * socket options. Limits are read from system properties: chat.accept.backlog,
+ * chat.admission.maxSessions, chat.admission.maxPerAddress, chat.socket.noDelay,
+ * chat.socket.sendBuffer and chat.socket.receiveBuffer (0 keeps the system default). The
+ * session limits can be changed while the server runs; lowering one sheds no open session.
+ * A shed connection is answered in the protocol it speaks, see {@link Refusal}.
+ *
+ * @author Robert McKay
+ */
+public class AdmissionControl {
+    // class constants
+    private static final int DEFAULT_BACKLOG = 256;
+    private static final int DEFAULT_MAX_SESSIONS = 10000;
+    private static final int DEFAULT_MAX_PER_ADDRESS = 16;
+    private static final int DISCARD_SIZE = 4096;
+    private static final long RETRY_DELAY_MILLIS = 5000;
+    private static final long RETRY_JITTER_MILLIS = 10000;
+    public static final Refusal NATIVE_REFUSAL = (delayMillis, jitterMillis) -> Protocol.encodeLine(
+        delayMillis < 0 ? Protocol.SERVER_CLOSED : Protocol.RECONNECT_FRAME + delayMillis + " " + jitterMillis);
+
+    // class data members
+    private final int backlog;
+    private volatile int maxSessions;
+    private volatile int maxPerAddress;
+    private final boolean noDelay;
+    private final int sendBuffer;
+    private final int receiveBuffer;
+    private final AtomicInteger admitted;
+    private final AtomicLong shed;
+    // a counter below zero has been retired and is being removed from the map
+    private final ConcurrentHashMap<InetAddress, AtomicInteger> perAddress;
+
+    /**
+     * Constructor. Reads the limits from system properties, falling back to the defaults.
+     */
+    public AdmissionControl() {
+        this(Integer.getInteger("chat.accept.backlog", DEFAULT_BACKLOG),
+            Integer.getInteger("chat.admission.maxSessions", DEFAULT_MAX_SESSIONS),
+            Integer.getInteger("chat.admission.maxPerAddress", DEFAULT_MAX_PER_ADDRESS));
+    }
+
+    /**
+     * Constructor.
+     * @param backlog Length of the queue of connections waiting to be accepted.
+     * @param maxSessions Maximum number of sessions open at once.
+     * @param maxPerAddress Maximum number of sessions open at once from one remote address.
+     * @throws IllegalArgumentException If a limit is not positive.
+     */
+    public AdmissionControl(int backlog, int maxSessions, int maxPerAddress) throws IllegalArgumentException {
+        if (backlog <= 0 || maxSessions <= 0 || maxPerAddress <= 0) {
+            throw new IllegalArgumentException("Admission limits must be positive");
+        }
+        this.backlog = backlog;
+        this.maxSessions = maxSessions;
+        this.maxPerAddress = maxPerAddress;
+        noDelay = Boolean.parseBoolean(System.getProperty("chat.socket.noDelay", "true"));
+        sendBuffer = Integer.getInteger("chat.socket.sendBuffer", 0);
+        receiveBuffer = Integer.getInteger("chat.socket.receiveBuffer", 0);
+        admitted = new AtomicInteger();
+        shed = new AtomicLong();
+        perAddress = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Accessor method for the accept backlog.
+     * @return Length of the queue of connections waiting to be accepted.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Accessor method for the session limit.
+     * @return Maximum number of sessions open at once.
+     */
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Mutator method for the session limit.
+     * @param maxSessions Maximum number of sessions open at once.
+     * @throws IllegalArgumentException If the limit is not positive.
+     */
+    public void setMaxSessions(int maxSessions) throws IllegalArgumentException {
+        if (maxSessions <= 0) {
+            throw new IllegalArgumentException("Admission limits must be positive");
+        }
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Accessor method for the per address limit.
+     * @return Maximum number of sessions open at once from one remote address.
+     */
+    public int getMaxPerAddress() {
+        return maxPerAddress;
+    }
+
+    /**
+     * Mutator method for the per address limit.
+     * @param maxPerAddress Maximum number of sessions open at once from one remote address.
+     * @throws IllegalArgumentException If the limit is not positive.
+     */
+    public void setMaxPerAddress(int maxPerAddress) throws IllegalArgumentException {
+        if (maxPerAddress <= 0) {
+            throw new IllegalArgumentException("Admission limits must be positive");
+        }
+        this.maxPerAddress = maxPerAddress;
+    }
+
+    /**
+     * Accessor method for the number of admitted connections.
+     * @return The number of sessions currently holding an admission.
+     */
+    public int getAdmitted() {
+        return admitted.get();
+    }
+
+    /**
+     * Accessor method for the number of shed connections.
+     * @return The number of connections refused since the server was created.
+     */
+    public long getShed() {
+        return shed.get();
+    }
+
+    /**
+     * Admits or sheds a freshly accepted native connection, see {@link #admit(SocketChannel, Refusal)}.
+     * @param connection The accepted connection.
+     * @return The remote address the admission is held for, or null if the connection was shed.
+     */
+    public InetAddress admit(SocketChannel connection) {
+        return admit(connection, NATIVE_REFUSAL);
+    }
+
+    /**
+     * Admits or sheds a freshly accepted connection. A shed connection is sent one reply
+     * telling the client why, then closed; an overloaded server asks the client to come back
+     * later, a client over its address limit is simply refused.
+     * @param connection The accepted connection.
+     * @param refusal Encodes the reply to a shed connection.
+     * @return The remote address the admission is held for, or null if the connection was shed.
+     */
+    public InetAddress admit(SocketChannel connection, Refusal refusal) {
+        InetAddress address = remoteAddress(connection);
+        if (admitted.incrementAndGet() > maxSessions) {
+            admitted.decrementAndGet();
+            shed(connection, refusal.encode(RETRY_DELAY_MILLIS, RETRY_JITTER_MILLIS));
+            return null;
+        }
+        if (!acquire(address)) {
+            admitted.decrementAndGet();
+            shed(connection, refusal.encode(-1, 0));
+            return null;
+        }
+        try {
+            configure(connection);
+        } catch (IOException err) {
+            release(address);
+            shed(connection, null);
+            return null;
+        }
+        return address;
+    }
+
+    /**
+     * Gives back the admission of a closed session.
+     * @param address The remote address returned by {@link #admit(SocketChannel)}.
+     */
+    public void release(InetAddress address) {
+        AtomicInteger count = perAddress.get(address);
+        // entries are retired at zero, so the map only holds addresses with open sessions
+        if (count != null && count.decrementAndGet() == 0 && count.compareAndSet(0, -1)) {
+            perAddress.remove(address, count);
+        }
+        admitted.decrementAndGet();
+    }
+
+    /**
+     * Counts a connection against the limit of its address. An address with open sessions
+     * costs one counter, updated in place, so an accept allocates nothing once its address is
+     * known; a counter retired by a concurrent release is removed first and replaced.
+     */
+    private boolean acquire(InetAddress address) {
+        while (true) {
+            AtomicInteger count = perAddress.get(address);
+            if (count == null) {
+                count = new AtomicInteger();
+                AtomicInteger raced = perAddress.putIfAbsent(address, count);
+                count = raced == null ? count : raced;
+            }
+            int current = count.get();
+            if (current < 0) {
+                perAddress.remove(address, count);
+            } else if (current >= maxPerAddress) {
+                return false;
+            } else if (count.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Applies the options accepted connections inherit from the listening channel. The
+     * receive buffer must be sized before the handshake for TCP to advertise a large window,
+     * so it is set here rather than on each accepted connection.
+     * @param server The listening channel, not yet bound.
+     * @throws IOException If an option cannot be set.
+     */
+    public void configure(ServerSocketChannel server) throws IOException {
+        if (receiveBuffer > 0) {
+            server.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+        }
+    }
+
+    private void configure(SocketChannel connection) throws IOException {
+        connection.setOption(StandardSocketOptions.TCP_NODELAY, noDelay);
+        connection.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        if (sendBuffer > 0) {
+            connection.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+        }
+    }
+
+    private void shed(SocketChannel connection, ByteBuffer reply) {
+        shed.incrementAndGet();
+        try {
+            if (reply != null) {
+                // a fresh socket has an empty send buffer, the reply goes out without blocking
+                connection.write(reply);
+                connection.shutdownOutput();
+                // closing with unread input resets the connection, which can discard the reply
+                // before the client reads it; a browser has usually sent its request by now
+                connection.configureBlocking(false);
+                ByteBuffer discard = ByteBuffer.allocate(DISCARD_SIZE);
+                while (connection.read(discard) > 0) {
+                    discard.clear();
+                }
+            }
+        } catch (IOException err) {
+            // the connection is dropped either way
+        }
+        try {
+            connection.close();
+        } catch (IOException err) {
+            // nothing left to release
+        }
+    }
+
+    private static InetAddress remoteAddress(SocketChannel connection) {
+        try {
+            return ((InetSocketAddress) connection.getRemoteAddress()).getAddress();
+        } catch (IOException | ClassCastException err) {
+            return InetAddress.getLoopbackAddress();
+        }
+    }
+
+    /**
+     * Encodes the reply a shed connection gets, in the protocol the client speaks:
+     * a native client reads a chat frame, a browser an HTTP response.
+     */
+    public interface Refusal {
+        /**
+         * Encodes the reply to a shed connection.
+         * @param delayMillis How long the client should wait before connecting again, or -1 if
+         *     it should not come back on its own.
+         * @param jitterMillis Bound of a random delay added to it, so the clients shed together
+         *     do not come back together.
+         * @return The reply to write before closing the connection.
+         */
+        ByteBuffer encode(long delayMillis, long jitterMillis);
+    }
+}
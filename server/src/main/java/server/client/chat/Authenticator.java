@@ -0,0 +1,354 @@
+package server.client.chat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks who a client is. Passwords are kept in a local file as salted PBKDF2 hashes, one user
+ * per line: "user:iterations:salt:hash", with salt and hash in base64. A successful password
+ * login is answered with a session token, which the client presents instead of the password
+ * when it reconnects.
+ *
+ * Deriving a password hash is deliberately slow, so it is kept off the reconnect path: a token
+ * is signed with a key stored next to the password file, and a token that has been checked
+ * once is held in a bounded, expiring {@link TokenCache}. A client reconnecting after a network
+ * blip costs a lookup, and one reconnecting after a server restart costs a single HMAC, so a
+ * reconnect storm does not turn into a storm of password hashing. The password logins that do
+ * happen are limited to a few hashes at a time and queue for the rest.
+ *
+ * A token names the credential it was issued for, so setting a new password for a user also
+ * invalidates the tokens that user holds.
+ *
+ * Configured with system properties: chat.auth.file (path of the password file; leave unset to
+ * let anyone chat), chat.auth.iterations (PBKDF2 iterations for new passwords, default
+ * 210000), chat.auth.tokenMinutes (lifetime of a token, default 720), chat.auth.cacheSize
+ * (tokens held in the cache, default 10000) and chat.auth.maxHashing (password hashes derived
+ * at once, default half the processors).
+ *
+ * @author Robert McKay
+ */
+public class Authenticator {
+    // class constants
+    private static final String HASH_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String TOKEN_ALGORITHM = "HmacSHA256";
+    private static final Pattern USER_ID = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final int KEY_BYTES = 32;
+    private static final long SWEEP_INTERVAL_MILLIS = 60000;
+    private static final String LOGIN_FAILED = "Login failed: unknown user or wrong password";
+    private static final String TOKEN_FAILED = "Login expired, log in again with /login <user> <password>";
+
+    // class data members
+    private final Path file;
+    private final int iterations;
+    private final long tokenLifetimeMillis;
+    private final ConcurrentHashMap<String, Credential> credentials;
+    private final TokenCache tokens;
+    private final Semaphore hashing;
+    private final SecureRandom random;
+    private final Credential decoy;
+    private volatile SecretKeySpec tokenKey;
+    private volatile long lastSweep;
+
+    /**
+     * Inner class. The stored hash of one user's password.
+     */
+    private static class Credential {
+        private final int iterations;
+        private final byte[] salt;
+        private final byte[] hash;
+
+        Credential(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Constructor. Nothing is read until the authenticator is loaded.
+     * @param file Path of the password file; the token key is kept beside it with a ".key" suffix.
+     * @param iterations PBKDF2 iterations used for new passwords.
+     * @param tokenLifetimeMillis How long a token stays valid.
+     * @param cacheSize Maximum number of verified tokens held in memory.
+     * @param maxHashing Maximum number of password hashes derived at once.
+     * @throws IllegalArgumentException If a setting is not positive.
+     */
+    public Authenticator(Path file, int iterations, long tokenLifetimeMillis, int cacheSize, int maxHashing)
+            throws IllegalArgumentException {
+        if (iterations <= 0 || tokenLifetimeMillis <= 0 || maxHashing <= 0) {
+            throw new IllegalArgumentException("Authentication settings must be positive");
+        }
+        this.file = file;
+        this.iterations = iterations;
+        this.tokenLifetimeMillis = tokenLifetimeMillis;
+        credentials = new ConcurrentHashMap<>();
+        tokens = new TokenCache(cacheSize);
+        hashing = new Semaphore(maxHashing, true);
+        random = new SecureRandom();
+        decoy = new Credential(iterations, new byte[SALT_BYTES], new byte[HASH_BITS / 8]);
+    }
+
+    /**
+     * Creates an authenticator configured from the system properties.
+     * @return The new authenticator, not yet loaded, or null if chat.auth.file is not set.
+     */
+    public static Authenticator fromProperties() {
+        String path = System.getProperty("chat.auth.file", "");
+        if (path.isEmpty()) {
+            return null;
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        return new Authenticator(Paths.get(path),
+            Integer.getInteger("chat.auth.iterations", 210000),
+            TimeUnit.MINUTES.toMillis(Long.getLong("chat.auth.tokenMinutes", 720)),
+            Integer.getInteger("chat.auth.cacheSize", 10000),
+            Integer.getInteger("chat.auth.maxHashing", Math.max(1, processors / 2)));
+    }
+
+    /**
+     * Reads the password file and the token key, creating the key on first use. A missing
+     * password file counts as one without users.
+     * @throws IOException If a file cannot be read or is malformed, or the key cannot be created.
+     */
+    public synchronized void load() throws IOException {
+        Map<String, Credential> loaded = new HashMap<>();
+        if (Files.exists(file)) {
+            int number = 0;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                number++;
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.trim().split(":");
+                try {
+                    if (parts.length != 4 || !USER_ID.matcher(parts[0]).matches()) {
+                        throw new IllegalArgumentException("expected user:iterations:salt:hash");
+                    }
+                    Base64.Decoder decoder = Base64.getDecoder();
+                    loaded.put(parts[0], new Credential(Integer.parseInt(parts[1]),
+                        decoder.decode(parts[2]), decoder.decode(parts[3])));
+                } catch (IllegalArgumentException err) {
+                    throw new IOException(file + " line " + number + ": " + err.getMessage());
+                }
+            }
+        }
+        credentials.clear();
+        credentials.putAll(loaded);
+        tokenKey = new SecretKeySpec(loadKey(), TOKEN_ALGORITHM);
+    }
+
+    /**
+     * Accessor method for the number of users.
+     * @return The number of users with a password.
+     */
+    public int getUserCount() {
+        return credentials.size();
+    }
+
+    /**
+     * Checks whether a user has a password.
+     * @param userId The user to check.
+     * @return True if the user can log in.
+     */
+    public boolean hasUser(String userId) {
+        return credentials.containsKey(userId);
+    }
+
+    /**
+     * Accessor method for the token cache.
+     * @return The cache of verified tokens.
+     */
+    public TokenCache getTokens() {
+        return tokens;
+    }
+
+    /**
+     * Checks a password and issues a session token. Waits while the maximum number of
+     * hashes is already being derived.
+     * @param userId The user logging in.
+     * @param password The password presented.
+     * @return A token the client can log in with until it expires.
+     * @throws ServerModelException If the user is unknown or the password is wrong.
+     */
+    public String login(String userId, String password) throws ServerModelException {
+        Credential credential = credentials.get(userId);
+        // an unknown user costs a hash too, so the answer time does not tell which users exist
+        Credential expected = credential != null ? credential : decoy;
+        hashing.acquireUninterruptibly();
+        byte[] hash;
+        try {
+            hash = derive(password, expected.salt, expected.iterations);
+        } finally {
+            hashing.release();
+        }
+        if (credential == null || !MessageDigest.isEqual(hash, credential.hash)) {
+            throw new ServerModelException(LOGIN_FAILED);
+        }
+        long expiresAt = System.currentTimeMillis() + tokenLifetimeMillis;
+        String token = expiresAt + "." + sign(userId, expiresAt, credential);
+        tokens.put(userId + " " + token, credential, expiresAt);
+        return token;
+    }
+
+    /**
+     * Checks a session token issued by an earlier login, without deriving a password hash.
+     * @param userId The user logging in.
+     * @param token The token presented.
+     * @throws ServerModelException If the token is malformed, forged, expired or issued for a
+     *     password that has since changed.
+     */
+    public void resume(String userId, String token) throws ServerModelException {
+        Credential credential = credentials.get(userId);
+        if (credential == null) {
+            throw new ServerModelException(TOKEN_FAILED);
+        }
+        long now = System.currentTimeMillis();
+        sweep(now);
+        String key = userId + " " + token;
+        if (tokens.contains(key, credential, now)) {
+            return;
+        }
+        int dot = token.indexOf('.');
+        long expiresAt;
+        try {
+            expiresAt = Long.parseLong(token.substring(0, Math.max(0, dot)));
+        } catch (NumberFormatException err) {
+            throw new ServerModelException(TOKEN_FAILED);
+        }
+        byte[] presented = token.substring(dot + 1).getBytes(StandardCharsets.US_ASCII);
+        byte[] expected = sign(userId, expiresAt, credential).getBytes(StandardCharsets.US_ASCII);
+        if (expiresAt <= now || !MessageDigest.isEqual(presented, expected)) {
+            throw new ServerModelException(TOKEN_FAILED);
+        }
+        tokens.put(key, credential, expiresAt);
+    }
+
+    /**
+     * Sets the password of a user, adding the user if needed, and saves the password file.
+     * Tokens issued for the old password stop working.
+     * @param userId The user to set the password for.
+     * @param password The new password.
+     * @throws IllegalArgumentException If the user id or password is not valid.
+     * @throws IOException If the password file cannot be written.
+     */
+    public synchronized void setPassword(String userId, String password)
+            throws IllegalArgumentException, IOException {
+        if (userId == null || !USER_ID.matcher(userId).matches()) {
+            throw new IllegalArgumentException("User must be 1-32 letters, digits, '_' or '-'");
+        }
+        if (password == null || password.isEmpty()) {
+            throw new IllegalArgumentException("Password must not be empty");
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        credentials.put(userId, new Credential(iterations, salt, derive(password, salt, iterations)));
+        save();
+    }
+
+    private void save() throws IOException {
+        Base64.Encoder encoder = Base64.getEncoder();
+        List<String> lines = new ArrayList<>();
+        lines.add("# user:iterations:salt:hash, PBKDF2 with HMAC-SHA256");
+        for (Map.Entry<String, Credential> entry : credentials.entrySet()) {
+            Credential credential = entry.getValue();
+            lines.add(entry.getKey() + ":" + credential.iterations + ":" + encoder.encodeToString(credential.salt)
+                + ":" + encoder.encodeToString(credential.hash));
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temporary, lines, StandardCharsets.UTF_8);
+        restrict(temporary);
+        try {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException err) {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private byte[] loadKey() throws IOException {
+        Path keyFile = file.resolveSibling(file.getFileName() + ".key");
+        if (Files.exists(keyFile)) {
+            byte[] key = Files.readAllBytes(keyFile);
+            if (key.length != KEY_BYTES) {
+                throw new IOException(keyFile + " is not a token key");
+            }
+            return key;
+        }
+        byte[] key = new byte[KEY_BYTES];
+        random.nextBytes(key);
+        Path parent = keyFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.write(keyFile, key);
+        restrict(keyFile);
+        return key;
+    }
+
+    private static void restrict(Path secret) throws IOException {
+        try {
+            Files.setPosixFilePermissions(secret, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException err) {
+            // not a POSIX file system, the file keeps the default permissions
+        }
+    }
+
+    private void sweep(long now) {
+        if (now - lastSweep < SWEEP_INTERVAL_MILLIS) {
+            return;
+        }
+        lastSweep = now;
+        tokens.sweep(now);
+    }
+
+    private String sign(String userId, long expiresAt, Credential credential) {
+        try {
+            Mac mac = Mac.getInstance(TOKEN_ALGORITHM);
+            mac.init(tokenKey);
+            mac.update((userId + ":" + expiresAt + ":").getBytes(StandardCharsets.UTF_8));
+            // the salt ties the token to this password, a new password gets a new salt
+            mac.update(credential.salt);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal());
+        } catch (GeneralSecurityException err) {
+            throw new ServerModelException("Failed to sign token: " + err.getMessage());
+        }
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(HASH_ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException err) {
+            throw new ServerModelException("Failed to hash password: " + err.getMessage());
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
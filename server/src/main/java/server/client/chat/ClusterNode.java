@@ -0,0 +1,504 @@
+package server.client.chat;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Links several server instances into a full mesh over TCP. Every node tells its peers which
+ * rooms it has local subscribers for, and a room message is only forwarded to the peers that
+ * subscribed to that room. Forwarded messages are written in batches so that a busy room costs
+ * one frame per batch instead of one frame per message.
+ *
+ * Inter-node protocol, one frame per line:
+ *   HELLO nodeId      - first frame on every link
+ *   SUB room          - the sender has local subscribers for the room
+ *   UNSUB room        - the sender has no local subscribers left for the room
+ *   BATCH count       - followed by count lines of the form "room sender message", or
+ *                       "!edit room sender message" and "!delete room sender" for a change to
+ *                       the sender's latest message; room names never start with '!'
+ *
+ * Each link queues at most chat.cluster.queue messages, 10000 by default. A peer that falls
+ * that far behind has its link dropped rather than growing the queue without bound; the node
+ * that dialed re-dials it on its next round, and the messages queued meanwhile are lost, as
+ * they are for any broken link.
+ *
+ * @author Robert McKay
+ */
+public class ClusterNode {
+    // class constants
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_QUEUE = Integer.getInteger("chat.cluster.queue", 10000);
+    private static final long RECONNECT_MILLIS = 2000;
+    private static final String EDIT_ENTRY = "!edit ";
+    private static final String DELETE_ENTRY = "!delete ";
+
+    // class data members
+    private final String nodeId;
+    private final int port;
+    private final List<InetSocketAddress> seeds;
+    private final Delivery delivery;
+    private final Set<String> localRooms;
+    // held while the rooms change and while a new peer is linked and told the rooms, so a SUB
+    // and an UNSUB for one room always reach a peer in the order the room changed
+    private final Object subscriptions;
+    private final ConcurrentHashMap<String, Peer> peers;
+    private final ConcurrentHashMap<InetSocketAddress, String> seedIds;
+    private volatile boolean isStarted;
+    private ServerSocket server;
+
+    /**
+     * Receives the room messages forwarded by other nodes.
+     */
+    public interface Delivery {
+        /**
+         * Called for every room message forwarded by a peer.
+         * @param room The room the message was sent to.
+         * @param sender Display name of the sender.
+         * @param body Text of the message.
+         */
+        void deliver(String room, String sender, String body);
+
+        /**
+         * Called for every edit or delete forwarded by a peer.
+         * @param room The room the message was sent to.
+         * @param sender Display name of the sender.
+         * @param body The new text of the sender's latest message, or null to delete it.
+         */
+        void amend(String room, String sender, String body);
+    }
+
+    /**
+     * A live link with another node. Owns a writer thread that drains the outbound queue in batches.
+     */
+    private class Peer {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final BufferedWriter writer;
+        private final BlockingQueue<String> controlQueue;
+        private final BlockingQueue<String> messageQueue;
+        private final Set<String> remoteRooms;
+        private final boolean initiatedLocally;
+        private volatile String remoteId;
+        private volatile boolean isOpen;
+
+        Peer(Socket socket, boolean initiatedLocally) throws IOException {
+            this.socket = socket;
+            this.initiatedLocally = initiatedLocally;
+            socket.setTcpNoDelay(true);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            controlQueue = new LinkedBlockingQueue<>();
+            messageQueue = new LinkedBlockingQueue<>(MAX_QUEUE);
+            remoteRooms = ConcurrentHashMap.newKeySet();
+            isOpen = true;
+        }
+
+        /**
+         * Performs the HELLO exchange, then runs the reader and writer threads.
+         */
+        void open() throws IOException {
+            writer.write("HELLO " + nodeId + "\n");
+            writer.flush();
+            socket.setSoTimeout((int) RECONNECT_MILLIS);
+            String hello = reader.readLine();
+            if (hello == null || !hello.startsWith("HELLO ")) {
+                throw new IOException("Peer did not identify itself");
+            }
+            socket.setSoTimeout(0);
+            remoteId = hello.substring("HELLO ".length());
+            synchronized (subscriptions) {
+                if (!link(this)) {
+                    close();
+                    return;
+                }
+                for (String room : localRooms) {
+                    controlQueue.add("SUB " + room);
+                }
+            }
+            Thread readerThread = new Thread(this::readLoop, "cluster-reader-" + remoteId);
+            Thread writerThread = new Thread(this::writeLoop, "cluster-writer-" + remoteId);
+            readerThread.setDaemon(true);
+            writerThread.setDaemon(true);
+            readerThread.start();
+            writerThread.start();
+        }
+
+        private void readLoop() {
+            try {
+                String frame;
+                while (isOpen && (frame = reader.readLine()) != null) {
+                    if (frame.startsWith("SUB ")) {
+                        remoteRooms.add(frame.substring("SUB ".length()));
+                    } else if (frame.startsWith("UNSUB ")) {
+                        remoteRooms.remove(frame.substring("UNSUB ".length()));
+                    } else if (frame.startsWith("BATCH ")) {
+                        int count = Integer.parseInt(frame.substring("BATCH ".length()));
+                        for (int i = 0; i < count; i++) {
+                            String entry = reader.readLine();
+                            if (entry != null && entry.startsWith(EDIT_ENTRY)) {
+                                String[] parts = entry.split(" ", 4);
+                                if (parts.length == 4) {
+                                    delivery.amend(parts[1], parts[2], parts[3]);
+                                }
+                                continue;
+                            }
+                            if (entry != null && entry.startsWith(DELETE_ENTRY)) {
+                                String[] parts = entry.split(" ");
+                                if (parts.length == 3) {
+                                    delivery.amend(parts[1], parts[2], null);
+                                }
+                                continue;
+                            }
+                            String[] parts = entry == null ? new String[0] : entry.split(" ", 3);
+                            if (parts.length == 3) {
+                                delivery.deliver(parts[0], parts[1], parts[2]);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException | NumberFormatException err) {
+                // fall through and drop the link, the connector will re-establish it
+            }
+            close();
+        }
+
+        private void writeLoop() {
+            List<String> batch = new ArrayList<>(MAX_BATCH);
+            try {
+                while (isOpen) {
+                    String control = controlQueue.poll();
+                    if (control != null) {
+                        writer.write(control + "\n");
+                        writer.flush();
+                        continue;
+                    }
+                    String first = messageQueue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    messageQueue.drainTo(batch, MAX_BATCH - 1);
+                    writer.write("BATCH " + batch.size() + "\n");
+                    for (String entry : batch) {
+                        writer.write(entry + "\n");
+                    }
+                    writer.flush();
+                    batch.clear();
+                }
+            } catch (IOException | InterruptedException err) {
+                // fall through and drop the link
+            }
+            close();
+        }
+
+        void close() {
+            if (!isOpen) {
+                return;
+            }
+            isOpen = false;
+            if (remoteId != null) {
+                peers.remove(remoteId, this);
+            }
+            try {
+                socket.close();
+            } catch (IOException err) {
+                // socket is unusable either way
+            }
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param nodeId Unique name of this node within the cluster.
+     * @param port The port to listen on for links from other nodes.
+     * @param seeds Addresses of the other nodes this node should link to.
+     * @param delivery Called for every room message forwarded by a peer.
+     */
+    public ClusterNode(String nodeId, int port, List<InetSocketAddress> seeds, Delivery delivery) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.seeds = new ArrayList<>(seeds);
+        this.delivery = delivery;
+        localRooms = ConcurrentHashMap.newKeySet();
+        subscriptions = new Object();
+        peers = new ConcurrentHashMap<>();
+        seedIds = new ConcurrentHashMap<>();
+        isStarted = false;
+    }
+
+    /**
+     * Parses a comma separated list of host:port pairs.
+     * @param list The list to parse, for example "localhost:6001,10.0.0.2:6001".
+     * @return The parsed addresses.
+     * @throws IllegalArgumentException If an entry is not a valid host:port pair.
+     */
+    public static List<InetSocketAddress> parseSeeds(String list) throws IllegalArgumentException {
+        List<InetSocketAddress> seeds = new ArrayList<>();
+        for (String entry : list.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int split = entry.lastIndexOf(':');
+            if (split <= 0) {
+                throw new IllegalArgumentException("Cluster peer must be host:port, got " + entry);
+            }
+            int peerPort = Integer.parseInt(entry.substring(split + 1));
+            seeds.add(new InetSocketAddress(entry.substring(0, split), peerPort));
+        }
+        return seeds;
+    }
+
+    /**
+     * Accessor method for the node id.
+     * @return The unique name of this node.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Accessor method for the cluster port.
+     * @return The port this node listens on for other nodes.
+     */
+    public int getPort() {
+        return server != null ? server.getLocalPort() : port;
+    }
+
+    /**
+     * Accessor method for the number of live links.
+     * @return The number of nodes this node is currently linked with.
+     */
+    public int getPeerCount() {
+        return peers.size();
+    }
+
+    /**
+     * Counts the live links with subscribers for a room.
+     * @param room The room to look up.
+     * @return The number of nodes a message to the room is forwarded to.
+     */
+    public int getPeerCount(String room) {
+        int count = 0;
+        for (Peer peer : peers.values()) {
+            if (peer.remoteRooms.contains(room)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Opens the cluster port and starts linking with the seed nodes.
+     * @throws ServerModelException If the node is already started or the cluster port fails to open.
+     */
+    public synchronized void start() throws ServerModelException {
+        if (isStarted) {
+            throw new ServerModelException("Cluster node already started");
+        }
+        try {
+            server = new ServerSocket(port);
+        } catch (IOException err) {
+            throw new ServerModelException("Failed to open cluster port " + port);
+        }
+        isStarted = true;
+        Thread acceptor = new Thread(this::acceptLoop, "cluster-acceptor");
+        Thread connector = new Thread(this::connectLoop, "cluster-connector");
+        acceptor.setDaemon(true);
+        connector.setDaemon(true);
+        acceptor.start();
+        connector.start();
+    }
+
+    /**
+     * Closes the cluster port and every link with other nodes.
+     */
+    public synchronized void stop() {
+        if (!isStarted) {
+            return;
+        }
+        isStarted = false;
+        try {
+            server.close();
+        } catch (IOException err) {
+            // nothing left to release
+        }
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+    }
+
+    /**
+     * Announces that this node has local subscribers for a room.
+     * @param room The room that gained its first local subscriber.
+     */
+    public void subscribe(String room) {
+        synchronized (subscriptions) {
+            if (localRooms.add(room)) {
+                for (Peer peer : peers.values()) {
+                    peer.controlQueue.add("SUB " + room);
+                }
+            }
+        }
+    }
+
+    /**
+     * Announces that this node has no local subscribers left for a room.
+     * @param room The room that lost its last local subscriber.
+     */
+    public void unsubscribe(String room) {
+        synchronized (subscriptions) {
+            if (localRooms.remove(room)) {
+                for (Peer peer : peers.values()) {
+                    peer.controlQueue.add("UNSUB " + room);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forwards a room message to every peer that has subscribers for the room.
+     * @param room The room the message was sent to.
+     * @param sender Display name of the sender, must not contain a space.
+     * @param body Text of the message, must not contain a line break.
+     */
+    public void publish(String room, String sender, String body) {
+        String entry = null;
+        for (Peer peer : peers.values()) {
+            if (peer.remoteRooms.contains(room)) {
+                if (entry == null) {
+                    entry = room + " " + sender + " " + body;
+                }
+                forward(peer, entry);
+            }
+        }
+    }
+
+    /**
+     * Forwards an edit or delete to every peer that has subscribers for the room, in line with
+     * the room's messages so it reaches each peer after the message it changes.
+     * @param room The room the message was sent to.
+     * @param sender Display name of the sender, must not contain a space.
+     * @param body The new text of the sender's latest message, or null to delete it.
+     */
+    public void amend(String room, String sender, String body) {
+        String entry = body == null ? DELETE_ENTRY + room + " " + sender
+            : EDIT_ENTRY + room + " " + sender + " " + body;
+        for (Peer peer : peers.values()) {
+            if (peer.remoteRooms.contains(room)) {
+                forward(peer, entry);
+            }
+        }
+    }
+
+    /**
+     * Queues an entry for a peer, dropping the link if the peer's queue is full.
+     */
+    private static void forward(Peer peer, String entry) {
+        if (!peer.messageQueue.offer(entry)) {
+            peer.close();
+        }
+    }
+
+    /**
+     * Registers a link once its HELLO exchange is complete. When two nodes dial each other at
+     * the same time both sides keep the link initiated by the node with the smaller id.
+     * @param peer The link to register.
+     * @return True if the link was kept, false if it duplicates an existing link.
+     */
+    private boolean link(Peer peer) {
+        if (peer.remoteId.equals(nodeId)) {
+            return false;
+        }
+        boolean preferred = peer.initiatedLocally == (nodeId.compareTo(peer.remoteId) < 0);
+        Peer[] replaced = new Peer[1];
+        Peer kept = peers.compute(peer.remoteId, (key, existing) -> {
+            if (existing == null || !existing.isOpen) {
+                return peer;
+            }
+            if (preferred && existing.initiatedLocally != peer.initiatedLocally) {
+                replaced[0] = existing;
+                return peer;
+            }
+            return existing;
+        });
+        if (replaced[0] != null) {
+            replaced[0].close();
+        }
+        return kept == peer;
+    }
+
+    private void acceptLoop() {
+        while (isStarted) {
+            try {
+                Socket socket = server.accept();
+                new Thread(() -> handshake(socket, false), "cluster-handshake").start();
+            } catch (IOException err) {
+                // server socket closed by stop()
+            }
+        }
+    }
+
+    private void connectLoop() {
+        while (isStarted) {
+            for (InetSocketAddress seed : seeds) {
+                if (!isLinked(seed)) {
+                    try {
+                        Socket socket = new Socket();
+                        socket.connect(seed, (int) RECONNECT_MILLIS);
+                        Peer peer = handshake(socket, true);
+                        if (peer != null) {
+                            seedIds.put(seed, peer.remoteId);
+                        }
+                    } catch (IOException err) {
+                        // peer is not up yet, try again on the next round
+                    }
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException err) {
+                return;
+            }
+        }
+    }
+
+    private boolean isLinked(InetSocketAddress seed) {
+        String remoteId = seedIds.get(seed);
+        return remoteId != null && peers.containsKey(remoteId);
+    }
+
+    private Peer handshake(Socket socket, boolean initiatedLocally) {
+        Peer peer = null;
+        try {
+            peer = new Peer(socket, initiatedLocally);
+            peer.open();
+            return peer;
+        } catch (IOException err) {
+            if (peer != null) {
+                peer.close();
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // socket is unusable either way
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package server.client.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Structured log of the server's operational events. Threads record an event by claiming a
+ * slot in a fixed ring with a compare-and-set and filling it in; they never take a lock,
+ * wait for the disk or touch the view. When the ring is full the event is dropped and
+ * counted instead. A single writer thread drains the ring in batches, appends the events to
+ * a file as JSON lines, rotating it by size, and hands the batch to the display as one block
+ * of text.
+ *
+ * Record format: {"time":millis,"level":"INFO","event":"session.connect","session":7,"detail":"..."}
+ * with "session" omitted for events not tied to a session.
+ *
+ * Configured with system properties: chat.log.file (path of the log, empty to keep no file,
+ * default server-events.jsonl), chat.log.maxBytes (size at which the file is rotated, default
+ * 10 MB), chat.log.files (rotated files kept, default 5) and chat.log.capacity (events the
+ * ring holds, rounded up to a power of two, default 65536).
+ *
+ * @author Robert McKay
+ */
+public class EventLog {
+    // class constants
+    public static final String INFO = "INFO";
+    public static final String WARN = "WARN";
+    public static final String ERROR = "ERROR";
+    public static final int NO_SESSION = -1;
+    private static final int BATCH = 1024;
+    private static final long IDLE_PARK_NANOS = 2000000L;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    // class data members
+    private final Path file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong head;
+    private final AtomicLong dropped;
+    private final StringBuilder json;
+    private final StringBuilder shown;
+    private volatile long tail;
+    private volatile Consumer<String> display;
+    private volatile boolean isClosed;
+    private Thread writer;
+    private FileChannel channel;
+    private long fileBytes;
+
+    /**
+     * Inner class. One event in the ring. The fields are written by the recording thread
+     * before it publishes the slot's sequence, and read by the writer only after it sees it.
+     */
+    private static class Slot {
+        private volatile long published;
+        private long time;
+        private String level;
+        private String event;
+        private int session;
+        private String detail;
+
+        Slot() {
+            published = -1;
+        }
+    }
+
+    /**
+     * Constructor. The log does not record anything until started.
+     * @param file Path of the log file, or null to keep no file.
+     * @param maxBytes Size at which the file is rotated.
+     * @param maxFiles Number of rotated files kept besides the current one.
+     * @param capacity Number of events the ring holds, rounded up to a power of two.
+     */
+    public EventLog(Path file, long maxBytes, int maxFiles, int capacity) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+        head = new AtomicLong();
+        dropped = new AtomicLong();
+        json = new StringBuilder(BATCH * 128);
+        shown = new StringBuilder(BATCH * 64);
+        isClosed = true;
+    }
+
+    /**
+     * Creates a log configured from the system properties.
+     * @return The new log, not yet started.
+     */
+    public static EventLog fromProperties() {
+        String path = System.getProperty("chat.log.file", "server-events.jsonl");
+        return new EventLog(path.isEmpty() ? null : Paths.get(path),
+            Long.getLong("chat.log.maxBytes", 10L * 1024 * 1024),
+            Integer.getInteger("chat.log.files", 5),
+            Integer.getInteger("chat.log.capacity", 65536));
+    }
+
+    /**
+     * Sets where the events are shown besides the file. Called from the writer thread with
+     * the details of a batch of events, one per line.
+     * @param display Receives the batches, or null to show nothing.
+     */
+    public void setDisplay(Consumer<String> display) {
+        this.display = display;
+    }
+
+    /**
+     * Opens the log file and starts the writer thread.
+     * @throws IOException If the log file cannot be opened. The log is started regardless and
+     *     keeps showing events on the display.
+     */
+    public synchronized void start() throws IOException {
+        if (!isClosed) {
+            return;
+        }
+        IOException failure = null;
+        if (file != null) {
+            try {
+                open();
+            } catch (IOException err) {
+                failure = err;
+            }
+        }
+        isClosed = false;
+        writer = new Thread(this::writeLoop, "event-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Writes out the events already recorded, then stops the writer thread and closes the file.
+     */
+    public synchronized void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records an informational event.
+     * @param event Name of the event, e.g. "session.connect".
+     * @param session Id of the session the event is about, or {@link #NO_SESSION}.
+     * @param detail Human readable description of the event.
+     * @return True if the event was recorded, false if it was dropped.
+     */
+    public boolean info(String event, int session, String detail) {
+        return record(INFO, event, session, detail);
+    }
+
+    /**
+     * Records an error.
+     * @param event Name of the event, e.g. "session.error".
+     * @param session Id of the session the error is about, or {@link #NO_SESSION}.
+     * @param detail Human readable description of the error.
+     * @return True if the event was recorded, false if it was dropped.
+     */
+    public boolean error(String event, int session, String detail) {
+        return record(ERROR, event, session, detail);
+    }
+
+    /**
+     * Records an event. Never blocks: if the writer has fallen a whole ring behind, the event
+     * is dropped and counted.
+     * @param level Severity of the event, one of the level constants.
+     * @param event Name of the event.
+     * @param session Id of the session the event is about, or {@link #NO_SESSION}.
+     * @param detail Human readable description of the event.
+     * @return True if the event was recorded, false if it was dropped.
+     */
+    public boolean record(String level, String event, int session, String detail) {
+        if (isClosed) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail >= slots.length) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+        Slot slot = slots[(int) seq & mask];
+        slot.time = System.currentTimeMillis();
+        slot.level = level;
+        slot.event = event;
+        slot.session = session;
+        slot.detail = detail;
+        slot.published = seq;
+        return true;
+    }
+
+    /**
+     * Accessor method for the dropped events.
+     * @return Number of events dropped because the ring was full or the log closed.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Accessor method for the written events.
+     * @return Number of events the writer has taken from the ring.
+     */
+    public long getWritten() {
+        return tail;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            if (drainBatch() > 0) {
+                continue;
+            }
+            if (isClosed && tail == head.get()) {
+                break;
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        closeFile();
+    }
+
+    /**
+     * Takes up to one batch of published events from the ring and writes them out.
+     * @return The number of events taken.
+     */
+    private int drainBatch() {
+        int count = 0;
+        long next = tail;
+        while (count < BATCH) {
+            Slot slot = slots[(int) next & mask];
+            if (slot.published != next) {
+                // not recorded yet, or claimed but still being filled in
+                break;
+            }
+            if (channel != null) {
+                appendJson(slot);
+            }
+            if (display != null) {
+                if (shown.length() > 0) {
+                    shown.append('\n');
+                }
+                shown.append(slot.detail);
+            }
+            slot.level = null;
+            slot.event = null;
+            slot.detail = null;
+            next++;
+            count++;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        // frees the slots for the recording threads
+        tail = next;
+        if (json.length() > 0) {
+            writeFile();
+        }
+        Consumer<String> current = display;
+        if (current != null && shown.length() > 0) {
+            current.accept(shown.toString());
+        }
+        shown.setLength(0);
+        return count;
+    }
+
+    private void appendJson(Slot slot) {
+        json.append("{\"time\":").append(slot.time)
+            .append(",\"level\":\"").append(slot.level)
+            .append("\",\"event\":\"");
+        escape(slot.event);
+        json.append('"');
+        if (slot.session != NO_SESSION) {
+            json.append(",\"session\":").append(slot.session);
+        }
+        json.append(",\"detail\":\"");
+        escape(slot.detail);
+        json.append("\"}\n");
+    }
+
+    private void escape(String text) {
+        if (text == null) {
+            return;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c == '\n') {
+                json.append("\\n");
+            } else if (c == '\r') {
+                json.append("\\r");
+            } else if (c == '\t') {
+                json.append("\\t");
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+    }
+
+    private void writeFile() {
+        ByteBuffer bytes = ByteBuffer.wrap(json.toString().getBytes(StandardCharsets.UTF_8));
+        json.setLength(0);
+        try {
+            if (fileBytes > 0 && fileBytes + bytes.remaining() > maxBytes) {
+                rotate();
+            }
+            while (bytes.hasRemaining()) {
+                fileBytes += channel.write(bytes);
+            }
+        } catch (IOException err) {
+            closeFile();
+            Consumer<String> current = display;
+            if (current != null) {
+                current.accept("Event log file disabled: " + err.getMessage());
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        channel = null;
+        Files.deleteIfExists(rotated(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            if (Files.exists(rotated(i))) {
+                Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(file);
+        }
+        open();
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void closeFile() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException err) {
+            // nothing left to write
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,156 @@
+package server.client.chat;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * The moderation stages every chat message passes through on the server before it is fanned
+ * out. The stages are held in an array that is never changed once published; swapping in a
+ * new set replaces the array in one volatile write, so the session threads filtering at that
+ * moment finish with the old stages and the next message sees the new ones. No session is
+ * paused or dropped by a reload.
+ *
+ * Stages are loaded from a properties file, cheapest first:
+ *   maxLength=500                   reject longer messages
+ *   blockLinks=true                 reject messages containing a web address
+ *   keywords=word,other words       banned terms, comma separated
+ *   keywords.file=banned.txt        more banned terms, one per line, relative to this file
+ *   keywords.action=mask            mask or reject messages with a banned term
+ *   keywords.wholeWords=true        match terms only as whole words
+ *
+ * @author Robert McKay
+ */
+public class FilterPipeline {
+    // class constants
+    private static final MessageFilter[] NO_STAGES = new MessageFilter[0];
+    // a scheme, a www. host or a bare name in one of the common top level domains
+    private static final Pattern LINK = Pattern.compile(
+        "(?i)\\b(?:[a-z][a-z0-9+.-]*://|www\\.)\\S|\\b[a-z0-9-]+\\.(?:com|net|org|io|ly)\\b");
+
+    // class data members
+    private volatile MessageFilter[] stages;
+
+    /**
+     * Constructor. The pipeline starts without stages and passes every message on unchanged.
+     */
+    public FilterPipeline() {
+        stages = NO_STAGES;
+    }
+
+    /**
+     * Runs a message through every stage in order.
+     * @param room The room the message is sent to, or null for a private message.
+     * @param sender Display name of the sender.
+     * @param message The message read from the client.
+     * @return The message to deliver, as the last stage left it.
+     * @throws IllegalArgumentException If a stage rejects the message.
+     */
+    public String apply(String room, String sender, String message) throws IllegalArgumentException {
+        // one read of the field, so a reload cannot mix old and new stages in one message
+        for (MessageFilter stage : stages) {
+            message = stage.apply(room, sender, message);
+        }
+        return message;
+    }
+
+    /**
+     * Replaces the stages. Takes effect from the next message each session sends.
+     * @param stages The new stages, in the order they run.
+     */
+    public void setStages(List<MessageFilter> stages) {
+        this.stages = stages.toArray(NO_STAGES);
+    }
+
+    /**
+     * Accessor method for the stages.
+     * @return The current stages, in the order they run.
+     */
+    public List<MessageFilter> getStages() {
+        return Arrays.asList(stages.clone());
+    }
+
+    /**
+     * Builds the stages described by a filter configuration file.
+     * @param file The properties file describing the stages.
+     * @return The stages, in the order they should run.
+     * @throws IOException If the file or its keyword list cannot be read.
+     * @throws IllegalArgumentException If a setting has an invalid value.
+     */
+    public static List<MessageFilter> load(Path file) throws IOException, IllegalArgumentException {
+        Properties settings = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            settings.load(reader);
+        }
+        List<MessageFilter> loaded = new ArrayList<>();
+        String maxLength = settings.getProperty("maxLength");
+        if (maxLength != null) {
+            try {
+                loaded.add(maxLength(Integer.parseInt(maxLength.trim())));
+            } catch (NumberFormatException err) {
+                throw new IllegalArgumentException("maxLength must be a number: " + maxLength);
+            }
+        }
+        if (Boolean.parseBoolean(settings.getProperty("blockLinks", "false").trim())) {
+            loaded.add(blockLinks());
+        }
+        List<String> terms = new ArrayList<>();
+        for (String term : settings.getProperty("keywords", "").split(",")) {
+            terms.add(term);
+        }
+        String keywordFile = settings.getProperty("keywords.file");
+        if (keywordFile != null) {
+            Path list = file.toAbsolutePath().resolveSibling(keywordFile.trim());
+            for (String line : Files.readAllLines(list, StandardCharsets.UTF_8)) {
+                if (!line.startsWith("#")) {
+                    terms.add(line);
+                }
+            }
+        }
+        KeywordFilter keywords = new KeywordFilter(terms,
+            Boolean.parseBoolean(settings.getProperty("keywords.wholeWords", "true").trim()),
+            settings.getProperty("keywords.action", KeywordFilter.MASK).trim());
+        if (keywords.getTermCount() > 0) {
+            loaded.add(keywords);
+        }
+        return loaded;
+    }
+
+    /**
+     * Creates a stage rejecting long messages.
+     * @param limit Maximum number of characters in a message.
+     * @return The stage.
+     * @throws IllegalArgumentException If the limit is not positive.
+     */
+    public static MessageFilter maxLength(int limit) throws IllegalArgumentException {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("maxLength must be positive");
+        }
+        return (room, sender, message) -> {
+            if (message.length() > limit) {
+                throw new IllegalArgumentException("Message not sent: longer than " + limit + " characters");
+            }
+            return message;
+        };
+    }
+
+    /**
+     * Creates a stage rejecting messages that contain a web address.
+     * @return The stage.
+     */
+    public static MessageFilter blockLinks() {
+        return (room, sender, message) -> {
+            if (LINK.matcher(message).find()) {
+                throw new IllegalArgumentException("Message not sent: links are not allowed");
+            }
+            return message;
+        };
+    }
+}
@@ -0,0 +1,120 @@
+package server.client.chat;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events for the stages a chat frame goes through on the server: decoding
+ * the frame a client sent, fanning a room message out to the members' queues, the time a frame
+ * waits in a session queue, and writing it to the socket. Each event carries the session and
+ * the room, so a recording breaks a latency spike down by stage, session and room.
+ *
+ * The server only creates the events when started with the system property chat.jfr=true;
+ * otherwise every hook is a test of a constant the JIT removes. The events are disabled by
+ * default even then, so a recording with the JDK's own settings leaves them out; the chat.jfc
+ * settings shipped with the server enable them, e.g.
+ *   -Dchat.jfr=true -XX:StartFlightRecording:settings=default,settings=chat.jfc,filename=chat.jfr
+ * and "jfr print --categories Chat chat.jfr" or JDK Mission Control shows them.
+ *
+ * @author Robert McKay
+ */
+public final class FlightEvents {
+    // class constants
+    public static final boolean ENABLED = Boolean.getBoolean("chat.jfr");
+    public static final String CATEGORY = "Chat";
+    public static final int NO_SESSION = -1;
+
+    private FlightEvents() {
+    }
+
+    /**
+     * Inner class. A frame read from a client, from its first byte until it is a line of text.
+     */
+    @Name("chat.FrameDecode")
+    @Label("Frame Decode")
+    @Description("Reading and decoding a frame sent by a client")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    public static class FrameDecode extends Event {
+        @Label("Session")
+        int session;
+
+        @Label("Room")
+        String room;
+
+        @Label("Length")
+        @Description("Characters in the frame")
+        int length;
+    }
+
+    /**
+     * Inner class. A room message handed to the queue of every member of the room.
+     */
+    @Name("chat.FanOut")
+    @Label("Fan Out")
+    @Description("Queueing a room message for every member of the room")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    public static class FanOut extends Event {
+        @Label("Session")
+        @Description("Session that sent the message, -1 for a message relayed by the cluster")
+        int session;
+
+        @Label("Room")
+        String room;
+
+        @Label("Recipients")
+        int recipients;
+    }
+
+    /**
+     * Inner class. A frame waiting in a session queue, from queued until the writer takes it.
+     * The event begins on the thread queueing the frame and is committed by the writer.
+     */
+    @Name("chat.QueueWait")
+    @Label("Queue Wait")
+    @Description("Time a frame waited in the outbound queue of a session")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    public static class QueueWait extends Event {
+        @Label("Session")
+        int session;
+
+        @Label("Room")
+        String room;
+
+        @Label("Lane")
+        @Description("0 control, 1 chat, 2 bulk")
+        int lane;
+    }
+
+    /**
+     * Inner class. A frame written to the socket of a session.
+     */
+    @Name("chat.SocketWrite")
+    @Label("Socket Write")
+    @Description("Writing a frame to the socket of a session")
+    @Category(CATEGORY)
+    @Enabled(false)
+    @StackTrace(false)
+    public static class SocketWrite extends Event {
+        @Label("Session")
+        int session;
+
+        @Label("Room")
+        String room;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
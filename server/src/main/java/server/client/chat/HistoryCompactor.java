@@ -0,0 +1,90 @@
+package server.client.chat;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background compaction of the message history. Edits and deletes pile up in the overlay of
+ * the {@link MessageStore} until a pass folds them into its segments; a pass runs once per
+ * period, and sooner once the overlay holds more than a threshold, so the overlay stays small
+ * however busy the rooms are. Configured with the system properties
+ * chat.history.compactMillis and chat.history.compactAfter.
+ *
+ * @author Robert McKay
+ */
+public class HistoryCompactor {
+    // class constants
+    private static final long DEFAULT_PERIOD_MILLIS = 30000;
+    private static final int DEFAULT_THRESHOLD = 1024;
+
+    // class data members
+    private final MessageStore history;
+    private final long periodMillis;
+    private final int threshold;
+    private final AtomicBoolean isQueued;
+    private final AtomicLong compacted;
+    private ScheduledExecutorService compactor;
+
+    /**
+     * Constructor.
+     * @param history The history to compact.
+     */
+    public HistoryCompactor(MessageStore history) {
+        this.history = history;
+        periodMillis = Long.getLong("chat.history.compactMillis", DEFAULT_PERIOD_MILLIS);
+        threshold = Integer.getInteger("chat.history.compactAfter", DEFAULT_THRESHOLD);
+        isQueued = new AtomicBoolean();
+        compacted = new AtomicLong();
+    }
+
+    /**
+     * Starts compacting once per period. Called when the server starts.
+     */
+    public synchronized void start() {
+        if (compactor != null) {
+            return;
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "history-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops compacting. Called when the server stops; the overlay is kept and read as usual.
+     */
+    public synchronized void stop() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            compactor = null;
+        }
+    }
+
+    /**
+     * Called after every edit or delete. Queues a pass once the overlay is past the threshold,
+     * at most one at a time.
+     */
+    public synchronized void revised() {
+        if (compactor != null && history.getPendingCount() >= threshold && isQueued.compareAndSet(false, true)) {
+            compactor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Accessor method for the compacted count.
+     * @return The number of revisions folded into the history so far.
+     */
+    public long getCompacted() {
+        return compacted.get();
+    }
+
+    private void compact() {
+        isQueued.set(false);
+        compacted.addAndGet(history.compact());
+    }
+}
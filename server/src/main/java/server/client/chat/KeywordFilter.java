@@ -0,0 +1,176 @@
+package server.client.chat;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Filter stage that masks or rejects messages containing banned terms. The terms are compiled
+ * once into an Aho-Corasick automaton: a trie of the terms whose missing transitions are
+ * filled in from the failure links, so the whole automaton is one table lookup per character.
+ * A message is scanned in a single pass whatever the number of terms, and the compiled table
+ * is never written after construction, so any number of sessions can share it.
+ *
+ * Matching ignores case. With whole words, a term only matches where it is not part of a
+ * longer word, so "class" does not trip over "ass".
+ *
+ * @author Robert McKay
+ */
+public class KeywordFilter implements MessageFilter {
+    // class constants
+    public static final String MASK = "mask";
+    public static final String REJECT = "reject";
+    private static final int ROOT = 0;
+
+    // class data members
+    private final char[] symbols;
+    private final int stride;
+    private final int[] transitions;
+    private final int[] failures;
+    private final int[] outputs;
+    private final int[] lengths;
+    private final int termCount;
+    private final boolean wholeWords;
+    private final boolean reject;
+
+    /**
+     * Constructor. Compiles the automaton.
+     * @param terms The banned terms; blank terms are ignored.
+     * @param wholeWords True to match terms only as whole words.
+     * @param action What to do with a match, {@link #MASK} or {@link #REJECT}.
+     * @throws IllegalArgumentException If the action is unknown.
+     */
+    public KeywordFilter(Collection<String> terms, boolean wholeWords, String action)
+            throws IllegalArgumentException {
+        if (!MASK.equals(action) && !REJECT.equals(action)) {
+            throw new IllegalArgumentException("Unknown keyword action: " + action);
+        }
+        this.wholeWords = wholeWords;
+        reject = REJECT.equals(action);
+
+        // number the characters the terms use; every other character is symbol 0
+        symbols = new char[Character.MAX_VALUE + 1];
+        int symbolCount = 1;
+        int nodeLimit = 1;
+        for (String term : terms) {
+            String key = term.trim();
+            for (int i = 0; i < key.length(); i++) {
+                char c = Character.toLowerCase(key.charAt(i));
+                if (symbols[c] == 0) {
+                    symbols[c] = (char) symbolCount++;
+                }
+            }
+            nodeLimit += key.length();
+        }
+        stride = symbolCount;
+
+        // the trie; a transition of 0 is missing, since no term leads back to the root
+        int[] table = new int[nodeLimit * stride];
+        int[] termLengths = new int[nodeLimit];
+        int nodes = 1;
+        int count = 0;
+        for (String term : terms) {
+            String key = term.trim();
+            if (key.isEmpty()) {
+                continue;
+            }
+            int node = ROOT;
+            for (int i = 0; i < key.length(); i++) {
+                int slot = node * stride + symbols[Character.toLowerCase(key.charAt(i))];
+                if (table[slot] == 0) {
+                    table[slot] = nodes++;
+                }
+                node = table[slot];
+            }
+            if (termLengths[node] == 0) {
+                count++;
+            }
+            termLengths[node] = key.length();
+        }
+        transitions = Arrays.copyOf(table, nodes * stride);
+        lengths = Arrays.copyOf(termLengths, nodes);
+        failures = new int[nodes];
+        outputs = new int[nodes];
+        termCount = count;
+
+        // breadth first, so the failure state of a node is complete before the node is
+        int[] queue = new int[nodes];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = ROOT;
+        while (head < tail) {
+            int node = queue[head++];
+            int fail = failures[node];
+            for (int symbol = 0; symbol < stride; symbol++) {
+                int slot = node * stride + symbol;
+                int child = transitions[slot];
+                if (child != 0) {
+                    failures[child] = node == ROOT ? ROOT : transitions[fail * stride + symbol];
+                    queue[tail++] = child;
+                } else if (node != ROOT) {
+                    transitions[slot] = transitions[fail * stride + symbol];
+                }
+            }
+            // the longest term ending here, this node's own or one reached by failing
+            outputs[node] = lengths[node] > 0 ? node : outputs[fail];
+        }
+    }
+
+    /**
+     * Accessor method for the number of terms.
+     * @return The number of distinct terms compiled into the automaton.
+     */
+    public int getTermCount() {
+        return termCount;
+    }
+
+    /**
+     * Masks every banned term in the message with asterisks, or rejects the message if it
+     * contains one, depending on the action.
+     * @param room The room the message is sent to, or null for a private message.
+     * @param sender Display name of the sender.
+     * @param message The message to filter.
+     * @return The message with any banned terms masked.
+     * @throws IllegalArgumentException If the action is reject and a banned term is found.
+     */
+    @Override
+    public String apply(String room, String sender, String message) throws IllegalArgumentException {
+        char[] masked = null;
+        int state = ROOT;
+        for (int i = 0; i < message.length(); i++) {
+            state = transitions[state * stride + symbols[Character.toLowerCase(message.charAt(i))]];
+            int length = matchAt(message, i, state);
+            if (length == 0) {
+                continue;
+            }
+            if (reject) {
+                throw new IllegalArgumentException("Message not sent: it contains a blocked word");
+            }
+            if (masked == null) {
+                masked = message.toCharArray();
+            }
+            Arrays.fill(masked, i - length + 1, i + 1, '*');
+        }
+        return masked == null ? message : new String(masked);
+    }
+
+    /**
+     * Finds the longest term that ends at a position of the message.
+     * @param message The message being scanned.
+     * @param end Index of the last character of the term.
+     * @param state The state of the automaton after reading that character.
+     * @return The length of the term, or 0 if none matches there.
+     */
+    private int matchAt(String message, int end, int state) {
+        for (int node = outputs[state]; node != 0; node = outputs[failures[node]]) {
+            int start = end - lengths[node] + 1;
+            if (!wholeWords || (!isWordChar(message, start - 1) && !isWordChar(message, end + 1))) {
+                return lengths[node];
+            }
+        }
+        return 0;
+    }
+
+    private static boolean isWordChar(String message, int index) {
+        return index >= 0 && index < message.length() && Character.isLetterOrDigit(message.charAt(index));
+    }
+}
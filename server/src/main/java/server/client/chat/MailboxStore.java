@@ -0,0 +1,513 @@
+package server.client.chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Offline mailboxes: private messages for users who are not connected. The latest messages of
+ * each mailbox are kept in memory. All mailboxes share one memory budget, and when it is
+ * exceeded the mailbox written to least recently is spilled to its file on disk and leaves
+ * memory altogether, so the heap stays within the budget however many users are offline.
+ *
+ * When a user connects again, one delivery thread streams the backlog to the user's sessions
+ * in batches, oldest first, and waits whenever a session's queue or reliable window is backed
+ * up. Messages for a user whose backlog is still being delivered join the mailbox too, so
+ * they arrive in order. Each delivered message is marked "[offline time]".
+ *
+ * Only users the server knows get a mailbox: users with a password when logins are required,
+ * otherwise users that have connected since the server started or have mail on disk.
+ *
+ * Spill file format, "user.mbox": one gzip member appended per spill, so a file is extended
+ * without being rewritten and still reads back as one stream:
+ *   letter*: time:long length:int message:UTF-8 bytes
+ * A file being delivered is renamed to "user.mbox.delivering" first, so spills made meanwhile
+ * start a new file.
+ *
+ * Configured with system properties: chat.mailbox.dir (directory of the spill files, default
+ * "mailboxes"), chat.mailbox.memoryBytes (memory budget of all mailboxes, default 16 MB),
+ * chat.mailbox.maxFileBytes (size beyond which a user's spills are dropped, default 4 MB) and
+ * chat.mailbox.batch (messages per delivery batch, default 100).
+ *
+ * @author Robert McKay
+ */
+public class MailboxStore {
+    // class constants
+    private static final String SUFFIX = ".mbox";
+    private static final String CLAIMED_SUFFIX = ".mbox.delivering";
+    private static final String REST_SUFFIX = ".mbox.rest";
+    private static final long LETTER_OVERHEAD = 64;
+    private static final long RETRY_MILLIS = 50;
+    private static final int MAX_QUEUED_FRAMES = 1000;
+    private static final int MAX_LETTER_BYTES = 4 * Protocol.MAX_LINE;
+
+    // class data members
+    private final ServerModel model;
+    private final Path directory;
+    private final long memoryBudget;
+    private final long maxFileBytes;
+    private final int batchSize;
+    private final LinkedHashMap<String, Mailbox> resident;
+    private final Set<String> knownUsers;
+    private final Set<String> delivering;
+    private final ConcurrentHashMap<String, DataInputStream> readers;
+    private final AtomicLong spilled;
+    private final AtomicLong dropped;
+    private long residentBytes;
+    private ScheduledExecutorService deliverer;
+
+    /**
+     * Inner class. A message waiting in a mailbox and when it was sent.
+     */
+    private static class Letter {
+        private final long time;
+        private final String message;
+
+        Letter(long time, String message) {
+            this.time = time;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Inner class. The messages of one user held in memory, oldest first.
+     */
+    private static class Mailbox {
+        private final ArrayDeque<Letter> letters = new ArrayDeque<>();
+        private long bytes;
+    }
+
+    /**
+     * Constructor. Reads the settings from system properties, falling back to the defaults.
+     * @param model The model holding the sessions of the users.
+     */
+    public MailboxStore(ServerModel model) {
+        this(model, Paths.get(System.getProperty("chat.mailbox.dir", "mailboxes")),
+            Long.getLong("chat.mailbox.memoryBytes", 16L * 1024 * 1024),
+            Long.getLong("chat.mailbox.maxFileBytes", 4L * 1024 * 1024),
+            Integer.getInteger("chat.mailbox.batch", 100));
+    }
+
+    /**
+     * Constructor.
+     * @param model The model holding the sessions of the users.
+     * @param directory Directory of the spill files, created when first needed.
+     * @param memoryBudget Bytes the mailboxes may hold in memory, all together.
+     * @param maxFileBytes Size of a spill file beyond which further spills are dropped.
+     * @param batchSize Number of messages delivered at a time.
+     * @throws IllegalArgumentException If a setting is not positive.
+     */
+    public MailboxStore(ServerModel model, Path directory, long memoryBudget, long maxFileBytes, int batchSize)
+            throws IllegalArgumentException {
+        if (memoryBudget <= 0 || maxFileBytes <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Mailbox settings must be positive");
+        }
+        this.model = model;
+        this.directory = directory;
+        this.memoryBudget = memoryBudget;
+        this.maxFileBytes = maxFileBytes;
+        this.batchSize = batchSize;
+        resident = new LinkedHashMap<>(16, 0.75f, true);
+        knownUsers = ConcurrentHashMap.newKeySet();
+        delivering = ConcurrentHashMap.newKeySet();
+        readers = new ConcurrentHashMap<>();
+        spilled = new AtomicLong();
+        dropped = new AtomicLong();
+    }
+
+    /**
+     * Starts the delivery thread. Called when the server starts.
+     */
+    public synchronized void start() {
+        if (deliverer != null) {
+            return;
+        }
+        deliverer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "mailbox-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Stops the delivery thread and spills every mailbox held in memory, so nothing is lost
+     * when the process exits. Called when the server stops.
+     */
+    public void stop() {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            stopping = deliverer;
+            deliverer = null;
+        }
+        if (stopping != null) {
+            // outside the lock, a batch in progress may need it to finish
+            stopping.shutdownNow();
+            try {
+                stopping.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        delivering.clear();
+        synchronized (this) {
+            for (String userId : readers.keySet()) {
+                keepRest(userId);
+            }
+            Iterator<Map.Entry<String, Mailbox>> iterator = resident.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Mailbox> entry = iterator.next();
+                iterator.remove();
+                spill(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Checks whether messages for a user may be kept while the user is offline.
+     * @param userId The user to check.
+     * @return True if the user has a password, has connected before or has mail on disk.
+     */
+    public boolean isKnown(String userId) {
+        Authenticator authenticator = model.getAuthenticator();
+        if (authenticator != null) {
+            return authenticator.hasUser(userId);
+        }
+        return knownUsers.contains(userId) || Files.exists(file(userId)) || Files.exists(claimed(userId));
+    }
+
+    /**
+     * Checks whether the backlog of a user is being delivered.
+     * @param userId The user to check.
+     * @return True if messages for the user must join the mailbox to stay in order.
+     */
+    public boolean isDelivering(String userId) {
+        return delivering.contains(userId);
+    }
+
+    /**
+     * Keeps a message for a user. Spills the least recently written mailboxes to disk when the
+     * memory budget is exceeded.
+     * @param userId The user the message is for.
+     * @param message The message.
+     */
+    public synchronized void deposit(String userId, String message) {
+        Mailbox mailbox = resident.computeIfAbsent(userId, key -> new Mailbox());
+        long cost = LETTER_OVERHEAD + 2L * message.length();
+        mailbox.letters.add(new Letter(System.currentTimeMillis(), message));
+        mailbox.bytes += cost;
+        residentBytes += cost;
+        Iterator<Map.Entry<String, Mailbox>> eldest = resident.entrySet().iterator();
+        while (residentBytes > memoryBudget && eldest.hasNext()) {
+            Map.Entry<String, Mailbox> entry = eldest.next();
+            eldest.remove();
+            spill(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Called when a user connects: remembers the user and starts delivering its backlog.
+     * @param userId The user that connected.
+     */
+    public void connected(String userId) {
+        knownUsers.add(userId);
+        if (hasMail(userId)) {
+            schedule(userId);
+        }
+    }
+
+    /**
+     * Starts delivering the backlog of a user unless it is being delivered already.
+     * @param userId The user to deliver to.
+     */
+    public void schedule(String userId) {
+        if (delivering.add(userId)) {
+            submit(userId, 0);
+        }
+    }
+
+    /**
+     * Accessor method for the memory held.
+     * @return The bytes the mailboxes hold in memory, by the same estimate as the budget.
+     */
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * Accessor method for the spilled messages.
+     * @return The number of messages written to disk.
+     */
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    /**
+     * Accessor method for the dropped messages.
+     * @return The number of messages lost because a spill file was full or could not be used.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private synchronized boolean hasMail(String userId) {
+        return resident.containsKey(userId) || readers.containsKey(userId)
+            || Files.exists(file(userId)) || Files.exists(claimed(userId));
+    }
+
+    private synchronized void submit(String userId, long delayMillis) {
+        if (deliverer == null) {
+            delivering.remove(userId);
+            return;
+        }
+        try {
+            deliverer.schedule(() -> deliver(userId), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException err) {
+            delivering.remove(userId);
+        }
+    }
+
+    /**
+     * Delivers one batch of a user's backlog, then queues the next batch behind the other
+     * users' deliveries.
+     * @param userId The user to deliver to.
+     */
+    private void deliver(String userId) {
+        Set<ServerSession> targets = model.getSessions(userId);
+        if (targets.isEmpty()) {
+            // gone again, the rest waits for the next connection
+            keepRest(userId);
+            delivering.remove(userId);
+            return;
+        }
+        for (ServerSession session : targets) {
+            ReliableStream stream = session.getStream();
+            // leave half the reliable window to live traffic
+            int unacked = stream == null ? 0 : stream.getUnackedCount();
+            if (session.getQueueDepth() >= MAX_QUEUED_FRAMES
+                    || unacked + batchSize > ServerModel.STREAM_CAPACITY / 2) {
+                submit(userId, RETRY_MILLIS);
+                return;
+            }
+        }
+        List<String> batch;
+        try {
+            batch = takeBatch(userId);
+        } catch (IOException err) {
+            // a damaged spill file; what was read is delivered, the rest is lost
+            dropped.incrementAndGet();
+            closeReader(userId);
+            deleteQuietly(claimed(userId));
+            submit(userId, 0);
+            return;
+        }
+        if (batch.isEmpty()) {
+            synchronized (this) {
+                // checked under the lock deposit takes, so a message kept meanwhile is not stranded
+                if (!hasMail(userId)) {
+                    delivering.remove(userId);
+                    return;
+                }
+            }
+            submit(userId, 0);
+            return;
+        }
+        for (String letter : batch) {
+            for (ServerSession session : targets) {
+                try {
+                    session.sendReliable(letter);
+                } catch (ServerModelException err) {
+                    // the session is closing; its other sessions still get the letter
+                }
+            }
+        }
+        submit(userId, 0);
+    }
+
+    /**
+     * Takes the oldest messages of a user's backlog: first from the spill files, then from memory.
+     * @param userId The user to take the messages of.
+     * @return Up to one batch of messages, formatted for delivery; empty if there are none.
+     * @throws IOException If a spill file cannot be read.
+     */
+    private List<String> takeBatch(String userId) throws IOException {
+        List<String> batch = new ArrayList<>(batchSize);
+        while (batch.size() < batchSize) {
+            DataInputStream reader = readers.get(userId);
+            if (reader == null) {
+                reader = openSpilled(userId);
+                if (reader == null) {
+                    break;
+                }
+                readers.put(userId, reader);
+            }
+            if (!readLetter(reader, batch)) {
+                closeReader(userId);
+                Files.deleteIfExists(claimed(userId));
+            }
+        }
+        synchronized (this) {
+            Mailbox mailbox = resident.get(userId);
+            while (mailbox != null && batch.size() < batchSize && !mailbox.letters.isEmpty()) {
+                Letter letter = mailbox.letters.poll();
+                long cost = LETTER_OVERHEAD + 2L * letter.message.length();
+                mailbox.bytes -= cost;
+                residentBytes -= cost;
+                batch.add(format(letter.time, letter.message));
+            }
+            if (mailbox != null && mailbox.letters.isEmpty()) {
+                resident.remove(userId);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Claims the spill file of a user for delivery and opens it. A file claimed before the
+     * server last stopped is resumed first.
+     * @param userId The user whose file to open.
+     * @return A stream over the letters, or null if the user has nothing on disk.
+     * @throws IOException If the file cannot be claimed or opened.
+     */
+    private DataInputStream openSpilled(String userId) throws IOException {
+        Path claimed = claimed(userId);
+        synchronized (this) {
+            if (!Files.exists(claimed)) {
+                Path file = file(userId);
+                if (!Files.exists(file)) {
+                    return null;
+                }
+                Files.move(file, claimed);
+            }
+        }
+        return new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(claimed))));
+    }
+
+    private boolean readLetter(DataInputStream reader, List<String> batch) throws IOException {
+        try {
+            long time = reader.readLong();
+            int length = reader.readInt();
+            if (length < 0 || length > MAX_LETTER_BYTES) {
+                throw new IOException("Corrupt mailbox: letter of " + length + " bytes");
+            }
+            byte[] text = new byte[length];
+            reader.readFully(text);
+            batch.add(format(time, new String(text, StandardCharsets.UTF_8)));
+            return true;
+        } catch (EOFException err) {
+            // the end of the file, or of a spill cut short by a crash
+            return false;
+        }
+    }
+
+    /**
+     * Appends the letters of a mailbox that left memory to the user's spill file. Called with
+     * the lock held, so a delivery cannot claim the file halfway through.
+     * @param userId The user the mailbox belongs to.
+     * @param mailbox The mailbox, already removed from memory.
+     */
+    private void spill(String userId, Mailbox mailbox) {
+        residentBytes -= mailbox.bytes;
+        int count = mailbox.letters.size();
+        Path file = file(userId);
+        try {
+            Files.createDirectories(directory);
+            if (Files.exists(file) && Files.size(file) >= maxFileBytes) {
+                dropped.addAndGet(count);
+                return;
+            }
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                    Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND))))) {
+                for (Letter letter : mailbox.letters) {
+                    byte[] text = letter.message.getBytes(StandardCharsets.UTF_8);
+                    output.writeLong(letter.time);
+                    output.writeInt(text.length);
+                    output.write(text);
+                }
+            }
+            spilled.addAndGet(count);
+        } catch (IOException err) {
+            dropped.addAndGet(count);
+        }
+    }
+
+    /**
+     * Rewrites the part of a claimed spill file not delivered yet, so the next delivery picks
+     * up after the letters already sent instead of sending them again.
+     * @param userId The user whose delivery stopped halfway.
+     */
+    private void keepRest(String userId) {
+        DataInputStream reader = readers.remove(userId);
+        if (reader == null) {
+            return;
+        }
+        Path rest = directory.resolve(userId + REST_SUFFIX);
+        try (DataInputStream input = reader;
+                GZIPOutputStream output = new GZIPOutputStream(Files.newOutputStream(rest))) {
+            input.transferTo(output);
+        } catch (IOException err) {
+            // a damaged tail is lost, as it would be on delivery
+        }
+        try {
+            Files.move(rest, claimed(userId), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException err) {
+            dropped.incrementAndGet();
+            deleteQuietly(rest);
+        }
+    }
+
+    private void closeReader(String userId) {
+        DataInputStream reader = readers.remove(userId);
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        } catch (IOException err) {
+            // only read from
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException err) {
+            // retried when the user next connects
+        }
+    }
+
+    private static String format(long time, String message) {
+        return "[offline " + Protocol.timestamp(time) + "] " + message;
+    }
+
+    private Path file(String userId) {
+        return directory.resolve(userId + SUFFIX);
+    }
+
+    private Path claimed(String userId) {
+        return directory.resolve(userId + CLAIMED_SUFFIX);
+    }
+}
@@ -0,0 +1,22 @@
+package server.client.chat;
+
+/**
+ * One stage of the {@link FilterPipeline}. A stage sees every chat message a client sends
+ * before it is fanned out, and may pass it on unchanged, rewrite it or reject it. Stages are
+ * called from many session threads at once, so they must not keep mutable state.
+ *
+ * @author Robert McKay
+ */
+@FunctionalInterface
+public interface MessageFilter {
+    /**
+     * Filters a message.
+     * @param room The room the message is sent to, or null for a private message.
+     * @param sender Display name of the sender.
+     * @param message The message as the client sent it, or as the previous stage left it.
+     * @return The message to pass on to the next stage.
+     * @throws IllegalArgumentException If the message is rejected; the reason is sent back to
+     *     the sender.
+     */
+    String apply(String room, String sender, String message) throws IllegalArgumentException;
+}
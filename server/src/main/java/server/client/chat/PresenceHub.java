@@ -0,0 +1,115 @@
+package server.client.chat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lossy channel for presence and typing indicators. Updates are not sent as they arrive; they
+ * are collected per room and only the latest state of each user survives until the next flush,
+ * which sends each room a single frame. However fast users type, a room receives at most one
+ * presence frame per window, holding at most one entry per member. Nothing is stored, retried
+ * or relayed to the cluster, and a frame is dropped for a session whose outbound queue is
+ * already backed up. The window is read from the system property chat.presence.windowMillis.
+ *
+ * Frames sent to clients: /presence room user:state user:state ...
+ *
+ * @author Robert McKay
+ */
+public class PresenceHub {
+    // class constants
+    public static final String ONLINE = "online";
+    public static final String AWAY = "away";
+    public static final String TYPING = "typing";
+    public static final String OFFLINE = "offline";
+    private static final long DEFAULT_WINDOW_MILLIS = 500;
+
+    // class data members
+    private final ServerModel model;
+    private final ConcurrentHashMap<String, Map<String, String>> pending;
+    private final long windowMillis;
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Constructor.
+     * @param model The model holding the room members.
+     */
+    public PresenceHub(ServerModel model) {
+        this.model = model;
+        pending = new ConcurrentHashMap<>();
+        windowMillis = Long.getLong("chat.presence.windowMillis", DEFAULT_WINDOW_MILLIS);
+    }
+
+    /**
+     * Starts flushing once per window. Called when the server starts.
+     */
+    public synchronized void start() {
+        if (flusher != null) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "presence-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops flushing and drops the pending updates. Called when the server stops.
+     */
+    public synchronized void stop() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        pending.clear();
+    }
+
+    /**
+     * Checks whether a state may be set by a client.
+     * @param state The state to check.
+     * @return True for online, away and typing.
+     */
+    public static boolean isClientState(String state) {
+        return ONLINE.equals(state) || AWAY.equals(state) || TYPING.equals(state);
+    }
+
+    /**
+     * Records the latest state of a user in a room, replacing any state not flushed yet.
+     * @param room The room the update is for.
+     * @param user Display name of the user.
+     * @param state The new state of the user.
+     */
+    public void update(String room, String user, String state) {
+        // the pending map of a room is only touched inside compute, so a flush swapping it
+        // out cannot lose an update made at the same moment
+        pending.compute(room, (key, states) -> {
+            if (states == null) {
+                states = new LinkedHashMap<>();
+            }
+            states.put(user, state);
+            return states;
+        });
+    }
+
+    private void flush() {
+        for (String room : pending.keySet()) {
+            Map<String, String> states = pending.remove(room);
+            if (states == null) {
+                continue;
+            }
+            StringBuilder frame = new StringBuilder(Protocol.PRESENCE_FRAME).append(room);
+            for (Map.Entry<String, String> entry : states.entrySet()) {
+                frame.append(' ').append(entry.getKey()).append(':').append(entry.getValue());
+            }
+            String message = frame.toString();
+            for (ServerSession session : model.getMembers(room)) {
+                session.offerMessage(message);
+            }
+        }
+    }
+}
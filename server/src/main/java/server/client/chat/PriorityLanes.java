@@ -0,0 +1,141 @@
+package server.client.chat;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded outbound queue of a session, split into lanes by how long a frame may wait. Control
+ * frames, such as the close handshake or a throttle notice, always go out first. Chat frames
+ * go out before bulk frames, such as a history replay or file chunks, except that after a
+ * run of chat frames one bulk frame is let through, so a bulk transfer keeps moving while the
+ * room is busy without a message typed meanwhile waiting behind the whole transfer. Frames
+ * of one lane leave in the order they were queued.
+ *
+ * The queue never blocks: the writer of a session takes frames until it finds the queue
+ * empty, and whoever queues a frame makes sure a writer runs, see {@link ServerSession}.
+ *
+ * @param <T> Type of the frames queued.
+ * @author Robert McKay
+ */
+public class PriorityLanes<T> {
+    // class constants
+    public static final int CONTROL = 0;
+    public static final int CHAT = 1;
+    public static final int BULK = 2;
+    private static final int LANES = 3;
+
+    // class data members
+    private final ArrayDeque<T>[] lanes;
+    private final int[] capacities;
+    private final int chatWeight;
+    private final ReentrantLock lock;
+    // written under the lock, read without it by whoever watches the queue depth
+    private volatile int size;
+    private int chatRun;
+
+    /**
+     * Constructor.
+     * @param controlCapacity Maximum number of control frames queued.
+     * @param chatCapacity Maximum number of chat frames queued.
+     * @param bulkCapacity Maximum number of bulk frames queued.
+     * @param chatWeight Number of chat frames sent in a row before a waiting bulk frame.
+     * @throws IllegalArgumentException If a capacity or the weight is not positive.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PriorityLanes(int controlCapacity, int chatCapacity, int bulkCapacity, int chatWeight)
+            throws IllegalArgumentException {
+        if (controlCapacity <= 0 || chatCapacity <= 0 || bulkCapacity <= 0 || chatWeight <= 0) {
+            throw new IllegalArgumentException("Lane capacities and weight must be positive");
+        }
+        lanes = (ArrayDeque<T>[]) new ArrayDeque[LANES];
+        for (int lane = 0; lane < LANES; lane++) {
+            // most sessions sit idle with every lane empty, so the lanes start small and grow
+            lanes[lane] = new ArrayDeque<>(1);
+        }
+        capacities = new int[] {controlCapacity, chatCapacity, bulkCapacity};
+        this.chatWeight = chatWeight;
+        lock = new ReentrantLock();
+    }
+
+    /**
+     * Queues a frame at the end of its lane.
+     * @param lane CONTROL, CHAT or BULK.
+     * @param frame The frame to queue.
+     * @return True if the frame was queued, false if its lane is full.
+     */
+    public boolean offer(int lane, T frame) {
+        lock.lock();
+        try {
+            if (lanes[lane].size() >= capacities[lane]) {
+                return false;
+            }
+            lanes[lane].addLast(frame);
+            size++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next frame to send.
+     * @return The frame, or null if every lane is empty.
+     */
+    public T poll() {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return null;
+            }
+            size--;
+            if (!lanes[CONTROL].isEmpty()) {
+                return lanes[CONTROL].pollFirst();
+            }
+            if (!lanes[CHAT].isEmpty() && (lanes[BULK].isEmpty() || chatRun < chatWeight)) {
+                chatRun++;
+                return lanes[CHAT].pollFirst();
+            }
+            chatRun = 0;
+            return lanes[BULK].pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Accessor method for the number of frames queued.
+     * @return The number of frames waiting in every lane together.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Accessor method for the number of frames queued in a lane.
+     * @param lane CONTROL, CHAT or BULK.
+     * @return The number of frames waiting in the lane.
+     */
+    public int size(int lane) {
+        lock.lock();
+        try {
+            return lanes[lane].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops every queued frame.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            for (ArrayDeque<T> queue : lanes) {
+                queue.clear();
+            }
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
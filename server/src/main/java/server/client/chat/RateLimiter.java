@@ -0,0 +1,169 @@
+package server.client.chat;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Applies the per session, per room and global message rate limits on the inbound path.
+ * Rates are read from system properties (messages per second, bursts allow twice the rate):
+ * chat.rate.session, chat.rate.room and chat.rate.global. The rates can be changed while the
+ * server runs; the buckets already handed out follow at their next token.
+ *
+ * @author Robert McKay
+ */
+public class RateLimiter {
+    // class constants
+    private static final int DEFAULT_SESSION_RATE = 5;
+    private static final int DEFAULT_ROOM_RATE = 50;
+    private static final int DEFAULT_GLOBAL_RATE = 1000;
+    private static final int BURST_FACTOR = 2;
+
+    // class data members
+    private volatile int sessionRate;
+    private volatile int roomRate;
+    private volatile int globalRate;
+    private final TokenBucket global;
+    private final ConcurrentHashMap<String, TokenBucket> rooms;
+
+    /**
+     * Constructor. Reads the limits from system properties, falling back to the defaults.
+     */
+    public RateLimiter() {
+        this(Integer.getInteger("chat.rate.session", DEFAULT_SESSION_RATE),
+            Integer.getInteger("chat.rate.room", DEFAULT_ROOM_RATE),
+            Integer.getInteger("chat.rate.global", DEFAULT_GLOBAL_RATE));
+    }
+
+    /**
+     * Constructor.
+     * @param sessionRate Messages per second accepted from a single session.
+     * @param roomRate Messages per second accepted into a single room.
+     * @param globalRate Messages per second accepted by the whole server.
+     * @throws IllegalArgumentException If a rate is not positive.
+     */
+    public RateLimiter(int sessionRate, int roomRate, int globalRate) throws IllegalArgumentException {
+        if (sessionRate <= 0 || roomRate <= 0 || globalRate <= 0) {
+            throw new IllegalArgumentException("Rates must be positive");
+        }
+        this.sessionRate = sessionRate;
+        this.roomRate = roomRate;
+        this.globalRate = globalRate;
+        global = new TokenBucket(globalRate, globalRate * BURST_FACTOR);
+        rooms = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Accessor method for the session rate.
+     * @return Messages per second accepted from a single session.
+     */
+    public int getSessionRate() {
+        return sessionRate;
+    }
+
+    /**
+     * Accessor method for the room rate.
+     * @return Messages per second accepted into a single room.
+     */
+    public int getRoomRate() {
+        return roomRate;
+    }
+
+    /**
+     * Accessor method for the global rate.
+     * @return Messages per second accepted by the whole server.
+     */
+    public int getGlobalRate() {
+        return globalRate;
+    }
+
+    /**
+     * Mutator method for the session rate.
+     * @param rate Messages per second accepted from a single session.
+     * @param sessions The open sessions, whose buckets take the new rate.
+     * @throws IllegalArgumentException If the rate is not positive.
+     */
+    public void setSessionRate(int rate, Iterable<ServerSession> sessions) throws IllegalArgumentException {
+        checkRate(rate);
+        sessionRate = rate;
+        for (ServerSession session : sessions) {
+            session.getInboundLimit().setRate(rate, rate * BURST_FACTOR);
+        }
+    }
+
+    /**
+     * Mutator method for the room rate.
+     * @param rate Messages per second accepted into a single room.
+     * @throws IllegalArgumentException If the rate is not positive.
+     */
+    public void setRoomRate(int rate) throws IllegalArgumentException {
+        checkRate(rate);
+        roomRate = rate;
+        for (TokenBucket bucket : rooms.values()) {
+            bucket.setRate(rate, rate * BURST_FACTOR);
+        }
+    }
+
+    /**
+     * Mutator method for the global rate.
+     * @param rate Messages per second accepted by the whole server.
+     * @throws IllegalArgumentException If the rate is not positive.
+     */
+    public void setGlobalRate(int rate) throws IllegalArgumentException {
+        checkRate(rate);
+        globalRate = rate;
+        global.setRate(rate, rate * BURST_FACTOR);
+    }
+
+    /**
+     * Creates the bucket a new session draws its inbound messages from.
+     * @return A full bucket at the current session rate.
+     */
+    public TokenBucket newSessionBucket() {
+        return new TokenBucket(sessionRate, sessionRate * BURST_FACTOR);
+    }
+
+    /**
+     * Takes a token for one inbound message from the session, the room and the global bucket.
+     * Tokens already taken are put back when a later bucket is empty.
+     * @param session The session the message was read from.
+     * @param room The room the message is published to, or null if it is not a room message.
+     * @return 0 if the message may be processed, otherwise the nanoseconds to wait before retrying.
+     */
+    public long acquire(ServerSession session, String room) {
+        TokenBucket sessionBucket = session.getInboundLimit();
+        long wait = sessionBucket.tryAcquire();
+        if (wait > 0) {
+            return wait;
+        }
+        TokenBucket roomBucket = null;
+        if (room != null) {
+            roomBucket = rooms.computeIfAbsent(room, key -> new TokenBucket(roomRate, roomRate * BURST_FACTOR));
+            wait = roomBucket.tryAcquire();
+            if (wait > 0) {
+                sessionBucket.release();
+                return wait;
+            }
+        }
+        wait = global.tryAcquire();
+        if (wait > 0) {
+            sessionBucket.release();
+            if (roomBucket != null) {
+                roomBucket.release();
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * Drops the bucket of a room that has no members left.
+     * @param room The room to forget.
+     */
+    public void forgetRoom(String room) {
+        rooms.remove(room);
+    }
+
+    private static void checkRate(int rate) throws IllegalArgumentException {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Rates must be positive");
+        }
+    }
+}
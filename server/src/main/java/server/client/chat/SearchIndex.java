@@ -0,0 +1,263 @@
+package server.client.chat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+
+/**
+ * Incremental inverted index over the message store. Every message is tokenized once as it
+ * arrives and its id is appended to the posting list of each of its terms. Posting lists are
+ * byte arrays of varint-encoded gaps between ids, cut into blocks of 128 ids that each start
+ * with an absolute id. The block starts let a search walk a list newest first, stop as soon
+ * as it has enough matches, and test a single id with a binary search plus one block decode.
+ *
+ * Each room has posting lists of its own, so a search only walks the messages of its room
+ * and a term common in a busy room costs nothing in a quiet one. Messages are queued in id
+ * order by {@link #add} without taking the index lock, which lets the history hand out ids
+ * under its own lock without waiting for a search; {@link #flush()} indexes the queue.
+ *
+ * @author Robert McKay
+ */
+public class SearchIndex {
+    // class constants
+    private static final int BLOCK_SIZE = 128;
+    private static final int MAX_TERM = 32;
+
+    // class data members
+    private final ReentrantReadWriteLock lock;
+    private final HashMap<String, HashMap<String, PostingList>> postings;
+    private final ConcurrentLinkedQueue<Pending> pending;
+
+    /**
+     * Ids of the messages containing one term, in ascending order.
+     */
+    private static final class PostingList {
+        private byte[] data;
+        private int size;
+        private int[] blockStarts;
+        private int[] blockFirstIds;
+        private int blocks;
+        private int count;
+        private int last;
+
+        PostingList() {
+            data = new byte[16];
+            blockStarts = new int[4];
+            blockFirstIds = new int[4];
+            last = -1;
+        }
+
+        void add(int id) {
+            if (id <= last) {
+                return;
+            }
+            if (count % BLOCK_SIZE == 0) {
+                if (blocks == blockStarts.length) {
+                    blockStarts = Arrays.copyOf(blockStarts, blocks * 2);
+                    blockFirstIds = Arrays.copyOf(blockFirstIds, blocks * 2);
+                }
+                blockStarts[blocks] = size;
+                blockFirstIds[blocks] = id;
+                blocks++;
+                writeVarint(id);
+            } else {
+                writeVarint(id - last);
+            }
+            last = id;
+            count++;
+        }
+
+        /**
+         * Decodes one block.
+         * @param block The number of the block.
+         * @param out Receives the ids of the block, must hold BLOCK_SIZE ids.
+         * @return The number of ids in the block.
+         */
+        int decode(int block, int[] out) {
+            int position = blockStarts[block];
+            int end = block + 1 < blocks ? blockStarts[block + 1] : size;
+            int n = 0;
+            int value = 0;
+            while (position < end) {
+                int delta = 0;
+                int shift = 0;
+                byte next;
+                do {
+                    next = data[position++];
+                    delta |= (next & 0x7f) << shift;
+                    shift += 7;
+                } while (next < 0);
+                value = n == 0 ? delta : value + delta;
+                out[n++] = value;
+            }
+            return n;
+        }
+
+        boolean contains(int id, int[] scratch) {
+            int block = Arrays.binarySearch(blockFirstIds, 0, blocks, id);
+            if (block >= 0) {
+                return true;
+            }
+            block = -block - 2;
+            if (block < 0) {
+                return false;
+            }
+            int n = decode(block, scratch);
+            return Arrays.binarySearch(scratch, 0, n, id) >= 0;
+        }
+
+        private void writeVarint(int value) {
+            if (size + 5 > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + 5));
+            }
+            while ((value & ~0x7f) != 0) {
+                data[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+    }
+
+    /**
+     * A message queued for indexing.
+     */
+    private static final class Pending {
+        private final String room;
+        private final int id;
+        private final String text;
+
+        Pending(String room, int id, String text) {
+            this.room = room;
+            this.id = id;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Constructor. Creates an empty index.
+     */
+    public SearchIndex() {
+        lock = new ReentrantReadWriteLock();
+        postings = new HashMap<>();
+        pending = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Splits text into lower case terms of letters and digits. Terms longer than 32 characters
+     * are dropped, they are almost never searched for and would bloat the dictionary.
+     * @param text The text to split.
+     * @return The distinct terms in the order they first appear.
+     */
+    public static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inTerm && start < 0) {
+                start = i;
+            } else if (!inTerm && start >= 0) {
+                if (i - start <= MAX_TERM) {
+                    terms.add(text.substring(start, i).toLowerCase());
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Queues a message for indexing. Never blocks. Ids must be queued in ascending order; the
+     * message is searchable once {@link #flush()} has run.
+     * @param room The room the message was sent to.
+     * @param messageId The id of the message in the message store.
+     * @param text The text to index.
+     */
+    public void add(String room, int messageId, String text) {
+        pending.add(new Pending(room, messageId, text));
+    }
+
+    /**
+     * Indexes every queued message, in the order they were queued. Whoever gets the lock
+     * first indexes the messages of the others too, so when this returns every message queued
+     * before the call is searchable.
+     */
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Pending next;
+            while ((next = pending.poll()) != null) {
+                Map<String, PostingList> room = postings.computeIfAbsent(next.room, key -> new HashMap<>());
+                for (String term : tokenize(next.text)) {
+                    room.computeIfAbsent(term, key -> new PostingList()).add(next.id);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the most recent messages of a room containing every term of a query.
+     * @param room The room to search.
+     * @param query The terms to look for.
+     * @param limit The maximum number of matches to return.
+     * @param filter Extra test a message id must pass, such as not being deleted.
+     * @return Ids of the matching messages, newest first.
+     */
+    public int[] search(String room, String query, int limit, IntPredicate filter) {
+        Set<String> terms = tokenize(query);
+        if (terms.isEmpty() || limit <= 0) {
+            return new int[0];
+        }
+        lock.readLock().lock();
+        try {
+            Map<String, PostingList> roomPostings = postings.get(room);
+            if (roomPostings == null) {
+                return new int[0];
+            }
+            PostingList[] lists = new PostingList[terms.size()];
+            int n = 0;
+            for (String term : terms) {
+                PostingList list = roomPostings.get(term);
+                if (list == null) {
+                    return new int[0];
+                }
+                lists[n++] = list;
+            }
+            // drive the search from the rarest term, the others are only probed
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.count, b.count));
+            int[] block = new int[BLOCK_SIZE];
+            int[] scratch = new int[BLOCK_SIZE];
+            int[] matches = new int[limit];
+            int found = 0;
+            for (int b = lists[0].blocks - 1; b >= 0 && found < limit; b--) {
+                int ids = lists[0].decode(b, block);
+                for (int i = ids - 1; i >= 0 && found < limit; i--) {
+                    if (containsAll(lists, block[i], scratch) && filter.test(block[i])) {
+                        matches[found++] = block[i];
+                    }
+                }
+            }
+            return Arrays.copyOf(matches, found);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static boolean containsAll(PostingList[] lists, int id, int[] scratch) {
+        for (int i = 1; i < lists.length; i++) {
+            if (!lists[i].contains(id, scratch)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,55 +1,49 @@
 package server.client.chat;
+
 import java.io.IOException;
-import java.util.Date;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import javax.swing.SwingUtilities;
 
 /**
- * Controller for the server view and the server model.
+ * Controller for the server view and the server model. Client handling lives in the
+ * {@link ServerEngine}; the controller wires it to the view.
  * 
  * @author Robert McKay
  */
 public class ServerController {
     // class constants
     private static final boolean CLOSED_BY_SERVER = true;
-    private static final boolean CLOSED_BY_CLIENT = false;
+    private static final String EXPORT_COMMAND = "/export ";
+    private static final String IMPORT_COMMAND = "/import ";
+    private static final String FILTERS_COMMAND = "/filters ";
+    private static final String PASSWORD_COMMAND = "/passwd ";
+    private static final int IMPORT_BATCH = 500;
 
     // class data members
     private ServerView view;
     private ServerModel model;
-    private ClientListener clientListener;
-    private MessageListener messageListener;
-
-    /**
-     * Inner class. Listens for clients until server is killed.
-     */
-    private class ClientListener extends Thread {
-        @Override
-        public void run() {
-            while(model.isStarted()) {
-                listen();
-            }
-        }
-    }
-
-    /**
-     * Inner class. Listens for incomming messages until connection is closed.
-     */
-    private class MessageListener extends Thread {
-        @Override
-        public void run() {
-            while (model.isConnected()) {
-                receiveMessage();
-            }
-        }
-    }
+    private ServerEngine engine;
+    private EventLog events;
 
     /**
      * Constructor.
      * @param view The view associated with this controller.
      * @param model The model associated with this controller.
+     * @param events The log of the server's events, shown in the view as they are written.
      */
-    public ServerController(ServerView view, ServerModel model) {
+    public ServerController(ServerView view, ServerModel model, EventLog events) {
         this.view = view;
         this.model = model;
+        this.events = events;
+        engine = new ServerEngine(model, events);
+        // one append per batch of events, on the event dispatch thread
+        events.setDisplay(this::show);
+        try {
+            events.start();
+        } catch (IOException err) {
+            view.addMessage("Event log file disabled: " + err.getMessage());
+        }
     }
 
     /**
@@ -59,6 +53,7 @@ public class ServerController {
         view.addStartButtonListener(e -> start());
         view.addDisconnectButtonListener(e -> disconnect(CLOSED_BY_SERVER));
         view.addKillButtonListener(e -> kill());
+        view.addDrainButtonListener(e -> new Thread(this::drain, "drain").start());
         view.addPortButtonListener(e -> updatePort());
         view.addHelpButtonListener(e -> help());
         view.addSendButtonListener(e -> sendMessage());
@@ -71,23 +66,64 @@ public class ServerController {
      * @throws IllegalArgumentException If the message is empty or exceeds 1000 characters.
      */
     private String getValidMessage() throws IllegalArgumentException {
-        String message = view.getMessage();
-        if (message.equals("") || message.equals(ServerView.DEFAULT_MESSAGE)) {
-            throw new IllegalArgumentException("No message entered in message field");
-        } else if (message.length() > 1000) {
-            throw new IllegalArgumentException("Message exceeds maximamum size (1000 characters)");
-        }
-        return message;
+        return Protocol.validate(view.getMessage(), ServerView.DEFAULT_MESSAGE);
     }
 
     /**
-     * Sends a message to the client.
+     * Sends a message to every client, or to a single user with the private message command.
+     * Also searches, exports and imports room transcripts, and reloads the message filters
+     * and sets passwords.
      */
     private void sendMessage() {
         try {
             String message = getValidMessage();
+            if (message.startsWith(EXPORT_COMMAND)) {
+                String[] parts = message.split(" ", 3);
+                if (parts.length < 3) {
+                    throw new IllegalArgumentException("Usage: /export <room> <path>");
+                }
+                exportTranscript(parts[1], parts[2]);
+                return;
+            }
+            if (message.startsWith(IMPORT_COMMAND)) {
+                importTranscript(message.substring(IMPORT_COMMAND.length()).trim());
+                return;
+            }
+            if (message.startsWith(PASSWORD_COMMAND)) {
+                String[] parts = message.split(" ", 3);
+                if (parts.length < 3) {
+                    throw new IllegalArgumentException("Usage: /passwd <user> <password>");
+                }
+                setPassword(parts[1], parts[2]);
+                return;
+            }
+            if (message.startsWith(FILTERS_COMMAND)) {
+                loadFilters(message.substring(FILTERS_COMMAND.length()).trim());
+                return;
+            }
+            if (message.startsWith(Protocol.SEARCH_COMMAND)) {
+                String[] parts = message.split(" ", 3);
+                if (parts.length < 3) {
+                    throw new IllegalArgumentException("Usage: /search <room> <terms>");
+                }
+                for (String line : engine.search(parts[1], parts[2])) {
+                    view.addMessage(line);
+                }
+                return;
+            }
+            if (message.startsWith(Protocol.DIRECT_COMMAND)) {
+                String[] parts = message.split(" ", 3);
+                if (parts.length < 3) {
+                    throw new IllegalArgumentException("Usage: /msg <user> <message>");
+                }
+                if (model.sendDirect(parts[1], "[private from server] " + parts[2]) == 0) {
+                    view.addMessage(ServerEngine.offlineNotice(parts[1]));
+                }
+                view.addMessage(Protocol.logLine("Server sends to " + parts[1], parts[2]));
+                return;
+            }
             model.sendMessage(message);
-            view.addMessage("Server sends - " + new Date() + ": " + message);
+            view.addMessage(Protocol.logLine("Server sends", message));
         } catch (IllegalArgumentException err) {
             view.addMessage(err.getMessage());
         } catch (ServerModelException err) {
@@ -96,79 +132,123 @@ public class ServerController {
     }
 
     /**
-     * Receives a message from the server.
+     * Writes the history of a room to a transcript file on a background thread.
+     * @param room The room to export.
+     * @param path Path of the transcript file to write.
      */
-    private void receiveMessage() {
-        try {
-            String message = model.receiveMessage();
-            view.addMessage("Client sends - " + new Date() + ": " + message);
-            if (message.equals("connection terminated by client")) {
-                disconnect(CLOSED_BY_CLIENT);
+    private void exportTranscript(String room, String path) {
+        new Thread(() -> {
+            try (TranscriptWriter writer = new TranscriptWriter(Files.newOutputStream(Paths.get(path)), room)) {
+                int count = model.getHistory().export(room, writer);
+                show("Exported " + count + " messages of " + room + " to " + path);
+            } catch (IOException | RuntimeException err) {
+                show("Failed to export " + room + ": " + err.getMessage());
             }
-        } catch (ServerModelException err) {
-            return;
+        }, "transcript-export").start();
+    }
+
+    /**
+     * Streams a transcript file into the chat area on a background thread.
+     * @param path Path of the transcript file to read.
+     */
+    private void importTranscript(String path) {
+        new Thread(() -> {
+            try {
+                long count = TranscriptReader.replay(Paths.get(path), IMPORT_BATCH, this::show);
+                show("Imported " + count + " messages from " + path);
+            } catch (IOException | RuntimeException err) {
+                show("Failed to import " + path + ": " + err.getMessage());
+            }
+        }, "transcript-import").start();
+    }
+
+    /**
+     * Swaps in the message filters described by a configuration file, on a background thread
+     * since compiling a long keyword list takes a moment. The engine logs the outcome.
+     * @param path Path of the filter configuration file.
+     */
+    private void loadFilters(String path) {
+        new Thread(() -> {
+            try {
+                engine.loadFilters(Paths.get(path));
+            } catch (IOException | RuntimeException err) {
+                events.error("filter.load", EventLog.NO_SESSION, "Failed to load filters: " + err.getMessage());
+            }
+        }, "filter-load").start();
+    }
+
+    /**
+     * Sets the password of a user on a background thread, since hashing it takes a moment.
+     * @param userId The user to set the password for.
+     * @param password The new password.
+     * @throws IllegalArgumentException If the server does not require a login.
+     */
+    private void setPassword(String userId, String password) throws IllegalArgumentException {
+        Authenticator authenticator = model.getAuthenticator();
+        if (authenticator == null) {
+            throw new IllegalArgumentException("Logins are off, start the server with -Dchat.auth.file=<path>");
         }
+        new Thread(() -> {
+            try {
+                authenticator.setPassword(userId, password);
+                show("Password set for " + userId);
+            } catch (IOException | RuntimeException err) {
+                show("Failed to set password for " + userId + ": " + err.getMessage());
+            }
+        }, "set-password").start();
+    }
+
+    private void show(String text) {
+        SwingUtilities.invokeLater(() -> view.addMessage(text));
     }
 
     /**
-     * Starts the server
+     * Starts the server.
      */
     private void start() {
         try {
-            model.start();
-            clientListener = new ClientListener();
-            clientListener.start();
-            view.addMessage(
-                "Server started successfully.\n" +
-                "Address of server: " + model.getServerAddress() + "\n" +
-                "Listening for clients on port " + model.getPort()
-            );
+            engine.start();
         } catch (ServerModelException err) {
-            view.addMessage(err.getMessage());
+            events.error("server.start", EventLog.NO_SESSION, err.getMessage());
         }
     }
 
     /**
-     * Listens for a client on the open connection.
+     * Terminates the current connection with every client.
+     * @param closedByServer True if the server closed the connection.
      */
-    private void listen() {
+    private void disconnect(boolean closedByServer) {
         try {
-            model.connect();
-            messageListener = new MessageListener();
-            messageListener.start();
-            view.addMessage("Connection established with client");
+            engine.disconnect(closedByServer);
         } catch (ServerModelException err) {
-            view.addMessage(err.getMessage());
-        } catch (IOException err) {
-            return;
+            events.error("server.disconnect", EventLog.NO_SESSION, err.getMessage());
         }
     }
 
     /**
-     * Terminates the current connection with the client.
+     * Terminates the server.
      */
-    private void disconnect(boolean closedByServer) {
+    private void kill() {
         try {
-            if (closedByServer) {
-                model.sendMessage("connection terminated by server");
-            }
-            model.disconnect();
-            view.addMessage("Disconnected from client");
+            engine.kill();
         } catch (ServerModelException err) {
-            view.addMessage(err.getMessage());
+            events.error("server.kill", EventLog.NO_SESSION, err.getMessage());
         }
     }
 
     /**
-     * Terminates the server.
+     * Shuts the server down gracefully: stops accepting clients, tells the connected ones to
+     * reconnect after a randomized delay and waits for their queues to flush. Also run when
+     * the process is asked to terminate, so a replacement can take over the port seamlessly.
      */
-    private void kill() {
+    public void drain() {
+        if (!model.isStarted()) {
+            return;
+        }
         try {
-            disconnect(CLOSED_BY_SERVER);
-            model.kill();
-            view.addMessage("Server is now inactive");
+            engine.drain();
         } catch (ServerModelException err) {
-            view.addMessage(err.getMessage());
+            events.error("server.drain", EventLog.NO_SESSION, err.getMessage());
         }
     }
 
@@ -1,6 +1,10 @@
 package server.client.chat;
 
 import javax.swing.SwingUtilities;
+import java.awt.GraphicsEnvironment;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
 
 /**
  * Driver class for the Server Chat program.
@@ -10,19 +14,98 @@ import javax.swing.SwingUtilities;
 
 public class ServerDriver {
     /**
-     * Entry point
+     * Entry point. Cluster mode is enabled with system properties:
+     * chat.cluster.port (port to link with other instances on), chat.cluster.peers
+     * (comma separated host:port list of the other instances) and chat.cluster.node
+     * (unique name of this instance, defaults to localhost:clusterPort). The server drains
+     * its sessions when the process is asked to terminate. See {@link EventLog} for the
+     * properties of the event log and {@link Authenticator} for those of the login.
+     * Without a display (or with -Djava.awt.headless=true) the server skips the view, starts
+     * listening on chat.port (default 5000) right away and writes its events to standard out.
+     * With chat.admin.socket set, operators control the server through an {@link AdminConsole}.
+     * With chat.ws.port set, browsers join the rooms through a {@link WebSocketGateway}.
      * @param args unused.
      */
     public static void main(String[] args) {
-        int port = 5000;
+        int port = Integer.getInteger("chat.port", 5000);
+        int clusterPort = Integer.getInteger("chat.cluster.port", 0);
+        List<InetSocketAddress> peers = ClusterNode.parseSeeds(System.getProperty("chat.cluster.peers", ""));
+        String nodeId = System.getProperty("chat.cluster.node", "localhost:" + clusterPort);
+        if (GraphicsEnvironment.isHeadless()) {
+            ServerModel model = createModel(port, clusterPort, nodeId, peers);
+            runHeadless(model, EventLog.fromProperties());
+            return;
+        }
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
                 ServerView view = new ServerView();
-                ServerModel model = new ServerModel(port);
-                ServerController controller = new ServerController(view, model);
+                ServerModel model = createModel(port, clusterPort, nodeId, peers);
+                EventLog events = EventLog.fromProperties();
+                ServerController controller = new ServerController(view, model, events);
                 controller.addListeners();
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    controller.drain();
+                    events.close();
+                }, "shutdown-drain"));
             }
         });
     }
+
+    /**
+     * Creates the model from the system properties.
+     * @param port The port to listen for clients on.
+     * @param clusterPort The port to link with other instances on, 0 to run alone.
+     * @param nodeId The unique name of this instance in the cluster.
+     * @param peers The other instances of the cluster.
+     * @return The model, not started.
+     */
+    private static ServerModel createModel(int port, int clusterPort, String nodeId,
+        List<InetSocketAddress> peers) {
+        ServerModel model = new ServerModel(port);
+        model.setAuthenticator(Authenticator.fromProperties());
+        if (clusterPort > 0) {
+            model.setCluster(new ClusterNode(nodeId, clusterPort, peers, new ClusterNode.Delivery() {
+                @Override
+                public void deliver(String room, String sender, String body) {
+                    model.receiveRelayed(room, sender, body);
+                }
+
+                @Override
+                public void amend(String room, String sender, String body) {
+                    model.amendRelayed(room, sender, body);
+                }
+            }));
+        }
+        return model;
+    }
+
+    /**
+     * Runs the server without the view: starts listening at once, which is what a restart on
+     * a machine without a display wants, and drains when the process is asked to terminate.
+     * @param model The model to serve clients with.
+     * @param events The log of the server's events, echoed to standard out.
+     */
+    private static void runHeadless(ServerModel model, EventLog events) {
+        events.setDisplay(System.out::println);
+        try {
+            events.start();
+        } catch (IOException err) {
+            System.out.println("Event log file disabled: " + err.getMessage());
+        }
+        ServerEngine engine = new ServerEngine(model, events);
+        try {
+            engine.start();
+        } catch (ServerModelException err) {
+            events.error("server.start", EventLog.NO_SESSION, err.getMessage());
+            events.close();
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (model.isStarted()) {
+                engine.drain();
+            }
+            events.close();
+        }, "shutdown-drain"));
+    }
 }
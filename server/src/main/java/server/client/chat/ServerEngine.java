@@ -0,0 +1,707 @@
+package server.client.chat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless core of the server: accepts clients, takes the frames their sessions read and
+ * dispatches them to the model. Has no dependency on Swing, so it runs the same behind
+ * the server view, in a test or in a process without a display. Operational events go to
+ * an {@link EventLog}, which also feeds the view when there is one.
+ *
+ * @author Robert McKay
+ */
+public class ServerEngine {
+    // class constants
+    private static final boolean CLOSED_BY_SERVER = true;
+    private static final boolean CLOSED_BY_CLIENT = false;
+    private static final int SEARCH_LIMIT = 20;
+    private static final String LOGIN_REQUIRED = "Log in first with /login <user> <password>";
+    private static final long DRAIN_DEADLINE_MILLIS = Long.getLong("chat.drain.deadlineMillis", 10000);
+    private static final long RECONNECT_DELAY_MILLIS = Long.getLong("chat.drain.reconnectMillis", 1000);
+    private static final long RECONNECT_JITTER_MILLIS = Long.getLong("chat.drain.jitterMillis", 5000);
+
+    // class data members
+    private final ServerModel model;
+    private final EventLog events;
+    private ClientListener clientListener;
+    private AdminConsole console;
+    private WebSocketGateway gateway;
+
+    /**
+     * Inner class. Listens for clients until server is killed.
+     */
+    private class ClientListener extends Thread {
+        ClientListener() {
+            super("client-listener");
+        }
+
+        @Override
+        public void run() {
+            while(model.isStarted()) {
+                listen();
+            }
+        }
+    }
+
+    /**
+     * Inner class. Takes the frames read from one session until it is closed.
+     */
+    private class MessageListener implements ServerSession.Listener {
+        private final ServerSession session;
+
+        public MessageListener(ServerSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void onLine(String line) {
+            receiveMessage(session, line);
+        }
+
+        @Override
+        public void onChunk(int transferId, long offset, byte[] data, int length) {
+            try {
+                // bulk data, the sender is paced by the socket rather than the message limits
+                model.getTransfers().receiveChunk(session, transferId, offset, data, length);
+            } catch (ServerModelException err) {
+                disconnect(session, CLOSED_BY_CLIENT);
+            }
+        }
+
+        @Override
+        public void onClosed() {
+            // the writer may have closed the session first, it must still leave the routing tables
+            disconnect(session, CLOSED_BY_CLIENT);
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param model The model to serve clients with.
+     * @param events Receives the operational events of the engine. Must be started to record.
+     */
+    public ServerEngine(ServerModel model, EventLog events) {
+        this.model = model;
+        this.events = events;
+    }
+
+    /**
+     * Accessor method for the event log.
+     * @return The log the engine records its events in.
+     */
+    public EventLog getEvents() {
+        return events;
+    }
+
+    /**
+     * Accessor method for the model.
+     * @return The model the engine serves clients with.
+     */
+    public ServerModel getModel() {
+        return model;
+    }
+
+    /**
+     * Starts the server and a thread accepting clients.
+     * @throws ServerModelException If the server is already started or fails to start.
+     */
+    public void start() throws ServerModelException {
+        String filterFile = System.getProperty("chat.filter.file", "");
+        if (!filterFile.isEmpty()) {
+            try {
+                loadFilters(Paths.get(filterFile));
+            } catch (IOException | IllegalArgumentException err) {
+                events.error("filter.load", EventLog.NO_SESSION, "Failed to load filters: " + err.getMessage());
+            }
+        }
+        Authenticator authenticator = model.getAuthenticator();
+        if (authenticator != null) {
+            try {
+                authenticator.load();
+            } catch (IOException err) {
+                // refuse to start rather than let anyone in
+                throw new ServerModelException("Failed to load credentials: " + err.getMessage());
+            }
+            events.info("auth.load", EventLog.NO_SESSION, authenticator.getUserCount() + " users may log in");
+        }
+        model.start();
+        clientListener = new ClientListener();
+        clientListener.start();
+        String consolePath = System.getProperty("chat.admin.socket", "");
+        if (!consolePath.isEmpty()) {
+            console = new AdminConsole(this, Paths.get(consolePath));
+            try {
+                console.start();
+                events.info("admin.start", EventLog.NO_SESSION, "Admin console listening on " + consolePath);
+            } catch (IOException err) {
+                // the server runs without it, the buttons or signals still work
+                console = null;
+                events.error("admin.start", EventLog.NO_SESSION, "Admin console disabled: " + err.getMessage());
+            }
+        }
+        int webPort = Integer.getInteger("chat.ws.port", 0);
+        if (webPort > 0) {
+            try {
+                openGateway(webPort, WebSocketGateway.parseOrigins(System.getProperty("chat.ws.origins", "")));
+            } catch (IOException err) {
+                // native clients are served without it
+                events.error("websocket.start", EventLog.NO_SESSION,
+                    "WebSocket gateway disabled: " + err.getMessage());
+            }
+        }
+        events.info("server.start", EventLog.NO_SESSION,
+            "Server started successfully.\n" +
+            "Address of server: " + model.getServerAddress() + "\n" +
+            "Listening for clients on port " + model.getPort()
+        );
+        if (model.getCluster() != null) {
+            events.info("cluster.start", EventLog.NO_SESSION,
+                "Cluster node " + model.getCluster().getNodeId() +
+                " listening for peers on port " + model.getCluster().getPort()
+            );
+        }
+    }
+
+    /**
+     * Replaces the moderation stages with the ones described by a filter configuration file.
+     * Connected sessions are not touched; their next message goes through the new stages.
+     * @param file The properties file describing the stages, see {@link FilterPipeline}.
+     * @return The number of stages loaded.
+     * @throws IOException If the file cannot be read.
+     * @throws IllegalArgumentException If the file has an invalid setting.
+     */
+    public int loadFilters(Path file) throws IOException, IllegalArgumentException {
+        List<MessageFilter> stages = FilterPipeline.load(file);
+        model.getFilters().setStages(stages);
+        events.info("filter.load", EventLog.NO_SESSION, "Loaded " + stages.size() + " filter stages from " + file);
+        return stages.size();
+    }
+
+    /**
+     * Opens a {@link WebSocketGateway}, so browsers join the rooms of the native clients.
+     * @param port The port to listen for browsers on, 0 for any free port.
+     * @param origins The origins of the pages allowed to connect, empty to allow any.
+     * @return The port the gateway listens on.
+     * @throws ServerModelException If the server is not started or the gateway is already open.
+     * @throws IOException If the port cannot be opened.
+     */
+    public synchronized int openGateway(int port, List<String> origins) throws ServerModelException, IOException {
+        if (!model.isStarted()) {
+            throw new ServerModelException("Server not started");
+        }
+        if (gateway != null) {
+            throw new ServerModelException("WebSocket gateway already listening on port " + gateway.getPort());
+        }
+        WebSocketGateway opened = new WebSocketGateway(this, port, origins);
+        opened.start();
+        gateway = opened;
+        events.info("websocket.start", EventLog.NO_SESSION,
+            "WebSocket gateway listening on port " + opened.getPort());
+        return opened.getPort();
+    }
+
+    /**
+     * Listens for a client on the open connection.
+     */
+    private void listen() {
+        try {
+            serve(model.connect());
+        } catch (ServerModelException err) {
+            events.error("server.accept", EventLog.NO_SESSION, err.getMessage());
+        } catch (IOException err) {
+            return;
+        }
+    }
+
+    /**
+     * Starts reading the frames of a session just opened.
+     * @param session The session to serve.
+     */
+    void serve(ServerSession session) {
+        session.start(new MessageListener(session));
+        events.info("session.connect", session.getId(), "Connection established with " + session.getDisplayName());
+    }
+
+    /**
+     * Receives a message from a client.
+     * @param session The session the message was read from.
+     * @param frame The message.
+     */
+    private void receiveMessage(ServerSession session, String frame) {
+        String message = frame;
+        try {
+            if (message.equals(Protocol.CLIENT_CLOSED)) {
+                disconnect(session, CLOSED_BY_CLIENT);
+                return;
+            }
+            if (message.startsWith(ReliableStream.ACK_FRAME) || message.startsWith(Protocol.HELLO_COMMAND)) {
+                handleStreamFrame(session, message);
+                return;
+            }
+            if (message.startsWith(ReliableStream.SEQ_FRAME)) {
+                long seq = ReliableStream.sequenceOf(message);
+                ReliableStream stream = session.getStream();
+                if (seq < 0) {
+                    session.sendMessage("Malformed sequenced message");
+                    return;
+                }
+                if (stream != null) {
+                    if (!stream.accept(seq)) {
+                        // sent again after a reconnect, but it was handled the first time
+                        return;
+                    }
+                    session.ackPending();
+                }
+                message = ReliableStream.messageOf(message);
+            }
+            boolean isLogin = message.startsWith(Protocol.LOGIN_COMMAND)
+                || message.startsWith(Protocol.TOKEN_COMMAND);
+            boolean isLoggedIn = isLogin || model.isLoggedIn(session);
+            if (isLoggedIn && (message.equals(Protocol.TYPING_COMMAND)
+                    || message.startsWith(Protocol.PRESENCE_FRAME))) {
+                // lossy and coalesced per room, so it is cheap enough to skip the message limits
+                updatePresence(session, message);
+                return;
+            }
+            // paced before the login check, so a session that never logs in cannot flood it
+            throttle(session, isLoggedIn && !isCommand(message) ? session.getRoom() : null);
+            if (!isLoggedIn) {
+                session.sendMessage(LOGIN_REQUIRED);
+                return;
+            }
+            if (isLogin) {
+                login(session, message);
+            } else if (message.startsWith(Protocol.NICK_COMMAND)) {
+                setNickname(session, message.substring(Protocol.NICK_COMMAND.length()).trim());
+            } else if (message.startsWith(Protocol.DIRECT_COMMAND)) {
+                sendDirect(session, message);
+            } else if (message.startsWith(Protocol.JOIN_COMMAND)) {
+                joinRoom(session, message.substring(Protocol.JOIN_COMMAND.length()).trim());
+            } else if (message.startsWith(Protocol.SEARCH_COMMAND)) {
+                String room = session.getRoom();
+                for (String line : search(room, message.substring(Protocol.SEARCH_COMMAND.length()))) {
+                    session.sendMessage(line);
+                }
+            } else if (message.startsWith(Protocol.SYNC_COMMAND)) {
+                syncHistory(session, message);
+            } else if (message.startsWith(Protocol.EDIT_COMMAND) || message.equals(Protocol.DELETE_COMMAND)) {
+                amend(session, message);
+            } else if (message.startsWith(Protocol.FILE_OFFER) || message.startsWith(Protocol.FILE_RESUME)
+                    || message.startsWith(Protocol.FILE_DONE)) {
+                handleFileFrame(session, message);
+            } else {
+                String room = session.getRoom();
+                try {
+                    message = model.getFilters().apply(room, session.getDisplayName(), message);
+                } catch (IllegalArgumentException err) {
+                    events.info("chat.filtered", session.getId(),
+                        session.getDisplayName() + " in " + room + ": " + err.getMessage());
+                    session.sendMessage(err.getMessage());
+                    return;
+                }
+                events.info("chat.message", session.getId(),
+                    Protocol.logLine(session.getDisplayName() + " sends to " + room, message));
+                model.publish(room, session, message);
+            }
+        } catch (ServerModelException err) {
+            // the session may have closed itself already, make sure it leaves the routing tables
+            disconnect(session, CLOSED_BY_CLIENT);
+        }
+    }
+
+    /**
+     * Handles the frames of the reliable stream: "/hello streamId base [key]" attaches the
+     * session to the client's stream, "/ack n" releases the messages the client has received.
+     * @param session The session the frame came from.
+     * @param message The frame read from the client.
+     * @throws ServerModelException If fails to write to the session.
+     */
+    private void handleStreamFrame(ServerSession session, String message) throws ServerModelException {
+        String[] parts = message.split(" ");
+        try {
+            if (message.startsWith(Protocol.HELLO_COMMAND) && (parts.length == 3 || parts.length == 4)) {
+                String key = parts.length == 4 ? parts[3] : null;
+                if (model.resume(session, parts[1], Long.parseLong(parts[2]), key)) {
+                    events.info("session.resume", session.getId(),
+                        session.getDisplayName() + " resumed its message stream");
+                }
+            } else if (parts.length == 2 && session.getStream() != null) {
+                session.getStream().acknowledge(Long.parseLong(parts[1]));
+            }
+        } catch (NumberFormatException err) {
+            session.sendMessage("Malformed stream frame");
+        } catch (ServerModelException err) {
+            session.sendMessage(err.getMessage());
+        }
+    }
+
+    /**
+     * Records a presence or typing update from a client. Invalid states are ignored, there is
+     * nothing useful to answer to a lossy update.
+     * @param session The session the update came from.
+     * @param message The update read from the client.
+     */
+    private void updatePresence(ServerSession session, String message) {
+        String room = session.getRoom();
+        String state = message.equals(Protocol.TYPING_COMMAND)
+            ? PresenceHub.TYPING : message.substring(Protocol.PRESENCE_FRAME.length()).trim();
+        if (room != null && PresenceHub.isClientState(state)) {
+            model.getPresence().update(room, session.getDisplayName(), state);
+        }
+    }
+
+    /**
+     * Checks whether a client message is a command rather than a room message.
+     * @param message The message read from the client.
+     * @return True if the message is a command handled by the server.
+     */
+    private boolean isCommand(String message) {
+        return message.startsWith(Protocol.NICK_COMMAND)
+            || message.startsWith(Protocol.LOGIN_COMMAND)
+            || message.startsWith(Protocol.TOKEN_COMMAND)
+            || message.startsWith(Protocol.DIRECT_COMMAND)
+            || message.startsWith(Protocol.JOIN_COMMAND)
+            || message.startsWith(Protocol.SEARCH_COMMAND)
+            || message.startsWith(Protocol.SYNC_COMMAND)
+            || message.startsWith(Protocol.FILE_OFFER)
+            || message.startsWith(Protocol.FILE_RESUME)
+            || message.startsWith(Protocol.FILE_DONE);
+    }
+
+    /**
+     * Holds the listener of a session until its message fits the session, room and global rate
+     * limits. The session is not read from while it waits, so a flooding client is slowed down
+     * by TCP flow control instead of filling server memory. The client is told once per episode:
+     * a flood gets one throttle frame, and the next once a message got through without waiting.
+     * @param session The session the message was read from.
+     * @param room The room the message goes to, or null if it is not a room message.
+     */
+    private void throttle(ServerSession session, String room) {
+        long wait = model.getRateLimiter().acquire(session, room);
+        if (wait == 0) {
+            session.setThrottled(false);
+            return;
+        }
+        while (wait > 0 && session.isConnected()) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+            if (!session.isThrottled()) {
+                session.sendControl(Protocol.THROTTLE_FRAME + millis);
+                session.setThrottled(true);
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(millis);
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            wait = model.getRateLimiter().acquire(session, room);
+        }
+    }
+
+    /**
+     * Logs a session in, either with "/login user password" or, when reconnecting, with the
+     * token an earlier login returned: "/token user token". A password login is answered with
+     * a new token in an auth frame.
+     * @param session The session logging in.
+     * @param message The login command.
+     */
+    private void login(ServerSession session, String message) {
+        Authenticator authenticator = model.getAuthenticator();
+        String[] parts = message.split(" ", 3);
+        try {
+            if (authenticator == null) {
+                throw new ServerModelException("This server does not require a login, use /nick");
+            }
+            if (parts.length < 3) {
+                throw new ServerModelException("Usage: /login <user> <password>");
+            }
+            String previous = session.getDisplayName();
+            if (message.startsWith(Protocol.LOGIN_COMMAND)) {
+                String token = authenticator.login(parts[1], parts[2]);
+                model.login(session, parts[1]);
+                session.sendMessage(Protocol.AUTH_FRAME + parts[1] + " " + token);
+            } else {
+                authenticator.resume(parts[1], parts[2]);
+                model.login(session, parts[1]);
+            }
+            session.sendMessage("Logged in as " + parts[1]);
+            events.info("session.login", session.getId(), previous + " logged in as " + parts[1]);
+        } catch (ServerModelException err) {
+            events.record(EventLog.WARN, "session.login", session.getId(),
+                session.getDisplayName() + " failed to log in as " + (parts.length > 1 ? parts[1] : "?"));
+            session.sendMessage(err.getMessage());
+        }
+    }
+
+    /**
+     * Binds a nickname to a client session.
+     * @param session The session that requested the nickname.
+     * @param nickname The requested nickname.
+     */
+    private void setNickname(ServerSession session, String nickname) {
+        String previous = session.getDisplayName();
+        try {
+            if (model.getAuthenticator() != null) {
+                throw new ServerModelException("Your nickname is the user you logged in as");
+            }
+            model.register(session, nickname);
+            session.sendMessage("Nickname set to " + nickname);
+            events.info("session.nick", session.getId(), previous + " is now known as " + nickname);
+        } catch (ServerModelException err) {
+            session.sendMessage(err.getMessage());
+        }
+    }
+
+    /**
+     * Passes a file transfer control frame to the transfer relay.
+     * @param session The session that sent the frame.
+     * @param message The raw frame.
+     */
+    private void handleFileFrame(ServerSession session, String message) {
+        try {
+            if (message.startsWith(Protocol.FILE_OFFER)) {
+                model.getTransfers().offer(session, message);
+            } else if (message.startsWith(Protocol.FILE_RESUME)) {
+                model.getTransfers().resume(session, message);
+            } else {
+                model.getTransfers().done(session, message);
+            }
+        } catch (ServerModelException err) {
+            session.sendMessage(err.getMessage());
+        }
+    }
+
+    /**
+     * Searches the history of a room and formats the matches for display.
+     * @param room The room to search.
+     * @param query The terms to look for.
+     * @return A summary line followed by one line per match, newest first.
+     */
+    public List<String> search(String room, String query) {
+        int[] matches = model.search(room, query, SEARCH_LIMIT);
+        MessageStore history = model.getHistory();
+        List<String> lines = new ArrayList<>(matches.length + 1);
+        lines.add(matches.length + " recent matches in " + room + " for: " + query);
+        for (int id : matches) {
+            lines.add("[search] " + Protocol.timestamp(history.getTimestamp(id)) + " <" + history.getSender(id) + "> "
+                + history.getBody(id) + (history.isEdited(id) ? " (edited)" : ""));
+        }
+        return lines;
+    }
+
+    /**
+     * Moves a client session into another room.
+     * @param session The session that asked to join.
+     * @param room The room to join.
+     */
+    private void joinRoom(ServerSession session, String room) {
+        try {
+            model.join(session, room);
+            session.sendMessage("Joined room " + room);
+        } catch (ServerModelException err) {
+            session.sendMessage(err.getMessage());
+        }
+    }
+
+    /**
+     * Sends a client the messages of a room its cache is missing, see {@link ServerModel#sync}.
+     * @param session The session that asked.
+     * @param message "/sync room epoch after".
+     */
+    private void syncHistory(ServerSession session, String message) {
+        String[] parts = message.split(" ");
+        try {
+            if (parts.length != 4) {
+                throw new ServerModelException("Usage: /sync <room> <epoch> <last id>");
+            }
+            int count = model.sync(session, parts[1], Long.parseLong(parts[2]), Integer.parseInt(parts[3]));
+            events.info("chat.sync", session.getId(),
+                session.getDisplayName() + " caught up on " + count + " messages of " + parts[1]);
+        } catch (NumberFormatException err) {
+            session.sendMessage("Malformed sync command");
+        } catch (ServerModelException err) {
+            session.sendMessage(err.getMessage());
+        }
+    }
+
+    /**
+     * Edits or deletes the latest message a client still has in its room. The new text goes
+     * through the filters like a new message would.
+     * @param session The session that sent the command.
+     * @param message "/edit new text" or "/delete".
+     */
+    private void amend(ServerSession session, String message) {
+        String room = session.getRoom();
+        String body = null;
+        try {
+            if (message.startsWith(Protocol.EDIT_COMMAND)) {
+                body = message.substring(Protocol.EDIT_COMMAND.length()).trim();
+                if (body.isEmpty()) {
+                    throw new IllegalArgumentException("Usage: /edit <new text>");
+                }
+                body = model.getFilters().apply(room, session.getDisplayName(), body);
+            }
+            model.amend(room, session, body);
+            if (body == null) {
+                events.info("chat.delete", session.getId(),
+                    session.getDisplayName() + " deleted a message in " + room);
+            } else {
+                events.info("chat.edit", session.getId(),
+                    Protocol.logLine(session.getDisplayName() + " edits in " + room, body));
+            }
+        } catch (IllegalArgumentException | ServerModelException err) {
+            session.sendMessage(err.getMessage());
+        }
+    }
+
+    /**
+     * Routes a private message from one client to every session of the target user.
+     * The sender's other sessions get a copy so that all of its devices show the conversation.
+     * @param session The session that sent the private message.
+     * @param message The raw private message command.
+     */
+    private void sendDirect(ServerSession session, String message) {
+        String[] parts = message.split(" ", 3);
+        try {
+            if (session.getUserId() == null) {
+                throw new ServerModelException("Set a nickname with /nick before sending private messages");
+            }
+            if (parts.length < 3) {
+                throw new ServerModelException("Usage: /msg <user> <message>");
+            }
+            // the target names a mailbox file, so it must not reach outside the mailbox directory
+            if (!ServerModel.USER_ID.matcher(parts[1]).matches()) {
+                throw new ServerModelException("User " + parts[1] + " is not connected");
+            }
+            String body = model.getFilters().apply(null, session.getUserId(), parts[2]);
+            if (model.sendDirect(parts[1], "[private from " + session.getUserId() + "] " + body) == 0) {
+                session.sendMessage(offlineNotice(parts[1]));
+            }
+            for (ServerSession other : model.getSessions(session.getUserId())) {
+                if (other != session) {
+                    other.sendReliable("[private to " + parts[1] + "] " + body);
+                }
+            }
+        } catch (IllegalArgumentException | ServerModelException err) {
+            session.sendMessage(err.getMessage());
+        }
+    }
+
+    /**
+     * Builds the reply to a private message kept for an offline user.
+     * @param userId The user the message is for.
+     * @return The reply for the sender.
+     */
+    static String offlineNotice(String userId) {
+        return "User " + userId + " is offline, the message will be delivered when they connect";
+    }
+
+    /**
+     * Disconnects a client on an operator's request, telling it the server closed the connection.
+     * @param target A session id, or a user id to disconnect every session of the user.
+     * @return The number of sessions disconnected.
+     */
+    public int kick(String target) {
+        List<ServerSession> kicked = new ArrayList<>();
+        for (ServerSession session : model.getSessions()) {
+            if (target.equals(String.valueOf(session.getId())) || target.equals(session.getUserId())) {
+                kicked.add(session);
+            }
+        }
+        for (ServerSession session : kicked) {
+            events.info("session.kick", session.getId(), session.getDisplayName() + " was kicked by an operator");
+            disconnect(session, CLOSED_BY_SERVER);
+        }
+        return kicked.size();
+    }
+
+    /**
+     * Terminates the connection with a single client.
+     * @param session The session to terminate.
+     * @param closedByServer True if the server closed the connection.
+     */
+    private void disconnect(ServerSession session, boolean closedByServer) {
+        try {
+            if (closedByServer) {
+                session.sendControl(Protocol.SERVER_CLOSED);
+            }
+        } catch (ServerModelException err) {
+            // the client is gone already, close our end regardless
+        }
+        try {
+            if (model.disconnect(session)) {
+                events.info("session.disconnect", session.getId(),
+                    "Disconnected from " + session.getDisplayName());
+            }
+        } catch (ServerModelException err) {
+            events.error("session.error", session.getId(), err.getMessage());
+        }
+    }
+
+    /**
+     * Terminates the current connection with every client.
+     * @param closedByServer True if the clients should be told the server closed the connection.
+     * @throws ServerModelException If not connected to a client.
+     */
+    public void disconnect(boolean closedByServer) throws ServerModelException {
+        if (closedByServer) {
+            model.sendControl(Protocol.SERVER_CLOSED);
+        }
+        model.disconnect();
+        events.info("server.disconnect", EventLog.NO_SESSION, "Disconnected from all clients");
+    }
+
+    /**
+     * Terminates the server, disconnecting every client first.
+     * @throws ServerModelException If the server is not started or fails to close.
+     */
+    public void kill() throws ServerModelException {
+        closeGateway();
+        if (model.isConnected()) {
+            try {
+                disconnect(CLOSED_BY_SERVER);
+            } catch (ServerModelException err) {
+                // the last clients left meanwhile
+            }
+        }
+        closeConsole();
+        model.kill();
+        events.info("server.kill", EventLog.NO_SESSION, "Server is now inactive");
+    }
+
+    /**
+     * Shuts the server down gracefully: stops accepting clients, tells the connected ones to
+     * reconnect after a randomized delay and waits for their queues to flush. The admin console
+     * closes first, so its socket file is free for the server taking over.
+     * @return The number of sessions that did not flush in time.
+     * @throws ServerModelException If the server is not started.
+     */
+    public int drain() throws ServerModelException {
+        events.info("server.drain", EventLog.NO_SESSION, "Draining " + model.getSessions().size() + " sessions");
+        closeGateway();
+        closeConsole();
+        int aborted = model.drain(DRAIN_DEADLINE_MILLIS, RECONNECT_DELAY_MILLIS, RECONNECT_JITTER_MILLIS);
+        events.info("server.drained", EventLog.NO_SESSION,
+            "Server drained, " + aborted + " sessions did not flush in time");
+        return aborted;
+    }
+
+    private synchronized void closeConsole() {
+        if (console != null) {
+            console.stop();
+            console = null;
+        }
+    }
+
+    private synchronized void closeGateway() {
+        if (gateway != null) {
+            gateway.stop();
+            gateway = null;
+        }
+    }
+}
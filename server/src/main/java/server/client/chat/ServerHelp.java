@@ -15,13 +15,22 @@ public class ServerHelp extends JFrame {
     private static final int HEIGHT = 400;
     private static String helpText = 
         "\nUse the 'Start Server' button to activate the server.\n" +
-        "Use the 'Disconnect' button to terminate a current connection.\n" +
-        "Use the 'Kill Server' button to deactivate the server.\n\n" +
+        "Use the 'Disconnect' button to terminate every current connection.\n" +
+        "Use the 'Kill Server' button to deactivate the server.\n" +
+        "Use the 'Drain' button to stop accepting clients and ask connected clients\n" +
+        "to reconnect, for example to a new server started on the same port.\n\n" +
         "Port number: Server uses a default port of 5000. To update the port,\n" +
         "enter a valid port in the text box at the bottom and click 'Update Port.\n\n" +
         "-------------------- Sending/Receving Messages -----------------------\n" +
         "Enter a message in the text box at the bottom and click 'Send Message.'\n" +
-        "Messages from the server will automatically appear in the chat area.\n" +
+        "Messages are sent to every connected client. To send a private message\n" +
+        "to a single user, enter '/msg <user> <message>'. To search the history\n" +
+        "of a room, enter '/search <room> <terms>'. To archive a room, enter\n" +
+        "'/export <room> <path>', and '/import <path>' to show an archive.\n" +
+        "To swap the moderation filters without dropping clients, enter\n" +
+        "'/filters <path>' with a filter configuration file. When clients must\n" +
+        "log in, enter '/passwd <user> <password>' to add a user or change one.\n" +
+        "Messages from clients will automatically appear in the chat area.\n" +
         "Use the 'Clear' button to remove all messages from the chat box";
 
     /**
@@ -1,27 +1,86 @@
 package server.client.chat;
 
-import java.net.Socket;
-import java.net.ServerSocket;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 /**
- * Server listens for and connects to a client and opens an I/O stream.
+ * Server listens for and connects to clients and opens an I/O stream with each of them.
+ * Sessions are indexed by user id so that a direct message is routed with a single hash
+ * lookup, no matter how many clients are connected.
  * 
  * @author Robert McKay
  */
 public class ServerModel {
-    private boolean isStarted;
-    private boolean isConnected;
+    // class constants
+    private static final long CLOSE_GRACE_MILLIS = 1000;
+    static final Pattern USER_ID = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+    private static final Pattern STREAM_ID = Pattern.compile("[A-Za-z0-9]{16,64}");
+    // as deep as the session queue, a burst the queue absorbs must not disconnect a reliable session
+    static final int STREAM_CAPACITY = 10000;
+    private static final int STREAM_ACK_EVERY = 32;
+    private static final long STREAM_ACK_DELAY_MILLIS = 200;
+    private static final long STREAM_LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(
+        Long.getLong("chat.stream.lingerMillis", 60000));
+    private static final int SYNC_LIMIT = Integer.getInteger("chat.sync.limit", 500);
+    private static final int ROOM_LOCKS = 64;
+    private static final int STREAM_KEY_BYTES = 16;
+
+    private volatile boolean isStarted;
     private int port;
     private InetAddress serverAddress;
-    private ServerSocket server;
-    private Socket connection;
-    private DataOutputStream outputStream;
-    private BufferedReader inputStream;
+    private ServerSocketChannel server;
+    private final AtomicInteger nextSessionId;
+    private final Set<ServerSession> sessions;
+    private final ConcurrentHashMap<String, Set<ServerSession>> sessionsByUser;
+    private final ConcurrentHashMap<String, Set<ServerSession>> sessionsByRoom;
+    private final RateLimiter rateLimiter;
+    private final AdmissionControl admission;
+    private final TransferManager transfers;
+    private final MessageStore history;
+    private final long historyEpoch;
+    private final SearchIndex index;
+    private final HistoryCompactor compactor;
+    private final PresenceHub presence;
+    private final FilterPipeline filters;
+    private final MailboxStore mailboxes;
+    private final ConcurrentHashMap<String, Resumable> streams;
+    // numbering and queueing a room message under one lock keeps the post frames in id order
+    private final Object[] roomLocks;
+    private final SecureRandom random;
+    private final SessionLoop sessionLoop;
+    private volatile long lastStreamSweep;
+    private ClusterNode cluster;
+    private Authenticator authenticator;
+
+    /**
+     * A reliable stream and the session currently attached to it. A stream outlives its
+     * session for a while, so a client that reconnects picks up where it left off. The key is
+     * issued by the server to the session attached last, only its client may resume the stream.
+     */
+    private static class Resumable {
+        private final ReliableStream stream;
+        private ServerSession session;
+        private long detachedAt;
+        private String key;
+
+        Resumable(ReliableStream stream) {
+            this.stream = stream;
+        }
+    }
 
     /**
      * Constructor.
@@ -29,8 +88,29 @@ public class ServerModel {
      */
     public ServerModel(int port) {
         isStarted = false;
-        isConnected = false;
         this.port = port;
+        nextSessionId = new AtomicInteger();
+        streams = new ConcurrentHashMap<>();
+        random = new SecureRandom();
+        roomLocks = new Object[ROOM_LOCKS];
+        for (int i = 0; i < ROOM_LOCKS; i++) {
+            roomLocks[i] = new Object();
+        }
+        sessions = ConcurrentHashMap.newKeySet();
+        sessionsByUser = new ConcurrentHashMap<>();
+        sessionsByRoom = new ConcurrentHashMap<>();
+        rateLimiter = new RateLimiter();
+        admission = new AdmissionControl();
+        transfers = new TransferManager(this);
+        history = new MessageStore();
+        // ids restart with the history, so a cache must not continue across a restart
+        historyEpoch = System.currentTimeMillis();
+        index = new SearchIndex();
+        compactor = new HistoryCompactor(history);
+        presence = new PresenceHub(this);
+        filters = new FilterPipeline();
+        mailboxes = new MailboxStore(this);
+        sessionLoop = new SessionLoop();
         serverAddress = InetAddress.getLoopbackAddress();
     }
 
@@ -44,10 +124,28 @@ public class ServerModel {
 
     /**
      * Accessor method for isConnected.
-     * @return True if an open I/O stream exits with a client, false otherwise.
+     * @return True if an open I/O stream exits with at least one client, false otherwise.
      */
     public boolean isConnected() {
-        return isConnected;
+        return !sessions.isEmpty();
+    }
+
+    /**
+     * Accessor method for the connected sessions.
+     * @return Read-only view of every open session.
+     */
+    public Set<ServerSession> getSessions() {
+        return Collections.unmodifiableSet(sessions);
+    }
+
+    /**
+     * Looks up the sessions bound to a user.
+     * @param userId The user to look up.
+     * @return Read-only view of the user's sessions, empty if the user is not connected.
+     */
+    public Set<ServerSession> getSessions(String userId) {
+        Set<ServerSession> userSessions = sessionsByUser.get(userId);
+        return userSessions == null ? Collections.emptySet() : Collections.unmodifiableSet(userSessions);
     }
 
     /**
@@ -58,9 +156,97 @@ public class ServerModel {
         return serverAddress;
     }
 
+    /**
+     * Accessor method for the history compactor.
+     * @return The background compaction of the message history.
+     */
+    public HistoryCompactor getCompactor() {
+        return compactor;
+    }
+
+    /**
+     * Accessor method for the presence hub.
+     * @return The hub coalescing presence and typing updates.
+     */
+    public PresenceHub getPresence() {
+        return presence;
+    }
+
+    /**
+     * Looks up the local members of a room.
+     * @param room The room to look up.
+     * @return Read-only view of the sessions in the room, empty if the room has no local members.
+     */
+    public Set<ServerSession> getMembers(String room) {
+        Set<ServerSession> members = sessionsByRoom.get(room);
+        return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members);
+    }
+
+    /**
+     * Accessor method for the offline mailboxes.
+     * @return The store keeping private messages for users who are not connected.
+     */
+    public MailboxStore getMailboxes() {
+        return mailboxes;
+    }
+
+    /**
+     * Accessor method for the filter pipeline.
+     * @return The moderation stages chat messages pass through before they are delivered.
+     */
+    public FilterPipeline getFilters() {
+        return filters;
+    }
+
+    /**
+     * Accessor method for the admission control.
+     * @return The admission control deciding which connections become sessions.
+     */
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    /**
+     * Accessor method for the rate limiter.
+     * @return The limits applied to messages read from clients.
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Accessor method for the file transfers.
+     * @return The relay for files sent between clients.
+     */
+    public TransferManager getTransfers() {
+        return transfers;
+    }
+
+    /**
+     * Accessor method for the cluster node.
+     * @return The node linking this server with other instances, or null when running standalone.
+     */
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Mutator method for the cluster node. Room messages published on this server are relayed
+     * through the node, and messages relayed by other instances are delivered to local rooms.
+     * @param cluster The node to link this server with other instances, or null to run standalone.
+     * @throws ServerModelException If the server is started.
+     */
+    public void setCluster(ClusterNode cluster) throws ServerModelException {
+        if (isStarted) {
+            throw new ServerModelException("kill server before changing cluster mode");
+        }
+        this.cluster = cluster;
+    }
+
     /**
      * Accessor method for the port.
-     * @return The listening port associated with this server.
+     * @return The listening port associated with this server. If the port was set to 0,
+     *     this is the free port picked by the system once the server is started.
      */
     public int getPort() {
         return port;
@@ -82,7 +268,11 @@ public class ServerModel {
     }
 
     /**
-     * Initializes the ServerSocket with the stored port value.
+     * Initializes the server channel with the stored port value. The channel is used in
+     * blocking mode; it is a channel rather than a ServerSocket so that accepted connections
+     * can receive file regions with {@link java.nio.channels.FileChannel#transferTo}.
+     * The port is bound with SO_REUSEPORT where the platform supports it, so a replacement
+     * server can bind the same port while this one drains its sessions.
      * @throws ServerModelException If server already started or fails to start.
      */
     public void start() throws ServerModelException {
@@ -90,62 +280,435 @@ public class ServerModel {
             throw new ServerModelException("Server already started");
         }
         try {
-            server = new ServerSocket(port);
-            isStarted = true;
+            server = ServerSocketChannel.open();
         } catch (IOException err) {
             throw new ServerModelException("Failed to start server");
         }
+        try {
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            admission.configure(server);
+            server.bind(new InetSocketAddress(port), admission.getBacklog());
+            port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            sessionLoop.start();
+        } catch (IOException err) {
+            closeQuietly();
+            throw new ServerModelException("Failed to start server");
+        }
+        if (cluster != null) {
+            try {
+                cluster.start();
+            } catch (ServerModelException err) {
+                closeQuietly();
+                sessionLoop.stop();
+                throw err;
+            }
+        }
+        presence.start();
+        mailboxes.start();
+        compactor.start();
+        transfers.start();
+        isStarted = true;
     }
 
     /**
-     * Waits for a client to connect and establishes I/O stream.
-     * @return True if I/O stream establishes successfully, false otherwise.
+     * Closes the server channel when the close itself cannot fail in a way worth reporting,
+     * either because start is already failing with a more useful error or because the
+     * server is draining.
      */
+    private void closeQuietly() {
+        try {
+            server.close();
+        } catch (IOException err) {
+            // nothing useful to report
+        }
+    }
 
     /**
-     * Waits for a client to connect and establishes I/O stream.
+     * Waits for a client to be admitted and establishes I/O stream. Connections over the
+     * admission limits are shed without returning, see {@link AdmissionControl}.
+     * @return The session opened with the new client.
      * @throws ServerModelException If server not started.
      * @throws IOException If I/O stream connection fails.
      */
-    public void connect() throws ServerModelException, IOException {
+    public ServerSession connect() throws ServerModelException, IOException {
         if (!isStarted) {
             throw new ServerModelException("Server not started");
         }
-        try {
+        SocketChannel connection;
+        InetAddress address;
+        do {
             connection = server.accept();
-            inputStream = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            outputStream = new DataOutputStream(connection.getOutputStream());
-            isConnected = true;
+            address = admission.admit(connection);
+        } while (address == null);
+        return open(address, connection, null);
+    }
+
+    /**
+     * Establishes the I/O stream on a connection admitted by {@link AdmissionControl} and puts
+     * the session in the default room, next to the native clients. When a login is required
+     * the session joins no room until it has logged in, so it receives no room traffic.
+     * @param address The remote address returned by {@link AdmissionControl#admit}.
+     * @param connection The accepted connection; the session puts it in non-blocking mode.
+     * @param webSocket The WebSocket end of the connection for a browser, or null.
+     * @return The session opened with the new client.
+     * @throws ServerModelException If server not started. The connection is closed.
+     * @throws IOException If I/O stream connection fails. The connection is closed.
+     */
+    public ServerSession open(InetAddress address, SocketChannel connection, WebSocketChannel webSocket)
+            throws ServerModelException, IOException {
+        if (!isStarted) {
+            // accepted on another channel while this server stopped
+            admission.release(address);
+            connection.close();
+            throw new ServerModelException("Server not started");
+        }
+        try {
+            ServerSession session = new ServerSession(nextSessionId.incrementAndGet(), address, connection,
+                webSocket, rateLimiter.newSessionBucket(), sessionLoop);
+            sessions.add(session);
+            if (authenticator == null) {
+                join(session, Protocol.DEFAULT_ROOM);
+            }
+            return session;
         } catch (IOException err) {
+            admission.release(address);
+            connection.close();
             throw err;
         }
     }
 
     /**
-     * Terminates the current I/O stream and current connection.
-     * @return True if I/O stream closes successfully, false otherwise.
+     * Attaches a session to the reliable stream of its client, creating the stream on first use.
+     * When the stream already exists the client is reconnecting: the stream is taken from the
+     * previous session, which is disconnected, and every message the client has not
+     * acknowledged is sent again in order. The stream id is picked by the client, so taking a
+     * stream over also needs the key the server gave the client with its last welcome. The
+     * client is answered with "/welcome resumed received key", where received acknowledges the
+     * client's own messages and key is a fresh key for the next resume.
+     * @param session The session the client connected with.
+     * @param streamId Id the client picked for its stream.
+     * @param base Number of the last message of the client acknowledged before, used when the
+     *     stream is new to this server.
+     * @param key The key of the last welcome the client got, or null if it has none.
+     * @return True if an existing stream was resumed, false if a new one was created.
+     * @throws ServerModelException If the stream id is not valid, or the stream exists and the
+     *     key does not match.
+     */
+    public boolean resume(ServerSession session, String streamId, long base, String key)
+            throws ServerModelException {
+        if (streamId == null || !STREAM_ID.matcher(streamId).matches()) {
+            throw new ServerModelException("Stream id must be 16-64 letters or digits");
+        }
+        sweepStreams();
+        boolean[] resumed = new boolean[1];
+        Resumable entry = streams.compute(streamId, (id, existing) -> {
+            if (existing != null) {
+                resumed[0] = true;
+                return existing;
+            }
+            Resumable created = new Resumable(new ReliableStream(STREAM_CAPACITY, STREAM_ACK_EVERY,
+                STREAM_ACK_DELAY_MILLIS));
+            created.stream.resetInbound(base);
+            return created;
+        });
+        ServerSession previous;
+        synchronized (entry.stream) {
+            if (resumed[0] && (key == null || entry.key == null || !MessageDigest.isEqual(
+                    key.getBytes(StandardCharsets.US_ASCII), entry.key.getBytes(StandardCharsets.US_ASCII)))) {
+                throw new ServerModelException("Stream " + streamId + " belongs to another client");
+            }
+            previous = entry.session;
+            if (previous != null && previous != session) {
+                previous.setStream(null, null);
+            }
+            entry.session = session;
+            entry.detachedAt = 0;
+            entry.key = newStreamKey();
+            session.setStream(streamId, entry.stream);
+            session.sendMessage(Protocol.WELCOME_FRAME + (resumed[0] ? 1 : 0) + " " + entry.stream.getReceived()
+                + " " + entry.key);
+            for (String frame : entry.stream.getUnacked()) {
+                session.sendMessage(frame);
+            }
+        }
+        if (previous != null && previous != session) {
+            disconnect(previous);
+        }
+        return resumed[0];
+    }
+
+    private String newStreamKey() {
+        byte[] key = new byte[STREAM_KEY_BYTES];
+        random.nextBytes(key);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key);
+    }
+
+    /**
+     * Detaches a closing session from its reliable stream, which then lingers for a while.
+     * @param session The session to detach.
+     */
+    private void detach(ServerSession session) {
+        String streamId = session.getStreamId();
+        Resumable entry = streamId == null ? null : streams.get(streamId);
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry.stream) {
+            if (entry.session == session) {
+                entry.session = null;
+                entry.detachedAt = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Drops the streams detached for longer than the linger time. Runs at most once a second,
+     * so a burst of reconnects does not scan the streams once per connection.
+     */
+    private void sweepStreams() {
+        long now = System.nanoTime();
+        if (now - lastStreamSweep < TimeUnit.SECONDS.toNanos(1)) {
+            return;
+        }
+        lastStreamSweep = now;
+        streams.values().removeIf(entry -> {
+            synchronized (entry.stream) {
+                return entry.session == null && now - entry.detachedAt > STREAM_LINGER_NANOS;
+            }
+        });
+    }
+
+    /**
+     * Accessor method for the authenticator.
+     * @return The authenticator clients must log in with, or null if anyone may chat.
      */
+    public Authenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    /**
+     * Mutator method for the authenticator. With one set, a session can only chat after
+     * logging in, and its nickname is the user it logged in as.
+     * @param authenticator The authenticator to check logins with, or null to let anyone chat.
+     * @throws ServerModelException If the server is running.
+     */
+    public void setAuthenticator(Authenticator authenticator) throws ServerModelException {
+        if (isStarted) {
+            throw new ServerModelException("kill server before changing authentication");
+        }
+        this.authenticator = authenticator;
+    }
+
+    /**
+     * Checks whether a session may chat.
+     * @param session The session to check.
+     * @return True if no login is required or the session has logged in.
+     */
+    public boolean isLoggedIn(ServerSession session) {
+        return authenticator == null || session.isAuthenticated();
+    }
+
+    /**
+     * Binds a session to the user it proved to be, see {@link #register}. A session logging in
+     * for the first time joins the default room.
+     * @param session The session that logged in.
+     * @param userId The user the session logged in as.
+     * @throws ServerModelException If the user id is not valid.
+     */
+    public void login(ServerSession session, String userId) throws ServerModelException {
+        register(session, userId);
+        session.setAuthenticated(true);
+        if (session.getRoom() == null) {
+            join(session, Protocol.DEFAULT_ROOM);
+        }
+    }
+
+    /**
+     * Binds a user id to a session. A user may be bound to several sessions at once,
+     * one for each device the user is connected from.
+     * @param session The session to bind.
+     * @param userId The user to bind the session to.
+     * @throws ServerModelException If the user id is not valid.
+     */
+    public void register(ServerSession session, String userId) throws ServerModelException {
+        if (userId == null || !USER_ID.matcher(userId).matches()) {
+            throw new ServerModelException("Nickname must be 1-32 letters, digits, '_' or '-'");
+        }
+        String previousName = session.getDisplayName();
+        unregister(session);
+        session.setUserId(userId);
+        sessionsByUser.computeIfAbsent(userId, key -> ConcurrentHashMap.newKeySet()).add(session);
+        String room = session.getRoom();
+        if (room != null && !previousName.equals(userId)) {
+            presence.update(room, previousName, PresenceHub.OFFLINE);
+            presence.update(room, userId, PresenceHub.ONLINE);
+        }
+        mailboxes.connected(userId);
+    }
+
+    /**
+     * Removes a session from the routing table. Drops the user entry once its last session is gone.
+     * @param session The session to remove.
+     */
+    private void unregister(ServerSession session) {
+        String userId = session.getUserId();
+        if (userId == null) {
+            return;
+        }
+        sessionsByUser.computeIfPresent(userId, (key, userSessions) -> {
+            userSessions.remove(session);
+            return userSessions.isEmpty() ? null : userSessions;
+        });
+        session.setUserId(null);
+    }
+
+    /**
+     * Moves a session into a room. The cluster is told about a room when it gains its first
+     * local member and when it loses its last one; that happens inside the index update so
+     * concurrent joins and leaves cannot reorder the announcements.
+     * @param session The session to move.
+     * @param room The room to join.
+     * @throws ServerModelException If the room name is not valid.
+     */
+    public void join(ServerSession session, String room) throws ServerModelException {
+        if (room == null || !USER_ID.matcher(room).matches()) {
+            throw new ServerModelException("Room name must be 1-32 letters, digits, '_' or '-'");
+        }
+        leave(session);
+        // the client's cache of the new room has not caught up yet, see sync
+        session.setSynced(false);
+        session.setRoom(room);
+        sessionsByRoom.compute(room, (key, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+                if (cluster != null) {
+                    cluster.subscribe(key);
+                }
+            }
+            members.add(session);
+            return members;
+        });
+        presence.update(room, session.getDisplayName(), PresenceHub.ONLINE);
+    }
 
     /**
-     * Terminates the current I/O stream and current connection.
-     * @throws ServerModelException If not connected to a client or fails to close I/O streams.
+     * Removes a session from its room.
+     * @param session The session to remove.
+     */
+    private void leave(ServerSession session) {
+        String room = session.getRoom();
+        if (room == null) {
+            return;
+        }
+        presence.update(room, session.getDisplayName(), PresenceHub.OFFLINE);
+        sessionsByRoom.computeIfPresent(room, (key, members) -> {
+            members.remove(session);
+            if (members.isEmpty()) {
+                if (cluster != null) {
+                    cluster.unsubscribe(key);
+                }
+                rateLimiter.forgetRoom(key);
+                return null;
+            }
+            return members;
+        });
+        session.setRoom(null);
+    }
+
+    /**
+     * Terminates a single session and removes it from the routing table. Safe to call more
+     * than once, and after the session closed itself.
+     * @param session The session to terminate.
+     * @return True if the session was still registered, false if it was already removed.
+     * @throws ServerModelException If fails to close the session I/O stream.
+     */
+    public boolean disconnect(ServerSession session) throws ServerModelException {
+        boolean wasRegistered = sessions.remove(session);
+        if (wasRegistered) {
+            unregister(session);
+            leave(session);
+            detach(session);
+            admission.release(session.getAddress());
+        }
+        session.disconnect();
+        return wasRegistered;
+    }
+
+    /**
+     * Terminates every open session. Sessions flush their queued frames in parallel, within
+     * one shared grace period.
+     * @throws ServerModelException If not connected to a client.
      */
     public void disconnect() throws ServerModelException {
         if (!isConnected()) {
             throw new ServerModelException("Server not connected to a client");
         }
-        try {
-            outputStream.close();
-            inputStream.close();
-            connection.close();
-            isConnected = false;
-        } catch(IOException err) {
-            throw new ServerModelException(err.getMessage());
+        closeAll(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_GRACE_MILLIS));
+    }
+
+    /**
+     * Shuts the server down gracefully. New connections are refused at once, every client is
+     * told to reconnect after a randomized delay, so they do not all return in the same
+     * instant, and sessions are given until the deadline to flush what is queued for them.
+     * A replacement server may already be listening on the same port; see {@link #start()}.
+     * @param deadlineMillis How long sessions may take to flush, in milliseconds.
+     * @param reconnectDelayMillis How long clients should wait before reconnecting.
+     * @param jitterMillis Upper bound of the random delay clients add to the wait.
+     * @return The number of sessions that had to be aborted at the deadline.
+     * @throws ServerModelException If server not started.
+     */
+    public int drain(long deadlineMillis, long reconnectDelayMillis, long jitterMillis) throws ServerModelException {
+        if (!isStarted) {
+            throw new ServerModelException("Server not started");
+        }
+        isStarted = false;
+        closeQuietly();
+        for (ServerSession session : sessions) {
+            try {
+                // behind the chat frames: a drain delivers what is queued before the client leaves
+                session.sendMessage(Protocol.RECONNECT_FRAME + reconnectDelayMillis + " " + jitterMillis);
+            } catch (ServerModelException err) {
+                // the session is going away anyway
+            }
+        }
+        int aborted = closeAll(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis));
+        if (cluster != null) {
+            cluster.stop();
+        }
+        presence.stop();
+        mailboxes.stop();
+        compactor.stop();
+        transfers.close();
+        sessionLoop.stop();
+        return aborted;
+    }
+
+    private int closeAll(long deadlineNanos) {
+        ServerSession[] closing = sessions.toArray(new ServerSession[0]);
+        for (ServerSession session : closing) {
+            if (sessions.remove(session)) {
+                unregister(session);
+                leave(session);
+                detach(session);
+                admission.release(session.getAddress());
+            }
+            session.close();
         }
+        int aborted = 0;
+        for (ServerSession session : closing) {
+            if (!session.awaitClosed(deadlineNanos)) {
+                session.abort();
+                aborted++;
+            }
+        }
+        return aborted;
     }
 
     /**
-     * Terminates the ServerSocket associated with this Server.
+     * Terminates the server channel associated with this Server.
      * @throws ServerModelException If server not started or fails to close connection.
      */
     public void kill() throws ServerModelException {
@@ -153,7 +716,15 @@ public class ServerModel {
             throw new ServerModelException("Server already inactive");
         }
         try {
+            if (cluster != null) {
+                cluster.stop();
+            }
+            presence.stop();
+            mailboxes.stop();
+            compactor.stop();
+            transfers.close();
             server.close();
+            sessionLoop.stop();
             isStarted = false;
         } catch(IOException err) {
             throw new ServerModelException(err.getMessage());
@@ -161,31 +732,368 @@ public class ServerModel {
     }
 
     /**
-     * Pushes a message onto the output stream.
+     * Pushes a message onto the output stream of every connected client.
      * @param message The message to push.
      * @throws ServerModelException If not connected with a client or if fails to write to output stream.
      */
     public void sendMessage(String message) throws ServerModelException {
-        if (!isConnected) {
+        broadcast(message, false);
+    }
+
+    /**
+     * Pushes a control frame, such as the close handshake, to every connected client ahead of
+     * the chat and bulk frames already queued for it.
+     * @param message The frame to push.
+     * @throws ServerModelException If not connected with a client or if fails to write to output stream.
+     */
+    public void sendControl(String message) throws ServerModelException {
+        broadcast(message, true);
+    }
+
+    private void broadcast(String message, boolean isControl) throws ServerModelException {
+        if (!isConnected()) {
             throw new ServerModelException("Not connected with a client");
         }
-        try {
-            outputStream.writeBytes(message + "\n");
-        } catch (IOException err) {
-            throw new ServerModelException(err.getMessage());
+        ServerModelException failure = null;
+        for (ServerSession session : sessions) {
+            try {
+                if (isControl) {
+                    session.sendControl(message);
+                } else {
+                    session.sendMessage(message);
+                }
+            } catch (ServerModelException err) {
+                failure = err;
+            }
+        }
+        if (failure != null) {
+            throw failure;
         }
     }
 
     /**
-     * Pulls a message form the input stream.
-     * @returnThe message from the input stream.
-     * @throws ServerModelException If fails to read from the input stream.
+     * Pushes a message to every session of a single user. The user is resolved with one
+     * lookup in the routing table, so the cost does not depend on the number of clients.
+     * A known user who is not connected, or whose offline backlog is still being delivered,
+     * gets the message in its mailbox instead.
+     * @param userId The user to deliver the message to.
+     * @param message The message to push.
+     * @return The number of sessions the message was delivered to, 0 if it was kept in the mailbox.
+     * @throws ServerModelException If the user is unknown or delivery fails on every session.
      */
-    public String receiveMessage() throws ServerModelException {
-        try {
-            return inputStream.readLine();
-        } catch (IOException err) {
-            throw new ServerModelException(err.getMessage());
+    public int sendDirect(String userId, String message) throws ServerModelException {
+        Set<ServerSession> userSessions = sessionsByUser.get(userId);
+        boolean isOnline = userSessions != null && !userSessions.isEmpty();
+        if (!isOnline || mailboxes.isDelivering(userId)) {
+            if (!mailboxes.isKnown(userId)) {
+                throw new ServerModelException("User " + userId + " is not connected");
+            }
+            mailboxes.deposit(userId, message);
+            if (isOnline) {
+                mailboxes.schedule(userId);
+            }
+            return 0;
+        }
+        int delivered = 0;
+        ServerModelException failure = null;
+        for (ServerSession session : userSessions) {
+            try {
+                session.sendReliable(message);
+                delivered++;
+            } catch (ServerModelException err) {
+                failure = err;
+            }
+        }
+        if (delivered == 0 && failure != null) {
+            throw failure;
+        }
+        return delivered;
+    }
+
+    /**
+     * Publishes a room message sent by a local client: records it in the history, pushes it to
+     * every member of the room on this server and relays it to the other instances of the
+     * cluster that have members in the room. The message is numbered and queued for the
+     * members under the lock of the room, so every member gets the posts of a room in id order.
+     * @param room The room to publish to.
+     * @param sender The session that sent the message. It only gets a copy, as a post frame, if
+     *     its client keeps a message cache.
+     * @param body Text of the message.
+     */
+    public void publish(String room, ServerSession sender, String body) {
+        String name = sender.getDisplayName();
+        synchronized (roomLock(room)) {
+            long timestamp = System.currentTimeMillis();
+            int id = record(timestamp, room, name, body);
+            String post = post(room, id, timestamp, name, body);
+            deliver(room, format(room, name, body), post, sender);
+            if (sender.isSynced()) {
+                try {
+                    // the cache needs the id of the client's own message
+                    sender.sendReliable(post);
+                } catch (ServerModelException err) {
+                    // the sender's listener notices the broken stream and cleans up
+                }
+            }
+        }
+        if (cluster != null) {
+            cluster.publish(room, name, body);
+        }
+    }
+
+    /**
+     * Publishes a room message relayed by another instance of the cluster to the members of
+     * the room on this server.
+     * @param room The room the message was sent to.
+     * @param sender Display name of the sender.
+     * @param body Text of the message.
+     */
+    public void receiveRelayed(String room, String sender, String body) {
+        synchronized (roomLock(room)) {
+            long timestamp = System.currentTimeMillis();
+            int id = record(timestamp, room, sender, body);
+            deliver(room, format(room, sender, body), post(room, id, timestamp, sender, body), null);
+        }
+    }
+
+    /**
+     * Edits or deletes the latest message a local client still has in a room, then sends the
+     * change to every member of the room on this server and relays it to the rest of the
+     * cluster, the way {@link #publish} sends a message.
+     * @param room The room the message was sent to.
+     * @param sender The session that sent the message, it does not get a copy.
+     * @param body The new text of the message, or null to delete it.
+     * @throws ServerModelException If the sender has no message left to change in the room.
+     */
+    public void amend(String room, ServerSession sender, String body) throws ServerModelException {
+        String name = sender.getDisplayName();
+        if (room == null || !revise(room, name, body)) {
+            throw new ServerModelException("You have no message to " + (body == null ? "delete" : "edit")
+                + " in " + room);
+        }
+        deliver(room, revision(room, name, body), sender);
+        if (cluster != null) {
+            cluster.amend(room, name, body);
+        }
+    }
+
+    /**
+     * Applies an edit or delete relayed by another instance of the cluster and sends it to
+     * the members of the room on this server.
+     * @param room The room the message was sent to.
+     * @param sender Display name of the sender.
+     * @param body The new text of the message, or null to delete it.
+     */
+    public void amendRelayed(String room, String sender, String body) {
+        if (revise(room, sender, body)) {
+            deliver(room, revision(room, sender, body), null);
+        }
+    }
+
+    /**
+     * Records an edit or delete in the history. Under the history lock, like an append, so a
+     * message and the changes to it are applied in the order they arrived.
+     */
+    private boolean revise(String room, String sender, String body) {
+        boolean isRevised;
+        synchronized (history) {
+            int id = history.findLatest(room, sender, Protocol.REVISION_REACH);
+            isRevised = id >= 0 && (body == null ? history.delete(id) : history.edit(id, body));
+        }
+        if (isRevised) {
+            compactor.revised();
+        }
+        return isRevised;
+    }
+
+    /**
+     * Formats the frame announcing an edit or delete: "/edited room sender body" or
+     * "/deleted room sender".
+     * @param room The room the message was sent to.
+     * @param sender Display name of the sender.
+     * @param body The new text of the message, or null if it was deleted.
+     * @return The frame.
+     */
+    public static String revision(String room, String sender, String body) {
+        return body == null ? Protocol.DELETED_FRAME + room + " " + sender
+            : Protocol.EDITED_FRAME + room + " " + sender + " " + body;
+    }
+
+    /**
+     * Finds the most recent messages of a room containing every term of a query. Deleted
+     * messages are skipped; the index holds the terms of the original text, so an edited
+     * message is only returned if its latest text still has every term.
+     * @param room The room to search.
+     * @param query The terms to look for.
+     * @param limit The maximum number of matches to return.
+     * @return Ids of the matching messages in the history, newest first.
+     */
+    public int[] search(String room, String query, int limit) {
+        Set<String> terms = SearchIndex.tokenize(query);
+        return index.search(room, query, limit, id -> !history.isDeleted(id)
+            && (!history.isEdited(id) || SearchIndex.tokenize(history.getBody(id)).containsAll(terms)));
+    }
+
+    /**
+     * Accessor method for the message history.
+     * @return Every room message seen by this server.
+     */
+    public MessageStore getHistory() {
+        return history;
+    }
+
+    /**
+     * Accessor method for the history epoch.
+     * @return Time the history was created at, which tells the ids of one history from another.
+     */
+    public long getHistoryEpoch() {
+        return historyEpoch;
+    }
+
+    /**
+     * Brings the message cache of a client up to date with a room: answers with
+     * "/replay room epoch after count" followed by count history frames, one for each message
+     * of the room after the last one the client has, oldest first, and from then on sends the
+     * session room messages as post frames, its own included. The replay is a bulk transfer,
+     * so post frames sent meanwhile overtake it; the client holds them until it has the replay.
+     * The replay continues the client's cache only if after is the id the client asked for;
+     * otherwise the client asked about another history, or missed more than the replay holds,
+     * and its cache of the room restarts with the replay. Deleted messages are left out and
+     * edited ones replayed with their latest text.
+     * @param session The session to bring up to date.
+     * @param room The room the client caches.
+     * @param epoch The history epoch the client's cache belongs to.
+     * @param after Id of the last message the client has, or -1 for none.
+     * @return The number of messages replayed.
+     * @throws ServerModelException If the room name is not valid.
+     */
+    public int sync(ServerSession session, String room, long epoch, int after) throws ServerModelException {
+        if (room == null || !USER_ID.matcher(room).matches()) {
+            throw new ServerModelException("Room name must be 1-32 letters, digits, '_' or '-'");
+        }
+        // snapshot under the history lock: a message recorded later is sent live, after the replay
+        int from;
+        String[] frames;
+        synchronized (history) {
+            int last = history.size() - 1;
+            from = epoch == historyEpoch && after >= -1 && after <= last ? after : -1;
+            int[] ids = history.findAfter(room, from, SYNC_LIMIT + 1);
+            int first = 0;
+            if (ids.length > SYNC_LIMIT) {
+                from = -1;
+                first = 1;
+            }
+            frames = new String[ids.length - first];
+            for (int i = first; i < ids.length; i++) {
+                frames[i - first] = sequenced(Protocol.HISTORY_FRAME, room, ids[i], history.getTimestamp(ids[i]),
+                    history.getSender(ids[i]), history.getBody(ids[i]));
+            }
+            session.setSynced(true);
+        }
+        session.sendBulk(Protocol.REPLAY_FRAME + room + " " + historyEpoch + " " + from + " " + frames.length);
+        for (String frame : frames) {
+            session.sendBulk(frame);
+        }
+        return frames.length;
+    }
+
+    /**
+     * Appends a message to the history and the search index. The message is queued for the
+     * index under the history lock, so ids reach the index in the order the history hands them
+     * out, and indexed after releasing it, so a long search never holds up the history.
+     */
+    private int record(long timestamp, String room, String sender, String body) {
+        int id;
+        synchronized (history) {
+            id = history.append(timestamp, room, sender, body);
+            index.add(room, id, body);
+        }
+        index.flush();
+        return id;
+    }
+
+    /**
+     * Picks the lock that orders the messages of a room. Rooms share a fixed set of locks, so
+     * the locks cost nothing per room; two busy rooms on one lock only queue behind each other.
+     */
+    private Object roomLock(String room) {
+        return roomLocks[Math.floorMod(room.hashCode(), ROOM_LOCKS)];
+    }
+
+    /**
+     * Formats a room message for a client that caches messages:
+     * "/post room id timestamp sender body".
+     * @param room The room the message was sent to.
+     * @param id Id of the message in the history.
+     * @param timestamp Time the message was recorded, in milliseconds since the epoch.
+     * @param sender Display name of the sender.
+     * @param body Text of the message.
+     * @return The frame.
+     */
+    public static String post(String room, int id, long timestamp, String sender, String body) {
+        return sequenced(Protocol.POST_FRAME, room, id, timestamp, sender, body);
+    }
+
+    private static String sequenced(String frame, String room, int id, long timestamp, String sender,
+            String body) {
+        return frame + room + " " + id + " " + timestamp + " " + sender + " " + body;
+    }
+
+    /**
+     * Formats a room message the way clients display it.
+     * @param room The room the message was sent to.
+     * @param sender Display name of the sender.
+     * @param body Text of the message.
+     * @return The formatted message.
+     */
+    public static String format(String room, String sender, String body) {
+        return "[" + room + "] <" + sender + "> " + body;
+    }
+
+    /**
+     * Pushes a message to every member of a room on this server only.
+     * @param room The room to deliver to.
+     * @param message The message to push.
+     * @param sender The session that sent the message, it does not get a copy. May be null.
+     */
+    public void deliver(String room, String message, ServerSession sender) {
+        deliver(room, message, null, sender);
+    }
+
+    /**
+     * Pushes a room message to every member of a room on this server only, as a post frame to
+     * the members whose client keeps a message cache.
+     * @param room The room to deliver to.
+     * @param message The message to push.
+     * @param post The message as a post frame, or null to send every member the message.
+     * @param sender The session that sent the message, it does not get a copy. May be null.
+     */
+    public void deliver(String room, String message, String post, ServerSession sender) {
+        Set<ServerSession> members = sessionsByRoom.get(room);
+        if (members == null) {
+            return;
+        }
+        FlightEvents.FanOut fanOut = null;
+        if (FlightEvents.ENABLED) {
+            fanOut = new FlightEvents.FanOut();
+            fanOut.begin();
+        }
+        int recipients = 0;
+        for (ServerSession member : members) {
+            if (member != sender) {
+                try {
+                    member.sendReliable(post != null && member.isSynced() ? post : message);
+                    recipients++;
+                } catch (ServerModelException err) {
+                    // the member's listener notices the broken stream and cleans up
+                }
+            }
+        }
+        if (fanOut != null && fanOut.shouldCommit()) {
+            fanOut.session = sender == null ? FlightEvents.NO_SESSION : sender.getId();
+            fanOut.room = room;
+            fanOut.recipients = recipients;
+            fanOut.commit();
         }
     }
 }
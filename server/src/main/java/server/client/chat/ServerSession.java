@@ -0,0 +1,858 @@
+package server.client.chat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single client connection accepted by the server. Each session owns its own I/O stream
+ * and is optionally bound to a user id once the client picks a nickname.
+ *
+ * A session holds no thread of its own. Its connection is watched by the {@link SessionLoop}:
+ * when the client sends something, a worker reads what has arrived, hands the frames to the
+ * session's {@link Listener} and goes back to the loop; an idle session holds no read buffer
+ * either, a worker reads into a buffer of its own. Outbound frames are queued, and queueing a
+ * frame starts a worker writing the queue until it is empty, or until the connection takes no
+ * more and the loop says it can take more again. A slow client therefore never stalls the
+ * thread routing a message to it, and a client that lets its queue fill up is disconnected
+ * rather than allowed to grow server memory. The queue has a lane for control frames, one for
+ * chat and one for bulk transfers, see {@link PriorityLanes}, so neither a close nor a message
+ * typed meanwhile waits behind a history replay or a file.
+ *
+ * @author Robert McKay
+ */
+public class ServerSession {
+    // class constants
+    private static final int MAX_QUEUED_FRAMES = 10000;
+    // every numbered frame in the chat lane is unacknowledged, so the stream bounds those; the
+    // rest is room for the plain ones, and a resume can queue a full retransmit window
+    private static final int MAX_CHAT_FRAMES = ServerModel.STREAM_CAPACITY + MAX_QUEUED_FRAMES;
+    private static final int MAX_CONTROL_FRAMES = 100;
+    private static final int LOSSY_QUEUED_FRAMES = 100;
+    private static final int CHAT_WEIGHT = 8;
+    private static final long CLOSE_GRACE_MILLIS = 1000;
+    // a worker reads every session it serves into the same buffer
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = new ThreadLocal<>();
+
+    private final int id;
+    private final InetAddress address;
+    private final SocketChannel connection;
+    private final WebSocketChannel webSocket;
+    private final SessionLoop loop;
+    private final SelectionKey key;
+    private final Reader reader;
+    private final TokenBucket inboundLimit;
+    private final PriorityLanes<Frame> outbound;
+    // held by the one worker writing the queue, from the moment it is started until it is done
+    private final AtomicBoolean isFlushing;
+    private final AtomicBoolean isAckTimed;
+    private final AtomicBoolean isEnded;
+    private final CountDownLatch closed;
+    private final long connectedAt;
+    private volatile Listener listener;
+    // each counter has a single writer, the worker reading or the worker writing, so volatile is enough
+    private volatile long received;
+    private volatile long sent;
+    private volatile String userId;
+    private volatile boolean isAuthenticated;
+    private volatile String room;
+    private volatile boolean isSynced;
+    private volatile boolean isThrottled;
+    private volatile boolean isConnected;
+    private volatile boolean isClosing;
+    private volatile String streamId;
+    private volatile ReliableStream stream;
+    // what the writer is in the middle of, only touched by the worker holding isFlushing
+    private ByteBuffer[] output;
+    private FileChannel outputFile;
+    private long outputOffset;
+    private long outputLeft;
+    private Frame writing;
+    private FlightEvents.SocketWrite write;
+
+    /**
+     * Receives what a session reads from its client. It is called on a worker of the
+     * {@link SessionLoop}, with the frames of one session one at a time, in the order they came.
+     * The session is not read from while a call runs, so a call that waits holds up that session
+     * alone and leaves the client to TCP flow control.
+     */
+    public interface Listener extends FrameDecoder.Handler {
+        /**
+         * Called once when the client closed the connection, or it failed or was closed by the
+         * server.
+         */
+        void onClosed();
+    }
+
+    /**
+     * An outbound frame: bytes, optionally followed by a region of a file.
+     */
+    private static class Frame {
+        private final ByteBuffer bytes;
+        private final FileChannel file;
+        private final long offset;
+        private final int length;
+        // begun when queued if flight events are on, committed when the writer takes the frame
+        private FlightEvents.QueueWait queued;
+
+        Frame(ByteBuffer bytes, FileChannel file, long offset, int length) {
+            this.bytes = bytes;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Inner class. Reads what the client sent and splits it into frames for the listener.
+     * Only the worker reading the session touches it.
+     */
+    private class Reader implements FrameDecoder.Handler {
+        private final FrameDecoder decoder;
+        private final ReadBufferSizer sizer;
+        // begun by the read bringing the first bytes of a frame, committed once it is complete
+        private FlightEvents.FrameDecode decode;
+
+        Reader() {
+            decoder = new FrameDecoder();
+            sizer = ReadBufferSizer.fromProperties();
+        }
+
+        /**
+         * Reads until nothing more has arrived, handing out every complete frame.
+         * @return False if the client closed the connection.
+         * @throws IOException If the connection fails or the client broke the protocol.
+         */
+        boolean read() throws IOException {
+            ReadableByteChannel channel = webSocket == null ? connection : webSocket;
+            while (isConnected) {
+                int capacity = sizer.next();
+                ByteBuffer buffer = READ_BUFFER.get();
+                if (buffer == null || buffer.capacity() < capacity) {
+                    // direct, so the JDK does not copy the read through a temporary buffer
+                    buffer = ByteBuffer.allocateDirect(capacity);
+                    READ_BUFFER.set(buffer);
+                }
+                buffer.clear().limit(capacity);
+                int count;
+                try {
+                    count = channel.read(buffer);
+                } finally {
+                    if (webSocket != null && webSocket.hasReply()) {
+                        scheduleFlush();
+                    }
+                }
+                if (count <= 0) {
+                    return count == 0;
+                }
+                sizer.record(count, capacity);
+                buffer.flip();
+                if (FlightEvents.ENABLED && decode == null) {
+                    decode = new FlightEvents.FrameDecode();
+                    decode.begin();
+                }
+                decoder.decode(buffer, this);
+                if (!decoder.hasPartialFrame()) {
+                    // caught up: an idle session holds no buffer at all
+                    decoder.release();
+                    decode = null;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void onLine(String line) {
+            received++;
+            if (decode != null) {
+                if (decode.shouldCommit()) {
+                    decode.session = id;
+                    decode.room = room;
+                    decode.length = line.length();
+                    decode.commit();
+                }
+                // the next frame starts with the bytes right behind this one
+                decode = new FlightEvents.FrameDecode();
+                decode.begin();
+            }
+            if (isConnected) {
+                listener.onLine(line);
+            }
+        }
+
+        @Override
+        public void onChunk(int transferId, long offset, byte[] data, int length) {
+            received++;
+            if (isConnected) {
+                listener.onChunk(transferId, offset, data, length);
+            }
+        }
+    }
+
+    /**
+     * Constructor. Opens the I/O stream on an accepted connection.
+     * @param id Unique number of this session within the server.
+     * @param address The remote address the session was admitted for.
+     * @param connection The accepted client channel; the session puts it in non-blocking mode.
+     * @param inboundLimit Bucket limiting the rate of messages read from this session.
+     * @param loop The loop watching the connection.
+     * @throws IOException If the I/O stream fails to open.
+     */
+    public ServerSession(int id, InetAddress address, SocketChannel connection, TokenBucket inboundLimit,
+            SessionLoop loop) throws IOException {
+        this(id, address, connection, null, inboundLimit, loop);
+    }
+
+    /**
+     * Constructor. Opens the I/O stream on an accepted connection, through a WebSocket when the
+     * client is a browser. Frames are the same lines either way. Nothing is read until the
+     * session is started, see {@link #start(Listener)}, but frames may be queued at once.
+     * @param id Unique number of this session within the server.
+     * @param address The remote address the session was admitted for.
+     * @param connection The accepted client channel; the session puts it in non-blocking mode.
+     * @param webSocket The WebSocket end of the connection, or null for a native client.
+     * @param inboundLimit Bucket limiting the rate of messages read from this session.
+     * @param loop The loop watching the connection.
+     * @throws IOException If the I/O stream fails to open.
+     */
+    public ServerSession(int id, InetAddress address, SocketChannel connection, WebSocketChannel webSocket,
+            TokenBucket inboundLimit, SessionLoop loop) throws IOException {
+        this.id = id;
+        this.address = address;
+        this.connection = connection;
+        this.webSocket = webSocket;
+        this.inboundLimit = inboundLimit;
+        this.loop = loop;
+        reader = new Reader();
+        outbound = new PriorityLanes<>(MAX_CONTROL_FRAMES, MAX_CHAT_FRAMES, MAX_QUEUED_FRAMES, CHAT_WEIGHT);
+        isFlushing = new AtomicBoolean();
+        isAckTimed = new AtomicBoolean();
+        isEnded = new AtomicBoolean();
+        closed = new CountDownLatch(1);
+        connectedAt = System.nanoTime();
+        isConnected = true;
+        isClosing = false;
+        connection.configureBlocking(false);
+        key = loop.register(connection, this);
+    }
+
+    /**
+     * Starts reading the client. Every frame it sends from now on goes to the listener.
+     * @param listener Receives the frames of the client, and learns when the connection is gone.
+     */
+    public void start(Listener listener) {
+        this.listener = listener;
+        loop.resume(key, SelectionKey.OP_READ);
+        if (!isConnected) {
+            // closed before it was started, the listener must still hear of it
+            ended();
+        }
+    }
+
+    /**
+     * Accessor method for the session id.
+     * @return The unique number of this session.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Accessor method for the remote address.
+     * @return The remote address the session was admitted for.
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Accessor method for the inbound rate limit.
+     * @return The bucket limiting the rate of messages read from this session.
+     */
+    public TokenBucket getInboundLimit() {
+        return inboundLimit;
+    }
+
+    /**
+     * Accessor method for the user id.
+     * @return The user bound to this session, or null if the client has not picked a nickname.
+     */
+    public String getUserId() {
+        return userId;
+    }
+
+    /**
+     * Mutator method for the user id. Only the server model should bind users to sessions,
+     * otherwise the routing table falls out of sync.
+     * @param userId The user to bind to this session.
+     */
+    void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    /**
+     * Accessor method for isAuthenticated.
+     * @return True if the user id was proven with a password or token, false otherwise.
+     */
+    public boolean isAuthenticated() {
+        return isAuthenticated;
+    }
+
+    /**
+     * Mutator method for isAuthenticated. Only the server model should mark sessions as logged in.
+     * @param isAuthenticated True if the user id was proven with a password or token.
+     */
+    void setAuthenticated(boolean isAuthenticated) {
+        this.isAuthenticated = isAuthenticated;
+    }
+
+    /**
+     * Accessor method for the room.
+     * @return The room this session receives room messages from, or null if it has not joined one.
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Mutator method for the room. Only the server model should move sessions between rooms,
+     * otherwise the room index falls out of sync.
+     * @param room The room to move this session to.
+     */
+    void setRoom(String room) {
+        this.room = room;
+    }
+
+    /**
+     * Accessor method for isSynced.
+     * @return True if the client keeps a message cache and gets room messages with their ids.
+     */
+    public boolean isSynced() {
+        return isSynced;
+    }
+
+    /**
+     * Mutator method for isSynced. Only the server model should set it, once the client's cache
+     * has caught up with the history.
+     * @param isSynced True if the client gets room messages with their ids.
+     */
+    void setSynced(boolean isSynced) {
+        this.isSynced = isSynced;
+    }
+
+    /**
+     * Accessor method for isThrottled.
+     * @return True if the client was told it is over a rate limit and has not been under
+     *     every limit since.
+     */
+    public boolean isThrottled() {
+        return isThrottled;
+    }
+
+    /**
+     * Mutator method for isThrottled. Only the engine should set it, as it paces the session.
+     * @param isThrottled True once the client was told it is over a rate limit.
+     */
+    void setThrottled(boolean isThrottled) {
+        this.isThrottled = isThrottled;
+    }
+
+    /**
+     * Name used for this session in the chat area.
+     * @return The user id if bound, otherwise a placeholder built from the session id.
+     */
+    public String getDisplayName() {
+        String user = userId;
+        return user != null ? user : "client-" + id;
+    }
+
+    /**
+     * Accessor method for isConnected.
+     * @return True if the I/O stream with the client is open, false otherwise.
+     */
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    /**
+     * Accessor method for the outbound queue depth.
+     * @return The number of frames waiting to be written to the client.
+     */
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    /**
+     * Accessor method for the connection time.
+     * @return {@link System#nanoTime()} value at the time the session was opened.
+     */
+    public long getConnectedAt() {
+        return connectedAt;
+    }
+
+    /**
+     * Accessor method for the number of frames received.
+     * @return The number of lines read from the client so far.
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Accessor method for the number of frames sent.
+     * @return The number of frames written to the client so far.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * Accessor method for the read buffer footprint. Read without synchronization from outside
+     * the worker reading, so it may lag a read or two behind.
+     * @return Bytes the session holds between two reads to put frames back together.
+     */
+    public int getReadBufferBytes() {
+        return reader.decoder.getBufferBytes();
+    }
+
+    /**
+     * Queues a message for the client.
+     * @param message The message to push.
+     * @throws ServerModelException If the session is closed or closing, or its queue is full.
+     */
+    public void sendMessage(String message) throws ServerModelException {
+        enqueue(PriorityLanes.CHAT, new Frame(Protocol.encodeLine(message), null, 0, 0));
+    }
+
+    /**
+     * Queues a control frame, such as the close handshake, ahead of every chat and bulk frame.
+     * @param message The frame to push.
+     * @throws ServerModelException If the session is closed or closing, or its control lane is full.
+     */
+    public void sendControl(String message) throws ServerModelException {
+        enqueue(PriorityLanes.CONTROL, new Frame(Protocol.encodeLine(message), null, 0, 0));
+    }
+
+    /**
+     * Queues a frame of a bulk transfer, such as a history replay, behind the chat frames.
+     * @param message The frame to push.
+     * @throws ServerModelException If the session is closed or closing, or its bulk lane is full.
+     */
+    public void sendBulk(String message) throws ServerModelException {
+        enqueue(PriorityLanes.BULK, new Frame(Protocol.encodeLine(message), null, 0, 0));
+    }
+
+    /**
+     * Accessor method for the reliable stream id.
+     * @return The id of the stream the session resumed, or null if the client never sent one.
+     */
+    public String getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Accessor method for the reliable stream.
+     * @return The sequencing state of the session, or null if the client never sent a stream id.
+     */
+    public ReliableStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Mutator method for the reliable stream. Only the model attaches and detaches streams.
+     * @param streamId The id of the stream, or null to detach.
+     * @param stream The sequencing state to use, or null to detach.
+     */
+    void setStream(String streamId, ReliableStream stream) {
+        this.streamId = streamId;
+        this.stream = stream;
+    }
+
+    /**
+     * Queues a chat message for at-least-once delivery. The message is numbered and kept until
+     * the client acknowledges it, and sent again if the client resumes the stream from a new
+     * connection. Sessions of clients without a stream get the message as a plain frame.
+     * @param message The message to push.
+     * @throws ServerModelException If the session is closed or closing, or the client stopped
+     *     acknowledging messages.
+     */
+    public void sendReliable(String message) throws ServerModelException {
+        ReliableStream current = stream;
+        if (current == null) {
+            sendMessage(message);
+            return;
+        }
+        // numbering and queueing under one lock keeps the frames in number order on the wire
+        synchronized (current) {
+            if (stream != current) {
+                throw new ServerModelException("Session " + id + " was replaced by a newer connection");
+            }
+            String frame = current.wrap(message);
+            if (frame == null) {
+                abort();
+                throw new ServerModelException("Session " + id + " stopped acknowledging and was disconnected");
+            }
+            sendMessage(frame);
+        }
+    }
+
+    /**
+     * Queues a message that may be lost, such as a presence update. The message is dropped
+     * instead of queued when the client is already behind, and never disconnects the session.
+     * @param message The message to push.
+     * @return True if the message was queued.
+     */
+    public boolean offerMessage(String message) {
+        // a bulk backlog does not hold up the updates, only frames that would go out before them
+        int ahead = outbound.size() - outbound.size(PriorityLanes.BULK);
+        if (!isConnected || isClosing || ahead >= LOSSY_QUEUED_FRAMES) {
+            return false;
+        }
+        Frame frame = new Frame(Protocol.encodeLine(message), null, 0, 0);
+        if (FlightEvents.ENABLED) {
+            beginWait(PriorityLanes.CHAT, frame);
+        }
+        if (!outbound.offer(PriorityLanes.CHAT, frame)) {
+            return false;
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    /**
+     * Queues a file chunk frame: a header line followed by a region of a file. The region goes
+     * from the file to the socket with {@link FileChannel#transferTo}, so the bytes are not
+     * copied through the heap. The region must not change until the frame is written. Chunks go
+     * in the bulk lane, after the file incoming frame that announced the transfer.
+     * @param transferId The transfer the chunk belongs to.
+     * @param file The file to send the region from.
+     * @param offset Position of the region in the file.
+     * @param length Number of bytes in the region.
+     * @throws ServerModelException If the session is closed or closing, or its queue is full.
+     */
+    public void sendChunk(int transferId, FileChannel file, long offset, int length) throws ServerModelException {
+        String header = Protocol.chunkHeader(transferId, offset, length);
+        ByteBuffer headerBytes = ByteBuffer.wrap(header.getBytes(StandardCharsets.UTF_8));
+        enqueue(PriorityLanes.BULK, new Frame(headerBytes, file, offset, length));
+    }
+
+    /**
+     * Stops accepting new frames and lets the writer flush the ones already queued, then
+     * closes the connection. Returns immediately; see {@link #awaitClosed(long)}.
+     */
+    public void close() {
+        isClosing = true;
+        scheduleFlush();
+    }
+
+    /**
+     * Waits for the writer to flush the queue and close the connection.
+     * @param deadlineNanos {@link System#nanoTime()} value to give up at.
+     * @return True if the queue was flushed, false if the deadline passed first.
+     */
+    public boolean awaitClosed(long deadlineNanos) {
+        try {
+            return closed.await(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            return closed.getCount() == 0;
+        }
+    }
+
+    /**
+     * Terminates the connection at once, dropping whatever is still queued.
+     */
+    public void abort() {
+        isClosing = true;
+        isConnected = false;
+        outbound.clear();
+        try {
+            connection.close();
+        } catch (IOException err) {
+            // connection is unusable either way
+        }
+        // the selector lets go of the socket when it wakes, only then does the client see the close
+        loop.wakeup();
+        closed.countDown();
+        ended();
+    }
+
+    /**
+     * Flushes queued frames for a short grace period, then terminates the connection.
+     */
+    public void disconnect() {
+        if (!isConnected) {
+            return;
+        }
+        close();
+        if (!awaitClosed(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_GRACE_MILLIS))) {
+            abort();
+        }
+    }
+
+    /**
+     * Reads what the client sent. Called by the loop on a worker once the connection is
+     * readable; the loop watches it again only once this returns.
+     */
+    void readReady() {
+        boolean isOpen;
+        try {
+            isOpen = reader.read();
+        } catch (IOException err) {
+            isOpen = false;
+        }
+        if (isOpen) {
+            loop.resume(key, SelectionKey.OP_READ);
+        } else {
+            ended();
+        }
+    }
+
+    /**
+     * Goes on writing. Called by the loop on a worker once a connection that took no more can
+     * take more again; the writer that stopped still holds the queue.
+     */
+    void writeReady() {
+        flush();
+    }
+
+    /**
+     * Wakes the writer so it schedules the acknowledgement of an inbound message. Called by
+     * the engine after the stream of the session accepted a message number.
+     */
+    void ackPending() {
+        scheduleFlush();
+    }
+
+    private void enqueue(int lane, Frame frame) throws ServerModelException {
+        if (!isConnected || isClosing) {
+            throw new ServerModelException("Session " + id + " is not connected");
+        }
+        if (FlightEvents.ENABLED) {
+            beginWait(lane, frame);
+        }
+        if (!outbound.offer(lane, frame)) {
+            abort();
+            throw new ServerModelException("Session " + id + " is too slow and was disconnected");
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Tells the listener, once, that the connection is gone, on a worker, so it never runs
+     * inside the caller's locks.
+     */
+    private void ended() {
+        Listener current = listener;
+        if (current != null && isEnded.compareAndSet(false, true)) {
+            loop.execute(current::onClosed);
+        }
+    }
+
+    /**
+     * Starts a worker writing the queue, unless one is at it already.
+     */
+    private void scheduleFlush() {
+        if (isFlushing.compareAndSet(false, true) && !loop.execute(this::flush)) {
+            // the server stopped
+            abort();
+        }
+    }
+
+    /**
+     * Writes until nothing is left or the connection takes no more. In the latter case the
+     * worker lets go of the thread but not of the queue, and the loop calls
+     * {@link #writeReady()} once the connection can take more.
+     */
+    private void flush() {
+        try {
+            if (!write()) {
+                loop.resume(key, SelectionKey.OP_WRITE);
+                return;
+            }
+        } catch (IOException err) {
+            abort();
+            return;
+        }
+        ReliableStream current = stream;
+        long ackDelay = current == null ? -1 : current.nanosUntilAck(System.nanoTime());
+        if (ackDelay >= 0 && isConnected && isAckTimed.compareAndSet(false, true)) {
+            loop.schedule(() -> {
+                isAckTimed.set(false);
+                scheduleFlush();
+            }, ackDelay);
+        }
+        isFlushing.set(false);
+        // a frame queued, or a close asked for, after the queue was last looked at
+        if (isFlushDue()) {
+            scheduleFlush();
+        }
+    }
+
+    private boolean isFlushDue() {
+        if (!isConnected) {
+            return false;
+        }
+        if (webSocket != null && (webSocket.hasReply() || !webSocket.isUpgraded())) {
+            // lines wait for the handshake, a close does not
+            return webSocket.hasReply() || isClosing;
+        }
+        return isClosing || outbound.size() > 0;
+    }
+
+    /**
+     * Writes the frame in progress and the ones queued behind it; once the queue is empty and
+     * the session is closing, closes the connection.
+     * @return True if everything was written, false if the connection takes no more for now.
+     * @throws IOException If fails to write to the connection.
+     */
+    private boolean write() throws IOException {
+        while (isConnected) {
+            if (!writeOutput()) {
+                return false;
+            }
+            if (nextOutput()) {
+                continue;
+            }
+            if (!isClosing) {
+                return true;
+            }
+            if (webSocket != null) {
+                webSocket.writeClose(WebSocketChannel.CLOSE_NORMAL);
+                if (nextOutput()) {
+                    continue;
+                }
+            }
+            abort();
+        }
+        return true;
+    }
+
+    /**
+     * Picks what to write next: a reply of the WebSocket, then a due acknowledgement of the
+     * client's messages, which needs no queue slot, then the next queued frame.
+     * @return False if there is nothing to write.
+     */
+    private boolean nextOutput() {
+        ByteBuffer reply = webSocket == null ? null : webSocket.pollReply();
+        if (reply != null) {
+            output = new ByteBuffer[] {reply};
+            return true;
+        }
+        if (webSocket != null && !webSocket.isUpgraded()) {
+            return false;
+        }
+        ReliableStream current = stream;
+        long ack = current == null ? -1 : current.takeAck(System.nanoTime());
+        if (ack >= 0) {
+            output = frame(Protocol.encodeLine(ReliableStream.ACK_FRAME + ack));
+            return true;
+        }
+        Frame frame = outbound.poll();
+        if (frame == null) {
+            return false;
+        }
+        if (webSocket != null && frame.file != null) {
+            output = new ByteBuffer[] {webSocket.frameBinary(frame.bytes, frame.length), frame.bytes};
+        } else {
+            output = frame(frame.bytes);
+        }
+        outputFile = frame.file;
+        outputOffset = frame.offset;
+        outputLeft = frame.length;
+        writing = frame;
+        if (FlightEvents.ENABLED) {
+            beginWrite(frame);
+        }
+        return true;
+    }
+
+    private ByteBuffer[] frame(ByteBuffer line) {
+        return webSocket == null ? new ByteBuffer[] {line} : webSocket.frameText(line);
+    }
+
+    /**
+     * Writes as much of the output as the connection takes. The file region goes from the
+     * file to the socket with {@link FileChannel#transferTo}.
+     * @return True once the output is written, false if the connection takes no more for now.
+     * @throws IOException If fails to write to the connection.
+     */
+    private boolean writeOutput() throws IOException {
+        if (output == null) {
+            return true;
+        }
+        while (output[output.length - 1].hasRemaining() || output[0].hasRemaining()) {
+            if (connection.write(output) == 0) {
+                return false;
+            }
+        }
+        while (outputLeft > 0) {
+            long count = outputFile.transferTo(outputOffset, outputLeft, connection);
+            if (count == 0) {
+                if (outputOffset >= outputFile.size()) {
+                    throw new IOException("File region ends before its length");
+                }
+                return false;
+            }
+            outputOffset += count;
+            outputLeft -= count;
+        }
+        output = null;
+        outputFile = null;
+        if (writing != null) {
+            writing = null;
+            sent++;
+            if (write != null) {
+                endWrite();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records how long the frame waited in the queue and starts timing its write.
+     */
+    private void beginWrite(Frame frame) {
+        FlightEvents.QueueWait queued = frame.queued;
+        if (queued != null) {
+            queued.end();
+            if (queued.shouldCommit()) {
+                queued.room = room;
+                queued.commit();
+            }
+        }
+        write = new FlightEvents.SocketWrite();
+        write.bytes = frame.bytes.remaining() + frame.length;
+        write.begin();
+    }
+
+    /**
+     * Records how long the frame took to write, however many times the connection filled up.
+     */
+    private void endWrite() {
+        if (write.shouldCommit()) {
+            write.session = id;
+            write.room = room;
+            write.commit();
+        }
+        write = null;
+    }
+
+    private void beginWait(int lane, Frame frame) {
+        FlightEvents.QueueWait queued = new FlightEvents.QueueWait();
+        if (queued.isEnabled()) {
+            queued.session = id;
+            queued.lane = lane;
+            queued.begin();
+            frame.queued = queued;
+        }
+    }
+}
@@ -40,6 +40,7 @@ public class ServerView extends JFrame {
     private JButton startButton;
     private JButton disconnectButton;
     private JButton killButton;
+    private JButton drainButton;
     private JButton portButton;
     private JButton helpButton;
 
@@ -96,7 +97,7 @@ public class ServerView extends JFrame {
 
     /**
      * Initializes and adds the options components to the view.
-     * Options: start, disconnect, kill, update port, help.
+     * Options: start, disconnect, kill, drain, update port, help.
      */
     private void addOptionsPanel() {
         // start button
@@ -111,6 +112,10 @@ public class ServerView extends JFrame {
         killButton = new JButton("Kill Server");
         killButton.setToolTipText("Make the server inactive");
 
+        // drain button
+        drainButton = new JButton("Drain");
+        drainButton.setToolTipText("Stop accepting clients and ask connected clients to reconnect");
+
         // update port button
         portButton = new JButton("Update Port");
         portButton.setToolTipText("Update the listening port");
@@ -124,6 +129,7 @@ public class ServerView extends JFrame {
         optionsPanel.add(startButton);
         optionsPanel.add(disconnectButton);
         optionsPanel.add(killButton);
+        optionsPanel.add(drainButton);
         optionsPanel.add(portButton);
         optionsPanel.add(helpButton);
         add(optionsPanel, BorderLayout.NORTH);
@@ -193,6 +199,14 @@ public class ServerView extends JFrame {
         killButton.addActionListener(listener);
     }
 
+    /**
+     * Adds a listener to the drain button in the view.
+     * @param listener ActionListener to add to the drain button.
+     */
+    public void addDrainButtonListener(ActionListener listener) {
+        drainButton.addActionListener(listener);
+    }
+
     /**
      * Adds a listener to the update port button in the view.
      * @param listener ActionListener to add to the update port view.
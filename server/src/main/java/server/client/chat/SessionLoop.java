@@ -0,0 +1,189 @@
+package server.client.chat;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches the connections of every session from a single selector thread, so a session only
+ * holds a thread while it has bytes to read or frames to write. An idle session is a
+ * registered channel and nothing more. When its connection turns readable, or can take more
+ * bytes after a write was cut short, the operation is taken out of the key's interest and the
+ * session runs it on a worker until it would block; the session then hands the operation back
+ * with {@link #resume(SelectionKey, int)}. A session therefore never runs two reads, or two
+ * writes, at the same time.
+ *
+ * Workers come from a pool that grows with the number of busy sessions and lets its threads
+ * go after a while without work; a worker may block, e.g. while a flooding session is paced,
+ * without holding up any other session. Delayed work, such as a due acknowledgement, is
+ * started by a timer thread.
+ *
+ * @author Robert McKay
+ */
+public class SessionLoop {
+    // class constants
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    // class data members
+    private final AtomicInteger nextWorkerId;
+    private volatile Selector selector;
+    private volatile boolean isRunning;
+    private volatile ThreadPoolExecutor workers;
+    private volatile ScheduledExecutorService timer;
+
+    /**
+     * Constructor.
+     */
+    public SessionLoop() {
+        nextWorkerId = new AtomicInteger();
+    }
+
+    /**
+     * Opens the selector and starts watching. Called when the server starts.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (isRunning) {
+            return;
+        }
+        selector = Selector.open();
+        workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), task -> {
+                Thread thread = new Thread(task, "session-worker-" + nextWorkerId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "session-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        isRunning = true;
+        Thread watcher = new Thread(this::run, "session-selector");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Stops watching. Work already handed to the workers is finished, nothing new is started.
+     * Called when the server stops, once its sessions are closed.
+     */
+    public synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+        selector.wakeup();
+        workers.shutdown();
+        timer.shutdownNow();
+    }
+
+    /**
+     * Registers the connection of a session, interested in nothing until the session asks.
+     * @param connection The connection, in non-blocking mode.
+     * @param session The session owning the connection.
+     * @return The key of the connection.
+     * @throws IOException If the connection is closed or the loop is stopped.
+     */
+    SelectionKey register(SocketChannel connection, ServerSession session) throws IOException {
+        try {
+            return connection.register(selector, 0, session);
+        } catch (ClosedSelectorException err) {
+            throw new IOException("Server stopped");
+        }
+    }
+
+    /**
+     * Hands an operation back to the selector once the session did all it could without
+     * blocking, so the session is called again as soon as the connection is ready for it.
+     * @param key The key of the connection.
+     * @param operation SelectionKey.OP_READ or SelectionKey.OP_WRITE.
+     */
+    void resume(SelectionKey key, int operation) {
+        try {
+            key.interestOpsOr(operation);
+            selector.wakeup();
+        } catch (CancelledKeyException err) {
+            // the connection is closed, there is nothing to wait for
+        }
+    }
+
+    /**
+     * Wakes the selector, so it lets go of the connections closed meanwhile at once.
+     */
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Runs a task on a worker.
+     * @param task The task to run.
+     * @return True if the task was started, false if the loop is stopped.
+     */
+    boolean execute(Runnable task) {
+        try {
+            workers.execute(task);
+            return true;
+        } catch (RejectedExecutionException err) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs a task on a worker after a delay. The task is dropped if the loop stops first.
+     * @param task The task to run.
+     * @param delayNanos The delay in nanoseconds.
+     */
+    void schedule(Runnable task, long delayNanos) {
+        try {
+            timer.schedule(() -> execute(task), delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException err) {
+            // stopped, the sessions are closed
+        }
+    }
+
+    private void run() {
+        Selector watched = selector;
+        try {
+            // a restart opens another selector, this thread only ever watches its own
+            while (isRunning && selector == watched) {
+                watched.select(this::dispatch);
+            }
+        } catch (IOException | ClosedSelectorException err) {
+            // nothing left to watch
+        } finally {
+            try {
+                watched.close();
+            } catch (IOException err) {
+                // the sessions are closed either way
+            }
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        ServerSession session = (ServerSession) key.attachment();
+        try {
+            int ready = key.readyOps();
+            // the session owns the operation until it hands it back with resume
+            key.interestOpsAnd(~ready);
+            if ((ready & SelectionKey.OP_READ) != 0) {
+                execute(session::readReady);
+            }
+            if ((ready & SelectionKey.OP_WRITE) != 0) {
+                execute(session::writeReady);
+            }
+        } catch (CancelledKeyException err) {
+            // closed since it was selected
+        }
+    }
+}
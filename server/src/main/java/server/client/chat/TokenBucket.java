@@ -0,0 +1,71 @@
+package server.client.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket. Instead of a token count and a refill timestamp, the bucket keeps a
+ * single {@link System#nanoTime()} value: the time at which it would be full again. Taking a
+ * token moves that time forward by one refill interval, refilling is implied by the clock
+ * moving on, and both happen in one compare-and-set.
+ *
+ * @author Robert McKay
+ */
+public class TokenBucket {
+    private final AtomicLong fullAt;
+    private volatile long intervalNanos;
+    private volatile long burstNanos;
+
+    /**
+     * Constructor. The bucket starts full.
+     * @param ratePerSecond Tokens added to the bucket each second.
+     * @param burst Maximum number of tokens the bucket holds.
+     * @throws IllegalArgumentException If the rate or the burst is not positive.
+     */
+    public TokenBucket(int ratePerSecond, int burst) throws IllegalArgumentException {
+        setRate(ratePerSecond, burst);
+        fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Changes the rate of the bucket. Takes effect for the next token taken.
+     * @param ratePerSecond Tokens added to the bucket each second.
+     * @param burst Maximum number of tokens the bucket holds.
+     * @throws IllegalArgumentException If the rate or the burst is not positive.
+     */
+    public void setRate(int ratePerSecond, int burst) throws IllegalArgumentException {
+        if (ratePerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        intervalNanos = 1_000_000_000L / ratePerSecond;
+        burstNanos = intervalNanos * burst;
+    }
+
+    /**
+     * Takes one token from the bucket if there is one.
+     * @return 0 if a token was taken, otherwise the nanoseconds to wait until one is available.
+     */
+    public long tryAcquire() {
+        long interval = intervalNanos;
+        long burst = burstNanos;
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long next = Math.max(current, now) + interval;
+            long wait = next - now - burst;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Puts back a token taken with {@link #tryAcquire()}, used when a later limit rejects the
+     * same message so the message is not charged twice when it is retried.
+     */
+    public void release() {
+        fullAt.addAndGet(-intervalNanos);
+    }
+}
@@ -0,0 +1,102 @@
+package server.client.chat;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of session tokens that have already been verified, so a client logging back
+ * in with one costs a map lookup. Entries expire with their token, and once the cache is full
+ * the least recently used entry makes room for the new one.
+ *
+ * @author Robert McKay
+ */
+public class TokenCache {
+    // class data members
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Inner class. A verified token, the credential it was issued for and when it expires.
+     */
+    private static class Entry {
+        private final Object credential;
+        private final long expiresAt;
+
+        Entry(Object credential, long expiresAt) {
+            this.credential = credential;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param capacity Maximum number of tokens held at once.
+     * @throws IllegalArgumentException If the capacity is not positive.
+     */
+    public TokenCache(int capacity) throws IllegalArgumentException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Token cache capacity must be positive");
+        }
+        this.capacity = capacity;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > TokenCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Looks up a verified token.
+     * @param key The user and token presented by the client.
+     * @param credential The credential the user holds now; a token issued for an earlier one no
+     *     longer counts.
+     * @param now The current time in milliseconds.
+     * @return True if the token was verified before, has not expired and still matches.
+     */
+    public synchronized boolean contains(String key, Object credential, long now) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.expiresAt <= now || entry.credential != credential) {
+            entries.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a verified token.
+     * @param key The user and token presented by the client.
+     * @param credential The credential the token was issued for.
+     * @param expiresAt When the token expires, in milliseconds since the epoch.
+     */
+    public synchronized void put(String key, Object credential, long expiresAt) {
+        entries.put(key, new Entry(credential, expiresAt));
+    }
+
+    /**
+     * Drops the expired tokens.
+     * @param now The current time in milliseconds.
+     */
+    public synchronized void sweep(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expiresAt <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Accessor method for the size.
+     * @return The number of tokens held.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
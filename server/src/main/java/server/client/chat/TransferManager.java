@@ -0,0 +1,357 @@
+package server.client.chat;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Relays files between clients. The sender streams chunk frames which are written into a
+ * pre-sized spool file, and every chunk is forwarded to the recipient straight from the spool
+ * file so the server never holds more than one chunk of a file in memory. The spool file also
+ * lets a recipient resume from any offset after a dropped connection, and a sender that
+ * re-offers the same file continues from the last byte the server received.
+ *
+ * A user has at most chat.file.maxOffers transfers open at a time, 8 by default. A transfer
+ * nobody touched for chat.file.idleMillis, 10 minutes by default, is dropped with its spool
+ * file: the sender and the recipient had that long to come back and resume.
+ *
+ * Client to server frames:
+ *   /file-offer token user size name  - offer a file to a user, token is picked by the sender
+ *   /file-chunk id offset length      - followed by length raw bytes
+ *   /file-resume id offset            - recipient asks for the bytes from offset on
+ *   /file-done id                     - recipient has written the whole file
+ * Server to client frames:
+ *   /file-ready token id offset       - sender may stream chunks from offset on
+ *   /file-incoming id user size name  - recipient is about to receive a file
+ *   /file-chunk id offset length      - followed by length raw bytes
+ *
+ * @author Robert McKay
+ */
+public class TransferManager {
+    // class constants
+    private static final long DEFAULT_MAX_FILE = 1L << 30;
+    private static final int DEFAULT_MAX_OFFERS = 8;
+    private static final long DEFAULT_IDLE_MILLIS = 10 * 60 * 1000;
+    private static final long SWEEP_MILLIS = 60 * 1000;
+
+    // class data members
+    private final ServerModel model;
+    private final long maxFileSize;
+    private final int maxOffers;
+    private final long idleMillis;
+    private final AtomicInteger nextTransferId;
+    private final ConcurrentHashMap<Integer, Transfer> transfers;
+    private final ConcurrentHashMap<String, Transfer> offers;
+    private final ConcurrentHashMap<String, Integer> openCounts;
+    private Path spoolDirectory;
+    private ScheduledExecutorService sweeper;
+
+    /**
+     * A file on its way from one user to another.
+     */
+    private static class Transfer {
+        private final int id;
+        private final String offerKey;
+        private final String from;
+        private final String to;
+        private final String name;
+        private final long size;
+        private final Path spoolPath;
+        private final FileChannel spool;
+        private final Set<ServerSession> recipients;
+        private long received;
+        private volatile long lastActive;
+
+        Transfer(int id, String offerKey, String from, String to, String name, long size, Path spoolPath)
+                throws IOException {
+            this.id = id;
+            this.offerKey = offerKey;
+            this.from = from;
+            this.to = to;
+            this.name = name;
+            this.size = size;
+            this.spoolPath = spoolPath;
+            RandomAccessFile file = new RandomAccessFile(spoolPath.toFile(), "rw");
+            file.setLength(size);
+            spool = file.getChannel();
+            recipients = ConcurrentHashMap.newKeySet();
+            touch();
+        }
+
+        void touch() {
+            lastActive = System.nanoTime();
+        }
+    }
+
+    /**
+     * Constructor. The maximum file size is read from the chat.file.maxBytes system property,
+     * the limits on open transfers from chat.file.maxOffers and chat.file.idleMillis.
+     * @param model The server model used to find the sessions of the recipient.
+     */
+    public TransferManager(ServerModel model) {
+        this.model = model;
+        maxFileSize = Long.getLong("chat.file.maxBytes", DEFAULT_MAX_FILE);
+        maxOffers = Integer.getInteger("chat.file.maxOffers", DEFAULT_MAX_OFFERS);
+        idleMillis = Long.getLong("chat.file.idleMillis", DEFAULT_IDLE_MILLIS);
+        nextTransferId = new AtomicInteger();
+        transfers = new ConcurrentHashMap<>();
+        offers = new ConcurrentHashMap<>();
+        openCounts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Starts dropping idle transfers. Called when the server starts.
+     */
+    public synchronized void start() {
+        if (sweeper != null) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "transfer-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, Math.min(idleMillis, SWEEP_MILLIS));
+        sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Handles a file offer from a sender.
+     * @param sender The session that offered the file.
+     * @param frame The raw offer frame.
+     * @throws ServerModelException If the offer is not valid, the sender has too many transfers
+     *     open or the spool file cannot be created.
+     */
+    public void offer(ServerSession sender, String frame) throws ServerModelException {
+        String[] parts = frame.split(" ", 5);
+        if (parts.length < 5) {
+            throw new ServerModelException("Usage: /file-offer <token> <user> <size> <name>");
+        }
+        String from = sender.getUserId();
+        if (from == null) {
+            throw new ServerModelException("Set a nickname with /nick before sending files");
+        }
+        long size = parseLong(parts[3]);
+        if (size < 0 || size > maxFileSize) {
+            throw new ServerModelException("File exceeds maximum size (" + maxFileSize + " bytes)");
+        }
+        String offerKey = from + " " + parts[1];
+        Transfer transfer = offers.get(offerKey);
+        if (transfer == null) {
+            if (model.getSessions(parts[2]).isEmpty()) {
+                throw new ServerModelException("User " + parts[2] + " is not connected");
+            }
+            transfer = createTransfer(offerKey, from, parts[2], size, sanitize(parts[4]));
+            for (ServerSession recipient : model.getSessions(transfer.to)) {
+                transfer.recipients.add(recipient);
+                recipient.sendBulk(Protocol.FILE_INCOMING + transfer.id + " " + from + " " + size + " "
+                    + transfer.name);
+            }
+        }
+        synchronized (transfer) {
+            transfer.touch();
+            sender.sendMessage(Protocol.FILE_READY + parts[1] + " " + transfer.id + " " + transfer.received);
+        }
+    }
+
+    /**
+     * Handles a chunk frame from a sender. The session has read the whole chunk already, so a
+     * rejected chunk leaves the stream in sync.
+     * @param sender The session that sent the chunk.
+     * @param id The transfer the chunk belongs to.
+     * @param offset Position of the chunk in the file.
+     * @param buffer Array holding the chunk, reused once this returns.
+     * @param length Number of bytes in the chunk.
+     * @throws ServerModelException If the sender is disconnected while being answered.
+     */
+    public void receiveChunk(ServerSession sender, int id, long offset, byte[] buffer, int length)
+            throws ServerModelException {
+        Transfer transfer = transfers.get(id);
+        if (transfer == null || !transfer.from.equals(sender.getUserId())) {
+            sender.sendMessage("File transfer " + id + " is not active");
+            return;
+        }
+        synchronized (transfer) {
+            transfer.touch();
+            if (offset < 0 || offset > transfer.received || offset + length > transfer.size) {
+                sender.sendMessage("File transfer " + transfer.id + " failed: chunk out of order");
+                return;
+            }
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length);
+                while (bytes.hasRemaining()) {
+                    transfer.spool.write(bytes, offset + bytes.position());
+                }
+            } catch (IOException err) {
+                sender.sendMessage("File transfer " + transfer.id + " failed: " + err.getMessage());
+                return;
+            }
+            transfer.received = Math.max(transfer.received, offset + length);
+            for (ServerSession recipient : transfer.recipients) {
+                try {
+                    recipient.sendChunk(transfer.id, transfer.spool, offset, length);
+                } catch (ServerModelException err) {
+                    // the recipient resumes from its own offset once it reconnects
+                    transfer.recipients.remove(recipient);
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles a resume request from a recipient: replays the received bytes from the given
+     * offset and subscribes the session to the chunks still to come.
+     * @param session The session that asked to resume.
+     * @param frame The raw resume frame.
+     * @throws ServerModelException If the transfer is unknown or not addressed to the session's user.
+     */
+    public void resume(ServerSession session, String frame) throws ServerModelException {
+        String[] parts = frame.split(" ");
+        if (parts.length != 3) {
+            throw new ServerModelException("Usage: /file-resume <id> <offset>");
+        }
+        Transfer transfer = transfers.get((int) parseLong(parts[1]));
+        if (transfer == null || !transfer.to.equals(session.getUserId())) {
+            throw new ServerModelException("File transfer " + parts[1] + " is not active");
+        }
+        long offset = parseLong(parts[2]);
+        synchronized (transfer) {
+            transfer.touch();
+            session.sendBulk(Protocol.FILE_INCOMING + transfer.id + " " + transfer.from + " "
+                + transfer.size + " " + transfer.name);
+            while (offset < transfer.received) {
+                int length = (int) Math.min(Protocol.MAX_CHUNK, transfer.received - offset);
+                session.sendChunk(transfer.id, transfer.spool, offset, length);
+                offset += length;
+            }
+            transfer.recipients.add(session);
+        }
+    }
+
+    /**
+     * Handles a completion notice from a recipient. The spool file is deleted once the whole
+     * file was received and every recipient session is done with it.
+     * @param session The session that finished the file.
+     * @param frame The raw done frame.
+     */
+    public void done(ServerSession session, String frame) {
+        String[] parts = frame.split(" ");
+        Transfer transfer = parts.length == 2 ? transfers.get((int) parseLong(parts[1])) : null;
+        if (transfer == null) {
+            return;
+        }
+        synchronized (transfer) {
+            transfer.recipients.remove(session);
+            if (transfer.received == transfer.size && transfer.recipients.isEmpty()) {
+                discard(transfer);
+            }
+        }
+    }
+
+    /**
+     * Stops dropping idle transfers, then drops every transfer and deletes the spool files.
+     */
+    public void close() {
+        synchronized (this) {
+            if (sweeper != null) {
+                sweeper.shutdownNow();
+                sweeper = null;
+            }
+        }
+        for (Transfer transfer : transfers.values()) {
+            synchronized (transfer) {
+                discard(transfer);
+            }
+        }
+    }
+
+    /**
+     * Drops the transfers nobody touched for the idle time.
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        for (Transfer transfer : transfers.values()) {
+            synchronized (transfer) {
+                if (now - transfer.lastActive > TimeUnit.MILLISECONDS.toNanos(idleMillis)) {
+                    discard(transfer);
+                }
+            }
+        }
+    }
+
+    private Transfer createTransfer(String offerKey, String from, String to, long size, String name)
+            throws ServerModelException {
+        openCounts.compute(from, (user, count) -> {
+            if (count != null && count >= maxOffers) {
+                throw new ServerModelException("Too many open file transfers, at most " + maxOffers);
+            }
+            return count == null ? 1 : count + 1;
+        });
+        try {
+            synchronized (this) {
+                if (spoolDirectory == null) {
+                    spoolDirectory = Files.createTempDirectory("chat-transfers");
+                }
+            }
+            int id = nextTransferId.incrementAndGet();
+            Transfer transfer = new Transfer(id, offerKey, from, to, name, size,
+                Files.createTempFile(spoolDirectory, "transfer-" + id + "-", ".part"));
+            Transfer existing = offers.putIfAbsent(offerKey, transfer);
+            if (existing != null) {
+                discard(transfer);
+                return existing;
+            }
+            transfers.put(id, transfer);
+            return transfer;
+        } catch (IOException err) {
+            release(from);
+            throw new ServerModelException("Failed to create spool file: " + err.getMessage());
+        }
+    }
+
+    private void discard(Transfer transfer) {
+        if (transfer.spool.isOpen()) {
+            release(transfer.from);
+        }
+        transfers.remove(transfer.id, transfer);
+        offers.remove(transfer.offerKey, transfer);
+        try {
+            transfer.spool.close();
+            Files.deleteIfExists(transfer.spoolPath);
+        } catch (IOException err) {
+            // the temp directory is cleaned up by the system eventually
+        }
+    }
+
+    private void release(String from) {
+        openCounts.computeIfPresent(from, (user, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Strips directories and characters that are unsafe in file names from an offered name.
+     * @param name The name offered by the sender.
+     * @return A plain file name.
+     */
+    private static String sanitize(String name) {
+        String plain = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1)
+            .replaceAll("[^A-Za-z0-9._ -]", "_").trim();
+        return plain.isEmpty() || plain.startsWith(".") ? "file" + plain : plain;
+    }
+
+    private static long parseLong(String value) throws ServerModelException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException err) {
+            throw new ServerModelException("Not a valid number: " + value);
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package server.client.chat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * WebSocket end of a browser connection (RFC 6455), so a browser session speaks the same line
+ * protocol as a native client. Reading, the channel answers the opening handshake and then
+ * hands out the payload of the text messages the browser sends, unmasked, each followed by a
+ * line break, so the session splits them into lines like the bytes of a native client.
+ * Writing, each encoded line goes out as one text frame of the bytes before its line break,
+ * and a file chunk as one binary frame of its header line and the file region, so no message
+ * body is decoded or encoded again on the way.
+ *
+ * The connection is in non-blocking mode: a read hands out what has arrived and returns 0
+ * while a frame is incomplete. The channel writes nothing itself. What it must send on its
+ * own, the answer to the handshake, a pong or a close, is queued for the writer of the
+ * session, see {@link #pollReply()}, and the session frames its lines only once the handshake
+ * is answered. Pings are answered, a close is answered and ends the stream, and a binary or
+ * unmasked message from the browser closes the connection.
+ *
+ * @author Robert McKay
+ */
+public class WebSocketChannel implements ReadableByteChannel {
+    // class constants
+    public static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_UNSUPPORTED = 1003;
+    public static final int CLOSE_TOO_BIG = 1009;
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+    private static final int FINAL = 0x80;
+    private static final int MAX_HANDSHAKE = 8192;
+    private static final int READ_SIZE = 1024;
+    private static final int MAX_CONTROL = 125;
+
+    // class data members
+    private final SocketChannel connection;
+    private final List<String> origins;
+    private final Queue<ByteBuffer> replies;
+    private final AtomicBoolean isCloseSent;
+    private ByteBuffer in;
+    private final byte[] mask;
+    private int maskIndex;
+    private long payloadLeft;
+    private boolean isFinal;
+    private boolean isLineEnd;
+    private boolean isEnded;
+    private boolean isFailed;
+    private volatile boolean isUpgraded;
+
+    /**
+     * Constructor.
+     * @param connection The accepted connection, read in non-blocking mode by the session.
+     * @param origins The origins of the pages allowed to connect, empty to allow any.
+     */
+    public WebSocketChannel(SocketChannel connection, List<String> origins) {
+        this.connection = connection;
+        this.origins = origins;
+        replies = new ConcurrentLinkedQueue<>();
+        isCloseSent = new AtomicBoolean();
+        in = ByteBuffer.allocate(MAX_HANDSHAKE);
+        in.flip();
+        mask = new byte[4];
+    }
+
+    /**
+     * Computes the Sec-WebSocket-Accept value answering a Sec-WebSocket-Key.
+     * @param key The key the client sent.
+     * @return The accept value.
+     */
+    public static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException err) {
+            throw new IllegalStateException("SHA-1 is required of every Java platform", err);
+        }
+    }
+
+    /**
+     * Encodes the reply to a browser shed by admission control, see {@link AdmissionControl.Refusal}.
+     * The browser has not upgraded yet, so it is answered in HTTP: 503 with a Retry-After of the
+     * delay plus a random share of the jitter when it may come back, 429 when it is over the limit
+     * of its address.
+     * @param delayMillis How long the browser should wait, or -1 if it should not come back.
+     * @param jitterMillis Bound of the random delay added to it.
+     * @return The HTTP response.
+     */
+    public static ByteBuffer refusal(long delayMillis, long jitterMillis) {
+        if (delayMillis < 0) {
+            return response("429 Too Many Requests", "");
+        }
+        long retryMillis = delayMillis + ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+        // Retry-After is in whole seconds, round up so the browser waits at least the delay
+        return response("503 Service Unavailable", "Retry-After: " + (retryMillis + 999) / 1000 + "\r\n");
+    }
+
+    /**
+     * Reads the text the browser sent, one line per message.
+     * @param target The buffer to read into.
+     * @return The number of bytes read, 0 if no payload has arrived yet, or -1 if the browser
+     *     closed the connection or the handshake failed.
+     * @throws IOException If the connection fails or the browser breaks the protocol.
+     */
+    @Override
+    public int read(ByteBuffer target) throws IOException {
+        if (!isUpgraded && (isFailed || !upgrade())) {
+            return isFailed ? -1 : 0;
+        }
+        int start = target.position();
+        while (target.hasRemaining() && !isEnded) {
+            if (isLineEnd) {
+                target.put((byte) '\n');
+                isLineEnd = false;
+            } else if (payloadLeft > 0) {
+                if (!in.hasRemaining()) {
+                    int count = fill();
+                    if (count < 0) {
+                        throw new EOFException("Stream ended inside a WebSocket frame");
+                    }
+                    if (count == 0) {
+                        break;
+                    }
+                }
+                int count = (int) Math.min(payloadLeft, Math.min(in.remaining(), target.remaining()));
+                for (int i = 0; i < count; i++) {
+                    target.put((byte) (in.get() ^ mask[maskIndex++ & 3]));
+                }
+                payloadLeft -= count;
+                isLineEnd = payloadLeft == 0 && isFinal;
+            } else if (!nextFrame()) {
+                break;
+            }
+        }
+        int count = target.position() - start;
+        return count == 0 && isEnded ? -1 : count;
+    }
+
+    /**
+     * Accessor method for isUpgraded.
+     * @return True once the handshake is answered, so lines may be framed.
+     */
+    public boolean isUpgraded() {
+        return isUpgraded;
+    }
+
+    /**
+     * Takes the next bytes the channel must send on its own: the answer to the handshake, a
+     * pong or a close. They go out ahead of the lines framed after them.
+     * @return The bytes, or null if none are waiting.
+     */
+    public ByteBuffer pollReply() {
+        return replies.poll();
+    }
+
+    /**
+     * Accessor method for the queued replies.
+     * @return True if bytes are waiting to be sent, see {@link #pollReply()}.
+     */
+    public boolean hasReply() {
+        return !replies.isEmpty();
+    }
+
+    /**
+     * Frames an encoded line as one text frame, leaving out its line break.
+     * @param line The line, ending with a line break.
+     * @return The frame header and the payload, to be written in this order.
+     */
+    public ByteBuffer[] frameText(ByteBuffer line) {
+        ByteBuffer payload = line.duplicate();
+        if (payload.hasRemaining() && payload.get(payload.limit() - 1) == '\n') {
+            payload.limit(payload.limit() - 1);
+        }
+        return new ByteBuffer[] {header(OP_TEXT, payload.remaining()), payload};
+    }
+
+    /**
+     * Frames a file chunk frame as one binary frame: its header line, then the file region.
+     * @param chunkHeader The header line of the chunk.
+     * @param length Number of bytes in the file region.
+     * @return The header of the binary frame, written before the header line and the region.
+     */
+    public ByteBuffer frameBinary(ByteBuffer chunkHeader, int length) {
+        return header(OP_BINARY, chunkHeader.remaining() + (long) length);
+    }
+
+    /**
+     * Starts the closing handshake, once, by queueing a close as a reply; the connection
+     * itself is closed by the session.
+     * @param code The close status code.
+     */
+    public void writeClose(int code) {
+        if (!isUpgraded || !isCloseSent.compareAndSet(false, true)) {
+            return;
+        }
+        ByteBuffer status = ByteBuffer.allocate(2).putShort((short) code).flip();
+        replies.add(concat(header(OP_CLOSE, 2), status));
+    }
+
+    @Override
+    public boolean isOpen() {
+        return connection.isOpen();
+    }
+
+    /**
+     * Closes the connection.
+     * @throws IOException If the connection fails to close.
+     */
+    @Override
+    public void close() throws IOException {
+        connection.close();
+    }
+
+    /**
+     * Reads the opening handshake and answers it. A request that is not a WebSocket upgrade
+     * is answered with an HTTP error and fails the channel.
+     * @return True once upgraded, false while the request is incomplete or if it was refused.
+     */
+    private boolean upgrade() throws IOException {
+        int end;
+        while ((end = headerEnd()) < 0) {
+            if (in.limit() == in.capacity()) {
+                return refuse("431 Request Header Fields Too Large", "");
+            }
+            int count = fill();
+            if (count <= 0) {
+                isFailed = count < 0;
+                return false;
+            }
+        }
+        String request = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+        in.position(end + 4);
+        String[] lines = request.split("\r\n");
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                    lines[i].substring(colon + 1).trim());
+            }
+        }
+        String key = headers.get("sec-websocket-key");
+        if (!lines[0].startsWith("GET ") || !hasToken(headers.get("upgrade"), "websocket")
+                || !hasToken(headers.get("connection"), "upgrade") || key == null) {
+            return refuse("400 Bad Request", "");
+        }
+        if (!"13".equals(headers.get("sec-websocket-version"))) {
+            return refuse("426 Upgrade Required", "Sec-WebSocket-Version: 13\r\n");
+        }
+        String origin = headers.get("origin");
+        if (!origins.isEmpty() && (origin == null || !origins.contains(origin))) {
+            return refuse("403 Forbidden", "");
+        }
+        String response = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+            + "Sec-WebSocket-Accept: " + accept(key) + "\r\n\r\n";
+        replies.add(ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII)));
+        // the handshake buffer is only needed once, keep the bytes that came after it
+        ByteBuffer rest = ByteBuffer.allocate(Math.max(READ_SIZE, in.remaining()));
+        rest.put(in).flip();
+        in = rest;
+        isUpgraded = true;
+        return true;
+    }
+
+    private boolean refuse(String status, String headers) {
+        replies.add(response(status, headers));
+        isFailed = true;
+        return false;
+    }
+
+    private static ByteBuffer response(String status, String headers) {
+        String response = "HTTP/1.1 " + status + "\r\n" + headers
+            + "Content-Length: 0\r\nConnection: close\r\n\r\n";
+        return ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Position of the blank line ending the request headers, or -1 if it has not arrived.
+     */
+    private int headerEnd() {
+        byte[] bytes = in.array();
+        for (int i = 3; i < in.limit(); i++) {
+            if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+                return i - 3;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean hasToken(String value, String token) {
+        if (value == null) {
+            return false;
+        }
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the next frame header once all of it has arrived. Control frames are handled here,
+     * read in one go with their payload; a text frame, or the next fragment of one, leaves its
+     * payload to be read.
+     * @return False if the header has not arrived yet.
+     */
+    private boolean nextFrame() throws IOException {
+        while (in.remaining() < headerLength()) {
+            int count = fill();
+            if (count < 0) {
+                if (in.hasRemaining()) {
+                    throw new EOFException("Stream ended inside a WebSocket frame header");
+                }
+                isEnded = true;
+                return true;
+            }
+            if (count == 0) {
+                return false;
+            }
+        }
+        int first = in.get() & 0xFF;
+        int second = in.get() & 0xFF;
+        int opcode = first & 0x0F;
+        long length = second & 0x7F;
+        if ((second & 0x80) == 0) {
+            failWith(CLOSE_PROTOCOL_ERROR, "Unmasked frame from a WebSocket client");
+        }
+        if (length == 126) {
+            length = in.getShort() & 0xFFFF;
+        } else if (length == 127) {
+            length = in.getLong();
+        }
+        in.get(mask);
+        maskIndex = 0;
+        switch (opcode) {
+        case OP_TEXT:
+        case OP_CONTINUATION:
+            if (length < 0 || length > Protocol.MAX_LINE) {
+                failWith(CLOSE_TOO_BIG, "WebSocket message exceeds maximum size");
+            }
+            payloadLeft = length;
+            isFinal = (first & FINAL) != 0;
+            isLineEnd = length == 0 && isFinal;
+            break;
+        case OP_PING:
+            ByteBuffer ping = control(length);
+            replies.add(concat(header(OP_PONG, ping.remaining()), ping));
+            break;
+        case OP_PONG:
+            control(length);
+            break;
+        case OP_CLOSE:
+            control(length);
+            writeClose(CLOSE_NORMAL);
+            isEnded = true;
+            break;
+        case OP_BINARY:
+            failWith(CLOSE_UNSUPPORTED, "Binary WebSocket messages are not supported");
+            break;
+        default:
+            failWith(CLOSE_PROTOCOL_ERROR, "Unknown WebSocket opcode " + opcode);
+        }
+        return true;
+    }
+
+    /**
+     * Number of bytes the next frame header takes, as far as the bytes buffered tell. The
+     * payload of a control frame counts too, so the frame is handled in one go.
+     */
+    private int headerLength() {
+        if (in.remaining() < 2) {
+            return 2;
+        }
+        int opcode = in.get(in.position()) & 0x0F;
+        int length = in.get(in.position() + 1) & 0x7F;
+        int header = 2 + (length == 126 ? 2 : length == 127 ? 8 : 0) + mask.length;
+        return opcode >= OP_CLOSE && length <= MAX_CONTROL ? header + length : header;
+    }
+
+    /**
+     * Unmasks the payload of a control frame, buffered along with its header.
+     */
+    private ByteBuffer control(long length) throws IOException {
+        if (length > MAX_CONTROL) {
+            failWith(CLOSE_PROTOCOL_ERROR, "WebSocket control frame too long");
+        }
+        byte[] payload = new byte[(int) length];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (in.get() ^ mask[i & 3]);
+        }
+        return ByteBuffer.wrap(payload);
+    }
+
+    private void failWith(int code, String reason) throws IOException {
+        writeClose(code);
+        throw new IOException(reason);
+    }
+
+    /**
+     * Reads whatever has arrived behind the bytes buffered.
+     * @return The number of bytes read, 0 if none, or -1 if the stream ended.
+     */
+    private int fill() throws IOException {
+        in.compact();
+        int count = connection.read(in);
+        in.flip();
+        return count;
+    }
+
+    private static ByteBuffer header(int opcode, long length) {
+        ByteBuffer header = ByteBuffer.allocate(10);
+        header.put((byte) (FINAL | opcode));
+        if (length <= MAX_CONTROL) {
+            header.put((byte) length);
+        } else if (length <= 0xFFFF) {
+            header.put((byte) 126).putShort((short) length);
+        } else {
+            header.put((byte) 127).putLong(length);
+        }
+        return header.flip();
+    }
+
+    private static ByteBuffer concat(ByteBuffer header, ByteBuffer payload) {
+        return ByteBuffer.allocate(header.remaining() + payload.remaining()).put(header).put(payload).flip();
+    }
+}
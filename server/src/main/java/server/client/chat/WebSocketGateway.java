@@ -0,0 +1,133 @@
+package server.client.chat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Accepts browser clients on a port of their own and bridges them into the rooms of the
+ * native clients. A browser connection goes through the same admission control as a native
+ * one; a shed browser is answered with an HTTP error rather than a chat frame, and an admitted
+ * one becomes an ordinary {@link ServerSession}, whose frames travel inside WebSocket frames,
+ * see {@link WebSocketChannel}; the engine serves it like any other session. The WebSocket
+ * handshake is read and answered by the session like its frames, so a slow browser holds up
+ * no one else.
+ *
+ * Opened with the system property chat.ws.port. chat.ws.origins lists the origins of the
+ * pages allowed to connect, comma separated, e.g. https://chat.example.com; any origin may
+ * connect when it is empty.
+ *
+ * @author Robert McKay
+ */
+public class WebSocketGateway {
+    // class data members
+    private final ServerEngine engine;
+    private final List<String> origins;
+    private volatile ServerSocketChannel server;
+    private int port;
+
+    /**
+     * Constructor.
+     * @param engine The server to bridge browsers into.
+     * @param port The port to listen for browsers on, 0 for any free port.
+     * @param origins The origins of the pages allowed to connect, empty to allow any.
+     */
+    public WebSocketGateway(ServerEngine engine, int port, List<String> origins) {
+        this.engine = engine;
+        this.port = port;
+        this.origins = Collections.unmodifiableList(new ArrayList<>(origins));
+    }
+
+    /**
+     * Splits a comma separated list of origins.
+     * @param value The list, may be empty.
+     * @return The origins, without blanks.
+     */
+    public static List<String> parseOrigins(String value) {
+        List<String> origins = new ArrayList<>();
+        for (String origin : value.split(",")) {
+            if (!origin.trim().isEmpty()) {
+                origins.add(origin.trim());
+            }
+        }
+        return origins;
+    }
+
+    /**
+     * Accessor method for the port.
+     * @return The port browsers connect to. If the port was set to 0, this is the free port
+     *     picked by the system once the gateway is started.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Opens the port and starts accepting browsers.
+     * @throws IOException If the port cannot be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            AdmissionControl admission = engine.getModel().getAdmission();
+            admission.configure(channel);
+            channel.bind(new InetSocketAddress(port), admission.getBacklog());
+            port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException err) {
+            channel.close();
+            throw err;
+        }
+        server = channel;
+        Thread acceptor = new Thread(this::accept, "websocket-listener");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stops accepting browsers. Sessions already open are left to the server.
+     */
+    public synchronized void stop() {
+        ServerSocketChannel channel = server;
+        server = null;
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException err) {
+            // nothing left to accept either way
+        }
+    }
+
+    private void accept() {
+        ServerModel model = engine.getModel();
+        while (true) {
+            ServerSocketChannel channel = server;
+            if (channel == null) {
+                return;
+            }
+            try {
+                SocketChannel connection = channel.accept();
+                InetAddress address = model.getAdmission().admit(connection, WebSocketChannel::refusal);
+                if (address != null) {
+                    engine.serve(model.open(address, connection, new WebSocketChannel(connection, origins)));
+                }
+            } catch (ServerModelException err) {
+                engine.getEvents().error("websocket.accept", EventLog.NO_SESSION, err.getMessage());
+            } catch (IOException err) {
+                if (!channel.isOpen()) {
+                    return;
+                }
+                // a connection that failed on its own, keep accepting
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package server.client.chat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs a server engine in-process on a free loopback port, with scripted clients connected
+ * to it. Rate and admission limits are raised so the tests measure the server rather than
+ * its protections.
+ *
+ * @author Robert McKay
+ */
+public class ChatHarness implements AutoCloseable {
+    // class constants
+    public static final long TIMEOUT_MILLIS = 10000;
+    private static final String[] SERVER_THREADS = {
+        "client-listener", "session-selector", "session-worker-", "session-timer", "presence-flusher",
+        "mailbox-delivery", "history-compactor", "websocket-listener", "transfer-sweeper"
+    };
+    // the sample key of RFC 6455, answered with s3pPLMBiTxaQ9kYGzzhZRbK+xOo=
+    public static final String WEBSOCKET_KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+
+    static {
+        // read by the model when it is created, so they must be set before the first one is
+        System.setProperty("chat.rate.session", "1000000");
+        System.setProperty("chat.rate.room", "1000000");
+        System.setProperty("chat.rate.global", "1000000");
+        System.setProperty("chat.admission.maxPerAddress", "100000");
+        System.setProperty("chat.stream.lingerMillis", "1000");
+        System.setProperty("chat.drain.deadlineMillis", "2000");
+        System.setProperty("chat.log.file", "");
+        // small enough that a test's offline messages spill to disk
+        System.setProperty("chat.mailbox.memoryBytes", "4096");
+        try {
+            System.setProperty("chat.mailbox.dir", Files.createTempDirectory("chat-mailboxes").toString());
+        } catch (IOException err) {
+            throw new ExceptionInInitializerError(err);
+        }
+    }
+
+    // class data members
+    private final ServerModel model;
+    private final ServerEngine engine;
+    private final EventLog events;
+    private final List<ScriptedClient> clients;
+
+    /**
+     * Constructor. Starts the server.
+     * @throws ServerModelException If the server fails to start.
+     */
+    public ChatHarness() throws ServerModelException {
+        this(null);
+    }
+
+    /**
+     * Constructor. Starts a server that requires a login.
+     * @param authenticator Checks the logins, or null to let anyone chat.
+     * @throws ServerModelException If the server fails to start.
+     */
+    public ChatHarness(Authenticator authenticator) throws ServerModelException {
+        model = new ServerModel(0);
+        model.setAuthenticator(authenticator);
+        events = EventLog.fromProperties();
+        engine = new ServerEngine(model, events);
+        clients = new ArrayList<>();
+        try {
+            events.start();
+        } catch (IOException err) {
+            throw new ServerModelException(err.getMessage());
+        }
+        engine.start();
+    }
+
+    /**
+     * Accessor method for the model.
+     * @return The model of the server under test.
+     */
+    public ServerModel getModel() {
+        return model;
+    }
+
+    /**
+     * Accessor method for the engine.
+     * @return The engine of the server under test.
+     */
+    public ServerEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Creates a client for the server without connecting it.
+     * @param name Nickname of the client.
+     * @return The new client, closed with the harness.
+     */
+    public synchronized ScriptedClient newClient(String name) {
+        ScriptedClient client = new ScriptedClient(name, model.getPort());
+        clients.add(client);
+        return client;
+    }
+
+    /**
+     * Creates a client, connects it and registers its nickname.
+     * @param name Nickname of the client.
+     * @return The connected client, closed with the harness.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public ScriptedClient join(String name) throws InterruptedException {
+        ScriptedClient client = newClient(name);
+        client.join(TIMEOUT_MILLIS);
+        return client;
+    }
+
+    /**
+     * Closes every client and kills the server if it is still running.
+     */
+    @Override
+    public void close() {
+        List<ScriptedClient> open;
+        synchronized (this) {
+            open = new ArrayList<>(clients);
+            clients.clear();
+        }
+        for (ScriptedClient client : open) {
+            client.close();
+        }
+        if (model.isStarted()) {
+            engine.kill();
+        }
+        events.close();
+    }
+
+    /**
+     * Waits for a condition to become true.
+     * @param condition The condition to poll.
+     * @param timeoutMillis How long to wait.
+     * @return True if the condition became true in time.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public static boolean await(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    /**
+     * Sends the opening handshake of a WebSocket the way a browser does.
+     * @param socket The connection to the gateway, with a read timeout.
+     * @param origin The origin of the page opening the WebSocket.
+     * @return The response head, status line and headers.
+     * @throws IOException If the connection fails or times out.
+     */
+    public static String openWebSocket(Socket socket, String origin) throws IOException {
+        String request = "GET /chat HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: " + WEBSOCKET_KEY + "\r\nSec-WebSocket-Version: 13\r\n"
+            + "Origin: " + origin + "\r\n\r\n";
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+        StringBuilder response = new StringBuilder();
+        while (response.indexOf("\r\n\r\n") < 0) {
+            int next = socket.getInputStream().read();
+            if (next < 0) {
+                break;
+            }
+            response.append((char) next);
+        }
+        return response.toString();
+    }
+
+    /**
+     * Sends a text message over a WebSocket, masked as a browser must.
+     * @param socket The upgraded connection.
+     * @param text The message.
+     * @throws IOException If the connection fails.
+     */
+    public static void writeWebSocketText(Socket socket, String text) throws IOException {
+        writeWebSocketFrame(socket, 0x1, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends one masked frame over a WebSocket.
+     * @param socket The upgraded connection.
+     * @param opcode The frame opcode.
+     * @param payload The unmasked payload, at most 65535 bytes.
+     * @throws IOException If the connection fails.
+     */
+    public static void writeWebSocketFrame(Socket socket, int opcode, byte[] payload) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+        frame.put((byte) (0x80 | opcode));
+        if (payload.length < 126) {
+            frame.put((byte) (0x80 | payload.length));
+        } else {
+            frame.put((byte) (0x80 | 126)).putShort((short) payload.length);
+        }
+        byte[] mask = new byte[4];
+        ThreadLocalRandom.current().nextBytes(mask);
+        frame.put(mask);
+        for (int i = 0; i < payload.length; i++) {
+            frame.put((byte) (payload[i] ^ mask[i & 3]));
+        }
+        OutputStream out = socket.getOutputStream();
+        out.write(frame.array(), 0, frame.position());
+        out.flush();
+    }
+
+    /**
+     * Reads one frame sent by the server over a WebSocket.
+     * @param socket The upgraded connection, with a read timeout.
+     * @return The opcode, a space and the payload as UTF-8 text.
+     * @throws IOException If the connection fails or times out.
+     */
+    public static String readWebSocketFrame(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        int opcode = in.readUnsignedByte() & 0x0F;
+        long length = in.readUnsignedByte() & 0x7F;
+        if (length == 126) {
+            length = in.readUnsignedShort();
+        } else if (length == 127) {
+            length = in.readLong();
+        }
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        return opcode + " " + new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Counts the live threads started by server engines and sessions.
+     * @return The number of server threads still running in this process.
+     */
+    public static int countServerThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            for (String prefix : SERVER_THREADS) {
+                if (thread.isAlive() && thread.getName().startsWith(prefix)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,987 @@
+package server.client.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Drives an in-process server with scripted clients over loopback.
+ *
+ * @author Robert McKay
+ */
+public class ChatIntegrationTest {
+    // class constants
+    private static final long TIMEOUT = ChatHarness.TIMEOUT_MILLIS;
+    // long enough for the presence hub to flush a window
+    private static final long PRESENCE_WINDOW_MILLIS = 1000;
+
+    // class data members
+    private ChatHarness harness;
+
+    @BeforeEach
+    public void startServer() {
+        harness = new ChatHarness();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        harness.close();
+    }
+
+    /**
+     * Starts a second server whose sessions may send only a few messages a second.
+     */
+    private static ChatHarness withSessionRate(int rate) throws ServerModelException {
+        String previous = System.getProperty("chat.rate.session");
+        System.setProperty("chat.rate.session", Integer.toString(rate));
+        try {
+            return new ChatHarness();
+        } finally {
+            System.setProperty("chat.rate.session", previous);
+        }
+    }
+
+    @Test
+    public void roomMessagesReachEveryOtherMemberInSenderOrder() throws Exception {
+        int clientCount = 8;
+        int perClient = 100;
+        List<ScriptedClient> clients = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            clients.add(harness.join("user" + i));
+        }
+        ExecutorService senders = Executors.newFixedThreadPool(clientCount);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> sent = new ArrayList<>();
+        for (ScriptedClient client : clients) {
+            sent.add(senders.submit(() -> {
+                go.await();
+                for (int n = 0; n < perClient; n++) {
+                    client.getModel().sendReliable("m" + n);
+                }
+                return null;
+            }));
+        }
+        go.countDown();
+        for (Future<?> future : sent) {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        senders.shutdown();
+
+        for (ScriptedClient client : clients) {
+            List<String> received = client.awaitRoomMessages((clientCount - 1) * perClient, TIMEOUT);
+            Map<String, Integer> next = new HashMap<>();
+            for (String line : received) {
+                // "[lobby] <sender> mN"
+                String sender = line.substring(line.indexOf('<') + 1, line.indexOf('>'));
+                int n = Integer.parseInt(line.substring(line.lastIndexOf('m') + 1));
+                assertFalse(sender.equals(client.getName()), "a sender must not receive its own message");
+                assertEquals(next.getOrDefault(sender, 0).intValue(), n, "messages of " + sender + " out of order");
+                next.put(sender, n + 1);
+            }
+            assertEquals(clientCount - 1, next.size());
+        }
+        for (ScriptedClient client : clients) {
+            ScriptedClient sender = client;
+            assertTrue(ChatHarness.await(() -> sender.getDelivered().size() >= perClient + 1, TIMEOUT),
+                "every message of " + client.getName() + " must be acknowledged");
+        }
+    }
+
+    @Test
+    public void directMessagesReachOnlyTheTarget() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        ScriptedClient bob = harness.join("bob");
+        ScriptedClient carol = harness.join("carol");
+
+        alice.getModel().sendReliable("/msg bob hello bob");
+        alice.getModel().sendReliable("after");
+        assertEquals("[private from alice] hello bob", bob.awaitLine(line -> line.startsWith("["), TIMEOUT));
+        // alice's messages are handled in order, so carol sees the room message first if
+        // the private one never reached her
+        assertEquals("[lobby] <alice> after", carol.awaitLine(line -> line.startsWith("["), TIMEOUT));
+    }
+
+    @Test
+    public void editsAndDeletesReachTheRoomAndCompactAway() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        ScriptedClient bob = harness.join("bob");
+        MessageStore history = harness.getModel().getHistory();
+
+        alice.getModel().sendReliable("first");
+        alice.getModel().sendReliable("secnod");
+        bob.awaitRoomMessages(2, TIMEOUT);
+        alice.getModel().sendReliable("/edit second");
+        assertEquals("/edited lobby alice second", bob.awaitLine(line -> line.startsWith("/edited"), TIMEOUT));
+        alice.getModel().sendReliable("/delete");
+        assertEquals("/deleted lobby alice", bob.awaitLine(line -> line.startsWith("/deleted"), TIMEOUT));
+        // the deleted message is skipped, the edit goes to the one before it
+        alice.getModel().sendReliable("/edit first again");
+        assertEquals("/edited lobby alice first again", bob.awaitLine(line -> line.startsWith("/edited"), TIMEOUT));
+        bob.getModel().sendReliable("/delete");
+        assertEquals("You have no message to delete in lobby", bob.awaitLine(line -> line.startsWith("You"), TIMEOUT));
+
+        int first = history.findLatest("lobby", "alice", Protocol.REVISION_REACH);
+        assertEquals("first again", history.getBody(first));
+        assertTrue(history.isDeleted(first + 1));
+        assertNull(history.getBody(first + 1));
+        assertEquals(0, harness.getModel().search("lobby", "secnod", 5).length);
+        assertEquals(1, harness.getModel().search("lobby", "first", 5).length);
+        assertEquals(0, harness.getModel().search("lobby", "again", 5).length);
+
+        assertEquals(2, history.getPendingCount());
+        assertEquals(2, history.compact());
+        assertEquals(0, history.getPendingCount());
+        assertEquals("first again", history.getBody(first));
+        assertNull(history.getBody(first + 1));
+        assertTrue(history.isEdited(first) && history.isDeleted(first + 1));
+    }
+
+    @Test
+    public void reconnectingClientSyncsOnlyTheMessagesItMissed() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        ScriptedClient bob = harness.join("bob");
+        Path directory = Files.createTempDirectory("chat-cache");
+        MessageCache cache = new MessageCache(directory, 3);
+        long epoch = harness.getModel().getHistoryEpoch();
+
+        bob.getModel().sendMessage("/sync lobby " + cache.getEpoch("lobby") + " " + cache.getLastId("lobby"));
+        assertEquals("/replay lobby " + epoch + " -1 0",
+            bob.awaitLine(line -> line.startsWith("/replay"), TIMEOUT));
+        assertFalse(cache.replay("lobby", epoch, -1));
+        alice.getModel().sendReliable("one");
+        alice.getModel().sendReliable("two");
+        for (int n = 0; n < 2; n++) {
+            String[] post = bob.awaitLine(line -> line.startsWith("/post"), TIMEOUT).split(" ", 6);
+            assertEquals(n, Integer.parseInt(post[2]));
+            assertTrue(cache.add(post[1], n, Long.parseLong(post[3]), post[4], post[5]));
+        }
+        bob.close();
+
+        alice.getModel().sendReliable("three");
+        alice.getModel().sendReliable("/join games");
+        alice.getModel().sendReliable("elsewhere");
+        alice.getModel().sendReliable("/join lobby");
+        alice.getModel().sendReliable("four");
+        alice.getModel().sendReliable("five");
+        MessageStore history = harness.getModel().getHistory();
+        assertTrue(ChatHarness.await(() -> history.size() == 6, TIMEOUT));
+
+        // only the lobby messages after the last one cached come back
+        ScriptedClient again = harness.join("bob");
+        again.getModel().sendMessage("/sync lobby " + epoch + " " + cache.getLastId("lobby"));
+        assertEquals("/replay lobby " + epoch + " 1 3",
+            again.awaitLine(line -> line.startsWith("/replay"), TIMEOUT));
+        assertFalse(cache.replay("lobby", epoch, 1));
+        List<String> bodies = new ArrayList<>();
+        for (int n = 0; n < 3; n++) {
+            String[] post = again.awaitLine(line -> line.startsWith("/history"), TIMEOUT).split(" ", 6);
+            bodies.add(post[5]);
+            assertTrue(cache.add(post[1], Integer.parseInt(post[2]), Long.parseLong(post[3]), post[4], post[5]));
+        }
+        assertEquals(List.of("three", "four", "five"), bodies);
+        alice.getModel().sendReliable("/edit five!");
+        String[] edit = again.awaitLine(line -> line.startsWith("/edited"), TIMEOUT).split(" ", 4);
+        assertTrue(cache.revise(edit[1], edit[2], edit[3]));
+        // live messages come with their ids, and the sender gets its own back for its cache
+        again.getModel().sendReliable("six");
+        String own = again.awaitLine(line -> line.startsWith("/post"), TIMEOUT);
+        assertEquals("/post lobby 6 " + history.getTimestamp(6) + " bob six", own);
+        cache.close();
+
+        MessageCache reloaded = new MessageCache(directory, 3);
+        assertEquals(5, reloaded.getLastId("lobby"));
+        List<String> transcript = reloaded.getTranscript("lobby");
+        assertEquals(3, transcript.size());
+        assertTrue(transcript.get(0).endsWith("[lobby] <alice> three"));
+        assertTrue(transcript.get(2).endsWith("[lobby] <alice> five! (edited)"));
+        // a cache from another history starts over
+        again.getModel().sendMessage("/sync lobby " + (epoch - 1) + " 5");
+        assertEquals("/replay lobby " + epoch + " -1 6",
+            again.awaitLine(line -> line.startsWith("/replay"), TIMEOUT));
+        assertTrue(reloaded.replay("lobby", epoch, -1));
+        assertEquals(-1, reloaded.getLastId("lobby"));
+    }
+
+    @Test
+    public void aReplayGoesOutBehindTheLiveChat() throws Exception {
+        // a syncing client holds the posts back until its replay has arrived
+        ScriptedClient alice = harness.join("alice");
+        ScriptedClient bob = harness.join("bob");
+        alice.getModel().sendReliable("before");
+        bob.awaitLine(line -> line.endsWith("before"), TIMEOUT);
+        bob.getModel().sendMessage("/sync lobby " + harness.getModel().getHistoryEpoch() + " -1");
+        assertEquals("/replay lobby " + harness.getModel().getHistoryEpoch() + " -1 1",
+            bob.awaitLine(line -> line.startsWith("/replay"), TIMEOUT));
+        assertTrue(bob.awaitLine(line -> line.startsWith("/history"), TIMEOUT).endsWith(" alice before"));
+        alice.getModel().sendReliable("after");
+        assertTrue(bob.awaitLine(line -> line.startsWith("/post"), TIMEOUT).endsWith(" alice after"));
+    }
+
+    @Test
+    public void concurrentPostsReachEveryCacheInIdOrder() throws Exception {
+        int clientCount = 6;
+        int perClient = 200;
+        List<ScriptedClient> clients = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            ScriptedClient client = harness.join("user" + i);
+            client.getModel().sendMessage("/sync lobby " + harness.getModel().getHistoryEpoch() + " -1");
+            client.awaitLine(line -> line.startsWith("/replay"), TIMEOUT);
+            clients.add(client);
+        }
+        ExecutorService senders = Executors.newFixedThreadPool(clientCount);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> sent = new ArrayList<>();
+        for (ScriptedClient client : clients) {
+            sent.add(senders.submit(() -> {
+                go.await();
+                for (int n = 0; n < perClient; n++) {
+                    client.getModel().sendReliable("m" + n);
+                }
+                return null;
+            }));
+        }
+        go.countDown();
+        for (Future<?> future : sent) {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        senders.shutdown();
+
+        // a cache drops a post whose id is not above the last one, so a late frame is lost for good
+        for (ScriptedClient client : clients) {
+            int last = -1;
+            for (int n = 0; n < clientCount * perClient; n++) {
+                String post = client.awaitLine(line -> line.startsWith(Protocol.POST_FRAME), TIMEOUT);
+                int id = Integer.parseInt(post.split(" ")[2]);
+                assertTrue(last < 0 || id == last + 1, client.getName() + " got post " + id + " after " + last);
+                last = id;
+            }
+        }
+    }
+
+    @Test
+    public void flightEventsBreakAMessageDownByStage() throws Exception {
+        assertTrue(FlightEvents.ENABLED, "the tests run with -Dchat.jfr=true");
+        String[] stages = {"chat.FrameDecode", "chat.FanOut", "chat.QueueWait", "chat.SocketWrite"};
+        Path output = Files.createTempFile("chat", ".jfr");
+        // the settings shipped with the server, every stage recorded however fast
+        try (Recording recording = new Recording(Configuration.create(Paths.get("src/dist/chat.jfc")))) {
+            for (String stage : stages) {
+                recording.enable(stage).withoutThreshold();
+            }
+            recording.start();
+            ScriptedClient alice = harness.join("alice");
+            ScriptedClient bob = harness.join("bob");
+            alice.getModel().sendReliable("traced");
+            bob.awaitLine(line -> line.endsWith("traced"), TIMEOUT);
+            recording.stop();
+            recording.dump(output);
+        }
+
+        Map<String, Integer> counts = new HashMap<>();
+        int fanOuts = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(output)) {
+            String stage = event.getEventType().getName();
+            if (Protocol.DEFAULT_ROOM.equals(event.getString("room"))) {
+                counts.merge(stage, 1, Integer::sum);
+            }
+            if (stage.equals("chat.FanOut") && event.getInt("recipients") == 1) {
+                fanOuts++;
+            }
+        }
+        Files.delete(output);
+        for (String stage : stages) {
+            assertTrue(counts.getOrDefault(stage, 0) > 0, "no " + stage + " event");
+        }
+        assertEquals(1, fanOuts);
+    }
+
+    @Test
+    public void browsersShareTheRoomsOverWebSocket() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        int port = harness.getEngine().openGateway(0, List.of("https://chat.test"));
+        String greeting = "h\u00e9llo from a browser";
+
+        try (Socket browser = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            browser.setSoTimeout((int) TIMEOUT);
+            String response = ChatHarness.openWebSocket(browser, "https://chat.test");
+            assertTrue(response.startsWith("HTTP/1.1 101 "), response);
+            assertTrue(response.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"), response);
+            assertEquals(WebSocketChannel.accept(ChatHarness.WEBSOCKET_KEY), "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=");
+            ChatHarness.writeWebSocketText(browser, "/nick webby");
+            ChatHarness.writeWebSocketText(browser, greeting);
+            alice.awaitLine(line -> line.endsWith("[lobby] <webby> " + greeting), TIMEOUT);
+
+            // room messages reach the browser as one text frame each
+            alice.getModel().sendReliable("hi " + greeting);
+            String frame;
+            do {
+                frame = ChatHarness.readWebSocketFrame(browser);
+                assertTrue(frame.startsWith("1 "), frame);
+            } while (!frame.equals("1 [lobby] <alice> hi " + greeting));
+            ChatHarness.writeWebSocketFrame(browser, 0x9, "ping".getBytes(StandardCharsets.UTF_8));
+            while (!(frame = ChatHarness.readWebSocketFrame(browser)).startsWith("10 ")) {
+                assertTrue(frame.startsWith("1 "), frame);
+            }
+            assertEquals("10 ping", frame);
+
+            // a close is answered and ends the session
+            ChatHarness.writeWebSocketFrame(browser, 0x8, new byte[] {0x03, (byte) 0xE8});
+            while (!(frame = ChatHarness.readWebSocketFrame(browser)).startsWith("8 ")) {
+                assertTrue(frame.startsWith("1 "), frame);
+            }
+            assertTrue(ChatHarness.await(() -> harness.getModel().getSessions().size() == 1, TIMEOUT));
+        }
+
+        // a page of another site is refused before it joins a room
+        try (Socket other = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            other.setSoTimeout((int) TIMEOUT);
+            assertTrue(ChatHarness.openWebSocket(other, "https://elsewhere.test").startsWith("HTTP/1.1 403 "));
+            assertEquals(-1, other.getInputStream().read());
+        }
+        assertEquals(1, harness.getModel().getSessions().size());
+    }
+
+    @Test
+    public void aShedBrowserIsToldInHttpToComeBackLater() throws Exception {
+        harness.join("alice");
+        int port = harness.getEngine().openGateway(0, List.of());
+        AdmissionControl admission = harness.getModel().getAdmission();
+        admission.setMaxSessions(1);
+
+        try (Socket browser = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            browser.setSoTimeout((int) TIMEOUT);
+            String response = ChatHarness.openWebSocket(browser, "https://chat.test");
+            assertTrue(response.startsWith("HTTP/1.1 503 "), response);
+            String retryAfter = response.substring(response.indexOf("Retry-After: ") + 13, response.indexOf(
+                "\r\n", response.indexOf("Retry-After: ")));
+            assertTrue(Integer.parseInt(retryAfter) >= 5, response);
+            assertEquals(-1, browser.getInputStream().read());
+        }
+        // a native client still reads a chat frame
+        try (Socket client = new Socket(InetAddress.getLoopbackAddress(), harness.getModel().getPort())) {
+            client.setSoTimeout((int) TIMEOUT);
+            String reply = new String(client.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(reply.contains(Protocol.RECONNECT_FRAME + "5000 10000"), reply);
+        }
+        assertEquals(2, admission.getShed());
+        assertEquals(1, harness.getModel().getSessions().size());
+    }
+
+    @Test
+    public void anAddressOverItsLimitIsRefusedUntilOneOfItsSessionsCloses() throws Exception {
+        AdmissionControl admission = harness.getModel().getAdmission();
+        admission.setMaxPerAddress(2);
+        ScriptedClient alice = harness.join("alice");
+        harness.join("bob");
+        try (Socket refused = new Socket(InetAddress.getLoopbackAddress(), harness.getModel().getPort())) {
+            refused.setSoTimeout((int) TIMEOUT);
+            String reply = new String(refused.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(reply.contains(Protocol.SERVER_CLOSED), reply);
+        }
+        assertEquals(1, admission.getShed());
+        assertEquals(2, admission.getAdmitted());
+
+        alice.getModel().sendMessage(Protocol.CLIENT_CLOSED);
+        alice.getModel().disconnect();
+        assertTrue(ChatHarness.await(() -> admission.getAdmitted() == 1, TIMEOUT));
+        harness.join("carol");
+        assertEquals(2, admission.getAdmitted());
+        assertEquals(1, admission.getShed());
+    }
+
+    @Test
+    public void adminConsoleListsKicksAndRetunesLive() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        ScriptedClient bob = harness.join("bob");
+        alice.getModel().sendReliable("hello");
+        bob.awaitRoomMessages(1, TIMEOUT);
+        Path socket = Files.createTempDirectory("chat-admin").resolve("admin.sock");
+        AdminConsole console = new AdminConsole(harness.getEngine(), socket);
+        console.start();
+
+        List<String> sessions = new ArrayList<>();
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            channel.write(StandardCharsets.UTF_8.encode("sessions\n"));
+            BufferedReader reply = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+            String line;
+            while (!(line = reply.readLine()).equals(AdminConsole.END)) {
+                sessions.add(line);
+            }
+        }
+        assertEquals(3, sessions.size());
+        assertTrue(sessions.stream().anyMatch(line -> line.matches("\\d+ alice lobby \\S+ \\d+ [1-9]\\d* .*")),
+            sessions.toString());
+
+        assertEquals(List.of("rate.session 7"), console.execute("limit rate.session 7"));
+        assertEquals(7, harness.getModel().getRateLimiter().getSessionRate());
+        assertTrue(console.execute("limits").contains("rate.session 7"));
+        assertTrue(console.execute("limit rate.bogus 1").get(0).startsWith(AdminConsole.ERROR));
+        assertTrue(console.execute("limit rate.room 0").get(0).startsWith(AdminConsole.ERROR));
+
+        assertEquals(List.of("kicked 1"), console.execute("kick bob"));
+        assertTrue(ChatHarness.await(() -> harness.getModel().getSessions("bob").isEmpty(), TIMEOUT));
+        assertTrue(console.execute("metrics").contains("sessions.open 1"));
+        console.stop();
+        assertFalse(Files.exists(socket));
+    }
+
+    @Test
+    public void theAdminSocketIsPrivateAndSurvivesAHandoff() throws Exception {
+        Path directory = Files.createTempDirectory("chat-admin");
+        Path socket = directory.resolve("admin.sock");
+        // a socket file left behind by a server that died is replaced
+        ServerSocketChannel stale = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        stale.bind(UnixDomainSocketAddress.of(socket));
+        stale.close();
+        AdminConsole old = new AdminConsole(harness.getEngine(), socket);
+        old.start();
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(socket));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(List.of(socket), files.collect(Collectors.toList()));
+        }
+
+        // a second console does not take the socket of one that still answers
+        AdminConsole rival = new AdminConsole(harness.getEngine(), socket);
+        assertThrows(IOException.class, rival::start);
+        assertTrue(adminCommand(socket, "help").get(0).startsWith("commands: "));
+
+        // once a replacement owns the path, the old console leaves it alone when it stops
+        Files.delete(socket);
+        AdminConsole replacement = new AdminConsole(harness.getEngine(), socket);
+        replacement.start();
+        old.stop();
+        assertTrue(Files.exists(socket));
+        assertFalse(adminCommand(socket, "limits").isEmpty());
+        replacement.stop();
+        assertFalse(Files.exists(socket));
+    }
+
+    private static List<String> adminCommand(Path socket, String command) throws IOException {
+        List<String> reply = new ArrayList<>();
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            channel.write(StandardCharsets.UTF_8.encode(command + "\n"));
+            BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null && !line.equals(AdminConsole.END)) {
+                reply.add(line);
+            }
+        }
+        return reply;
+    }
+
+    @Test
+    public void readBuffersFollowTheTrafficAndShrinkWhenIdle() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        ScriptedClient bob = harness.join("bob");
+        ServerSession session = harness.getModel().getSessions("alice").iterator().next();
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 900) {
+            text.append("burst ");
+        }
+        for (int n = 0; n < 200; n++) {
+            alice.getModel().sendReliable(n + " " + text);
+        }
+        assertEquals(200, bob.awaitRoomMessages(200, TIMEOUT).size());
+        // caught up: only the small read buffer and the line buffer are left
+        assertTrue(ChatHarness.await(() -> session.getReadBufferBytes() <= 2048, TIMEOUT),
+            "idle session holds " + session.getReadBufferBytes() + " bytes");
+    }
+
+    @Test
+    public void roomsIsolateTheirMembers() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        ScriptedClient bob = harness.join("bob");
+        ScriptedClient carol = harness.join("carol");
+        bob.getModel().sendReliable("/join games");
+        bob.awaitLine(line -> line.equals("Joined room games"), TIMEOUT);
+
+        alice.getModel().sendReliable("lobby only");
+        bob.getModel().sendReliable("games only");
+        assertEquals("[lobby] <alice> lobby only", carol.awaitLine(line -> line.startsWith("["), TIMEOUT));
+        carol.getModel().sendReliable("/join games");
+        carol.awaitLine(line -> line.equals("Joined room games"), TIMEOUT);
+        carol.getModel().sendReliable("hi games");
+        assertEquals("[games] <carol> hi games", bob.awaitLine(line -> line.startsWith("["), TIMEOUT));
+    }
+
+    @Test
+    public void filtersApplyBeforeFanOutAndSwapWithoutDroppingSessions() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        ScriptedClient bob = harness.join("bob");
+        FilterPipeline filters = harness.getModel().getFilters();
+        filters.setStages(List.of(new KeywordFilter(List.of("darn"), true, KeywordFilter.MASK)));
+
+        alice.getModel().sendReliable("darn it, darnation");
+        assertEquals("[lobby] <alice> **** it, darnation", bob.awaitLine(line -> line.startsWith("["), TIMEOUT));
+
+        filters.setStages(List.of(FilterPipeline.blockLinks()));
+        alice.getModel().sendReliable("see www.example.com");
+        assertEquals("Message not sent: links are not allowed",
+            alice.awaitLine(line -> line.startsWith("Message not sent"), TIMEOUT));
+        alice.getModel().sendReliable("darn again");
+        assertEquals("[lobby] <alice> darn again", bob.awaitLine(line -> line.startsWith("["), TIMEOUT));
+        assertEquals(2, harness.getModel().getSessions().size());
+    }
+
+    @Test
+    public void clientDisconnectLeavesOthersConnected() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        ScriptedClient bob = harness.join("bob");
+        ScriptedClient carol = harness.join("carol");
+        ServerModel model = harness.getModel();
+        assertEquals(3, model.getSessions().size());
+
+        bob.getModel().sendMessage(Protocol.CLIENT_CLOSED);
+        bob.getModel().disconnect();
+        assertTrue(ChatHarness.await(() -> model.getSessions().size() == 2, TIMEOUT));
+        assertTrue(model.getSessions("bob").isEmpty());
+        assertEquals(2, model.getAdmission().getAdmitted());
+
+        alice.getModel().sendReliable("still here");
+        assertEquals("[lobby] <alice> still here", carol.awaitLine(line -> line.startsWith("["), TIMEOUT));
+    }
+
+    @Test
+    public void abruptDisconnectIsCleanedUp() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        ScriptedClient bob = harness.join("bob");
+        ServerModel model = harness.getModel();
+
+        bob.close();
+        assertTrue(ChatHarness.await(() -> model.getSessions().size() == 1, TIMEOUT));
+        assertTrue(model.getSessions("bob").isEmpty());
+        alice.getModel().sendReliable("/msg carol are you there");
+        assertEquals("User carol is not connected", alice.awaitLine(line -> line.startsWith("User"), TIMEOUT));
+    }
+
+    @Test
+    public void aPrivateMessageCannotNameAFileOutsideTheMailboxes() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        Path outside = Files.createTempFile(Paths.get(System.getProperty("chat.mailbox.dir")).getParent(),
+            "victim", ".mbox");
+        try {
+            String target = "../" + outside.getFileName().toString().replace(".mbox", "");
+            alice.getModel().sendReliable("/msg " + target + " hello");
+            assertEquals("User " + target + " is not connected",
+                alice.awaitLine(line -> line.startsWith("User"), TIMEOUT));
+            assertEquals(0, Files.size(outside));
+        } finally {
+            Files.delete(outside);
+        }
+    }
+
+    @Test
+    public void offlineMessagesSpillToDiskAndArriveInOrder() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        ScriptedClient bob = harness.join("bob");
+        bob.getModel().sendMessage(Protocol.CLIENT_CLOSED);
+        bob.getModel().disconnect();
+        MailboxStore mailboxes = harness.getModel().getMailboxes();
+        assertTrue(ChatHarness.await(() -> harness.getModel().getSessions("bob").isEmpty(), TIMEOUT));
+
+        int count = 60;
+        for (int n = 0; n < count; n++) {
+            alice.getModel().sendReliable("/msg bob letter " + n);
+        }
+        alice.awaitLine(line -> line.startsWith("User bob is offline"), TIMEOUT);
+        assertTrue(ChatHarness.await(() -> alice.getDelivered().size() >= count + 1, TIMEOUT));
+        assertTrue(mailboxes.getSpilled() > 0, "a backlog beyond the memory budget must spill to disk");
+        assertTrue(mailboxes.getResidentBytes() <= 4096);
+
+        ScriptedClient back = harness.join("bob");
+        for (int n = 0; n < count; n++) {
+            String line = back.awaitLine(text -> text.startsWith("[offline "), TIMEOUT);
+            assertTrue(line.endsWith("] [private from alice] letter " + n), line);
+        }
+        alice.getModel().sendReliable("/msg bob live again");
+        assertEquals("[private from alice] live again", back.awaitLine(line -> line.startsWith("["), TIMEOUT));
+        assertEquals(0, mailboxes.getDropped());
+    }
+
+    @Test
+    public void aFloodingSessionIsToldOnceAndThenPaced() throws Exception {
+        try (ChatHarness limited = withSessionRate(5)) {
+            ScriptedClient alice = limited.join("alice");
+            ScriptedClient bob = limited.join("bob");
+            // the burst allows 10 messages at once, the other 20 trickle in at 5 a second
+            int count = 30;
+            long start = System.nanoTime();
+            for (int n = 0; n < count; n++) {
+                alice.getModel().sendReliable("flood " + n);
+            }
+            List<String> received = bob.awaitRoomMessages(count, TIMEOUT);
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            for (int n = 0; n < count; n++) {
+                assertEquals("[lobby] <alice> flood " + n, received.get(n));
+            }
+            assertTrue(millis >= 3000, count + " messages got through in " + millis + " ms");
+            long notices = alice.takeLines().stream()
+                .filter(line -> line.startsWith(Protocol.THROTTLE_FRAME)).count();
+            assertEquals(1, notices, "throttle notices");
+        }
+    }
+
+    @Test
+    public void aLaterLimitGivesBackTheTokensOfTheEarlierOnes() throws Exception {
+        try (ChatHarness limited = withSessionRate(5)) {
+            limited.join("carol");
+            limited.join("dave");
+            ServerSession carol = limited.getModel().getSessions("carol").iterator().next();
+            ServerSession dave = limited.getModel().getSessions("dave").iterator().next();
+
+            // a room bucket of 2 turns away carol's third message many times over
+            RateLimiter roomLimited = new RateLimiter(1000, 1, 1000);
+            assertEquals(0, roomLimited.acquire(carol, "lobby"));
+            assertEquals(0, roomLimited.acquire(carol, "lobby"));
+            for (int n = 0; n < 20; n++) {
+                assertTrue(roomLimited.acquire(carol, "lobby") > 0);
+            }
+            // each refusal put the session token back, so the session bucket is far from empty
+            for (int n = 0; n < 5; n++) {
+                assertEquals(0, carol.getInboundLimit().tryAcquire());
+            }
+
+            // a room of 1 a second and a global limit of 2 a second, drained through other rooms
+            RateLimiter globalLimited = new RateLimiter(1000, 1, 2);
+            assertEquals(0, globalLimited.acquire(dave, "lobby"));
+            for (int n = 0; n < 3; n++) {
+                assertEquals(0, globalLimited.acquire(dave, "room" + n));
+            }
+            for (int n = 0; n < 20; n++) {
+                assertTrue(globalLimited.acquire(dave, "lobby") > 0);
+            }
+            // a second on, the lobby has refilled to 2 only if the refusals gave its token back
+            Thread.sleep(1100);
+            assertEquals(0, globalLimited.acquire(dave, "lobby"));
+            assertEquals(0, globalLimited.acquire(dave, "lobby"));
+            assertTrue(globalLimited.acquire(dave, "lobby") > 0);
+        }
+    }
+
+    @Test
+    public void filesResumeFromAnOffsetAtBothEnds() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        ScriptedClient bob = harness.join("bob");
+        byte[] file = new byte[10000];
+        for (int i = 0; i < file.length; i++) {
+            file[i] = (byte) (i * 31);
+        }
+        alice.getModel().sendMessage("/file-offer t1 bob " + file.length + " notes.txt");
+        String[] ready = alice.awaitLine(line -> line.startsWith(Protocol.FILE_READY), TIMEOUT).split(" ");
+        assertEquals("t1", ready[1]);
+        assertEquals("0", ready[3]);
+        int id = Integer.parseInt(ready[2]);
+        assertEquals(Protocol.FILE_INCOMING + id + " alice " + file.length + " notes.txt",
+            bob.awaitLine(line -> line.startsWith(Protocol.FILE_INCOMING), TIMEOUT));
+        alice.getModel().sendChunk(id, 0, Arrays.copyOfRange(file, 0, 4096), 4096);
+        alice.getModel().sendChunk(id, 4096, Arrays.copyOfRange(file, 4096, 8192), 4096);
+        assertTrue(Arrays.equals(Arrays.copyOf(file, 8192), bob.awaitFile(id, 8192, TIMEOUT)));
+
+        // both ends drop off; the recipient asks for the bytes from where it left off
+        bob.close();
+        alice.close();
+        ScriptedClient bobAgain = harness.join("bob");
+        bobAgain.getModel().sendMessage(Protocol.FILE_RESUME + id + " 4096");
+        bobAgain.awaitLine(line -> line.startsWith(Protocol.FILE_INCOMING + id + " "), TIMEOUT);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(file, 4096, 8192), bobAgain.awaitFile(id, 4096, TIMEOUT)));
+
+        // and the sender re-offers the same file and continues from the last byte received
+        ScriptedClient aliceAgain = harness.join("alice");
+        aliceAgain.getModel().sendMessage("/file-offer t1 bob " + file.length + " notes.txt");
+        assertEquals(Protocol.FILE_READY + "t1 " + id + " 8192",
+            aliceAgain.awaitLine(line -> line.startsWith(Protocol.FILE_READY), TIMEOUT));
+        aliceAgain.getModel().sendChunk(id, 8192, Arrays.copyOfRange(file, 8192, file.length), file.length - 8192);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(file, 4096, file.length),
+            bobAgain.awaitFile(id, file.length - 4096, TIMEOUT)));
+
+        bobAgain.getModel().sendMessage(Protocol.FILE_DONE + id);
+        bobAgain.getModel().sendMessage(Protocol.FILE_RESUME + id + " 0");
+        assertEquals("File transfer " + id + " is not active",
+            bobAgain.awaitLine(line -> line.startsWith("File transfer"), TIMEOUT));
+    }
+
+    @Test
+    public void openTransfersAreCappedPerUserAndDroppedWhenIdle() throws Exception {
+        System.setProperty("chat.file.maxOffers", "2");
+        System.setProperty("chat.file.idleMillis", "300");
+        try (ChatHarness limited = new ChatHarness()) {
+            ScriptedClient alice = limited.join("alice");
+            limited.join("bob");
+            alice.getModel().sendMessage("/file-offer t1 bob 100 a.txt");
+            alice.getModel().sendMessage("/file-offer t2 bob 100 b.txt");
+            alice.getModel().sendMessage("/file-offer t3 bob 100 c.txt");
+            String first = alice.awaitLine(line -> line.startsWith(Protocol.FILE_READY + "t1 "), TIMEOUT);
+            alice.awaitLine(line -> line.startsWith(Protocol.FILE_READY + "t2 "), TIMEOUT);
+            assertEquals("Too many open file transfers, at most 2",
+                alice.awaitLine(line -> line.startsWith("Too many"), TIMEOUT));
+
+            // left alone past the idle time, the transfers are dropped and free the slots
+            int id = Integer.parseInt(first.split(" ")[2]);
+            Thread.sleep(1000);
+            alice.getModel().sendChunk(id, 0, new byte[100], 100);
+            assertEquals("File transfer " + id + " is not active",
+                alice.awaitLine(line -> line.startsWith("File transfer"), TIMEOUT));
+            alice.getModel().sendMessage("/file-offer t4 bob 100 d.txt");
+            alice.awaitLine(line -> line.startsWith(Protocol.FILE_READY + "t4 "), TIMEOUT);
+        } finally {
+            System.clearProperty("chat.file.maxOffers");
+            System.clearProperty("chat.file.idleMillis");
+        }
+    }
+
+    @Test
+    public void serverDisconnectNotifiesEveryClient() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        ScriptedClient bob = harness.join("bob");
+
+        harness.getEngine().disconnect(true);
+        for (ScriptedClient client : new ScriptedClient[] {alice, bob}) {
+            client.awaitLine(line -> line.equals(Protocol.SERVER_CLOSED), TIMEOUT);
+            assertTrue(client.awaitDisconnected(TIMEOUT));
+        }
+        assertTrue(harness.getModel().getSessions().isEmpty());
+        assertTrue(harness.getModel().isStarted());
+    }
+
+    @Test
+    public void loginGatesChatAndTokensReplacePasswords() throws Exception {
+        Path directory = Files.createTempDirectory("chat-auth");
+        Path users = directory.resolve("users");
+        Authenticator authenticator = new Authenticator(users, 1000, 60000, 100, 2);
+        authenticator.load();
+        authenticator.setPassword("alice", "secret");
+        try (ChatHarness secured = new ChatHarness(authenticator)) {
+            ScriptedClient lurker = secured.newClient("lurker");
+            lurker.connect(TIMEOUT);
+            ScriptedClient laptop = secured.newClient("laptop");
+            laptop.connect(TIMEOUT);
+            laptop.getModel().sendReliable("hello");
+            laptop.awaitLine(line -> line.startsWith("Log in first"), TIMEOUT);
+            laptop.getModel().sendMessage("/login alice wrong");
+            laptop.awaitLine(line -> line.startsWith("Login failed"), TIMEOUT);
+            laptop.getModel().sendMessage("/login alice secret");
+            String auth = laptop.awaitLine(line -> line.startsWith(Protocol.AUTH_FRAME), TIMEOUT);
+            String token = auth.split(" ")[2];
+            laptop.awaitLine(line -> line.equals("Logged in as alice"), TIMEOUT);
+
+            ScriptedClient phone = secured.newClient("phone");
+            phone.connect(TIMEOUT);
+            phone.getModel().sendMessage(Protocol.TOKEN_COMMAND + "alice " + token);
+            phone.awaitLine(line -> line.equals("Logged in as alice"), TIMEOUT);
+            phone.getModel().sendReliable("/nick mallory");
+            phone.awaitLine(line -> line.startsWith("Your nickname is"), TIMEOUT);
+            laptop.getModel().sendReliable("from the laptop");
+            assertEquals("[lobby] <alice> from the laptop", phone.awaitLine(line -> line.startsWith("["), TIMEOUT));
+            // a session that has not logged in is in no room: no messages, no presence
+            assertTrue(secured.getModel().getSessions().stream().anyMatch(session -> session.getRoom() == null));
+            Thread.sleep(PRESENCE_WINDOW_MILLIS);
+            lurker.getModel().sendMessage("hello");
+            lurker.awaitLine(line -> {
+                assertFalse(line.startsWith("[") || line.startsWith(Protocol.PRESENCE_FRAME), line);
+                return line.startsWith("Log in first");
+            }, TIMEOUT);
+
+            // a new password invalidates the tokens issued for the old one
+            authenticator.setPassword("alice", "changed");
+            ScriptedClient tablet = secured.newClient("tablet");
+            tablet.connect(TIMEOUT);
+            tablet.getModel().sendMessage(Protocol.TOKEN_COMMAND + "alice " + token);
+            tablet.awaitLine(line -> line.startsWith("Login expired"), TIMEOUT);
+        } finally {
+            for (String name : new String[] {"users", "users.key", "users.tmp"}) {
+                Files.deleteIfExists(directory.resolve(name));
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    public void killStopsEveryServerThread() throws Exception {
+        List<ScriptedClient> clients = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            clients.add(harness.join("user" + i));
+        }
+        harness.getEngine().kill();
+        for (ScriptedClient client : clients) {
+            assertTrue(client.awaitDisconnected(TIMEOUT));
+        }
+        assertTrue(ChatHarness.await(() -> ChatHarness.countServerThreads() == 0, TIMEOUT),
+            "server threads still running after kill");
+        assertEquals(0, harness.getModel().getAdmission().getAdmitted());
+    }
+
+    @Test
+    public void aResumeReplaysAFullRetransmitWindow() throws Exception {
+        String streamId = "0123456789abcdef0123456789abcdef";
+        ServerModel model = harness.getModel();
+        try (Socket first = new Socket(InetAddress.getLoopbackAddress(), model.getPort())) {
+            first.setSoTimeout((int) TIMEOUT);
+            writeLines(first, Protocol.HELLO_COMMAND + streamId + " 0", "/nick dave");
+            String key = awaitWelcome(first).split(" ")[3];
+            // from here on the first connection reads nothing, its window fills up unacknowledged
+            assertTrue(ChatHarness.await(() -> !model.getSessions("dave").isEmpty(), TIMEOUT));
+            ReliableStream stream = model.getSessions("dave").iterator().next().getStream();
+            for (int n = 0; stream.getUnackedCount() < ServerModel.STREAM_CAPACITY; n++) {
+                model.deliver(Protocol.DEFAULT_ROOM, "fill " + n, null);
+            }
+
+            try (Socket second = new Socket(InetAddress.getLoopbackAddress(), model.getPort())) {
+                second.setSoTimeout((int) TIMEOUT);
+                writeLines(second, Protocol.HELLO_COMMAND + streamId + " 0 " + key);
+                BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(second.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while (!(line = reader.readLine()).startsWith(Protocol.WELCOME_FRAME)) {
+                    assertFalse(line.startsWith(ReliableStream.SEQ_FRAME), line);
+                }
+                assertTrue(line.startsWith(Protocol.WELCOME_FRAME + "1 "), line);
+                long expected = 1;
+                while (expected <= ServerModel.STREAM_CAPACITY) {
+                    line = reader.readLine();
+                    assertNotNull(line, "the resumed session was closed after " + (expected - 1) + " frames");
+                    if (line.startsWith(ReliableStream.SEQ_FRAME)) {
+                        assertEquals(expected++, ReliableStream.sequenceOf(line));
+                    }
+                }
+                assertTrue(ChatHarness.await(() -> model.getSessions().size() == 1, TIMEOUT));
+            }
+        }
+    }
+
+    @Test
+    public void onlyTheHolderOfTheKeyResumesAStream() throws Exception {
+        String streamId = "fedcba9876543210fedcba9876543210";
+        ServerModel model = harness.getModel();
+        try (Socket owner = new Socket(InetAddress.getLoopbackAddress(), model.getPort())) {
+            owner.setSoTimeout((int) TIMEOUT);
+            writeLines(owner, Protocol.HELLO_COMMAND + streamId + " 0", "/nick dave");
+            String key = awaitWelcome(owner).split(" ")[3];
+            assertTrue(ChatHarness.await(() -> !model.getSessions("dave").isEmpty(), TIMEOUT));
+            ServerSession session = model.getSessions("dave").iterator().next();
+
+            for (String presented : new String[] {"", " " + key + "x"}) {
+                try (Socket thief = new Socket(InetAddress.getLoopbackAddress(), model.getPort())) {
+                    thief.setSoTimeout((int) TIMEOUT);
+                    writeLines(thief, Protocol.HELLO_COMMAND + streamId + " 0" + presented);
+                    BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(thief.getInputStream(), StandardCharsets.UTF_8));
+                    String line;
+                    while (!(line = reader.readLine()).startsWith("Stream ")) {
+                        assertFalse(line.startsWith(Protocol.WELCOME_FRAME), line);
+                    }
+                    assertEquals("Stream " + streamId + " belongs to another client", line);
+                }
+            }
+            assertTrue(session.isConnected());
+            assertEquals(streamId, session.getStreamId());
+            model.deliver(Protocol.DEFAULT_ROOM, "still yours", null);
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(owner.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            do {
+                line = reader.readLine();
+            } while (!line.startsWith(ReliableStream.SEQ_FRAME));
+            assertEquals("still yours", ReliableStream.messageOf(line));
+        }
+    }
+
+    /**
+     * Reads what the server sent a raw connection up to the welcome of its stream. Reads one
+     * byte at a time, so nothing after the welcome is taken from the socket.
+     */
+    private static String awaitWelcome(Socket socket) throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int next = socket.getInputStream().read();
+            if (next < 0) {
+                throw new AssertionError("connection closed before the welcome");
+            }
+            if (next != '\n') {
+                line.append((char) next);
+            } else if (line.toString().startsWith(Protocol.WELCOME_FRAME)) {
+                return line.toString();
+            } else {
+                line.setLength(0);
+            }
+        }
+    }
+
+    private static void writeLines(Socket socket, String... lines) throws IOException {
+        for (String line : lines) {
+            socket.getOutputStream().write(Protocol.encodeLine(line).array());
+        }
+        socket.getOutputStream().flush();
+    }
+
+    @Test
+    public void drainClosesTheAdminConsole() throws Exception {
+        Path socket = Files.createTempDirectory("chat-admin").resolve("admin.sock");
+        System.setProperty("chat.admin.socket", socket.toString());
+        ChatHarness drained;
+        try {
+            drained = new ChatHarness();
+        } finally {
+            System.clearProperty("chat.admin.socket");
+        }
+        try (ChatHarness closing = drained) {
+            assertTrue(Files.exists(socket));
+            assertEquals(0, closing.getEngine().drain());
+            // the socket file is left for the server taking over
+            assertFalse(Files.exists(socket));
+        }
+    }
+
+    @Test
+    public void drainAsksClientsToReconnect() throws Exception {
+        ScriptedClient alice = harness.join("alice");
+        ScriptedClient bob = harness.join("bob");
+
+        assertEquals(0, harness.getEngine().drain());
+        for (ScriptedClient client : new ScriptedClient[] {alice, bob}) {
+            client.awaitLine(line -> line.startsWith(Protocol.RECONNECT_FRAME), TIMEOUT);
+            assertTrue(client.awaitDisconnected(TIMEOUT));
+        }
+        assertFalse(harness.getModel().isStarted());
+        assertTrue(ChatHarness.await(() -> ChatHarness.countServerThreads() == 0, TIMEOUT),
+            "server threads still running after drain");
+    }
+}
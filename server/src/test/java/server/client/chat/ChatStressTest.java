@@ -0,0 +1,120 @@
+package server.client.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs clients that keep connecting, chatting and disconnecting against one server for a fixed
+ * duration, then checks that the server let go of every session, thread and admission, and
+ * that the heap did not grow beyond what the retained history explains. Only runs when the
+ * system property chat.stress.seconds is set, see the stressTest task.
+ *
+ * @author Robert McKay
+ */
+@Tag("stress")
+public class ChatStressTest {
+    // class constants
+    private static final int WORKERS = 32;
+    private static final long HISTORY_BYTES_PER_MESSAGE = 256;
+    private static final long HEAP_SLACK_BYTES = 32L * 1024 * 1024;
+    private static final int THREAD_SLACK = 16;
+
+    @Test
+    public void churnDoesNotLeakSessionsThreadsOrMemory() throws Exception {
+        long seconds = Long.getLong("chat.stress.seconds", 0);
+        assumeTrue(seconds > 0, "set chat.stress.seconds to run the stress test");
+        int baselineThreads = Thread.activeCount();
+        AtomicLong sent = new AtomicLong();
+        AtomicLong rounds = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        try (ChatHarness harness = new ChatHarness()) {
+            long start = System.currentTimeMillis();
+            long deadline = start + seconds * 1000;
+            List<Thread> workers = new ArrayList<>();
+            for (int w = 0; w < WORKERS; w++) {
+                int worker = w;
+                Thread thread = new Thread(() -> {
+                    try {
+                        churn(harness, worker, deadline, sent, rounds);
+                    } catch (Throwable err) {
+                        failure.compareAndSet(null, err);
+                    }
+                }, "stress-worker-" + w);
+                workers.add(thread);
+                thread.start();
+            }
+
+            // sample the heap once the server has warmed up, then compare at the end
+            Thread.sleep(Math.max(1000, seconds * 250));
+            long sentAtWarmup = sent.get();
+            long heapAtWarmup = usedHeap();
+            for (Thread thread : workers) {
+                thread.join(seconds * 1000 + ChatHarness.TIMEOUT_MILLIS);
+            }
+            if (failure.get() != null) {
+                throw new AssertionError("worker failed", failure.get());
+            }
+
+            ServerModel model = harness.getModel();
+            assertTrue(ChatHarness.await(() -> model.getSessions().isEmpty(), ChatHarness.TIMEOUT_MILLIS),
+                model.getSessions().size() + " sessions left after every client disconnected");
+            assertEquals(0, model.getAdmission().getAdmitted());
+            long heapAtEnd = usedHeap();
+            long allowed = heapAtWarmup + HEAP_SLACK_BYTES + (sent.get() - sentAtWarmup) * HISTORY_BYTES_PER_MESSAGE;
+            assertTrue(heapAtEnd <= allowed, "heap grew from " + heapAtWarmup + " to " + heapAtEnd
+                + " bytes over " + rounds.get() + " sessions and " + sent.get() + " messages");
+        }
+        assertTrue(ChatHarness.await(() -> ChatHarness.countServerThreads() == 0, ChatHarness.TIMEOUT_MILLIS),
+            "server threads still running after the server was killed");
+        assertTrue(ChatHarness.await(() -> Thread.activeCount() <= baselineThreads + THREAD_SLACK,
+            ChatHarness.TIMEOUT_MILLIS), Thread.activeCount() + " threads running, " + baselineThreads + " before");
+    }
+
+    private static void churn(ChatHarness harness, int worker, long deadline, AtomicLong sent, AtomicLong rounds)
+            throws InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int round = 0;
+        while (System.currentTimeMillis() < deadline) {
+            ScriptedClient client = new ScriptedClient("w" + worker + "r" + round++, harness.getModel().getPort());
+            try {
+                client.join(ChatHarness.TIMEOUT_MILLIS);
+                if (random.nextInt(4) == 0) {
+                    client.getModel().sendReliable("/join room" + random.nextInt(4));
+                }
+                int messages = random.nextInt(1, 50);
+                for (int i = 0; i < messages; i++) {
+                    client.getModel().sendReliable("stress " + worker + " " + i);
+                }
+                sent.addAndGet(messages);
+                int expected = messages + 1;
+                ChatHarness.await(() -> client.getDelivered().size() >= expected, ChatHarness.TIMEOUT_MILLIS);
+                if (random.nextBoolean()) {
+                    client.getModel().sendMessage(Protocol.CLIENT_CLOSED);
+                    client.getModel().disconnect();
+                }
+            } finally {
+                client.close();
+            }
+            rounds.incrementAndGet();
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,199 @@
+package server.client.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Links cluster nodes over loopback and checks what each one forwards to the others.
+ *
+ * @author Robert McKay
+ */
+public class ClusterNodeTest {
+    // class constants
+    private static final long TIMEOUT = ChatHarness.TIMEOUT_MILLIS;
+    // long enough for a frame to cross a loopback link
+    private static final long QUIET_MILLIS = 300;
+    // the pause between two rounds of a node's connector
+    private static final long DIAL_ROUND_MILLIS = 2000;
+
+    // class data members
+    private final List<ClusterNode> nodes = new ArrayList<>();
+
+    /**
+     * Inner class. Collects what a node delivers, one line per message, edit or delete.
+     */
+    private static class Inbox implements ClusterNode.Delivery {
+        private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+        @Override
+        public void deliver(String room, String sender, String body) {
+            received.add(room + " " + sender + " " + body);
+        }
+
+        @Override
+        public void amend(String room, String sender, String body) {
+            received.add(body == null ? "deleted " + room + " " + sender
+                : "edited " + room + " " + sender + " " + body);
+        }
+
+        String next(long timeoutMillis) throws InterruptedException {
+            return received.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @AfterEach
+    public void stopNodes() {
+        for (ClusterNode node : nodes) {
+            node.stop();
+        }
+    }
+
+    @Test
+    public void roomMessagesOnlyReachNodesSubscribedToTheRoom() throws Exception {
+        Inbox toB = new Inbox();
+        Inbox toC = new Inbox();
+        ClusterNode a = start("a", 0, new Inbox());
+        ClusterNode b = start("b", 0, toB, a.getPort());
+        ClusterNode c = start("c", 0, toC, a.getPort(), b.getPort());
+        awaitMesh(a, b, c);
+
+        b.subscribe("lobby");
+        assertTrue(ChatHarness.await(() -> a.getPeerCount("lobby") == 1 && c.getPeerCount("lobby") == 1, TIMEOUT));
+        a.publish("lobby", "alice", "hello b");
+        a.publish("general", "alice", "nobody listens");
+        c.publish("lobby", "carol", "hello from c");
+        // two nodes publishing are not ordered against each other
+        Set<String> received = new HashSet<>(Arrays.asList(toB.next(TIMEOUT), toB.next(TIMEOUT)));
+        assertEquals(new HashSet<>(Arrays.asList("lobby alice hello b", "lobby carol hello from c")), received);
+        assertNull(toB.next(QUIET_MILLIS));
+        assertNull(toC.next(QUIET_MILLIS));
+
+        b.unsubscribe("lobby");
+        assertTrue(ChatHarness.await(() -> a.getPeerCount("lobby") == 0 && c.getPeerCount("lobby") == 0, TIMEOUT));
+        a.publish("lobby", "alice", "gone");
+        assertNull(toB.next(QUIET_MILLIS));
+    }
+
+    @Test
+    public void aBurstOfMessagesTravelsInBatches() throws Exception {
+        ClusterNode a = start("a", 0, new Inbox());
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), a.getPort())) {
+            socket.setSoTimeout((int) TIMEOUT);
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            out.write("HELLO probe\nSUB lobby\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("HELLO a", reader.readLine());
+            assertTrue(ChatHarness.await(() -> a.getPeerCount("lobby") == 1, TIMEOUT));
+
+            int total = 1000;
+            for (int i = 0; i < total; i++) {
+                a.publish("lobby", "alice", "m" + i);
+            }
+            int received = 0;
+            int batches = 0;
+            while (received < total) {
+                String frame = reader.readLine();
+                assertTrue(frame.startsWith("BATCH "), "expected a batch, got " + frame);
+                int count = Integer.parseInt(frame.substring("BATCH ".length()));
+                assertTrue(count >= 1 && count <= 256, "batch of " + count);
+                for (int i = 0; i < count; i++) {
+                    assertEquals("lobby alice m" + received++, reader.readLine());
+                }
+                batches++;
+            }
+            assertTrue(batches < total / 10, total + " messages took " + batches + " batches");
+        }
+    }
+
+    @Test
+    public void nodesDialingEachOtherKeepOneLink() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        Inbox toB = new Inbox();
+        ClusterNode a = start("a", portA, new Inbox(), portB);
+        ClusterNode b = start("b", portB, toB, portA);
+        awaitMesh(a, b);
+        // both connectors have dialed by now, each link has been resolved against the other
+        Thread.sleep(2 * DIAL_ROUND_MILLIS);
+        assertEquals(1, a.getPeerCount());
+        assertEquals(1, b.getPeerCount());
+
+        b.subscribe("lobby");
+        assertTrue(ChatHarness.await(() -> a.getPeerCount("lobby") == 1, TIMEOUT));
+        for (int i = 0; i < 10; i++) {
+            a.publish("lobby", "alice", "m" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals("lobby alice m" + i, toB.next(TIMEOUT));
+        }
+        assertNull(toB.next(QUIET_MILLIS));
+    }
+
+    @Test
+    public void editsAndDeletesFollowTheMessageTheyChange() throws Exception {
+        Inbox toB = new Inbox();
+        ClusterNode a = start("a", 0, new Inbox());
+        ClusterNode b = start("b", 0, toB, a.getPort());
+        awaitMesh(a, b);
+        b.subscribe("lobby");
+        assertTrue(ChatHarness.await(() -> a.getPeerCount("lobby") == 1, TIMEOUT));
+
+        a.publish("lobby", "alice", "helo");
+        a.amend("lobby", "alice", "hello");
+        a.publish("lobby", "alice", "oops");
+        a.amend("lobby", "alice", null);
+        a.amend("general", "alice", "not subscribed");
+        assertEquals("lobby alice helo", toB.next(TIMEOUT));
+        assertEquals("edited lobby alice hello", toB.next(TIMEOUT));
+        assertEquals("lobby alice oops", toB.next(TIMEOUT));
+        assertEquals("deleted lobby alice", toB.next(TIMEOUT));
+        assertNull(toB.next(QUIET_MILLIS));
+    }
+
+    private ClusterNode start(String nodeId, int port, Inbox inbox, int... seedPorts) {
+        List<InetSocketAddress> seeds = new ArrayList<>();
+        for (int seedPort : seedPorts) {
+            seeds.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), seedPort));
+        }
+        ClusterNode node = new ClusterNode(nodeId, port, seeds, inbox);
+        nodes.add(node);
+        node.start();
+        return node;
+    }
+
+    private static void awaitMesh(ClusterNode... mesh) throws InterruptedException {
+        for (ClusterNode node : mesh) {
+            assertTrue(ChatHarness.await(() -> node.getPeerCount() == mesh.length - 1, TIMEOUT),
+                node.getNodeId() + " linked with " + node.getPeerCount() + " nodes");
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+}
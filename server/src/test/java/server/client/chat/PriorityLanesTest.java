@@ -0,0 +1,71 @@
+package server.client.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the lane order and capacities of the outbound queue of a session.
+ *
+ * @author Robert McKay
+ */
+public class PriorityLanesTest {
+    @Test
+    public void controlFramesOvertakeChatAndBulkKeepsMoving() {
+        PriorityLanes<String> lanes = new PriorityLanes<>(2, 4, 4, 2);
+        for (int n = 0; n < 4; n++) {
+            assertTrue(lanes.offer(PriorityLanes.BULK, "bulk" + n));
+            assertTrue(lanes.offer(PriorityLanes.CHAT, "chat" + n));
+        }
+        assertTrue(lanes.offer(PriorityLanes.CONTROL, "close"));
+        assertEquals(1, lanes.size(PriorityLanes.CONTROL));
+        assertEquals(9, lanes.size());
+
+        assertEquals(List.of("close", "chat0", "chat1", "bulk0", "chat2", "chat3", "bulk1", "bulk2", "bulk3"),
+            drain(lanes));
+        assertEquals(0, lanes.size());
+    }
+
+    @Test
+    public void aFullLaneRefusesOnlyItsOwnFrames() {
+        PriorityLanes<String> lanes = new PriorityLanes<>(1, 2, 1, 2);
+        assertTrue(lanes.offer(PriorityLanes.CHAT, "chat0"));
+        assertTrue(lanes.offer(PriorityLanes.CHAT, "chat1"));
+        assertFalse(lanes.offer(PriorityLanes.CHAT, "chat2"));
+        assertTrue(lanes.offer(PriorityLanes.CONTROL, "close"));
+        assertTrue(lanes.offer(PriorityLanes.BULK, "bulk0"));
+        assertFalse(lanes.offer(PriorityLanes.BULK, "bulk1"));
+        assertEquals(4, lanes.size());
+
+        lanes.clear();
+        assertEquals(0, lanes.size());
+        assertEquals(0, lanes.size(PriorityLanes.CHAT));
+        assertTrue(lanes.offer(PriorityLanes.CHAT, "chat3"));
+        assertThrows(IllegalArgumentException.class, () -> new PriorityLanes<String>(1, 0, 1, 1));
+    }
+
+    @Test
+    public void anEmptyQueueHandsOutNothingUntilAFrameIsQueued() {
+        PriorityLanes<String> lanes = new PriorityLanes<>(2, 4, 4, 2);
+        assertNull(lanes.poll());
+        lanes.offer(PriorityLanes.BULK, "bulk0");
+        assertEquals("bulk0", lanes.poll());
+        assertNull(lanes.poll());
+        assertEquals(0, lanes.size());
+    }
+
+    private static List<String> drain(PriorityLanes<String> lanes) {
+        List<String> order = new ArrayList<>();
+        String frame;
+        while ((frame = lanes.poll()) != null) {
+            order.add(frame);
+        }
+        return order;
+    }
+}
@@ -0,0 +1,223 @@
+package server.client.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * A client model driven by a test instead of a view. Everything the model reports is recorded
+ * so the test can wait for it.
+ *
+ * @author Robert McKay
+ */
+public class ScriptedClient implements ClientModelListener {
+    // class data members
+    private final String name;
+    private final ClientModel model;
+    private final BlockingQueue<String> lines;
+    private final List<String> delivered;
+    private final Map<Integer, ByteArrayOutputStream> files;
+    private final CountDownLatch connected;
+    private final CountDownLatch disconnected;
+    private volatile String failure;
+
+    /**
+     * Constructor. Does not connect yet.
+     * @param name Nickname the client registers once connected.
+     * @param port Port of the server on the loopback address.
+     */
+    public ScriptedClient(String name, int port) {
+        this.name = name;
+        model = new ClientModel(InetAddress.getLoopbackAddress(), port);
+        model.setListener(this);
+        lines = new LinkedBlockingQueue<>();
+        delivered = new ArrayList<>();
+        files = new HashMap<>();
+        connected = new CountDownLatch(1);
+        disconnected = new CountDownLatch(1);
+    }
+
+    /**
+     * Accessor method for the name.
+     * @return The nickname of the client.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Accessor method for the model.
+     * @return The model driven by this client.
+     */
+    public ClientModel getModel() {
+        return model;
+    }
+
+    /**
+     * Connects and registers the nickname.
+     * @param timeoutMillis How long to wait for each step.
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws AssertionError If the client fails to connect or register in time.
+     */
+    public void join(long timeoutMillis) throws InterruptedException {
+        connect(timeoutMillis);
+        model.sendReliable("/nick " + name);
+        awaitLine(line -> line.equals("Nickname set to " + name), timeoutMillis);
+    }
+
+    /**
+     * Connects without registering a nickname.
+     * @param timeoutMillis How long to wait.
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws AssertionError If the client fails to connect in time.
+     */
+    public void connect(long timeoutMillis) throws InterruptedException {
+        model.connect();
+        if (!connected.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new AssertionError(name + " did not connect: " + failure);
+        }
+    }
+
+    /**
+     * Waits for a line from the server, skipping the lines that do not match.
+     * @param match Test the line must pass.
+     * @param timeoutMillis How long to wait.
+     * @return The first matching line.
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws AssertionError If no matching line arrives in time.
+     */
+    public String awaitLine(Predicate<String> match, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            String line = lines.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (line == null) {
+                throw new AssertionError(name + " did not receive the expected line in time");
+            }
+            if (match.test(line)) {
+                return line;
+            }
+        }
+    }
+
+    /**
+     * Collects the room messages received so far and until the expected count is reached.
+     * @param count The number of room messages to wait for.
+     * @param timeoutMillis How long to wait.
+     * @return The room messages in arrival order.
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws AssertionError If fewer messages arrive in time.
+     */
+    public List<String> awaitRoomMessages(int count, long timeoutMillis) throws InterruptedException {
+        List<String> received = new ArrayList<>(count);
+        while (received.size() < count) {
+            try {
+                received.add(awaitLine(line -> line.startsWith("["), timeoutMillis));
+            } catch (AssertionError err) {
+                throw new AssertionError(name + " received " + received.size() + " of " + count + " messages");
+            }
+        }
+        return received;
+    }
+
+    /**
+     * Takes every line received so far that no wait has consumed yet.
+     * @return The lines in arrival order.
+     */
+    public List<String> takeLines() {
+        List<String> taken = new ArrayList<>();
+        lines.drainTo(taken);
+        return taken;
+    }
+
+    /**
+     * Waits until the connection is lost without the client asking for it.
+     * @param timeoutMillis How long to wait.
+     * @return True if the connection was lost in time.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean awaitDisconnected(long timeoutMillis) throws InterruptedException {
+        return disconnected.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Accessor method for the delivered messages.
+     * @return Copy of the messages the server acknowledged, in acknowledgement order.
+     */
+    public synchronized List<String> getDelivered() {
+        return new ArrayList<>(delivered);
+    }
+
+    /**
+     * Waits for the bytes of a file transfer. Chunks are kept in arrival order, so a transfer
+     * resumed from an offset holds the bytes from that offset on.
+     * @param transferId The transfer to wait for.
+     * @param length The number of bytes to wait for.
+     * @param timeoutMillis How long to wait.
+     * @return The bytes received for the transfer.
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws AssertionError If fewer bytes arrive in time.
+     */
+    public synchronized byte[] awaitFile(int transferId, int length, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (received(transferId) < length) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new AssertionError(name + " received " + received(transferId) + " of " + length + " bytes");
+            }
+            wait(left);
+        }
+        return files.get(transferId).toByteArray();
+    }
+
+    private int received(int transferId) {
+        ByteArrayOutputStream file = files.get(transferId);
+        return file == null ? 0 : file.size();
+    }
+
+    /**
+     * Closes the connection and stops the model.
+     */
+    public void close() {
+        model.shutdown();
+    }
+
+    @Override
+    public void onConnected() {
+        connected.countDown();
+    }
+
+    @Override
+    public void onConnectFailed(String reason) {
+        failure = reason;
+    }
+
+    @Override
+    public void onMessage(String message) {
+        lines.add(message);
+    }
+
+    @Override
+    public synchronized void onDelivered(String message) {
+        delivered.add(message);
+    }
+
+    @Override
+    public synchronized void onChunk(int transferId, long offset, byte[] data, int length) {
+        files.computeIfAbsent(transferId, id -> new ByteArrayOutputStream()).write(data, 0, length);
+        notifyAll();
+    }
+
+    @Override
+    public void onDisconnected(String reason) {
+        disconnected.countDown();
+    }
+}